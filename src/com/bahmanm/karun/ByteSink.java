@@ -0,0 +1,235 @@
+/*
+ * Karun, a package manager for ArchLinux based on 'pacman'.
+ * Copyright (C) 2011  Bahman Movaqar
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, 
+ * USA.
+ */
+package com.bahmanm.karun;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * ByteSink
+ *
+ * Buffered writer which encodes text straight into its byte buffer, so
+ * writing a field doesn't create any intermediate strings or arrays.  Text is
+ * always written as UTF-8.
+ *
+ * @author Bahman Movaqar (Bahman AT BahmanM.com)
+ */
+public class ByteSink {
+
+	/** Default buffer size */
+	private static final int BUFFER_SIZE = 64 * 1024;
+	/** Underlying stream */
+	private final OutputStream out;
+	/** Buffer */
+	private final byte[] buf;
+	/** Number of bytes in 'buf' */
+	private int pos;
+	/** Scratch space for decimal numbers */
+	private final byte[] digits = new byte[20];
+
+	/**
+	 * Constructor
+	 *
+	 * @param out Underlying stream
+	 */
+	public ByteSink(OutputStream out) {
+		this(out, BUFFER_SIZE);
+	}
+
+	/**
+	 * Constructor
+	 *
+	 * @param out Underlying stream
+	 * @param size Buffer size; at least 8 bytes
+	 */
+	public ByteSink(OutputStream out, int size) {
+		this.out = out;
+		buf = new byte[Math.max(size, 8)];
+	}
+
+	/**
+	 * Writes one byte.
+	 *
+	 * @param b Byte
+	 */
+	public void writeByte(int b) throws IOException {
+		if (pos == buf.length)
+			drain();
+		buf[pos++] = (byte) b;
+	}
+
+	/**
+	 * Writes a range of bytes.
+	 *
+	 * @param b Bytes
+	 * @param off Offset
+	 * @param len Length
+	 */
+	public void writeBytes(byte[] b, int off, int len) throws IOException {
+		while (len > 0) {
+			if (pos == buf.length)
+				drain();
+			int n = Math.min(len, buf.length - pos);
+			System.arraycopy(b, off, buf, pos, n);
+			pos += n;
+			off += n;
+			len -= n;
+		}
+	}
+
+	/**
+	 * Writes text as UTF-8.
+	 *
+	 * @param s Text
+	 */
+	public void writeUtf8(String s) throws IOException {
+		writeUtf8(s, 0, s.length());
+	}
+
+	/**
+	 * Writes part of a text as UTF-8.
+	 *
+	 * @param s Text
+	 * @param from First char, inclusive
+	 * @param to Last char, exclusive
+	 */
+	public void writeUtf8(String s, int from, int to) throws IOException {
+		for (int i = from; i < to; i++) {
+			char c = s.charAt(i);
+			if (pos + 4 > buf.length)
+				drain();
+			if (c < 0x80) {
+				buf[pos++] = (byte) c;
+			} else if (c < 0x800) {
+				buf[pos++] = (byte) (0xc0 | (c >> 6));
+				buf[pos++] = (byte) (0x80 | (c & 0x3f));
+			} else if (Character.isHighSurrogate(c) && i + 1 < to
+					&& Character.isLowSurrogate(s.charAt(i + 1))) {
+				int cp = Character.toCodePoint(c, s.charAt(++i));
+				buf[pos++] = (byte) (0xf0 | (cp >> 18));
+				buf[pos++] = (byte) (0x80 | ((cp >> 12) & 0x3f));
+				buf[pos++] = (byte) (0x80 | ((cp >> 6) & 0x3f));
+				buf[pos++] = (byte) (0x80 | (cp & 0x3f));
+			} else if (isSurrogate(c)) {
+				buf[pos++] = (byte) '?';
+			} else {
+				buf[pos++] = (byte) (0xe0 | (c >> 12));
+				buf[pos++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+				buf[pos++] = (byte) (0x80 | (c & 0x3f));
+			}
+		}
+	}
+
+	/**
+	 * Writes a number in decimal.
+	 *
+	 * @param v Number
+	 */
+	public void writeDecimal(long v) throws IOException {
+		if (v == Long.MIN_VALUE) {
+			writeUtf8(Long.toString(v));
+			return;
+		}
+		if (v < 0) {
+			writeByte('-');
+			v = -v;
+		}
+		int n = 0;
+		do {
+			digits[n++] = (byte) ('0' + (v % 10));
+			v /= 10;
+		} while (v != 0);
+		while (n > 0)
+			writeByte(digits[--n]);
+	}
+
+	/**
+	 * Writes a non-negative number as an unsigned LEB128 varint.
+	 *
+	 * @param v Number
+	 */
+	public void writeVarLong(long v) throws IOException {
+		while ((v & ~0x7fL) != 0) {
+			writeByte((int) ((v & 0x7f) | 0x80));
+			v >>>= 7;
+		}
+		writeByte((int) v);
+	}
+
+	/**
+	 * Writes a string as its UTF-8 length (varint) followed by its UTF-8
+	 * bytes.
+	 *
+	 * @param s String
+	 */
+	public void writeString(String s) throws IOException {
+		writeVarLong(utf8Length(s));
+		writeUtf8(s);
+	}
+
+	/**
+	 * Computes the UTF-8 length of a string without encoding it.
+	 *
+	 * @param s String
+	 * @return Length in bytes
+	 */
+	public static int utf8Length(String s) {
+		int n = 0;
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			if (c < 0x80) {
+				n++;
+			} else if (c < 0x800) {
+				n += 2;
+			} else if (Character.isHighSurrogate(c) && i + 1 < s.length()
+					&& Character.isLowSurrogate(s.charAt(i + 1))) {
+				n += 4;
+				i++;
+			} else if (isSurrogate(c)) {
+				n++;
+			} else {
+				n += 3;
+			}
+		}
+		return n;
+	}
+
+	private static boolean isSurrogate(char c) {
+		return c >= '\uD800' && c <= '\uDFFF';
+	}
+
+	/**
+	 * Writes buffered bytes to the underlying stream and flushes it.
+	 */
+	public void flush() throws IOException {
+		drain();
+		out.flush();
+	}
+
+	/**
+	 * Writes buffered bytes to the underlying stream.
+	 */
+	private void drain() throws IOException {
+		if (pos > 0) {
+			out.write(buf, 0, pos);
+			pos = 0;
+		}
+	}
+}
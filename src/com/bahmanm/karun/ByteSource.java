@@ -0,0 +1,179 @@
+/*
+ * Karun, a package manager for ArchLinux based on 'pacman'.
+ * Copyright (C) 2011  Bahman Movaqar
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, 
+ * USA.
+ */
+package com.bahmanm.karun;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+
+/**
+ * ByteSource
+ *
+ * Buffered reader for what a ByteSink writes: raw bytes, varints and
+ * length-prefixed UTF-8 strings.
+ *
+ * @author Bahman Movaqar (Bahman AT BahmanM.com)
+ */
+public class ByteSource {
+
+	/** Default buffer size */
+	private static final int BUFFER_SIZE = 64 * 1024;
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	/** Underlying stream */
+	private final InputStream in;
+	/** Buffer */
+	private byte[] buf;
+	/** Position of the next byte in 'buf' */
+	private int pos;
+	/** Number of valid bytes in 'buf' */
+	private int limit;
+
+	/**
+	 * Constructor
+	 *
+	 * @param in Underlying stream
+	 */
+	public ByteSource(InputStream in) {
+		this(in, BUFFER_SIZE);
+	}
+
+	/**
+	 * Constructor
+	 *
+	 * @param in Underlying stream
+	 * @param size Initial buffer size; at least 8 bytes
+	 */
+	public ByteSource(InputStream in, int size) {
+		this.in = in;
+		buf = new byte[Math.max(size, 8)];
+	}
+
+	/**
+	 * Reads one byte.
+	 *
+	 * @return Byte, 0 to 255
+	 * @throws EOFException if the stream ended
+	 */
+	public int readByte() throws IOException {
+		if (pos == limit && !fill(1))
+			throw new EOFException();
+		return buf[pos++] & 0xff;
+	}
+
+	/**
+	 * Reads exactly 'len' bytes.
+	 *
+	 * @param b Destination
+	 * @param off Offset
+	 * @param len Length
+	 * @throws EOFException if the stream ended
+	 */
+	public void readBytes(byte[] b, int off, int len) throws IOException {
+		while (len > 0) {
+			if (pos == limit && !fill(1))
+				throw new EOFException();
+			int n = Math.min(len, limit - pos);
+			System.arraycopy(buf, pos, b, off, n);
+			pos += n;
+			off += n;
+			len -= n;
+		}
+	}
+
+	/**
+	 * Reads an unsigned LEB128 varint.
+	 *
+	 * @return Number
+	 */
+	public long readVarLong() throws IOException {
+		long v = 0;
+		for (int shift = 0; shift < 64; shift += 7) {
+			int b = readByte();
+			v |= (long) (b & 0x7f) << shift;
+			if ((b & 0x80) == 0)
+				return v;
+		}
+		throw new IOException("Malformed varint");
+	}
+
+	/**
+	 * Reads a varint which must fit an int, e.g. a length or a count.
+	 *
+	 * @return Number
+	 */
+	public int readVarInt() throws IOException {
+		long v = readVarLong();
+		if (v < 0 || v > Integer.MAX_VALUE)
+			throw new IOException("Value out of range: " + v);
+		return (int) v;
+	}
+
+	/**
+	 * Reads a string written by ByteSink.writeString.
+	 *
+	 * @return String
+	 */
+	public String readString() throws IOException {
+		int len = readVarInt();
+		if (len > buf.length)
+			buf = growBuffer(len);
+		if (limit - pos < len && !fill(len))
+			throw new EOFException();
+		String s = new String(buf, pos, len, UTF8);
+		pos += len;
+		return s;
+	}
+
+	/**
+	 * Makes sure at least 'n' bytes are buffered.
+	 *
+	 * @param n Number of bytes; at most the buffer size
+	 * @return false if the stream ended first
+	 */
+	private boolean fill(int n) throws IOException {
+		if (pos > 0) {
+			System.arraycopy(buf, pos, buf, 0, limit - pos);
+			limit -= pos;
+			pos = 0;
+		}
+		while (limit < n) {
+			int r = in.read(buf, limit, buf.length - limit);
+			if (r < 0)
+				return false;
+			limit += r;
+		}
+		return true;
+	}
+
+	/**
+	 * Copies the buffer into a bigger one.
+	 *
+	 * @param size Minimum size
+	 * @return New buffer
+	 */
+	private byte[] growBuffer(int size) {
+		byte[] b = new byte[Math.max(size, buf.length * 2)];
+		System.arraycopy(buf, pos, b, 0, limit - pos);
+		limit -= pos;
+		pos = 0;
+		return b;
+	}
+}
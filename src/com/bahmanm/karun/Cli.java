@@ -0,0 +1,972 @@
+/*
+ * Karun, a package manager for ArchLinux based on 'pacman'.
+ * Copyright (C) 2011  Bahman Movaqar
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, 
+ * USA.
+ */
+package com.bahmanm.karun;
+
+import com.bahmanm.karun.PackageCollection.Package;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilenameFilter;
+import java.io.FileOutputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Cli
+ *
+ * Command line interface, used when Karun is started with arguments.
+ *
+ * @author Bahman Movaqar (Bahman AT BahmanM.com)
+ */
+public class Cli {
+
+	/** Where results go */
+	private final PrintStream out;
+	/** Where errors go */
+	private final PrintStream err;
+
+	/**
+	 * Constructor
+	 *
+	 * @param out Where results go
+	 * @param err Where errors go
+	 */
+	public Cli(PrintStream out, PrintStream err) {
+		this.out = out;
+		this.err = err;
+	}
+
+	/**
+	 * Runs a command.
+	 *
+	 * @param args Command and its arguments
+	 * @return Exit status
+	 */
+	public int run(String[] args) {
+		if (args.length == 0 || args[0].equals("help") || args[0].equals("--help")) {
+			usage();
+			return args.length == 0 ? 1 : 0;
+		}
+		Options options = new Options(args);
+		String command = args[0];
+		try {
+			if (command.equals("export"))
+				return export(options);
+			if (command.equals("snapshot"))
+				return snapshot(options);
+			if (command.equals("diff"))
+				return diff(options);
+			if (command.equals("rank-mirrors"))
+				return rankMirrors(options);
+			if (command.equals("refresh"))
+				return refresh(options);
+			if (command.equals("prefetch"))
+				return prefetch(options);
+			if (command.equals("changes"))
+				return changes(options);
+			if (command.equals("benchmark-codecs"))
+				return benchmarkCodecs(options);
+			if (command.equals("roots"))
+				return roots(options);
+			if (command.equals("daemon"))
+				return daemon(options);
+			if (command.equals("query"))
+				return query(options);
+			if (command.equals("history"))
+				return history(options);
+			if (command.equals("groups"))
+				return groups(options);
+			if (command.equals("resolve"))
+				return resolve(options);
+			if (command.equals("dry-run"))
+				return dryRun(options);
+			if (command.equals("search"))
+				return search(options);
+			if (command.equals("state-history"))
+				return stateHistory(options);
+			if (command.equals("orphans"))
+				return orphans(options);
+			err.println("Unknown command '" + command + "'.");
+			usage();
+			return 1;
+		} catch (IllegalArgumentException ex) {
+			err.println(ex.getMessage());
+			return 1;
+		} catch (Exception ex) {
+			err.println("Error: " + ex);
+			return 2;
+		}
+	}
+
+	/**
+	 * Prints usage information.
+	 */
+	private void usage() {
+		err.println("Usage: java -jar Karun.jar <command> [options]");
+		err.println();
+		err.println("Commands:");
+		err.println("  export [--format=jsonl|csv|binary] [--repo=<repo>|*all*] [<file>]");
+		err.println("      Writes the installed packages, with the repository and version");
+		err.println("      they have there, or all packages of a repository, to <file> or");
+		err.println("      standard output.");
+		err.println("  snapshot [--repo=<repo>|*all*] <file>");
+		err.println("      Saves a snapshot of the installed packages, or all packages of");
+		err.println("      a repository, to <file>.");
+		err.println("  diff <old snapshot> <new snapshot>");
+		err.println("      Lists packages added (+), removed (-), upgraded (>) and");
+		err.println("      downgraded (<) between two snapshots.");
+		err.println("  rank-mirrors [--repo=<repo>] [--parallel=<n>] [--timeout=<ms>]");
+		err.println("               [--sample=<bytes>] [<file>]");
+		err.println("      Probes the servers of a repository (default: the first one)");
+		err.println("      and writes them as a mirrorlist, fastest first.");
+		err.println("  refresh [--parallel=<n>] [--timeout=<ms>] [<repo>...]");
+		err.println("      Downloads the sync databases of all (or the given) repositories");
+		err.println("      which changed on the server.");
+		err.println("  prefetch [--repo=<repo>|*all*] [--parallel=<n>] [--rate=<KiB/s>]");
+		err.println("           [--timeout=<ms>] [--cache-dir=<dir>]");
+		err.println("      Downloads the packages of pending upgrades into the cache.");
+		err.println("  changes [--verbose] [<repo>...]");
+		err.println("      Lists new, updated and removed packages of all (or the given)");
+		err.println("      repositories since the last 'refresh' or 'changes'.");
+		err.println("  benchmark-codecs [--runs=<n>] [<file>...]");
+		err.println("      Measures how fast the given files, or the sync databases and");
+		err.println("      cached packages, are decompressed, per file and per format.");
+		err.println("  roots --conf=<path>|--root=<path> [...] [--parallel=<n>]");
+		err.println("      Loads many roots (containers, chroots) at once and lists their");
+		err.println("      installed and outdated packages.  '<root>/etc/pacman.conf' is");
+		err.println("      read with its paths inside <root>.");
+		err.println("  daemon [--port=<n>] [--interval=<seconds>]");
+		err.println("      Keeps the databases in memory and answers 'query' requests");
+		err.println("      until killed.");
+		err.println("  query search <query>|info <name>|outdated|owner <path>|orphans|ping");
+		err.println("      Asks the running daemon.");
+		err.println("  history [--log=<path>] [--limit=<n>] [<package>...]");
+		err.println("      Lists when the given packages were installed, upgraded and");
+		err.println("      removed, or the latest <n> (default 20) changes of any package.");
+		err.println("  groups [--repo=<repo>|*all*] [<group>...]");
+		err.println("      Lists the groups, or the members of the given groups.");
+		err.println("  resolve [--repo=<repo>|*all*] <dependency>...");
+		err.println("      Lists the packages satisfying each dependency, e.g. 'sh' or");
+		err.println("      'libfoo.so>=1-64'.");
+		err.println("  dry-run [--sysupgrade] [<package>...]");
+		err.println("      Predicts what installing the given packages, and upgrading");
+		err.println("      everything with --sysupgrade, would do to the system.");
+		err.println("  search [--repo=<repo>|*all*] <query>");
+		err.println("      Lists the packages matching a query, e.g. 'repo:core installed");
+		err.println("      outdated desc:ssl size>10M' (see README).");
+		err.println("  state-history [list [--limit=<n>]|record|show <state>|");
+		err.println("                diff <state> [<state>]|export <state> <file>]");
+		err.println("      Lists the recorded states of the installed packages, records");
+		err.println("      the current one, or shows, compares (by default with the");
+		err.println("      latest) or saves as a snapshot a past one.  A state is its");
+		err.println("      number, 'latest' or a time as 'yyyy-MM-dd[ HH:mm]'.");
+		err.println("  orphans [--verbose]");
+		err.println("      Lists the installed packages nothing explicitly installed");
+		err.println("      needs, one name per line, e.g. for 'pacman -Rns'.");
+		err.println();
+		err.println("Common options:");
+		err.println("  --conf=<path>  pacman.conf to use (default /etc/pacman.conf); the last");
+		err.println("                 one counts if given more than once, except for 'roots'");
+		err.println("  --root=<path>  root directory whose paths pacman.conf refers to, as");
+		err.println("                 pacman's --sysroot (default the one of '<root>/etc/");
+		err.println("                 pacman.conf', else /)");
+	}
+
+	/**
+	 * export: streams a package inventory.
+	 *
+	 * @param options Options
+	 * @return Exit status
+	 */
+	private int export(Options options) throws Exception {
+		InventoryExporter.Format format;
+		try {
+			format = InventoryExporter.Format.parse(options.get("format", "jsonl"));
+		} catch (IllegalArgumentException ex) {
+			throw new IllegalArgumentException("Unknown format '" + options.get("format", "") + "'.");
+		}
+		Collection<Package> packages = getPackages(options);
+
+		List<String> files = options.getArguments();
+		OutputStream os = files.isEmpty() ? out
+				: new BufferedOutputStream(new FileOutputStream(files.get(0)));
+		try {
+			new InventoryExporter(format).export(packages, os);
+		} finally {
+			if (os != out)
+				os.close();
+		}
+		return 0;
+	}
+
+	/**
+	 * snapshot: saves a snapshot of a package set.
+	 *
+	 * @param options Options
+	 * @return Exit status
+	 */
+	private int snapshot(Options options) throws Exception {
+		List<String> files = options.getArguments();
+		if (files.size() != 1)
+			throw new IllegalArgumentException("snapshot needs exactly one file.");
+		Snapshot snapshot = Snapshot.of(getPackages(options));
+		OutputStream os = new FileOutputStream(files.get(0));
+		try {
+			snapshot.write(os);
+		} finally {
+			os.close();
+		}
+		return 0;
+	}
+
+	/**
+	 * diff: compares two snapshots.
+	 *
+	 * @param options Options
+	 * @return Exit status; 0 if the snapshots have the same packages, 3 if not
+	 */
+	private int diff(Options options) throws Exception {
+		List<String> files = options.getArguments();
+		if (files.size() != 2)
+			throw new IllegalArgumentException("diff needs exactly two files.");
+		SnapshotDiff diff = SnapshotDiff.compute(readSnapshot(files.get(0)),
+				readSnapshot(files.get(1)));
+		for (SnapshotDiff.Entry e : diff.getEntries())
+			out.println(e);
+		out.flush();
+		return diff.isEmpty() ? 0 : 3;
+	}
+
+	/**
+	 * rank-mirrors: probes the servers of a repository and writes a ranked
+	 * mirrorlist.
+	 *
+	 * @param options Options
+	 * @return Exit status; 3 if no server could be reached
+	 */
+	private int rankMirrors(Options options) throws Exception {
+		PacmanConfHelper conf = getConf(options);
+		String repo = options.get("repo", null);
+		if (repo == null) {
+			if (conf.getRepos().isEmpty())
+				throw new IllegalArgumentException("No repositories configured.");
+			repo = conf.getRepos().get(0);
+		}
+		List<String> servers = conf.getServers(repo);
+		if (servers.isEmpty())
+			throw new IllegalArgumentException("No servers configured for '" + repo + "'.");
+
+		MirrorRanker ranker = new MirrorRanker(
+				options.getInt("parallel", MirrorRanker.DEFAULT_PARALLELISM),
+				options.getInt("timeout", MirrorRanker.DEFAULT_TIMEOUT),
+				options.getInt("sample", MirrorRanker.DEFAULT_SAMPLE_SIZE));
+		List<MirrorRanker.Result> results = ranker.rank(conf, repo, servers);
+
+		List<String> files = options.getArguments();
+		PrintWriter pw = files.isEmpty() ? new PrintWriter(out)
+				: new PrintWriter(new FileWriter(files.get(0)));
+		try {
+			MirrorRanker.writeMirrorlist(results, pw);
+		} finally {
+			if (!files.isEmpty())
+				pw.close();
+		}
+		return results.get(0).getError() == null ? 0 : 3;
+	}
+
+	/**
+	 * refresh: downloads changed sync databases.
+	 *
+	 * @param options Options
+	 * @return Exit status; 3 if any repository failed
+	 */
+	private int refresh(Options options) throws Exception {
+		PacmanConfHelper conf = getConf(options);
+		List<String> repos = options.getArguments();
+		if (repos.isEmpty())
+			repos = conf.getRepos();
+		SyncDbRefresher refresher = new SyncDbRefresher(conf,
+				options.getInt("parallel", SyncDbRefresher.DEFAULT_PARALLELISM),
+				options.getInt("timeout", SyncDbRefresher.DEFAULT_TIMEOUT));
+		int status = 0;
+		List<SyncDbRefresher.Result> results = refresher.refresh(repos);
+		for (SyncDbRefresher.Result r : results) {
+			if (r.getStatus() == SyncDbRefresher.Status.UPDATED) {
+				out.println(r.getRepo() + " updated");
+			} else if (r.getStatus() == SyncDbRefresher.Status.NOT_MODIFIED) {
+				out.println(r.getRepo() + " is up to date");
+			} else {
+				out.println(r.getRepo() + " failed: " + r.getError());
+				status = 3;
+			}
+		}
+		List<SyncDbChangeFeed.ChangeSet> changes = new SyncDbChangeFeed(conf.getDbPath())
+				.update(SyncDbRefresher.getUpdated(results));
+		for (SyncDbChangeFeed.ChangeSet c : changes)
+			out.println(c.getSummary());
+		out.flush();
+		return status;
+	}
+
+	/**
+	 * changes: lists what changed in sync databases since they were last
+	 * looked at, e.g. after 'pacman -Sy'.
+	 *
+	 * @param options Options
+	 * @return Exit status
+	 */
+	private int changes(Options options) throws Exception {
+		PacmanConfHelper conf = getConf(options);
+		List<String> repos = options.getArguments();
+		if (repos.isEmpty())
+			repos = conf.getRepos();
+		boolean verbose = options.get("verbose", null) != null;
+		for (SyncDbChangeFeed.ChangeSet c : new SyncDbChangeFeed(conf.getDbPath()).update(repos)) {
+			out.println(c.getSummary());
+			if (verbose && c.getDiff() != null) {
+				for (SnapshotDiff.Entry e : c.getDiff().getEntries())
+					out.println("  " + e);
+			}
+		}
+		out.flush();
+		return 0;
+	}
+
+	/**
+	 * benchmark-codecs: measures decompression throughput.
+	 *
+	 * @param options Options
+	 * @return Exit status; 3 if any file couldn't be decoded
+	 */
+	private int benchmarkCodecs(Options options) throws Exception {
+		ArrayList<File> files = new ArrayList<File>();
+		for (String path : options.getArguments())
+			files.add(new File(path));
+		if (files.isEmpty()) {
+			PacmanConfHelper conf = getConf(options);
+			addFiles(files, new File(conf.getDbPath(), "sync"), ".db");
+			addFiles(files, new File(conf.getCacheDir()), ".pkg.tar");
+		}
+		if (files.isEmpty())
+			throw new IllegalArgumentException("No files to decompress.");
+
+		int status = 0;
+		List<CodecBenchmark.Result> results = new CodecBenchmark(
+				options.getInt("runs", CodecBenchmark.DEFAULT_RUNS)).run(files);
+		for (CodecBenchmark.Result r : results) {
+			if (r.getError() != null) {
+				out.println(r.getFile() + ": " + r.getError());
+				status = 3;
+			} else {
+				out.println(String.format("%s: %s, %s to %s, %.1f MiB/s", r.getFile(),
+						r.getFormat().name().toLowerCase(), Utils.formatSize(r.getCompressedSize()),
+						Utils.formatSize(r.getSize()), r.getThroughput() / (1024 * 1024)));
+			}
+		}
+		out.println();
+		for (Map.Entry<Decompressor.Format, Double> e : CodecBenchmark.summarize(results).entrySet()) {
+			out.println(String.format("%s (%s): %.1f MiB/s", e.getKey().name().toLowerCase(),
+					Decompressor.getImplementation(e.getKey()),
+					e.getValue().doubleValue() / (1024 * 1024)));
+		}
+		out.flush();
+		return status;
+	}
+
+	/**
+	 * Adds the files of a directory whose names contain a string, sorted by
+	 * name.
+	 *
+	 * @param files List to add to
+	 * @param dir Directory; ignored if missing
+	 * @param part Part of the file name, e.g. '.db'
+	 */
+	private static void addFiles(List<File> files, File dir, final String part) {
+		File[] found = dir.listFiles(new FilenameFilter() {
+
+			@Override
+			public boolean accept(File dir, String name) {
+				return name.contains(part) && !name.endsWith(".part") && !name.endsWith(".sig");
+			}
+		});
+		if (found == null)
+			return;
+		Arrays.sort(found);
+		files.addAll(Arrays.asList(found));
+	}
+
+	/**
+	 * roots: loads many roots in parallel.
+	 *
+	 * @param options Options
+	 * @return Exit status; 3 if any root failed
+	 */
+	private int roots(Options options) throws Exception {
+		List<String> confPaths = new ArrayList<String>(options.getAll("conf"));
+		for (String root : options.getAll("root"))
+			confPaths.add(new File(root, "etc/pacman.conf").getPath());
+		if (confPaths.isEmpty())
+			throw new IllegalArgumentException("roots needs at least one --conf or --root.");
+		StringPool pool = StringPool.getDefault();
+		long start = System.currentTimeMillis();
+		List<MultiRootLoader.Root> roots = new MultiRootLoader(
+				options.getInt("parallel", MultiRootLoader.DEFAULT_PARALLELISM), pool).load(confPaths);
+		long millis = System.currentTimeMillis() - start;
+
+		int status = 0;
+		for (MultiRootLoader.Root r : roots) {
+			if (r.getError() != null) {
+				out.println(r.getConfPath() + " failed: " + r.getError());
+				status = 3;
+				continue;
+			}
+			PackageCollection c = r.getCollection();
+			out.println(r.getConfPath() + ": " + c.getCollection().size() + " packages, "
+					+ c.getLocalCollection().size() + " installed, "
+					+ c.getOutdated().size() + " outdated (" + r.getMillis() + " ms)");
+		}
+		out.println(roots.size() + " roots loaded in " + millis + " ms, "
+				+ pool.size() + " distinct strings");
+		for (MultiRootLoader.Root r : roots) {
+			if (r.getCollection() != null)
+				r.getCollection().close();
+		}
+		out.flush();
+		return status;
+	}
+
+	/**
+	 * daemon: serves queries until killed.
+	 *
+	 * @param options Options
+	 * @return Exit status
+	 */
+	private int daemon(Options options) throws Exception {
+		final QueryDaemon daemon = new QueryDaemon(getConf(options),
+				options.getInt("interval", QueryDaemon.DEFAULT_INTERVAL));
+		Runtime.getRuntime().addShutdownHook(new Thread() {
+
+			@Override
+			public void run() {
+				daemon.stop();
+			}
+		});
+		err.println("Loading databases...");
+		daemon.run(options.getInt("port", 0));
+		return 0;
+	}
+
+	/**
+	 * query: asks the running daemon.
+	 *
+	 * @param options Options
+	 * @return Exit status; 3 if the daemon answered with an error
+	 */
+	private int query(Options options) throws Exception {
+		List<String> args = options.getArguments();
+		if (args.isEmpty())
+			throw new IllegalArgumentException("query needs a request, e.g. 'search gtk'.");
+		StringBuilder request = new StringBuilder(args.get(0).toUpperCase());
+		for (int i = 1; i < args.size(); i++)
+			request.append(' ').append(args.get(i));
+		DaemonClient client = new DaemonClient();
+		try {
+			for (String line : client.request(request.toString()))
+				out.println(line);
+		} catch (DaemonClient.DaemonException ex) {
+			err.println(ex.getMessage());
+			return 3;
+		} finally {
+			client.close();
+		}
+		out.flush();
+		return 0;
+	}
+
+	/**
+	 * history: lists package changes recorded in pacman's log.
+	 *
+	 * @param options Options
+	 * @return Exit status; 3 if a given package has no history
+	 */
+	private int history(Options options) throws Exception {
+		String logPath = options.get("log", null);
+		if (logPath == null)
+			logPath = getConf(options).getLogFile();
+		History history = History.load(new File(logPath));
+		List<String> names = options.getArguments();
+		int status = 0;
+		if (names.isEmpty()) {
+			ArrayList<Object[]> all = new ArrayList<Object[]>();
+			for (Map.Entry<String, List<History.Event>> e : history.getAllEvents().entrySet()) {
+				for (History.Event ev : e.getValue())
+					all.add(new Object[] {e.getKey(), ev});
+			}
+			Collections.sort(all, new Comparator<Object[]>() {
+
+				@Override
+				public int compare(Object[] a, Object[] b) {
+					long ta = ((History.Event) a[1]).getTime();
+					long tb = ((History.Event) b[1]).getTime();
+					return ta < tb ? -1 : ta > tb ? 1 : 0;
+				}
+			});
+			int limit = options.getInt("limit", 20);
+			for (int i = Math.max(0, all.size() - limit); i < all.size(); i++)
+				out.println(all.get(i)[0] + " " + all.get(i)[1]);
+		} else {
+			for (String name : names) {
+				List<History.Event> events = history.getEvents(name);
+				if (events.isEmpty()) {
+					out.println(name + ": no history");
+					status = 3;
+				}
+				for (History.Event ev : events)
+					out.println(name + " " + ev);
+			}
+		}
+		out.flush();
+		return status;
+	}
+
+	/**
+	 * orphans: lists installed packages nothing explicitly installed needs.
+	 *
+	 * @param options Options
+	 * @return Exit status
+	 */
+	private int orphans(Options options) throws Exception {
+		LocalDb localDb = new LocalDb(getConf(options).getDbPath());
+		localDb.refresh();
+		OrphanTracker tracker = new OrphanTracker(localDb.getPackages());
+		boolean verbose = options.get("verbose", null) != null;
+		for (String name : tracker.getOrphans()) {
+			if (verbose) {
+				Package p = localDb.getPackage(name);
+				out.println(name + " " + p.getLocalVersion() + " "
+						+ Utils.formatSize(p.getInstalledSize()));
+			} else {
+				out.println(name);
+			}
+		}
+		out.flush();
+		return 0;
+	}
+
+	/**
+	 * groups: lists groups or their members.
+	 *
+	 * @param options Options
+	 * @return Exit status; 3 if a given group has no members
+	 */
+	private int groups(Options options) throws Exception {
+		ProvisionIndex index = loadCollection(options.get("repo", "*all*"),
+				getConf(options)).getIndex();
+		List<String> groups = options.getArguments();
+		int status = 0;
+		if (groups.isEmpty()) {
+			for (String group : index.getGroups())
+				out.println(group + " " + index.getMembers(group).size());
+		} else {
+			for (String group : groups) {
+				List<Package> members = index.getMembers(group);
+				if (members.isEmpty()) {
+					out.println(group + ": no such group");
+					status = 3;
+				}
+				for (Package p : members)
+					out.println(group + " " + p.getName());
+			}
+		}
+		out.flush();
+		return status;
+	}
+
+	/**
+	 * resolve: lists the packages satisfying dependencies.
+	 *
+	 * @param options Options
+	 * @return Exit status; 3 if a dependency can't be satisfied
+	 */
+	private int resolve(Options options) throws Exception {
+		List<String> deps = options.getArguments();
+		if (deps.isEmpty())
+			throw new IllegalArgumentException("No dependency given.");
+		ProvisionIndex index = loadCollection(options.get("repo", "*all*"),
+				getConf(options)).getIndex();
+		int status = 0;
+		for (String dep : deps) {
+			List<Package> providers = index.resolve(dep);
+			if (providers.isEmpty()) {
+				out.println(dep + ": unsatisfied");
+				status = 3;
+			}
+			for (Package p : providers) {
+				String version = p.getRepoVersion().length() > 0 ? p.getRepoVersion() : p.getLocalVersion();
+				out.println(dep + " " + p.getName() + " " + version
+						+ (p.getRepo().length() > 0 ? " [" + p.getRepo() + "]" : " [local]"));
+			}
+		}
+		out.flush();
+		return status;
+	}
+
+	/**
+	 * dry-run: predicts an install or upgrade transaction.
+	 *
+	 * @param options Options
+	 * @return Exit status; 3 if the transaction would fail
+	 */
+	private int dryRun(Options options) throws Exception {
+		boolean sysupgrade = options.get("sysupgrade", null) != null;
+		List<String> targets = options.getArguments();
+		if (targets.isEmpty() && !sysupgrade)
+			throw new IllegalArgumentException("No package given.");
+		PacmanConfHelper conf = getConf(options);
+		TransactionResolver resolver = new TransactionResolver(loadCollection("*all*", conf),
+				new File(conf.getCacheDir()));
+		TransactionResolver.Transaction t = resolver.resolve(targets, sysupgrade);
+		for (TransactionResolver.Step s : t.getSteps())
+			out.println(s);
+		for (String problem : t.getProblems())
+			out.println("error: " + problem);
+		out.println(t.getSummary());
+		out.flush();
+		return t.getProblems().isEmpty() ? 0 : 3;
+	}
+
+	/**
+	 * state-history: lists, records, shows and compares states of the
+	 * installed packages.
+	 *
+	 * @param options Options
+	 * @return Exit status; 3 if nothing was recorded yet
+	 */
+	private int stateHistory(Options options) throws Exception {
+		PacmanConfHelper conf = getConf(options);
+		StateHistory history = StateHistory.open(conf.getDbPath());
+		List<String> args = options.getArguments();
+		String action = args.isEmpty() ? "list" : args.get(0);
+		SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd HH:mm");
+		if (action.equals("record")) {
+			LocalDb localDb = new LocalDb(conf.getDbPath());
+			localDb.refresh();
+			if (history.record(Snapshot.of(localDb.getPackages())))
+				out.println("Recorded state #" + (history.size() - 1) + ".");
+			else
+				out.println("No change since state #" + (history.size() - 1) + ".");
+			out.flush();
+			return 0;
+		}
+		if (history.size() == 0) {
+			err.println("No state recorded yet.");
+			return 3;
+		}
+		if (action.equals("list")) {
+			List<StateHistory.Point> points = history.getPoints();
+			int limit = options.getInt("limit", 20);
+			for (int i = Math.max(0, points.size() - limit); i < points.size(); i++) {
+				StateHistory.Point p = points.get(i);
+				out.println("#" + p.getIndex() + " " + format.format(new Date(p.getTime()))
+						+ " " + p.getPackages() + " packages, +" + p.getAdded() + " -"
+						+ p.getRemoved() + " ~" + p.getChanged());
+			}
+		} else if (action.equals("show") && args.size() == 2) {
+			Snapshot s = history.getState(parseState(history, args.get(1)));
+			for (int i = 0; i < s.size(); i++)
+				out.println(s.getName(i) + " " + s.getVersion(i));
+		} else if (action.equals("diff") && (args.size() == 2 || args.size() == 3)) {
+			int from = parseState(history, args.get(1));
+			int to = args.size() == 3 ? parseState(history, args.get(2)) : history.size() - 1;
+			for (SnapshotDiff.Entry e : history.diff(from, to).getEntries())
+				out.println(e);
+		} else if (action.equals("export") && args.size() == 3) {
+			OutputStream os = new BufferedOutputStream(new FileOutputStream(args.get(2)));
+			try {
+				history.getState(parseState(history, args.get(1))).write(os);
+			} finally {
+				os.close();
+			}
+		} else {
+			throw new IllegalArgumentException("Usage: state-history [list|record|show <state>|"
+					+ "diff <state> [<state>]|export <state> <file>]");
+		}
+		out.flush();
+		return 0;
+	}
+
+	/**
+	 * Parses a state: its number, 'latest' or a time.
+	 *
+	 * @param history State history
+	 * @param s Text
+	 * @return Index of the state
+	 */
+	private static int parseState(StateHistory history, String s) {
+		if (s.equals("latest"))
+			return history.size() - 1;
+		if (s.matches("#?\\d+"))
+			return Integer.parseInt(s.startsWith("#") ? s.substring(1) : s);
+		String[] patterns = {"yyyy-MM-dd HH:mm", "yyyy-MM-dd"};
+		for (String pattern : patterns) {
+			SimpleDateFormat f = new SimpleDateFormat(pattern);
+			f.setLenient(false);
+			try {
+				Date d = f.parse(s);
+				// The state as of the end of the given day or minute
+				boolean day = pattern.indexOf(' ') < 0;
+				int i = history.find(d.getTime() + (day ? 24L * 3600 * 1000 : 60 * 1000) - 1);
+				if (i < 0)
+					throw new IllegalArgumentException("No state recorded by " + s + ".");
+				return i;
+			} catch (ParseException ex) {
+				// try the next pattern
+			}
+		}
+		throw new IllegalArgumentException("Not a state: '" + s + "'.");
+	}
+
+	/**
+	 * search: lists the packages matching a query.
+	 *
+	 * @param options Options
+	 * @return Exit status; 3 if nothing matches
+	 */
+	private int search(Options options) throws Exception {
+		StringBuilder sb = new StringBuilder();
+		for (String arg : options.getArguments())
+			sb.append(sb.length() > 0 ? " " : "").append(arg);
+		PackageQuery query = PackageQuery.parse(sb.toString());
+		ArrayList<Package> packages = new ArrayList<Package>(loadCollection(
+				options.get("repo", "*all*"), getConf(options)).getCollection().values());
+		Collections.sort(packages, new Comparator<Package>() {
+
+			@Override
+			public int compare(Package a, Package b) {
+				return a.getName().compareTo(b.getName());
+			}
+		});
+		int[] rows = query.evaluate(new SearchIndex(packages));
+		for (int row : rows) {
+			Package p = packages.get(row);
+			String version = p.getRepoVersion().length() > 0 ? p.getRepoVersion() : p.getLocalVersion();
+			out.println(p.getName() + " " + version
+					+ (p.getRepo().length() > 0 ? " [" + p.getRepo() + "]" : " [local]")
+					+ (p.getLocalVersion().length() > 0 ? " [installed]" : ""));
+		}
+		out.flush();
+		return rows.length > 0 ? 0 : 3;
+	}
+
+	/**
+	 * prefetch: downloads the package files of pending upgrades.
+	 *
+	 * @param options Options
+	 * @return Exit status; 3 if any package failed
+	 */
+	private int prefetch(Options options) throws Exception {
+		PacmanConfHelper conf = getConf(options);
+		ArrayList<Package> outdated = loadCollection(options.get("repo", "*all*"), conf)
+				.getOutdated();
+		PackagePrefetcher prefetcher = new PackagePrefetcher(conf,
+				options.get("cache-dir", conf.getCacheDir()),
+				options.getInt("parallel", PackagePrefetcher.DEFAULT_PARALLELISM),
+				options.getInt("timeout", PackagePrefetcher.DEFAULT_TIMEOUT),
+				new RateLimiter(options.getInt("rate", 0) * 1024L));
+		int status = 0;
+		for (PackagePrefetcher.Result r : prefetcher.prefetch(outdated)) {
+			String file = r.getPackage().getFileName();
+			if (r.getStatus() == PackagePrefetcher.Status.DOWNLOADED) {
+				out.println(file + " downloaded");
+			} else if (r.getStatus() == PackagePrefetcher.Status.CACHED) {
+				out.println(file + " already cached");
+			} else {
+				out.println(r.getPackage().getName() + " failed: " + r.getError());
+				status = 3;
+			}
+		}
+		out.flush();
+		return status;
+	}
+
+	/**
+	 * Reads a snapshot file.
+	 *
+	 * @param path File path
+	 * @return Snapshot
+	 */
+	private Snapshot readSnapshot(String path) throws IOException {
+		InputStream is = new FileInputStream(path);
+		try {
+			return Snapshot.read(is);
+		} finally {
+			is.close();
+		}
+	}
+
+	/**
+	 * Loads the packages selected by the '--repo' option: all packages of that
+	 * repository or, without it, the installed ones along with the
+	 * repository and version they have there.  Installed packages found in
+	 * no repository have neither.
+	 *
+	 * @param options Options
+	 * @return Packages
+	 */
+	private Collection<Package> getPackages(Options options) throws Exception {
+		PacmanConfHelper conf = getConf(options);
+		String repo = options.get("repo", null);
+		if (repo != null)
+			return loadCollection(repo, conf).getCollection().values();
+		LocalDb localDb = new LocalDb(conf.getDbPath());
+		localDb.refresh();
+		Collection<Package> installed = localDb.getPackages();
+		HashMap<String, Package> all = loadCollection("*all*", conf).getCollection();
+		for (Package p : installed) {
+			Package s = all.get(p.getName());
+			boolean synced = s != null && s.getRepo().length() > 0;
+			p.setRepo(synced ? s.getRepo() : "");
+			p.setRepoVersion(synced ? s.getRepoVersion() : "");
+		}
+		return installed;
+	}
+
+	/**
+	 * Loads a package collection.  Commands only use what's read into
+	 * memory, so the extracted databases are deleted right away.
+	 *
+	 * @param repo Repository name e.g. 'community' or '*all*'
+	 * @param conf Configuration
+	 * @return Collection, closed
+	 */
+	private PackageCollection loadCollection(String repo, PacmanConfHelper conf) throws Exception {
+		PackageCollection collection = new PackageCollection(repo, conf, StringPool.getDefault());
+		collection.close();
+		return collection;
+	}
+
+	/**
+	 * Loads pacman configuration as given by the '--conf' option.
+	 *
+	 * @param options Options
+	 * @return Configuration
+	 */
+	private PacmanConfHelper getConf(Options options) throws Exception {
+		String confPath = options.get("conf", null);
+		String root = options.get("root", null);
+		if (root != null)
+			return PacmanConfHelper.get(root, confPath);
+		return confPath == null ? PacmanConfHelper.get() : PacmanConfHelper.get(confPath);
+	}
+
+	/**
+	 * Command line options: '--name=value', '--flag' and plain arguments
+	 */
+	static class Options {
+
+		private final HashMap<String, String> values = new HashMap<String, String>();
+		/** Every value of options given more than once, in order */
+		private final HashMap<String, ArrayList<String>> allValues = new HashMap<String, ArrayList<String>>();
+		private final ArrayList<String> arguments = new ArrayList<String>();
+
+		/**
+		 * Constructor
+		 *
+		 * @param args Command and its arguments; the command is skipped
+		 */
+		Options(String[] args) {
+			for (int i = 1; i < args.length; i++) {
+				String a = args[i];
+				if (a.startsWith("--")) {
+					int eq = a.indexOf('=');
+					String name = eq < 0 ? a.substring(2) : a.substring(2, eq);
+					String value = eq < 0 ? "" : a.substring(eq + 1);
+					values.put(name, value);
+					if (!allValues.containsKey(name))
+						allValues.put(name, new ArrayList<String>());
+					allValues.get(name).add(value);
+				} else {
+					arguments.add(a);
+				}
+			}
+		}
+
+		/**
+		 * Gets an option.
+		 *
+		 * @param name Option name
+		 * @param defaultValue Value if not given
+		 * @return Value; the last one if given more than once
+		 */
+		String get(String name, String defaultValue) {
+			String v = values.get(name);
+			return v == null ? defaultValue : v;
+		}
+
+		/**
+		 * Gets every value of an option which may be repeated.
+		 *
+		 * @param name Option name
+		 * @return Values in the order given; empty if none
+		 */
+		List<String> getAll(String name) {
+			List<String> l = allValues.get(name);
+			return l == null ? new ArrayList<String>() : l;
+		}
+
+		/**
+		 * Gets an integer option.
+		 *
+		 * @param name Option name
+		 * @param defaultValue Value if not given
+		 * @return Value
+		 * @throws IllegalArgumentException if the value isn't a number
+		 */
+		int getInt(String name, int defaultValue) {
+			String v = values.get(name);
+			if (v == null)
+				return defaultValue;
+			try {
+				return Integer.parseInt(v);
+			} catch (NumberFormatException ex) {
+				throw new IllegalArgumentException("--" + name + " needs a number.");
+			}
+		}
+
+		List<String> getArguments() {
+			return arguments;
+		}
+	}
+}
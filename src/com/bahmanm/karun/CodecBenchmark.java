@@ -0,0 +1,200 @@
+/*
+ * Karun, a package manager for ArchLinux based on 'pacman'.
+ * Copyright (C) 2011  Bahman Movaqar
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, 
+ * USA.
+ */
+package com.bahmanm.karun;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * CodecBenchmark
+ *
+ * Measures how fast Decompressor decodes files, e.g. sync databases and
+ * cached packages, and sums the results up per format.  Every file is
+ * decoded a number of times and the best run counts, which leaves out
+ * warm-up and disk cache misses.
+ *
+ * @author Bahman Movaqar (Bahman AT BahmanM.com)
+ */
+public class CodecBenchmark {
+
+	/** Default number of runs per file */
+	public static final int DEFAULT_RUNS = 3;
+	/** Number of runs per file */
+	private final int runs;
+
+	/**
+	 * Result of one file
+	 */
+	public static class Result {
+
+		private final File file;
+		private final Decompressor.Format format;
+		private final long compressedSize;
+		private final long size;
+		/** Best time in nanoseconds */
+		private final long nanos;
+		private final String error;
+
+		Result(File file, Decompressor.Format format, long compressedSize, long size,
+				long nanos, String error) {
+			this.file = file;
+			this.format = format;
+			this.compressedSize = compressedSize;
+			this.size = size;
+			this.nanos = nanos;
+			this.error = error;
+		}
+
+		public File getFile() {
+			return file;
+		}
+
+		public Decompressor.Format getFormat() {
+			return format;
+		}
+
+		public long getCompressedSize() {
+			return compressedSize;
+		}
+
+		/**
+		 * @return Uncompressed size
+		 */
+		public long getSize() {
+			return size;
+		}
+
+		/**
+		 * @return Best decoding time in nanoseconds
+		 */
+		public long getNanos() {
+			return nanos;
+		}
+
+		/**
+		 * @return Error message, or null if the file could be decoded
+		 */
+		public String getError() {
+			return error;
+		}
+
+		/**
+		 * @return Uncompressed bytes per second
+		 */
+		public double getThroughput() {
+			return throughput(size, nanos);
+		}
+	}
+
+	/**
+	 * Constructor
+	 *
+	 * @param runs Number of runs per file
+	 */
+	public CodecBenchmark(int runs) {
+		this.runs = Math.max(runs, 1);
+	}
+
+	/**
+	 * Decodes files and measures the best run of each.
+	 *
+	 * @param files Files
+	 * @return Results, in the order of 'files'
+	 */
+	public List<Result> run(List<File> files) throws InterruptedException {
+		ArrayList<Result> results = new ArrayList<Result>();
+		for (File f : files) {
+			if (Thread.interrupted())
+				throw new InterruptedException();
+			results.add(measure(f));
+		}
+		return results;
+	}
+
+	/**
+	 * Sums results up per format.
+	 *
+	 * @param results Results
+	 * @return Total uncompressed bytes per second by format, for formats with
+	 *         at least one decoded file
+	 */
+	public static Map<Decompressor.Format, Double> summarize(List<Result> results) {
+		EnumMap<Decompressor.Format, long[]> totals =
+				new EnumMap<Decompressor.Format, long[]>(Decompressor.Format.class);
+		for (Result r : results) {
+			if (r.getError() != null)
+				continue;
+			long[] t = totals.get(r.getFormat());
+			if (t == null) {
+				t = new long[2];
+				totals.put(r.getFormat(), t);
+			}
+			t[0] += r.getSize();
+			t[1] += r.getNanos();
+		}
+		EnumMap<Decompressor.Format, Double> summary =
+				new EnumMap<Decompressor.Format, Double>(Decompressor.Format.class);
+		for (Map.Entry<Decompressor.Format, long[]> e : totals.entrySet())
+			summary.put(e.getKey(), Double.valueOf(throughput(e.getValue()[0], e.getValue()[1])));
+		return summary;
+	}
+
+	/**
+	 * Decodes a file 'runs' times.
+	 *
+	 * @param f File
+	 * @return Result
+	 */
+	private Result measure(File f) {
+		Decompressor.Format format = null;
+		long size = 0;
+		long best = Long.MAX_VALUE;
+		try {
+			format = Decompressor.detect(f);
+			byte[] buf = new byte[Decompressor.BUFFER_SIZE];
+			for (int i = 0; i < runs; i++) {
+				long start = System.nanoTime();
+				long n = 0;
+				InputStream in = Decompressor.open(f);
+				try {
+					int r;
+					while ((r = in.read(buf)) >= 0)
+						n += r;
+				} finally {
+					in.close();
+				}
+				best = Math.min(best, System.nanoTime() - start);
+				size = n;
+			}
+		} catch (IOException ex) {
+			return new Result(f, format, f.length(), 0, 0, ex.getMessage());
+		}
+		return new Result(f, format, f.length(), size, best, null);
+	}
+
+	private static double throughput(long bytes, long nanos) {
+		return nanos == 0 ? 0 : bytes * 1e9 / nanos;
+	}
+}
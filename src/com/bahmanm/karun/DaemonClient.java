@@ -0,0 +1,126 @@
+/*
+ * Karun, a package manager for ArchLinux based on 'pacman'.
+ * Copyright (C) 2011  Bahman Movaqar
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, 
+ * USA.
+ */
+package com.bahmanm.karun;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * DaemonClient
+ *
+ * Connection to a running QueryDaemon.  Requests are answered in the order
+ * they're sent, so one connection can be reused for many of them.
+ *
+ * @author Bahman Movaqar (Bahman AT BahmanM.com)
+ */
+public class DaemonClient {
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	/** Connect and read timeout, in milliseconds */
+	private static final int TIMEOUT = 5000;
+	private final Socket socket;
+	private final BufferedReader in;
+	private final OutputStream out;
+
+	/**
+	 * Connects to the daemon whose port file is in the Karun directory.
+	 *
+	 * @throws IOException if no daemon is running
+	 */
+	public DaemonClient() throws IOException {
+		File f = QueryDaemon.getPortFile();
+		if (!f.exists())
+			throw new IOException("No daemon is running; start one with 'daemon'.");
+		String[] portToken;
+		BufferedReader r = new BufferedReader(new InputStreamReader(new FileInputStream(f), UTF8));
+		try {
+			String line = r.readLine();
+			portToken = line == null ? new String[0] : line.trim().split(" ");
+		} finally {
+			r.close();
+		}
+		if (portToken.length != 2)
+			throw new IOException("Malformed " + f.getAbsolutePath());
+
+		socket = new Socket();
+		socket.setTcpNoDelay(true);
+		socket.connect(new InetSocketAddress(InetAddress.getByName("127.0.0.1"),
+				Integer.parseInt(portToken[0])), TIMEOUT);
+		socket.setSoTimeout(TIMEOUT);
+		in = new BufferedReader(new InputStreamReader(socket.getInputStream(), UTF8));
+		out = socket.getOutputStream();
+		request("AUTH " + portToken[1]);
+	}
+
+	/**
+	 * Sends a request and waits for its reply.
+	 *
+	 * @param request Request line, e.g. 'SEARCH gtk'
+	 * @return Lines of the reply
+	 * @throws IOException if the daemon answered with an error
+	 */
+	public List<String> request(String request) throws IOException {
+		out.write((request + "\n").getBytes(UTF8));
+		out.flush();
+		String status = in.readLine();
+		if (status == null)
+			throw new IOException("Connection closed by daemon");
+		if (status.startsWith("ERR "))
+			throw new DaemonException(status.substring(4));
+		if (!status.startsWith("OK "))
+			throw new IOException("Malformed reply: " + status);
+		int n = Integer.parseInt(status.substring(3));
+		ArrayList<String> lines = new ArrayList<String>(n);
+		for (int i = 0; i < n; i++) {
+			String line = in.readLine();
+			if (line == null)
+				throw new IOException("Connection closed by daemon");
+			lines.add(line);
+		}
+		return lines;
+	}
+
+	/**
+	 * Closes the connection.
+	 */
+	public void close() throws IOException {
+		socket.close();
+	}
+
+	/**
+	 * Error reply of the daemon, e.g. an unknown package
+	 */
+	public static class DaemonException extends IOException {
+
+		public DaemonException(String message) {
+			super(message);
+		}
+	}
+}
@@ -0,0 +1,348 @@
+/*
+ * Karun, a package manager for ArchLinux based on 'pacman'.
+ * Copyright (C) 2011  Bahman Movaqar
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, 
+ * USA.
+ */
+package com.bahmanm.karun;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.EnumMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.GZIPInputStream;
+import org.apache.commons.compress.compressors.bzip2.BZip2CompressorInputStream;
+import org.apache.commons.lang.StringUtils;
+
+/**
+ * Decompressor
+ *
+ * Opens compressed archives, e.g. sync databases and package files, as a
+ * stream of their uncompressed contents.  The format is detected from the
+ * magic bytes of the file rather than its name.
+ *
+ * gzip is decoded by java.util.zip (zlib) with large buffers and bzip2 by
+ * commons-compress.  There's no Java decoder for zstd and xz in the class
+ * path, so they're piped through the 'zstd' and 'xz' tools, which are what
+ * pacman itself uses anyway; xz is asked to decode with as many threads as
+ * there are cores.  A format whose tool isn't installed can't be opened.
+ *
+ * @author Bahman Movaqar (Bahman AT BahmanM.com)
+ */
+public final class Decompressor {
+
+	/** Buffer size used for reading compressed input */
+	public static final int BUFFER_SIZE = 256 * 1024;
+	/** Longest magic */
+	private static final int MAGIC_LENGTH = 6;
+	/** Whether the tool of a format could be run; filled on first use */
+	private static final EnumMap<Format, Boolean> available = new EnumMap<Format, Boolean>(Format.class);
+
+	/**
+	 * Compression formats
+	 */
+	public enum Format {
+
+		GZIP(new byte[] {0x1f, (byte) 0x8b}, null),
+		ZSTD(new byte[] {0x28, (byte) 0xb5, 0x2f, (byte) 0xfd}, "zstd"),
+		XZ(new byte[] {(byte) 0xfd, '7', 'z', 'X', 'Z', 0}, "xz"),
+		BZIP2(new byte[] {'B', 'Z', 'h'}, null),
+		NONE(new byte[0], null);
+		/** Magic bytes at the start of the file */
+		private final byte[] magic;
+		/** External tool decoding the format; null if decoded in Java */
+		private final String tool;
+
+		private Format(byte[] magic, String tool) {
+			this.magic = magic;
+			this.tool = tool;
+		}
+
+		/**
+		 * Checks whether a file starts with this format's magic.
+		 *
+		 * @param head First bytes of the file
+		 * @param len Number of valid bytes in 'head'
+		 * @return true if so
+		 */
+		boolean matches(byte[] head, int len) {
+			if (len < magic.length)
+				return false;
+			for (int i = 0; i < magic.length; i++) {
+				if (head[i] != magic[i])
+					return false;
+			}
+			return true;
+		}
+	}
+
+	private Decompressor() {
+	}
+
+	/**
+	 * Detects the compression format of a file.
+	 *
+	 * @param f File
+	 * @return Format; NONE if it isn't compressed in a known format
+	 */
+	public static Format detect(File f) throws IOException {
+		byte[] head = new byte[MAGIC_LENGTH];
+		int len = 0;
+		InputStream in = new FileInputStream(f);
+		try {
+			int n;
+			while (len < head.length && (n = in.read(head, len, head.length - len)) >= 0)
+				len += n;
+		} finally {
+			in.close();
+		}
+		for (Format format : Format.values()) {
+			if (format.matches(head, len))
+				return format;
+		}
+		return Format.NONE;
+	}
+
+	/**
+	 * Opens a possibly compressed file for reading its uncompressed contents.
+	 *
+	 * @param f File
+	 * @return Stream; the caller must close it
+	 * @throws IOException if the file can't be read or its format isn't
+	 *         supported on this system
+	 */
+	public static InputStream open(File f) throws IOException {
+		Format format = detect(f);
+		if (!isAvailable(format))
+			throw new IOException(f.getName() + " is " + format.name().toLowerCase()
+					+ " compressed but '" + format.tool + "' can't be run.");
+		switch (format) {
+			case GZIP:
+				return new GZIPInputStream(new FileInputStream(f), BUFFER_SIZE);
+			case BZIP2:
+				return new BZip2CompressorInputStream(new BufferedInputStream(
+						new FileInputStream(f), BUFFER_SIZE));
+			case ZSTD:
+				return exec(new String[] {"zstd", "-d", "-c", "-q", "--", f.getAbsolutePath()});
+			case XZ:
+				return exec(new String[] {"xz", "-d", "-c", "-q", "-T0", "--", f.getAbsolutePath()});
+			default:
+				return new BufferedInputStream(new FileInputStream(f), BUFFER_SIZE);
+		}
+	}
+
+	/**
+	 * Checks whether files of a format can be opened.
+	 *
+	 * @param format Format
+	 * @return true if so
+	 */
+	public static synchronized boolean isAvailable(Format format) {
+		if (format.tool == null)
+			return true;
+		Boolean b = available.get(format);
+		if (b == null) {
+			b = Boolean.valueOf(probe(format.tool));
+			available.put(format, b);
+		}
+		return b.booleanValue();
+	}
+
+	/**
+	 * Describes what decodes a format.
+	 *
+	 * @param format Format
+	 * @return Description, e.g. "java.util.zip"
+	 */
+	public static String getImplementation(Format format) {
+		switch (format) {
+			case GZIP:
+				return "java.util.zip";
+			case BZIP2:
+				return "commons-compress";
+			case NONE:
+				return "none";
+			default:
+				return isAvailable(format) ? "'" + format.tool + "' process" : "unavailable";
+		}
+	}
+
+	/**
+	 * Checks whether a tool can be run.
+	 *
+	 * @param tool Tool
+	 * @return true if '<tool> --version' succeeds
+	 */
+	private static boolean probe(String tool) {
+		try {
+			Process p = new ProcessBuilder(tool, "--version").redirectErrorStream(true).start();
+			InputStream in = p.getInputStream();
+			try {
+				byte[] buf = new byte[1024];
+				while (in.read(buf) >= 0);
+			} finally {
+				in.close();
+			}
+			return p.waitFor() == 0;
+		} catch (IOException ex) {
+			return false;
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			return false;
+		}
+	}
+
+	/**
+	 * Starts a decoding process.
+	 *
+	 * @param command Command line
+	 * @return Its standard output
+	 */
+	private static InputStream exec(String[] command) throws IOException {
+		FlightEvents.Span span = FlightEvents.begin(FlightEvents.Kind.PROCESS);
+		final Process p = new ProcessBuilder(command).start();
+		p.getOutputStream().close();
+		// Drain standard error so the process can't block on it
+		final ByteArrayOutputStream errors = new ByteArrayOutputStream();
+		Thread t = new Thread(new Runnable() {
+
+			@Override
+			public void run() {
+				InputStream err = p.getErrorStream();
+				byte[] buf = new byte[1024];
+				try {
+					int n;
+					while ((n = err.read(buf)) >= 0) {
+						synchronized (errors) {
+							if (errors.size() < 4096)
+								errors.write(buf, 0, n);
+						}
+					}
+				} catch (IOException ex) {
+					Logger.getLogger(Decompressor.class.getName()).log(Level.FINE, null, ex);
+				}
+			}
+		}, "karun-" + command[0] + "-stderr");
+		t.setDaemon(true);
+		t.start();
+		return new ProcessInputStream(p, t, errors, command, span);
+	}
+
+	/**
+	 * Standard output of a decoding process.  Reaching its end fails if the
+	 * process failed; closing it early kills the process.
+	 */
+	private static class ProcessInputStream extends FilterInputStream {
+
+		private final Process process;
+		/** Thread draining standard error into 'errors' */
+		private final Thread drainer;
+		private final ByteArrayOutputStream errors;
+		private final String[] command;
+		private boolean checked;
+		/** Flight Recorder span of the process; null once committed */
+		private FlightEvents.Span span;
+		/** Bytes read so far */
+		private long bytes;
+
+		ProcessInputStream(Process process, Thread drainer, ByteArrayOutputStream errors,
+				String[] command, FlightEvents.Span span) {
+			super(new BufferedInputStream(process.getInputStream(), BUFFER_SIZE));
+			this.process = process;
+			this.drainer = drainer;
+			this.errors = errors;
+			this.command = command;
+			this.span = span;
+		}
+
+		@Override
+		public int read() throws IOException {
+			int b = super.read();
+			if (b < 0)
+				checkExit();
+			else
+				bytes++;
+			return b;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			int n = super.read(b, off, len);
+			if (n < 0)
+				checkExit();
+			else
+				bytes += n;
+			return n;
+		}
+
+		@Override
+		public void close() throws IOException {
+			try {
+				super.close();
+			} finally {
+				process.getErrorStream().close();
+				process.destroy();
+				// Closed before the end; the process is killed
+				commitSpan(-1);
+			}
+		}
+
+		/**
+		 * Records the run of the process, once.
+		 *
+		 * @param status Exit status; -1 if killed
+		 */
+		private void commitSpan(int status) {
+			if (span == null)
+				return;
+			span.commit(StringUtils.join(command, ' '), status, bytes);
+			span = null;
+		}
+
+		/**
+		 * Fails if the process exited with an error.
+		 */
+		private void checkExit() throws IOException {
+			if (checked)
+				return;
+			int status;
+			try {
+				status = process.waitFor();
+				drainer.join(1000);
+			} catch (InterruptedException ex) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Cancelled");
+			}
+			checked = true;
+			commitSpan(status);
+			if (status != 0) {
+				String msg;
+				synchronized (errors) {
+					msg = errors.toString().trim();
+				}
+				throw new IOException("'" + command[0] + "' failed (" + status + ")"
+						+ (msg.length() == 0 ? "" : ": " + msg));
+			}
+		}
+	}
+}
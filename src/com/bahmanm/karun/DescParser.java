@@ -0,0 +1,301 @@
+/*
+ * Karun, a package manager for ArchLinux based on 'pacman'.
+ * Copyright (C) 2011  Bahman Movaqar
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, 
+ * USA.
+ */
+package com.bahmanm.karun;
+
+import com.bahmanm.karun.PackageCollection.Package;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import org.apache.commons.lang.StringUtils;
+
+/**
+ * DescParser
+ *
+ * Reads package database files ('desc', 'depends') straight from their
+ * bytes.  Section headers are matched on the raw bytes and numbers parsed
+ * from them; a string is only created for a value which is kept, and
+ * sections Karun doesn't use are skipped without creating any.
+ *
+ * Values are trimmed and runs of whitespace in them collapsed, as
+ * StringUtils.normalizeSpace would.  Given a StringPool, strings are
+ * interned in it.
+ *
+ * @author Bahman Movaqar (Bahman AT BahmanM.com)
+ */
+public final class DescParser {
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final int NAME = 0;
+	private static final int VERSION = 1;
+	private static final int DESC = 2;
+	private static final int SIZE = 3;
+	private static final int ISIZE = 4;
+	private static final int INSTALLDATE = 5;
+	private static final int REASON = 6;
+	private static final int GROUPS = 7;
+	private static final int DEPENDS = 8;
+	private static final int FILENAME = 9;
+	private static final int CSIZE = 10;
+	private static final int MD5SUM = 11;
+	private static final int SHA256SUM = 12;
+	private static final int PROVIDES = 13;
+	private static final int CONFLICTS = 14;
+	private static final int REPLACES = 15;
+	/** Section headers, indexed by the constants above */
+	private static final byte[][] HEADERS = bytes("%NAME%", "%VERSION%", "%DESC%",
+			"%SIZE%", "%ISIZE%", "%INSTALLDATE%", "%REASON%", "%GROUPS%", "%DEPENDS%",
+			"%FILENAME%", "%CSIZE%", "%MD5SUM%", "%SHA256SUM%", "%PROVIDES%",
+			"%CONFLICTS%", "%REPLACES%");
+	/** Not in a section */
+	private static final int NONE = -1;
+	/** In a section which is skipped */
+	private static final int SKIPPED = -2;
+	/** Per thread file buffer, reused for every file */
+	private static final ThreadLocal<byte[]> FILE_BUFFER = new ThreadLocal<byte[]>() {
+
+		@Override
+		protected byte[] initialValue() {
+			return new byte[8 * 1024];
+		}
+	};
+
+	private DescParser() {
+	}
+
+	/**
+	 * Reads a database file into a package.
+	 *
+	 * @param f File
+	 * @param pkg Package to fill
+	 */
+	public static void parse(File f, Package pkg) throws IOException {
+		parse(f, pkg, null);
+	}
+
+	/**
+	 * Reads a database file into a package.
+	 *
+	 * @param f File
+	 * @param pkg Package to fill
+	 * @param pool Pool to intern strings in; null for none
+	 */
+	public static void parse(File f, Package pkg, StringPool pool) throws IOException {
+		byte[] buf = FILE_BUFFER.get();
+		int n = 0;
+		InputStream in = new FileInputStream(f);
+		try {
+			int r;
+			while ((r = in.read(buf, n, buf.length - n)) >= 0) {
+				n += r;
+				if (n == buf.length) {
+					byte[] b = new byte[buf.length * 2];
+					System.arraycopy(buf, 0, b, 0, n);
+					buf = b;
+					FILE_BUFFER.set(buf);
+				}
+			}
+		} finally {
+			in.close();
+		}
+		parse(ByteBuffer.wrap(buf, 0, n), pkg, pool);
+	}
+
+	/**
+	 * Reads the contents of a database file into a package.
+	 *
+	 * @param buf Contents from the position to the limit, e.g. a mapped
+	 *        file or a tar entry read into memory; the position isn't moved
+	 * @param pkg Package to fill
+	 * @param pool Pool to intern strings in; null for none
+	 */
+	public static void parse(ByteBuffer buf, Package pkg, StringPool pool) {
+		int section = NONE;
+		int limit = buf.limit();
+		int pos = buf.position();
+		while (pos < limit) {
+			int end = pos;
+			while (end < limit && buf.get(end) != '\n')
+				end++;
+			int next = end + 1;
+			// Trim, which also drops a '\r' before the '\n'
+			while (pos < end && (buf.get(pos) & 0xff) <= ' ')
+				pos++;
+			while (end > pos && (buf.get(end - 1) & 0xff) <= ' ')
+				end--;
+
+			if (pos == end) {
+				section = NONE;
+			} else if (section == NONE) {
+				if (buf.get(pos) == '%' && buf.get(end - 1) == '%')
+					section = header(buf, pos, end);
+			} else if (section != SKIPPED) {
+				value(buf, pos, end, section, pkg, pool);
+			}
+			pos = next;
+		}
+	}
+
+	/**
+	 * Looks a section header up.
+	 *
+	 * @param buf Bytes
+	 * @param from Start of the header
+	 * @param to End of the header
+	 * @return Section, or SKIPPED if it's not one Karun uses
+	 */
+	private static int header(ByteBuffer buf, int from, int to) {
+		int len = to - from;
+		outer:
+		for (int h = 0; h < HEADERS.length; h++) {
+			byte[] header = HEADERS[h];
+			if (header.length != len)
+				continue;
+			for (int i = 1; i < len - 1; i++) {
+				if (buf.get(from + i) != header[i])
+					continue outer;
+			}
+			return h;
+		}
+		return SKIPPED;
+	}
+
+	/**
+	 * Stores a value of a section in a package.
+	 *
+	 * @param buf Bytes
+	 * @param from Start of the trimmed value
+	 * @param to End of the trimmed value
+	 * @param section Section
+	 * @param pkg Package
+	 * @param pool Pool to intern strings in; null for none
+	 */
+	private static void value(ByteBuffer buf, int from, int to, int section, Package pkg,
+			StringPool pool) {
+		switch (section) {
+			case NAME:
+				pkg.setName(string(buf, from, to, pool));
+				break;
+			case VERSION:
+				pkg.setRepoVersion(string(buf, from, to, pool));
+				break;
+			case DESC:
+				pkg.setDescription(string(buf, from, to, pool));
+				break;
+			case SIZE:
+			case ISIZE:
+				pkg.setInstalledSize(number(buf, from, to));
+				break;
+			case INSTALLDATE:
+				pkg.setInstallDate(number(buf, from, to));
+				break;
+			case REASON:
+				pkg.setReason((int) number(buf, from, to));
+				break;
+			case GROUPS:
+				pkg.getGroups().add(string(buf, from, to, pool));
+				break;
+			case DEPENDS:
+				pkg.getDepends().add(string(buf, from, to, pool));
+				break;
+			case PROVIDES:
+				pkg.getProvides().add(string(buf, from, to, pool));
+				break;
+			case CONFLICTS:
+				pkg.getConflicts().add(string(buf, from, to, pool));
+				break;
+			case REPLACES:
+				pkg.getReplaces().add(string(buf, from, to, pool));
+				break;
+			case FILENAME:
+				pkg.setFileName(string(buf, from, to, pool));
+				break;
+			case CSIZE:
+				pkg.setCompressedSize(number(buf, from, to));
+				break;
+			case MD5SUM:
+				pkg.setMd5sum(string(buf, from, to, pool));
+				break;
+			case SHA256SUM:
+				pkg.setSha256sum(string(buf, from, to, pool));
+				break;
+			default:
+				break;
+		}
+	}
+
+	/**
+	 * Decodes a trimmed value.
+	 *
+	 * @param buf Bytes
+	 * @param from Start
+	 * @param to End
+	 * @param pool Pool to intern the value in; null for none
+	 * @return Value with runs of whitespace collapsed
+	 */
+	private static String string(ByteBuffer buf, int from, int to, StringPool pool) {
+		String s;
+		if (buf.hasArray()) {
+			s = new String(buf.array(), buf.arrayOffset() + from, to - from, UTF8);
+		} else {
+			byte[] b = new byte[to - from];
+			for (int i = 0; i < b.length; i++)
+				b[i] = buf.get(from + i);
+			s = new String(b, UTF8);
+		}
+		// Rare: more than single spaces inside the value
+		for (int i = from; i < to; i++) {
+			int c = buf.get(i) & 0xff;
+			if (c < ' ' || (c == ' ' && buf.get(i + 1) == ' ')) {
+				s = StringUtils.normalizeSpace(s);
+				break;
+			}
+		}
+		return pool == null ? s : pool.intern(s);
+	}
+
+	/**
+	 * Parses a decimal number.
+	 *
+	 * @param buf Bytes
+	 * @param from Start
+	 * @param to End
+	 * @return Number, or 0 if malformed
+	 */
+	private static long number(ByteBuffer buf, int from, int to) {
+		long v = 0;
+		for (int i = from; i < to; i++) {
+			int d = buf.get(i) - '0';
+			if (d < 0 || d > 9 || v > (Long.MAX_VALUE - d) / 10)
+				return 0;
+			v = v * 10 + d;
+		}
+		return v;
+	}
+
+	private static byte[][] bytes(String... strings) {
+		byte[][] b = new byte[strings.length][];
+		for (int i = 0; i < strings.length; i++)
+			b[i] = strings[i].getBytes(UTF8);
+		return b;
+	}
+}
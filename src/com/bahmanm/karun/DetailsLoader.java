@@ -0,0 +1,174 @@
+/*
+ * Karun, a package manager for ArchLinux based on 'pacman'.
+ * Copyright (C) 2011  Bahman Movaqar
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, 
+ * USA.
+ */
+package com.bahmanm.karun;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.swing.SwingUtilities;
+
+/**
+ * DetailsLoader
+ *
+ * Reads package details off the event dispatch thread and keeps the most
+ * recently used ones in a bounded LRU cache.  Along with the selected
+ * package its neighbours in the table are read ahead, so moving through the
+ * table with the arrow keys finds them in the cache.  A new request drops
+ * the reads still queued for the previous one.
+ *
+ * All public methods must be called on the event dispatch thread; results are
+ * delivered there as well.
+ *
+ * @author Bahman Movaqar (Bahman AT BahmanM.com)
+ */
+public class DetailsLoader {
+
+	/** Default number of cached details */
+	public static final int DEFAULT_CACHE_SIZE = 256;
+	/** Receives details */
+	private final DetailsListener listener;
+	/** Reads details; its queue is cleared on every request */
+	private final ThreadPoolExecutor executor = new ThreadPoolExecutor(1, 1, 0,
+			TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(),
+			Utils.daemonThreadFactory("karun-details"));
+	/** Details by key, least recently used first */
+	private final LinkedHashMap<String, PackageDetails> cache;
+	/** Key of the package the latest request was for */
+	private String wanted;
+
+	/**
+	 * Constructor
+	 *
+	 * @param listener Receives details
+	 * @param cacheSize Number of cached details
+	 */
+	public DetailsLoader(DetailsListener listener, final int cacheSize) {
+		this.listener = listener;
+		cache = new LinkedHashMap<String, PackageDetails>(16, 0.75f, true) {
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, PackageDetails> eldest) {
+				return size() > cacheSize;
+			}
+		};
+	}
+
+	/**
+	 * Requests the details of a package; delivered right away if cached.
+	 *
+	 * @param dirs Database directories of the package: sync, local (either
+	 *        may be null)
+	 * @param neighbours Directories of packages to read ahead, nearest first
+	 */
+	public void request(File[] dirs, List<File[]> neighbours) {
+		String key = key(dirs);
+		wanted = key;
+		executor.getQueue().clear();
+		PackageDetails details;
+		synchronized (cache) {
+			details = cache.get(key);
+		}
+		if (details != null)
+			listener.detailsLoaded(details);
+		else
+			submit(dirs, key, true);
+		for (File[] n : neighbours) {
+			String k = key(n);
+			boolean cached;
+			synchronized (cache) {
+				cached = cache.containsKey(k);
+			}
+			if (!cached)
+				submit(n, k, false);
+		}
+	}
+
+	/**
+	 * Queues reading the details of a package.
+	 *
+	 * @param dirs Database directories: sync, local
+	 * @param key Cache key
+	 * @param deliver Whether to deliver the details if still wanted
+	 */
+	private void submit(final File[] dirs, final String key, final boolean deliver) {
+		executor.execute(new Runnable() {
+
+			@Override
+			public void run() {
+				PackageDetails d;
+				synchronized (cache) {
+					d = cache.get(key);
+				}
+				if (d == null) {
+					try {
+						d = PackageDetails.read(dirs[0], dirs[1]);
+						synchronized (cache) {
+							cache.put(key, d);
+						}
+					} catch (IOException ex) {
+						Logger.getLogger(DetailsLoader.class.getName()).log(Level.WARNING, null, ex);
+					}
+				}
+				if (!deliver)
+					return;
+				final PackageDetails details = d;
+				SwingUtilities.invokeLater(new Runnable() {
+
+					@Override
+					public void run() {
+						if (key.equals(wanted))
+							listener.detailsLoaded(details);
+					}
+				});
+			}
+		});
+	}
+
+	/**
+	 * Cache key of a package: its directories.
+	 *
+	 * @param dirs Database directories: sync, local
+	 * @return Key
+	 */
+	private static String key(File[] dirs) {
+		return dirs[0] + "|" + dirs[1];
+	}
+
+	/**
+	 * Receives details
+	 */
+	public interface DetailsListener {
+
+		/**
+		 * Called on the event dispatch thread with the details of the latest
+		 * request.
+		 *
+		 * @param details Details; null if they couldn't be read
+		 */
+		public abstract void detailsLoaded(PackageDetails details);
+	}
+}
@@ -0,0 +1,689 @@
+/*
+ * Karun, a package manager for ArchLinux based on 'pacman'.
+ * Copyright (C) 2011  Bahman Movaqar
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, 
+ * USA.
+ */
+package com.bahmanm.karun;
+
+import com.bahmanm.karun.PackageCollection.Package;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * DiskUsage
+ *
+ * Installed size of packages, groups and dependency closures.  Every
+ * installed package gets an integer id and its attributes live in primitive
+ * arrays indexed by that id.  Per-package and per-group totals are kept up to
+ * date as packages are added or removed; closure sizes are computed on demand
+ * and cached until the next change.  A dependency is met by every installed
+ * package satisfying it, by name or through '%PROVIDES%'.
+ *
+ * The sizes freed by removal are computed for all packages at once: with a
+ * virtual root depending on every explicitly installed package and on
+ * everything they don't reach, removing X frees exactly the packages X
+ * dominates, so they are subtree sums of the dominator tree.  Orphans, which
+ * the root reaches directly, fall back to a walk of their own.
+ *
+ * @author Bahman Movaqar (Bahman AT BahmanM.com)
+ */
+public class DiskUsage {
+
+	/** Number of ids handed out, including freed ones */
+	private int count;
+	/** Freed ids */
+	private int[] free = new int[16];
+	/** Number of freed ids */
+	private int freeCount;
+	/** Package id by name */
+	private final HashMap<String, Integer> ids = new HashMap<String, Integer>();
+	/** Package name by id; null for freed ids */
+	private String[] names = new String[16];
+	/** Installed size by id */
+	private long[] sizes = new long[16];
+	/** Installation time by id */
+	private long[] dates = new long[16];
+	/** Install reason by id */
+	private byte[] reasons = new byte[16];
+	/** Dependencies by id */
+	private String[][] depends = new String[16][];
+	/** Installed packages by what they provide */
+	private final InstalledProviders providers = new InstalledProviders();
+	/** Group ids by package id */
+	private int[][] pkgGroups = new int[16][];
+	/** Dependency ids by package id; valid only if 'depsResolved' */
+	private int[][] deps = new int[16][];
+	/** Whether 'deps' reflects the current set of packages */
+	private boolean depsResolved;
+	/** Group id by name */
+	private final HashMap<String, Integer> groupIds = new HashMap<String, Integer>();
+	/** Group name by id */
+	private final ArrayList<String> groupNames = new ArrayList<String>();
+	/** Installed size by group id */
+	private long[] groupSizes = new long[16];
+	/** Number of installed members by group id */
+	private int[] groupCounts = new int[16];
+	/** Total installed size */
+	private long totalSize;
+	/** Cached closure sizes; -1 if not computed */
+	private long[] closureSizes = new long[16];
+	/** Cached exclusive sizes; -1 if not computed */
+	private long[] exclusiveSizes = new long[16];
+	/** Whether exclusive sizes were computed since the last change */
+	private boolean exclusiveComputed;
+	/** Visit marks for graph traversals */
+	private int[] marks = new int[16];
+	/** Second set of visit marks */
+	private int[] marks2 = new int[16];
+	/** Current mark value */
+	private int stamp;
+	/** Traversal queue */
+	private int[] queue = new int[16];
+
+	/**
+	 * Constructor
+	 *
+	 * @param installed Installed packages
+	 */
+	public DiskUsage(Collection<Package> installed) {
+		for (Package p : installed)
+			put(p);
+		changed();
+	}
+
+	/**
+	 * Adds or replaces an installed package.
+	 *
+	 * @param pkg Package
+	 */
+	public synchronized void add(Package pkg) {
+		put(pkg);
+		changed();
+	}
+
+	/**
+	 * Adds or replaces an installed package without invalidating derived
+	 * data, so many can be added at the cost of one invalidation.
+	 *
+	 * @param pkg Package
+	 */
+	private void put(Package pkg) {
+		drop(pkg.getName());
+		int id;
+		if (freeCount > 0) {
+			id = free[--freeCount];
+		} else {
+			id = count++;
+			ensureCapacity(count);
+		}
+		ids.put(pkg.getName(), Integer.valueOf(id));
+		names[id] = pkg.getName();
+		sizes[id] = pkg.getInstalledSize();
+		dates[id] = pkg.getInstallDate();
+		reasons[id] = (byte) pkg.getReason();
+		totalSize += sizes[id];
+
+		ArrayList<String> d = pkg.getDepends();
+		depends[id] = d.toArray(new String[d.size()]);
+		providers.add(id, pkg);
+
+		ArrayList<String> g = pkg.getGroups();
+		pkgGroups[id] = new int[g.size()];
+		for (int i = 0; i < g.size(); i++) {
+			int gid = groupId(g.get(i));
+			pkgGroups[id][i] = gid;
+			groupSizes[gid] += sizes[id];
+			groupCounts[gid]++;
+		}
+	}
+
+	/**
+	 * Removes an installed package.
+	 *
+	 * @param name Package name
+	 */
+	public synchronized void remove(String name) {
+		if (drop(name))
+			changed();
+	}
+
+	/**
+	 * Removes an installed package without invalidating derived data.
+	 *
+	 * @param name Package name
+	 * @return false if it wasn't installed
+	 */
+	private boolean drop(String name) {
+		Integer i = ids.remove(name);
+		if (i == null)
+			return false;
+		int id = i.intValue();
+		totalSize -= sizes[id];
+		for (int k = 0; k < pkgGroups[id].length; k++) {
+			groupSizes[pkgGroups[id][k]] -= sizes[id];
+			groupCounts[pkgGroups[id][k]]--;
+		}
+		providers.remove(id);
+		names[id] = null;
+		sizes[id] = 0;
+		depends[id] = null;
+		pkgGroups[id] = null;
+		deps[id] = null;
+		if (freeCount == free.length)
+			free = Arrays.copyOf(free, free.length * 2);
+		free[freeCount++] = id;
+		return true;
+	}
+
+	public synchronized long getTotalSize() {
+		return totalSize;
+	}
+
+	/**
+	 * Installed size of a package.
+	 *
+	 * @param name Package name
+	 * @return Size in bytes, or -1 if not installed
+	 */
+	public synchronized long getSize(String name) {
+		int id = id(name);
+		return id < 0 ? -1 : sizes[id];
+	}
+
+	/**
+	 * Installed size of a package and everything it depends on, directly or
+	 * not.
+	 *
+	 * @param name Package name
+	 * @return Size in bytes, or -1 if not installed
+	 */
+	public synchronized long getClosureSize(String name) {
+		int id = id(name);
+		if (id < 0)
+			return -1;
+		if (closureSizes[id] < 0) {
+			int n = closure(id, nextStamp(), marks);
+			long sum = 0;
+			for (int i = 0; i < n; i++)
+				sum += sizes[queue[i]];
+			closureSizes[id] = sum;
+		}
+		return closureSizes[id];
+	}
+
+	/**
+	 * Size freed by removing a package along with the dependencies nothing
+	 * else needs, as 'pacman -Rs' would.  Explicitly installed dependencies
+	 * are kept.
+	 *
+	 * @param name Package name
+	 * @return Size in bytes, or -1 if not installed
+	 */
+	public synchronized long getExclusiveSize(String name) {
+		int id = id(name);
+		if (id < 0)
+			return -1;
+		if (!exclusiveComputed)
+			computeExclusiveSizes();
+		if (exclusiveSizes[id] < 0)
+			exclusiveSizes[id] = walkExclusiveSize(id);
+		return exclusiveSizes[id];
+	}
+
+	/**
+	 * Computes the exclusive sizes of all packages reachable from explicitly
+	 * installed ones, in one pass over the dominator tree (Cooper, Harvey and
+	 * Kennedy, "A Simple, Fast Dominance Algorithm").
+	 */
+	private void computeExclusiveSizes() {
+		resolveDeps();
+		int root = count;
+
+		// Packages reachable from explicitly installed ones
+		int needed = nextStamp();
+		int tail = 0;
+		for (int i = 0; i < count; i++) {
+			if (names[i] != null && reasons[i] == 0) {
+				marks[i] = needed;
+				queue[tail++] = i;
+			}
+		}
+		for (int head = 0; head < tail; head++) {
+			int[] d = deps[queue[head]];
+			for (int k = 0; k < d.length; k++) {
+				if (marks[d[k]] != needed) {
+					marks[d[k]] = needed;
+					queue[tail++] = d[k];
+				}
+			}
+		}
+
+		// The root depends on the explicit packages and the orphans
+		int n = 0;
+		int[] rootDeps = new int[count];
+		for (int i = 0; i < count; i++) {
+			if (names[i] != null && (reasons[i] == 0 || marks[i] != needed))
+				rootDeps[n++] = i;
+		}
+		rootDeps = Arrays.copyOf(rootDeps, n);
+
+		// Post-order numbers from an iterative depth first search
+		int[] post = new int[count + 1];
+		int[] byPost = new int[count + 1];
+		int[] stack = new int[count + 1];
+		int[] next = new int[count + 1];
+		int visited = nextStamp();
+		int nodes = 0;
+		int sp = 0;
+		stack[0] = root;
+		while (sp >= 0) {
+			int v = stack[sp];
+			int[] d = v == root ? rootDeps : deps[v];
+			if (next[sp] < d.length) {
+				int w = d[next[sp]++];
+				if (marks2[w] != visited) {
+					marks2[w] = visited;
+					stack[++sp] = w;
+					next[sp] = 0;
+				}
+			} else {
+				post[v] = nodes;
+				byPost[nodes++] = v;
+				sp--;
+			}
+		}
+
+		// Predecessors, in compressed rows
+		int[] predStart = new int[count + 2];
+		for (int k = 0; k < rootDeps.length; k++)
+			predStart[rootDeps[k] + 1]++;
+		for (int i = 0; i < count; i++) {
+			if (names[i] == null)
+				continue;
+			for (int k = 0; k < deps[i].length; k++)
+				predStart[deps[i][k] + 1]++;
+		}
+		for (int i = 0; i <= count; i++)
+			predStart[i + 1] += predStart[i];
+		int[] preds = new int[predStart[count + 1]];
+		int[] fill = Arrays.copyOf(predStart, count + 1);
+		for (int k = 0; k < rootDeps.length; k++)
+			preds[fill[rootDeps[k]]++] = root;
+		for (int i = 0; i < count; i++) {
+			if (names[i] == null)
+				continue;
+			for (int k = 0; k < deps[i].length; k++)
+				preds[fill[deps[i][k]]++] = i;
+		}
+
+		// Immediate dominators, iterating in reverse post-order
+		int[] idom = new int[count + 1];
+		Arrays.fill(idom, -1);
+		idom[root] = root;
+		boolean changed = true;
+		while (changed) {
+			changed = false;
+			for (int k = nodes - 2; k >= 0; k--) {
+				int b = byPost[k];
+				int dom = -1;
+				for (int j = predStart[b]; j < predStart[b + 1]; j++) {
+					int p = preds[j];
+					if (idom[p] < 0)
+						continue;
+					if (dom < 0) {
+						dom = p;
+					} else {
+						int x = p;
+						while (x != dom) {
+							while (post[x] < post[dom])
+								x = idom[x];
+							while (post[dom] < post[x])
+								dom = idom[dom];
+						}
+					}
+				}
+				if (idom[b] != dom) {
+					idom[b] = dom;
+					changed = true;
+				}
+			}
+		}
+
+		// Subtree sums; a dominator comes after everything it dominates
+		long[] sums = new long[count + 1];
+		for (int k = 0; k < nodes - 1; k++) {
+			int v = byPost[k];
+			sums[v] += sizes[v];
+			if (idom[v] != root)
+				sums[idom[v]] += sums[v];
+		}
+		for (int i = 0; i < count; i++)
+			exclusiveSizes[i] = names[i] != null && marks[i] == needed ? sums[i] : -1;
+		exclusiveComputed = true;
+	}
+
+	/**
+	 * Computes the exclusive size of a single package by walking everything
+	 * that stays installed.
+	 *
+	 * @param id Package id
+	 * @return Size in bytes
+	 */
+	private long walkExclusiveSize(int id) {
+		int inClosure = nextStamp();
+		int n = closure(id, inClosure, marks);
+		int[] members = Arrays.copyOf(queue, n);
+
+		// Everything reachable from what stays installed is kept
+		int kept = nextStamp();
+		int head = 0;
+		int tail = 0;
+		marks2[id] = kept;
+		for (int i = 0; i < count; i++) {
+			if (names[i] == null || i == id)
+				continue;
+			if (marks[i] != inClosure || reasons[i] == 0) {
+				marks2[i] = kept;
+				queue[tail++] = i;
+			}
+		}
+		while (head < tail) {
+			int[] d = deps[queue[head++]];
+			for (int k = 0; k < d.length; k++) {
+				if (marks2[d[k]] != kept) {
+					marks2[d[k]] = kept;
+					queue[tail++] = d[k];
+				}
+			}
+		}
+
+		long sum = sizes[id];
+		for (int i = 0; i < n; i++) {
+			if (members[i] != id && marks2[members[i]] != kept)
+				sum += sizes[members[i]];
+		}
+		return sum;
+	}
+
+	/**
+	 * Names of known groups with at least one installed member.
+	 *
+	 * @return Group names, sorted
+	 */
+	public synchronized List<String> getGroups() {
+		ArrayList<String> result = new ArrayList<String>();
+		for (int i = 0; i < groupNames.size(); i++) {
+			if (groupCounts[i] > 0)
+				result.add(groupNames.get(i));
+		}
+		Collections.sort(result);
+		return result;
+	}
+
+	/**
+	 * Installed size of a group.
+	 *
+	 * @param group Group name
+	 * @return Size in bytes
+	 */
+	public synchronized long getGroupSize(String group) {
+		Integer gid = groupIds.get(group);
+		return gid == null ? 0 : groupSizes[gid.intValue()];
+	}
+
+	/**
+	 * Number of installed members of a group.
+	 *
+	 * @param group Group name
+	 * @return Member count
+	 */
+	public synchronized int getGroupCount(String group) {
+		Integer gid = groupIds.get(group);
+		return gid == null ? 0 : groupCounts[gid.intValue()];
+	}
+
+	/**
+	 * Installation time of a package.
+	 *
+	 * @param name Package name
+	 * @return Seconds since the epoch, or -1 if not installed
+	 */
+	public synchronized long getInstallDate(String name) {
+		int id = id(name);
+		return id < 0 ? -1 : dates[id];
+	}
+
+	/**
+	 * Names of all installed packages.
+	 *
+	 * @return Package names
+	 */
+	public synchronized List<String> getPackages() {
+		return new ArrayList<String>(ids.keySet());
+	}
+
+	/**
+	 * The largest installed packages.
+	 *
+	 * @param n Maximum number of packages
+	 * @return Package names, largest first
+	 */
+	public synchronized List<String> getLargest(int n) {
+		// Min-heap of the 'n' largest seen so far
+		int[] heap = new int[Math.max(n, 0)];
+		int size = 0;
+		for (int i = 0; i < count && n > 0; i++) {
+			if (names[i] == null)
+				continue;
+			if (size < n) {
+				heap[size] = i;
+				siftUp(heap, size++);
+			} else if (sizes[i] > sizes[heap[0]]) {
+				heap[0] = i;
+				siftDown(heap, size);
+			}
+		}
+		String[] result = new String[size];
+		while (size > 0) {
+			result[--size] = names[heap[0]];
+			heap[0] = heap[size];
+			siftDown(heap, size);
+		}
+		return Arrays.asList(result);
+	}
+
+	/**
+	 * Packages installed at or after a point in time.
+	 *
+	 * @param since Seconds since the epoch
+	 * @return Package names, most recently installed first
+	 */
+	public synchronized List<String> getInstalledSince(long since) {
+		ArrayList<Integer> found = new ArrayList<Integer>();
+		for (int i = 0; i < count; i++) {
+			if (names[i] != null && dates[i] >= since)
+				found.add(Integer.valueOf(i));
+		}
+		Collections.sort(found, new Comparator<Integer>() {
+
+			@Override
+			public int compare(Integer a, Integer b) {
+				long x = dates[a.intValue()];
+				long y = dates[b.intValue()];
+				return x > y ? -1 : (x < y ? 1 : 0);
+			}
+		});
+		ArrayList<String> result = new ArrayList<String>(found.size());
+		for (Integer i : found)
+			result.add(names[i.intValue()]);
+		return result;
+	}
+
+	/**
+	 * Collects a package and its dependencies, transitively, into 'queue'.
+	 *
+	 * @param id Package id
+	 * @param mark Mark value to use
+	 * @param m Mark array to use
+	 * @return Number of packages collected
+	 */
+	private int closure(int id, int mark, int[] m) {
+		resolveDeps();
+		int head = 0;
+		int tail = 0;
+		m[id] = mark;
+		queue[tail++] = id;
+		while (head < tail) {
+			int[] d = deps[queue[head++]];
+			for (int k = 0; k < d.length; k++) {
+				if (m[d[k]] != mark) {
+					m[d[k]] = mark;
+					queue[tail++] = d[k];
+				}
+			}
+		}
+		return tail;
+	}
+
+	/**
+	 * Turns dependencies into the ids of every installed package satisfying
+	 * them; dependencies nothing installed satisfies are dropped.
+	 */
+	private void resolveDeps() {
+		if (depsResolved)
+			return;
+		int[] tmp = new int[16];
+		for (int i = 0; i < count; i++) {
+			if (names[i] == null)
+				continue;
+			String[] d = depends[i];
+			int seen = nextStamp();
+			marks[i] = seen;
+			int n = 0;
+			for (int k = 0; k < d.length; k++) {
+				int[] p = providers.resolve(d[k]);
+				for (int j = 0; j < p.length; j++) {
+					if (marks[p[j]] == seen)
+						continue;
+					marks[p[j]] = seen;
+					if (n == tmp.length)
+						tmp = Arrays.copyOf(tmp, n * 2);
+					tmp[n++] = p[j];
+				}
+			}
+			deps[i] = Arrays.copyOf(tmp, n);
+		}
+		depsResolved = true;
+	}
+
+	/**
+	 * Invalidates derived data after a change.
+	 */
+	private void changed() {
+		depsResolved = false;
+		exclusiveComputed = false;
+		Arrays.fill(closureSizes, -1);
+		Arrays.fill(exclusiveSizes, -1);
+	}
+
+	private int id(String name) {
+		Integer id = ids.get(name);
+		return id == null ? -1 : id.intValue();
+	}
+
+	private int groupId(String group) {
+		Integer gid = groupIds.get(group);
+		if (gid != null)
+			return gid.intValue();
+		int id = groupNames.size();
+		groupNames.add(group);
+		groupIds.put(group, Integer.valueOf(id));
+		if (id >= groupSizes.length) {
+			groupSizes = Arrays.copyOf(groupSizes, id * 2);
+			groupCounts = Arrays.copyOf(groupCounts, id * 2);
+		}
+		return id;
+	}
+
+	private int nextStamp() {
+		if (++stamp == Integer.MAX_VALUE) {
+			Arrays.fill(marks, 0);
+			Arrays.fill(marks2, 0);
+			stamp = 1;
+		}
+		return stamp;
+	}
+
+	/**
+	 * Grows the per-package arrays to hold at least 'n' ids.
+	 *
+	 * @param n Number of ids
+	 */
+	private void ensureCapacity(int n) {
+		if (n <= names.length)
+			return;
+		int c = Math.max(n, names.length * 2);
+		names = Arrays.copyOf(names, c);
+		sizes = Arrays.copyOf(sizes, c);
+		dates = Arrays.copyOf(dates, c);
+		reasons = Arrays.copyOf(reasons, c);
+		depends = Arrays.copyOf(depends, c);
+		pkgGroups = Arrays.copyOf(pkgGroups, c);
+		deps = Arrays.copyOf(deps, c);
+		marks = Arrays.copyOf(marks, c);
+		marks2 = Arrays.copyOf(marks2, c);
+		queue = Arrays.copyOf(queue, c);
+		closureSizes = Arrays.copyOf(closureSizes, c);
+		exclusiveSizes = Arrays.copyOf(exclusiveSizes, c);
+	}
+
+	private void siftUp(int[] heap, int i) {
+		while (i > 0) {
+			int parent = (i - 1) / 2;
+			if (sizes[heap[parent]] <= sizes[heap[i]])
+				break;
+			int t = heap[parent];
+			heap[parent] = heap[i];
+			heap[i] = t;
+			i = parent;
+		}
+	}
+
+	private void siftDown(int[] heap, int size) {
+		int i = 0;
+		while (true) {
+			int smallest = i;
+			int l = 2 * i + 1;
+			int r = l + 1;
+			if (l < size && sizes[heap[l]] < sizes[heap[smallest]])
+				smallest = l;
+			if (r < size && sizes[heap[r]] < sizes[heap[smallest]])
+				smallest = r;
+			if (smallest == i)
+				return;
+			int t = heap[smallest];
+			heap[smallest] = heap[i];
+			heap[i] = t;
+			i = smallest;
+		}
+	}
+}
@@ -0,0 +1,184 @@
+/*
+ * Karun, a package manager for ArchLinux based on 'pacman'.
+ * Copyright (C) 2011  Bahman Movaqar
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, 
+ * USA.
+ */
+package com.bahmanm.karun;
+
+import java.awt.BorderLayout;
+import java.awt.Component;
+import java.awt.Frame;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import javax.swing.BorderFactory;
+import javax.swing.JDialog;
+import javax.swing.JLabel;
+import javax.swing.JScrollPane;
+import javax.swing.JTabbedPane;
+import javax.swing.JTable;
+import javax.swing.RowSorter.SortKey;
+import javax.swing.SortOrder;
+import javax.swing.table.DefaultTableCellRenderer;
+import javax.swing.table.DefaultTableModel;
+
+/**
+ * DiskUsageDialog
+ *
+ * Shows where the disk space of installed packages goes.  What it shows is
+ * computed beforehand by compute(), off the event dispatch thread.
+ *
+ * @author Bahman Movaqar (Bahman AT BahmanM.com)
+ */
+public class DiskUsageDialog extends JDialog {
+
+	/** How far back "recently installed" goes, in seconds */
+	private static final long RECENT_PERIOD = 7 * 24 * 60 * 60;
+
+	/**
+	 * Constructor
+	 *
+	 * @param parent Parent frame
+	 * @param contents What to show, from compute()
+	 */
+	public DiskUsageDialog(Frame parent, Contents contents) {
+		super(parent, "Disk Usage", false);
+		setDefaultCloseOperation(DISPOSE_ON_CLOSE);
+
+		JLabel totalLabel = new JLabel("Total installed size: "
+				+ Utils.formatSize(contents.totalSize));
+		totalLabel.setBorder(BorderFactory.createEmptyBorder(4, 4, 4, 4));
+
+		JTabbedPane tabs = new JTabbedPane();
+		tabs.addTab("Packages", new JScrollPane(createTable(createModel(
+				new String[]{"Name", "Size", "With dependencies", "Freed by removal", "Installed"},
+				new Class<?>[]{String.class, Long.class, Long.class, Long.class, Date.class},
+				contents.packages), 1)));
+		tabs.addTab("Groups", new JScrollPane(createTable(createModel(
+				new String[]{"Group", "Packages", "Size"},
+				new Class<?>[]{String.class, Integer.class, Long.class},
+				contents.groups), 2)));
+		tabs.addTab("Installed Last Week", new JScrollPane(createTable(createModel(
+				new String[]{"Name", "Installed", "Size"},
+				new Class<?>[]{String.class, Date.class, Long.class},
+				contents.recent), 1)));
+
+		getContentPane().setLayout(new BorderLayout());
+		getContentPane().add(totalLabel, BorderLayout.NORTH);
+		getContentPane().add(tabs, BorderLayout.CENTER);
+		setSize(640, 480);
+		setLocationRelativeTo(parent);
+	}
+
+	/**
+	 * Computes what the dialog shows: per-package sizes, including those of
+	 * dependency closures and freed by removal, per-group sizes and the
+	 * packages installed recently.  Takes a while with many packages, so
+	 * it's meant to run in the background.
+	 *
+	 * @param usage Disk usage of installed packages
+	 * @return Contents
+	 */
+	public static Contents compute(DiskUsage usage) {
+		Contents c = new Contents();
+		c.totalSize = usage.getTotalSize();
+		for (String name : usage.getPackages()) {
+			c.packages.add(new Object[]{name, Long.valueOf(usage.getSize(name)),
+						Long.valueOf(usage.getClosureSize(name)),
+						Long.valueOf(usage.getExclusiveSize(name)),
+						new Date(usage.getInstallDate(name) * 1000)});
+		}
+		for (String group : usage.getGroups()) {
+			c.groups.add(new Object[]{group, Integer.valueOf(usage.getGroupCount(group)),
+						Long.valueOf(usage.getGroupSize(group))});
+		}
+		long since = System.currentTimeMillis() / 1000 - RECENT_PERIOD;
+		for (String name : usage.getInstalledSince(since)) {
+			c.recent.add(new Object[]{name, new Date(usage.getInstallDate(name) * 1000),
+						Long.valueOf(usage.getSize(name))});
+		}
+		return c;
+	}
+
+	/**
+	 * Creates a read-only table model.
+	 *
+	 * @param columns Column names
+	 * @param types Column types
+	 * @param rows Rows
+	 * @return Table model
+	 */
+	private static DefaultTableModel createModel(String[] columns, final Class<?>[] types,
+			List<Object[]> rows) {
+		DefaultTableModel model = new DefaultTableModel(columns, 0) {
+
+			@Override
+			public Class<?> getColumnClass(int columnIndex) {
+				return types[columnIndex];
+			}
+
+			@Override
+			public boolean isCellEditable(int rowIndex, int columnIndex) {
+				return false;
+			}
+		};
+		for (Object[] row : rows)
+			model.addRow(row);
+		return model;
+	}
+
+	/**
+	 * Creates a sortable table showing sizes in human readable form.
+	 *
+	 * @param model Table model
+	 * @param sortColumn Column to sort by, descending
+	 * @return Table
+	 */
+	private static JTable createTable(DefaultTableModel model, int sortColumn) {
+		JTable table = new JTable(model);
+		table.setAutoCreateRowSorter(true);
+		table.setFillsViewportHeight(true);
+		table.setDefaultRenderer(Long.class, new DefaultTableCellRenderer() {
+
+			@Override
+			public Component getTableCellRendererComponent(JTable table, Object value,
+					boolean isSelected, boolean hasFocus, int row, int column) {
+				super.getTableCellRendererComponent(table, value, isSelected, hasFocus, row, column);
+				setText(value == null ? "" : Utils.formatSize(((Long) value).longValue()));
+				setHorizontalAlignment(RIGHT);
+				return this;
+			}
+		});
+		table.getRowSorter().setSortKeys(Arrays.asList(new SortKey(sortColumn, SortOrder.DESCENDING)));
+		return table;
+	}
+
+	/**
+	 * Rows of the dialog's tables
+	 */
+	public static class Contents {
+
+		private long totalSize;
+		/** Name, size, closure size, exclusive size and installation date */
+		private final List<Object[]> packages = new ArrayList<Object[]>();
+		/** Name, member count and size */
+		private final List<Object[]> groups = new ArrayList<Object[]>();
+		/** Name, installation date and size */
+		private final List<Object[]> recent = new ArrayList<Object[]>();
+	}
+}
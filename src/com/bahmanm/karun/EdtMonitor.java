@@ -0,0 +1,354 @@
+/*
+ * Karun, a package manager for ArchLinux based on 'pacman'.
+ * Copyright (C) 2011  Bahman Movaqar
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, 
+ * USA.
+ */
+package com.bahmanm.karun;
+
+import java.awt.AWTEvent;
+import java.awt.EventQueue;
+import java.awt.Toolkit;
+import java.util.Arrays;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * EdtMonitor
+ *
+ * Watches how responsive the event dispatch thread is.  A probe is posted
+ * to the event queue every PROBE_INTERVAL ms and the time until it runs is
+ * recorded; percentiles of the last SAMPLES probes are reported every
+ * REPORT_INTERVAL seconds.  Any event whose dispatch takes longer than the
+ * threshold is a stall: it's reported with the event and the stack of the
+ * event dispatch thread, taken while the stall was going on.  Events which
+ * dispatched others meanwhile, e.g. by opening a modal dialog, don't count.
+ *
+ * Enabled with -Dkarun.edtmonitor=true; -Dkarun.edtmonitor.threshold=<ms>
+ * sets the threshold.  Reports go to the log and to a listener.
+ *
+ * @author Bahman Movaqar (Bahman AT BahmanM.com)
+ */
+public class EdtMonitor {
+
+	/** Default stall threshold in ms */
+	public static final int DEFAULT_THRESHOLD = 200;
+	/** Time between probes in ms */
+	private static final int PROBE_INTERVAL = 100;
+	/** Time between reports in seconds */
+	private static final int REPORT_INTERVAL = 60;
+	/** Number of probe latencies percentiles are taken of */
+	private static final int SAMPLES = 1024;
+	/** Longest event description kept */
+	private static final int MAX_OPERATION_LENGTH = 200;
+	private static final Logger LOGGER = Logger.getLogger(EdtMonitor.class.getName());
+
+	/**
+	 * Listener for reports
+	 */
+	public interface Listener {
+
+		/**
+		 * Called on a background thread with the latest percentiles.
+		 *
+		 * @param report Report
+		 */
+		public abstract void reported(Report report);
+
+		/**
+		 * Called on the event dispatch thread once a stall is over.
+		 *
+		 * @param stall Stall
+		 */
+		public abstract void stalled(Stall stall);
+	}
+
+	/**
+	 * Probe latency percentiles
+	 */
+	public static class Report {
+
+		private final long p50;
+		private final long p90;
+		private final long p99;
+		private final long max;
+		private final int samples;
+		private final int stalls;
+
+		Report(long[] sorted, int stalls) {
+			samples = sorted.length;
+			p50 = percentile(sorted, 50);
+			p90 = percentile(sorted, 90);
+			p99 = percentile(sorted, 99);
+			max = samples == 0 ? 0 : sorted[samples - 1];
+			this.stalls = stalls;
+		}
+
+		private static long percentile(long[] sorted, int p) {
+			if (sorted.length == 0)
+				return 0;
+			return sorted[Math.min(sorted.length - 1, (int) ((long) sorted.length * p / 100))];
+		}
+
+		/** Median latency in ms */
+		public long getP50() {
+			return p50;
+		}
+
+		public long getP90() {
+			return p90;
+		}
+
+		public long getP99() {
+			return p99;
+		}
+
+		public long getMax() {
+			return max;
+		}
+
+		/** Number of probes the percentiles are taken of */
+		public int getSamples() {
+			return samples;
+		}
+
+		/** Number of stalls since the monitor started */
+		public int getStalls() {
+			return stalls;
+		}
+
+		/**
+		 * E.g. 'EDT latency p50 1 ms, p90 3 ms, p99 40 ms, max 250 ms; 1 stall(s)'.
+		 */
+		@Override
+		public String toString() {
+			return "EDT latency p50 " + p50 + " ms, p90 " + p90 + " ms, p99 " + p99
+					+ " ms, max " + max + " ms; " + stalls + " stall(s)";
+		}
+	}
+
+	/**
+	 * Event whose dispatch took longer than the threshold
+	 */
+	public static class Stall {
+
+		private final long duration;
+		private final String operation;
+		private final StackTraceElement[] stack;
+
+		Stall(long duration, String operation, StackTraceElement[] stack) {
+			this.duration = duration;
+			this.operation = operation;
+			this.stack = stack;
+		}
+
+		/** Dispatch time in ms */
+		public long getDuration() {
+			return duration;
+		}
+
+		/** Event being dispatched, e.g. 'java.awt.event.InvocationEvent[...,runnable=Karun$3@1f]' */
+		public String getOperation() {
+			return operation;
+		}
+
+		/** Stack of the event dispatch thread during the stall; empty if not taken */
+		public StackTraceElement[] getStack() {
+			return stack;
+		}
+
+		@Override
+		public String toString() {
+			StringBuilder sb = new StringBuilder("EDT stalled for ").append(duration)
+					.append(" ms dispatching ").append(operation);
+			for (StackTraceElement e : stack)
+				sb.append("\n\tat ").append(e);
+			return sb.toString();
+		}
+	}
+
+	/** Stall threshold in ns */
+	private final long threshold;
+	private final Listener listener;
+	private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(
+			Utils.daemonThreadFactory("karun-edt-monitor"));
+	/** Latest probe latencies in ms, a ring */
+	private final long[] samples = new long[SAMPLES];
+	/** Number of probes recorded, ever */
+	private long sampleCount;
+	/** Number of stalls */
+	private int stalls;
+	/** Event dispatch thread, as seen by the last probe */
+	private volatile Thread edt;
+	/** When the outstanding probe was posted; 0 if none */
+	private volatile long probePosted;
+	/** Event being dispatched; null if none */
+	private volatile String operation;
+	/** When dispatching 'operation' started */
+	private volatile long operationStart;
+	/** Stack taken during the current stall; null if none */
+	private volatile StackTraceElement[] stallStack;
+	/** When reports were last made */
+	private long lastReport = System.nanoTime();
+
+	/**
+	 * Checks whether the monitor is enabled.
+	 *
+	 * @return true if so
+	 */
+	public static boolean isEnabled() {
+		return Boolean.getBoolean("karun.edtmonitor");
+	}
+
+	/**
+	 * Starts monitoring.
+	 *
+	 * @param thresholdMillis Stall threshold in ms
+	 * @param listener Listener; null for the log only
+	 * @return Monitor
+	 */
+	public static EdtMonitor start(int thresholdMillis, Listener listener) {
+		final EdtMonitor m = new EdtMonitor(thresholdMillis, listener);
+		Toolkit.getDefaultToolkit().getSystemEventQueue().push(m.new MonitoringQueue());
+		m.executor.scheduleWithFixedDelay(new Runnable() {
+
+			@Override
+			public void run() {
+				try {
+					m.tick();
+				} catch (RuntimeException ex) {
+					LOGGER.log(Level.WARNING, null, ex);
+				}
+			}
+		}, PROBE_INTERVAL, PROBE_INTERVAL, TimeUnit.MILLISECONDS);
+		return m;
+	}
+
+	private EdtMonitor(int thresholdMillis, Listener listener) {
+		threshold = TimeUnit.MILLISECONDS.toNanos(thresholdMillis);
+		this.listener = listener;
+	}
+
+	/**
+	 * Current percentiles.
+	 *
+	 * @return Report
+	 */
+	public synchronized Report getReport() {
+		int n = (int) Math.min(sampleCount, SAMPLES);
+		long[] sorted = Arrays.copyOf(samples, n);
+		Arrays.sort(sorted);
+		return new Report(sorted, stalls);
+	}
+
+	/**
+	 * Posts a probe unless one is outstanding, takes the stack of a stall
+	 * which just crossed the threshold and reports when due.  Runs on
+	 * 'executor'.
+	 */
+	private void tick() {
+		long now = System.nanoTime();
+		if (probePosted == 0) {
+			probePosted = now;
+			EventQueue.invokeLater(new Runnable() {
+
+				@Override
+				public void run() {
+					edt = Thread.currentThread();
+					record(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - probePosted));
+					probePosted = 0;
+				}
+			});
+		}
+		long start = operationStart;
+		Thread t = edt;
+		if (start != 0 && now - start > threshold && stallStack == null && t != null) {
+			StackTraceElement[] stack = t.getStackTrace();
+			if (operationStart == start)
+				stallStack = stack;
+		}
+		if (now - lastReport >= TimeUnit.SECONDS.toNanos(REPORT_INTERVAL)) {
+			lastReport = now;
+			Report r = getReport();
+			LOGGER.info(r.toString());
+			if (listener != null)
+				listener.reported(r);
+		}
+	}
+
+	private synchronized void record(long latency) {
+		samples[(int) (sampleCount++ % SAMPLES)] = latency;
+	}
+
+	/**
+	 * Reports a stall.  Runs on the event dispatch thread.
+	 */
+	private void stalled(long nanos, String op, StackTraceElement[] stack) {
+		synchronized (this) {
+			stalls++;
+		}
+		Stall s = new Stall(TimeUnit.NANOSECONDS.toMillis(nanos), op,
+				stack == null ? new StackTraceElement[0] : stack);
+		LOGGER.warning(s.toString());
+		if (listener != null)
+			listener.stalled(s);
+	}
+
+	/**
+	 * Describes an event, e.g. the runnable of an invokeLater.
+	 */
+	private static String describe(AWTEvent e) {
+		String s = e.getClass().getName() + "[" + e.paramString() + "]";
+		return s.length() > MAX_OPERATION_LENGTH ? s.substring(0, MAX_OPERATION_LENGTH) + "..." : s;
+	}
+
+	/**
+	 * Event queue timing the dispatch of every event
+	 */
+	private class MonitoringQueue extends EventQueue {
+
+		/** Number of dispatches started, nested ones included */
+		private long dispatches;
+
+		@Override
+		protected void dispatchEvent(AWTEvent event) {
+			// Dispatch nests, e.g. while a modal dialog is open
+			long serial = ++dispatches;
+			String outerOperation = operation;
+			long outerStart = operationStart;
+			String op = describe(event);
+			long start = System.nanoTime();
+			operation = op;
+			operationStart = start;
+			stallStack = null;
+			try {
+				super.dispatchEvent(event);
+			} finally {
+				long took = System.nanoTime() - start;
+				StackTraceElement[] stack = stallStack;
+				operation = outerOperation;
+				operationStart = outerStart;
+				stallStack = null;
+				// An event which dispatched others, e.g. opened a modal dialog, didn't stall
+				if (took > threshold && dispatches == serial)
+					stalled(took, op, stack);
+			}
+		}
+	}
+}
@@ -0,0 +1,284 @@
+/*
+ * Karun, a package manager for ArchLinux based on 'pacman'.
+ * Copyright (C) 2011  Bahman Movaqar
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, 
+ * USA.
+ */
+package com.bahmanm.karun;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * FlightEvents
+ *
+ * Java Flight Recorder events for the slow parts of Karun: decompressing
+ * archives, parsing repositories, merging the local database, filling the
+ * package table, evaluating searches and running external tools.  They show
+ * up under 'Karun' in a recording started as usual, e.g. with
+ * 'jcmd <pid> JFR.start', next to the JVM's own events.
+ *
+ * Karun still runs on JVMs without JFR, so the events are defined at run
+ * time through jdk.jfr.EventFactory, looked up by reflection.  Where JFR
+ * isn't there, with -Dkarun.jfr=false or when no recording wants an event,
+ * begin() hands out a span which does nothing.  Whether a recording wants
+ * it is asked of the event type, so no event is created then.  Without JFR
+ * that costs a field check; with it, one reflective call.
+ *
+ * Usage:
+ * <pre>
+ *   FlightEvents.Span span = FlightEvents.begin(FlightEvents.Kind.SEARCH);
+ *   ...
+ *   span.commit(query, candidates, rows);
+ * </pre>
+ *
+ * @author Bahman Movaqar (Bahman AT BahmanM.com)
+ */
+public final class FlightEvents {
+
+	private static final Logger LOGGER = Logger.getLogger(FlightEvents.class.getName());
+
+	/**
+	 * Event types.  Fields are strings unless declared as 'name:long'; long
+	 * fields whose name ends in 'bytes' are shown as data amounts.
+	 */
+	public enum Kind {
+
+		DECOMPRESS("karun.Decompress", "Archive Decompression",
+				"archive", "format", "compressedBytes:long", "bytes:long", "entries:long"),
+		PARSE("karun.RepoParse", "Repository Parse",
+				"repo", "packages:long", "bytes:long"),
+		MERGE("karun.CollectionMerge", "Collection Merge",
+				"packages:long", "merged:long", "bytes:long", "collection:long"),
+		TABLE_FILL("karun.TableFill", "Table Model Fill",
+				"repo", "rows:long"),
+		SEARCH("karun.Search", "Search Evaluation",
+				"query", "candidates:long", "rows:long"),
+		PROCESS("karun.Process", "External Process",
+				"command", "exitCode:long", "bytes:long");
+
+		/** Event name */
+		private final String eventName;
+		/** Human readable name */
+		private final String label;
+		/** Field names, in commit() order */
+		private final String[] fields;
+		/** Whether the fields are long */
+		private final boolean[] longs;
+
+		private Kind(String eventName, String label, String... fields) {
+			this.eventName = eventName;
+			this.label = label;
+			this.fields = new String[fields.length];
+			longs = new boolean[fields.length];
+			for (int i = 0; i < fields.length; i++) {
+				longs[i] = fields[i].endsWith(":long");
+				this.fields[i] = longs[i] ? fields[i].substring(0, fields[i].length() - 5) : fields[i];
+			}
+		}
+
+		/**
+		 * Name of the event in recordings, e.g. 'karun.Search'.
+		 *
+		 * @return Name
+		 */
+		public String getEventName() {
+			return eventName;
+		}
+
+		/**
+		 * Names of the fields in the order commit() takes them.
+		 *
+		 * @return Field names
+		 */
+		public List<String> getFields() {
+			return Collections.unmodifiableList(Arrays.asList(fields));
+		}
+	}
+
+	/** Span handed out when there's nothing to record */
+	private static final Span NONE = new Span(null, null);
+	/** Arguments of the methods taking none */
+	private static final Object[] NO_ARGS = new Object[0];
+	/** Event factories by Kind.ordinal(); null if JFR can't be used */
+	private static Object[] factories;
+	/** Event types by Kind.ordinal() */
+	private static Object[] types;
+	private static Method newEvent;
+	private static Method isEnabled;
+	private static Method beginEvent;
+	private static Method endEvent;
+	private static Method shouldCommit;
+	private static Method setField;
+	private static Method commitEvent;
+
+	static {
+		if (Boolean.parseBoolean(System.getProperty("karun.jfr", "true"))) {
+			try {
+				init();
+			} catch (Exception ex) {
+				factories = null;
+				LOGGER.log(Level.FINE, "Flight Recorder events unavailable", ex);
+			} catch (LinkageError ex) {
+				factories = null;
+				LOGGER.log(Level.FINE, "Flight Recorder events unavailable", ex);
+			}
+		}
+	}
+
+	private FlightEvents() {
+	}
+
+	/**
+	 * Defines the event types.
+	 */
+	private static void init() throws Exception {
+		Class<?> factoryClass = Class.forName("jdk.jfr.EventFactory");
+		Class<?> eventClass = Class.forName("jdk.jfr.Event");
+		Constructor<?> annotation = Class.forName("jdk.jfr.AnnotationElement")
+				.getConstructor(Class.class, Object.class);
+		Constructor<?> value = Class.forName("jdk.jfr.ValueDescriptor")
+				.getConstructor(Class.class, String.class, List.class);
+		Method create = factoryClass.getMethod("create", List.class, List.class);
+		Class<?> name = Class.forName("jdk.jfr.Name");
+		Class<?> label = Class.forName("jdk.jfr.Label");
+		Class<?> category = Class.forName("jdk.jfr.Category");
+		Class<?> dataAmount = Class.forName("jdk.jfr.DataAmount");
+		Class<?> stackTrace = Class.forName("jdk.jfr.StackTrace");
+
+		Kind[] kinds = Kind.values();
+		Object[] f = new Object[kinds.length];
+		Object[] t = new Object[kinds.length];
+		for (Kind k : kinds) {
+			List<Object> annotations = new ArrayList<Object>();
+			annotations.add(annotation.newInstance(name, k.eventName));
+			annotations.add(annotation.newInstance(label, k.label));
+			annotations.add(annotation.newInstance(category, new String[] {"Karun"}));
+			// Stacks would only show the reflective calls committing events
+			annotations.add(annotation.newInstance(stackTrace, Boolean.FALSE));
+			List<Object> values = new ArrayList<Object>();
+			for (int i = 0; i < k.fields.length; i++) {
+				List<Object> a = new ArrayList<Object>();
+				a.add(annotation.newInstance(label, k.fields[i]));
+				if (k.longs[i] && k.fields[i].toLowerCase().endsWith("bytes"))
+					a.add(annotation.newInstance(dataAmount, "BYTES"));
+				values.add(value.newInstance(k.longs[i] ? long.class : String.class,
+						k.fields[i], a));
+			}
+			f[k.ordinal()] = create.invoke(null, annotations, values);
+			t[k.ordinal()] = factoryClass.getMethod("getEventType").invoke(f[k.ordinal()]);
+		}
+		newEvent = factoryClass.getMethod("newEvent");
+		isEnabled = Class.forName("jdk.jfr.EventType").getMethod("isEnabled");
+		beginEvent = eventClass.getMethod("begin");
+		endEvent = eventClass.getMethod("end");
+		shouldCommit = eventClass.getMethod("shouldCommit");
+		setField = eventClass.getMethod("set", int.class, Object.class);
+		commitEvent = eventClass.getMethod("commit");
+		types = t;
+		factories = f;
+	}
+
+	/**
+	 * Checks whether events can be recorded at all.
+	 *
+	 * @return true if JFR is there and not turned off
+	 */
+	public static boolean isAvailable() {
+		return factories != null;
+	}
+
+	/**
+	 * Starts timing an event.
+	 *
+	 * @param kind Event type
+	 * @return Span to commit once done; never null
+	 */
+	public static Span begin(Kind kind) {
+		if (factories == null)
+			return NONE;
+		try {
+			if (!((Boolean) isEnabled.invoke(types[kind.ordinal()], NO_ARGS)).booleanValue())
+				return NONE;
+			Object event = newEvent.invoke(factories[kind.ordinal()], NO_ARGS);
+			beginEvent.invoke(event, NO_ARGS);
+			return new Span(kind, event);
+		} catch (Exception ex) {
+			LOGGER.log(Level.FINE, null, ex);
+			return NONE;
+		}
+	}
+
+	/**
+	 * A timed event.  Spans belong to the thread which began them.
+	 */
+	public static final class Span {
+
+		/** Event type; null for a span doing nothing */
+		private final Kind kind;
+		/** JFR event; null for a span doing nothing */
+		private final Object event;
+
+		private Span(Kind kind, Object event) {
+			this.kind = kind;
+			this.event = event;
+		}
+
+		/**
+		 * Checks whether the span is being recorded, so that values which
+		 * take work to compute can be skipped when it's not.
+		 *
+		 * @return true if so
+		 */
+		public boolean isRecording() {
+			return event != null;
+		}
+
+		/**
+		 * Ends the span and records it with its fields, given in the order
+		 * of its kind.  Missing fields are left empty; numbers are taken as
+		 * long.
+		 *
+		 * @param values Field values
+		 */
+		public void commit(Object... values) {
+			if (event == null)
+				return;
+			try {
+				endEvent.invoke(event, NO_ARGS);
+				if (!((Boolean) shouldCommit.invoke(event, NO_ARGS)).booleanValue())
+					return;
+				for (int i = 0; i < values.length && i < kind.fields.length; i++) {
+					Object v = values[i];
+					if (kind.longs[i])
+						v = Long.valueOf(v instanceof Number ? ((Number) v).longValue() : 0);
+					else if (v != null)
+						v = v.toString();
+					setField.invoke(event, Integer.valueOf(i), v);
+				}
+				commitEvent.invoke(event, NO_ARGS);
+			} catch (Exception ex) {
+				LOGGER.log(Level.FINE, null, ex);
+			}
+		}
+	}
+}
@@ -0,0 +1,683 @@
+/*
+ * Karun, a package manager for ArchLinux based on 'pacman'.
+ * Copyright (C) 2011  Bahman Movaqar
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, 
+ * USA.
+ */
+package com.bahmanm.karun;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.zip.CRC32;
+
+/**
+ * History
+ *
+ * What pacman installed, upgraded, downgraded, reinstalled and removed and
+ * when, as recorded in its log file, indexed by package.
+ *
+ * The log is read through memory mapped windows; only lines recording a
+ * transaction are decoded.  The index is kept in '~/.karun/history' with
+ * the length of the log it covers, so later runs only read what was
+ * appended since.  A log which shrank or whose start changed, e.g. after
+ * rotation, is indexed again from scratch.
+ *
+ * The index file is the magic "KHST", a format version byte, the log path,
+ * the indexed length, length and CRC32 of the log's first bytes and then,
+ * per package, its name, number of events and their encoded bytes (see
+ * Timeline).
+ *
+ * @author Bahman Movaqar (Bahman AT BahmanM.com)
+ */
+public class History {
+
+	/** Magic of the index file */
+	private static final byte[] MAGIC = {'K', 'H', 'S', 'T'};
+	/** Version of the index file */
+	private static final int FORMAT_VERSION = 1;
+	/** Bytes of the log mapped at once */
+	private static final long WINDOW = 64L * 1024 * 1024;
+	/** Bytes at the start of the log whose checksum detects rotation */
+	private static final int FINGERPRINT_LENGTH = 256;
+
+	/**
+	 * What happened to a package
+	 */
+	public enum Action {
+
+		INSTALLED, UPGRADED, DOWNGRADED, REINSTALLED, REMOVED;
+		/** Word starting the log message, followed by a space */
+		private final byte[] word;
+
+		private Action() {
+			String w = name().toLowerCase() + " ";
+			word = new byte[w.length()];
+			for (int i = 0; i < word.length; i++)
+				word[i] = (byte) w.charAt(i);
+		}
+	}
+
+	/**
+	 * One change to a package
+	 */
+	public static class Event {
+
+		/** Seconds since the epoch */
+		private final long time;
+		private final Action action;
+		/** Version before; empty if it wasn't installed */
+		private final String oldVersion;
+		/** Version after; empty if it was removed */
+		private final String newVersion;
+
+		Event(long time, Action action, String oldVersion, String newVersion) {
+			this.time = time;
+			this.action = action;
+			this.oldVersion = oldVersion;
+			this.newVersion = newVersion;
+		}
+
+		/**
+		 * @return Seconds since the epoch
+		 */
+		public long getTime() {
+			return time;
+		}
+
+		public Action getAction() {
+			return action;
+		}
+
+		public String getOldVersion() {
+			return oldVersion;
+		}
+
+		public String getNewVersion() {
+			return newVersion;
+		}
+
+		/**
+		 * Formats the event, e.g. '2011-09-01 12:00 upgraded 1.0-1 -> 1.1-1'.
+		 *
+		 * @return Text
+		 */
+		@Override
+		public String toString() {
+			String versions;
+			if (oldVersion.length() > 0 && newVersion.length() > 0 && !oldVersion.equals(newVersion))
+				versions = oldVersion + " -> " + newVersion;
+			else
+				versions = newVersion.length() > 0 ? newVersion : oldVersion;
+			return new SimpleDateFormat("yyyy-MM-dd HH:mm").format(new Date(time * 1000))
+					+ " " + action.name().toLowerCase() + " " + versions;
+		}
+	}
+
+	/** Log file */
+	private final File log;
+	/** Pool package names are interned in */
+	private final StringPool pool;
+	/** Encoded events of each package, oldest first */
+	private final HashMap<String, Timeline> timelines = new HashMap<String, Timeline>();
+	/** Length of the log covered by 'timelines'; always the end of a line */
+	private long indexedLength;
+	/** Number of bytes the fingerprint covers */
+	private int fingerprintLength;
+	/** CRC32 of the first 'fingerprintLength' bytes of the log */
+	private long fingerprint;
+	/** Calendar for local time stamps, reused */
+	private final Calendar localCalendar = Calendar.getInstance();
+	/** Calendar for time stamps with an offset, reused */
+	private final Calendar utcCalendar = Calendar.getInstance(TimeZone.getTimeZone("UTC"));
+
+	/**
+	 * Constructor; the history is empty until updated.
+	 *
+	 * @param log Pacman's log file
+	 */
+	private History(File log) {
+		this.log = log;
+		pool = StringPool.getDefault();
+	}
+
+	/**
+	 * Loads the history of a log from its index and indexes whatever was
+	 * appended to the log since.
+	 *
+	 * @param log Pacman's log file
+	 * @return History
+	 */
+	public static History load(File log) throws IOException {
+		History h = new History(log);
+		File index = getIndexFile(log);
+		if (index.exists() && !h.readIndex(index))
+			h.clear();
+		h.update();
+		return h;
+	}
+
+	/**
+	 * Indexes what was appended to the log since the last update and saves
+	 * the index if anything changed.
+	 *
+	 * @return true if there were new events
+	 */
+	public synchronized boolean update() throws IOException {
+		if (!log.isFile())
+			throw new FileNotFoundException(log.getAbsolutePath());
+		long length = log.length();
+		boolean changed = false;
+		if (length < indexedLength
+				|| (fingerprintLength > 0 && checksum(fingerprintLength) != fingerprint)) {
+			changed = !timelines.isEmpty();
+			clear();
+		}
+		if (length == indexedLength)
+			return changed;
+		int before = size();
+		scan(length);
+		int n = (int) Math.min(FINGERPRINT_LENGTH, indexedLength);
+		if (n != fingerprintLength) {
+			fingerprintLength = n;
+			fingerprint = checksum(n);
+		}
+		writeIndex(getIndexFile(log));
+		return changed || size() != before;
+	}
+
+	/**
+	 * Events of a package.
+	 *
+	 * @param name Package name
+	 * @return Events, oldest first; empty if none
+	 */
+	public synchronized List<Event> getEvents(String name) {
+		Timeline t = timelines.get(name);
+		return t == null ? Collections.<Event>emptyList() : t.decode();
+	}
+
+	/**
+	 * Events of all packages.
+	 *
+	 * @return Events by package name
+	 */
+	public synchronized Map<String, List<Event>> getAllEvents() {
+		HashMap<String, List<Event>> all = new HashMap<String, List<Event>>();
+		for (Map.Entry<String, Timeline> e : timelines.entrySet())
+			all.put(e.getKey(), e.getValue().decode());
+		return all;
+	}
+
+	/**
+	 * Formats the timeline of a package for the details pane.
+	 *
+	 * @param name Package name
+	 * @return One event per line, newest first; empty if none
+	 */
+	public String getTimeline(String name) {
+		List<Event> l = getEvents(name);
+		StringBuilder sb = new StringBuilder();
+		for (int i = l.size() - 1; i >= 0; i--)
+			sb.append(l.get(i)).append('\n');
+		return sb.toString();
+	}
+
+	/**
+	 * Number of events.
+	 *
+	 * @return Number
+	 */
+	public synchronized int size() {
+		int n = 0;
+		for (Timeline t : timelines.values())
+			n += t.count;
+		return n;
+	}
+
+	/**
+	 * Index file of a log.
+	 *
+	 * @param log Log file
+	 * @return File in '~/.karun/history'
+	 */
+	private static File getIndexFile(File log) throws IOException {
+		File dir = new File(Utils.getKarunDir(), "history");
+		if (!dir.isDirectory() && !dir.mkdirs())
+			throw new IOException("Failed to create directory " + dir.getAbsolutePath());
+		return new File(dir, Integer.toHexString(log.getAbsolutePath().hashCode()) + ".idx");
+	}
+
+	private void clear() {
+		timelines.clear();
+		indexedLength = 0;
+		fingerprintLength = 0;
+		fingerprint = 0;
+	}
+
+	/**
+	 * Computes the CRC32 of the start of the log.
+	 *
+	 * @param n Number of bytes
+	 * @return Checksum, or -1 if the log is shorter
+	 */
+	private long checksum(int n) throws IOException {
+		byte[] b = new byte[n];
+		InputStream in = new FileInputStream(log);
+		try {
+			int len = 0;
+			int r;
+			while (len < n && (r = in.read(b, len, n - len)) >= 0)
+				len += r;
+			if (len < n)
+				return -1;
+		} finally {
+			in.close();
+		}
+		CRC32 crc = new CRC32();
+		crc.update(b);
+		return crc.getValue();
+	}
+
+	/**
+	 * Indexes the log from 'indexedLength' on.  A last line without its
+	 * newline is left for the next update.
+	 *
+	 * @param length Length of the log
+	 */
+	private void scan(long length) throws IOException {
+		FileInputStream fis = new FileInputStream(log);
+		FileChannel ch = fis.getChannel();
+		try {
+			long pos = indexedLength;
+			while (pos < length) {
+				Utils.checkInterrupted();
+				long size = Math.min(WINDOW, length - pos);
+				MappedByteBuffer buf = ch.map(FileChannel.MapMode.READ_ONLY, pos, size);
+				int lineStart = 0;
+				for (int i = 0; i < (int) size; i++) {
+					if (buf.get(i) == '\n') {
+						parseLine(buf, lineStart, i);
+						lineStart = i + 1;
+					}
+				}
+				if (lineStart == 0 && size < WINDOW)
+					break; // only an unfinished line is left
+				pos += lineStart == 0 ? size : lineStart;
+			}
+			indexedLength = pos;
+		} finally {
+			ch.close();
+			fis.close();
+		}
+	}
+
+	/**
+	 * Parses a log line, e.g.
+	 * '[2011-09-01 12:00] upgraded foo (1.0-1 -> 1.1-1)' or
+	 * '[2021-01-31T12:00:00+0100] [ALPM] installed foo (1.0-1)'.
+	 *
+	 * @param buf Log window
+	 * @param from Start of the line
+	 * @param to End of the line, exclusive of the newline
+	 */
+	private void parseLine(MappedByteBuffer buf, int from, int to) {
+		if (to > from && buf.get(to - 1) == '\r')
+			to--;
+		if (to - from < 20 || buf.get(from) != '[')
+			return;
+		int tsEnd = indexOf(buf, ']', from + 1, to);
+		if (tsEnd < 0 || tsEnd + 2 >= to || buf.get(tsEnd + 1) != ' ')
+			return;
+		int p = tsEnd + 2;
+		if (buf.get(p) == '[') {
+			// Only ALPM records transactions; scriptlet output might look alike
+			if (!matches(buf, p, to, "[ALPM] "))
+				return;
+			p += 7;
+		}
+		Action action = null;
+		for (Action a : Action.values()) {
+			if (matches(buf, p, to, a.word)) {
+				action = a;
+				break;
+			}
+		}
+		if (action == null)
+			return;
+		p += action.word.length;
+		int open = indexOf(buf, '(', p, to);
+		if (open < p + 2 || buf.get(open - 1) != ' ' || buf.get(to - 1) != ')')
+			return;
+		long time = parseTime(buf, from + 1, tsEnd);
+		if (time < 0)
+			return;
+		String name = pool.intern(string(buf, p, open - 1));
+		Timeline t = timelines.get(name);
+		if (t == null) {
+			t = new Timeline();
+			timelines.put(name, t);
+		}
+		// Versions are copied as bytes; strings are only made when asked for
+		int arrow = indexOf(buf, '>', open + 1, to - 1);
+		if (arrow > open + 2 && buf.get(arrow - 1) == '-' && buf.get(arrow - 2) == ' ')
+			t.add(action, time, buf, open + 1, arrow - 2, arrow + 2, to - 1);
+		else if (action == Action.REMOVED)
+			t.add(action, time, buf, open + 1, to - 1, 0, 0);
+		else if (action == Action.REINSTALLED)
+			t.add(action, time, buf, open + 1, to - 1, open + 1, to - 1);
+		else
+			t.add(action, time, buf, 0, 0, open + 1, to - 1);
+	}
+
+	/**
+	 * Parses a time stamp, either 'yyyy-MM-dd HH:mm' in local time or
+	 * 'yyyy-MM-ddTHH:mm:ss+hhmm'.
+	 *
+	 * @param buf Log window
+	 * @param from Start of the time stamp
+	 * @param to End of the time stamp
+	 * @return Seconds since the epoch, or -1 if malformed
+	 */
+	private long parseTime(MappedByteBuffer buf, int from, int to) {
+		int len = to - from;
+		if (len != 16 && len != 24)
+			return -1;
+		int year = digits(buf, from, 4);
+		int month = digits(buf, from + 5, 2);
+		int day = digits(buf, from + 8, 2);
+		int hour = digits(buf, from + 11, 2);
+		int minute = digits(buf, from + 14, 2);
+		if (year < 0 || month < 1 || day < 0 || hour < 0 || minute < 0)
+			return -1;
+		Calendar cal;
+		int second = 0;
+		int offset = 0;
+		if (len == 16) {
+			cal = localCalendar;
+		} else {
+			cal = utcCalendar;
+			second = digits(buf, from + 17, 2);
+			int oh = digits(buf, from + 20, 2);
+			int om = digits(buf, from + 22, 2);
+			byte sign = buf.get(from + 19);
+			if (second < 0 || oh < 0 || om < 0 || (sign != '+' && sign != '-'))
+				return -1;
+			offset = (oh * 60 + om) * 60 * (sign == '-' ? -1 : 1);
+		}
+		cal.clear();
+		cal.set(year, month - 1, day, hour, minute, second);
+		return cal.getTimeInMillis() / 1000 - offset;
+	}
+
+	/**
+	 * Parses a fixed number of decimal digits.
+	 *
+	 * @return Number, or -1 if any isn't a digit
+	 */
+	private static int digits(MappedByteBuffer buf, int from, int n) {
+		int v = 0;
+		for (int i = from; i < from + n; i++) {
+			int d = buf.get(i) - '0';
+			if (d < 0 || d > 9)
+				return -1;
+			v = v * 10 + d;
+		}
+		return v;
+	}
+
+	private static int indexOf(MappedByteBuffer buf, char c, int from, int to) {
+		for (int i = from; i < to; i++) {
+			if (buf.get(i) == c)
+				return i;
+		}
+		return -1;
+	}
+
+	private static boolean matches(MappedByteBuffer buf, int from, int to, String s) {
+		if (to - from < s.length())
+			return false;
+		for (int i = 0; i < s.length(); i++) {
+			if (buf.get(from + i) != s.charAt(i))
+				return false;
+		}
+		return true;
+	}
+
+	private static boolean matches(MappedByteBuffer buf, int from, int to, byte[] b) {
+		if (to - from < b.length)
+			return false;
+		for (int i = 0; i < b.length; i++) {
+			if (buf.get(from + i) != b[i])
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Decodes a package name; names are ASCII.
+	 */
+	private static String string(MappedByteBuffer buf, int from, int to) {
+		char[] c = new char[Math.max(0, to - from)];
+		for (int i = 0; i < c.length; i++)
+			c[i] = (char) (buf.get(from + i) & 0xff);
+		return new String(c);
+	}
+
+	/**
+	 * Reads an index file.
+	 *
+	 * @param f Index file
+	 * @return false if it's unreadable or of another log
+	 */
+	private boolean readIndex(File f) {
+		try {
+			InputStream is = new BufferedInputStream(new FileInputStream(f));
+			try {
+				ByteSource in = new ByteSource(is);
+				for (int i = 0; i < MAGIC.length; i++) {
+					if (in.readByte() != MAGIC[i])
+						return false;
+				}
+				if (in.readByte() != FORMAT_VERSION
+						|| !in.readString().equals(log.getAbsolutePath()))
+					return false;
+				indexedLength = in.readVarLong();
+				fingerprintLength = in.readVarInt();
+				fingerprint = in.readVarLong();
+				int packages = in.readVarInt();
+				for (int i = 0; i < packages; i++) {
+					String name = pool.intern(in.readString());
+					Timeline t = new Timeline();
+					t.count = in.readVarInt();
+					t.length = in.readVarInt();
+					t.data = new byte[t.length];
+					in.readBytes(t.data, 0, t.length);
+					timelines.put(name, t);
+				}
+				return true;
+			} finally {
+				is.close();
+			}
+		} catch (EOFException ex) {
+			return false;
+		} catch (IOException ex) {
+			return false;
+		}
+	}
+
+	/**
+	 * Writes the index; a temp file is renamed over the old one.
+	 *
+	 * @param f Index file
+	 */
+	private void writeIndex(File f) throws IOException {
+		File tmp = new File(f.getAbsolutePath() + ".part");
+		OutputStream os = new BufferedOutputStream(new FileOutputStream(tmp));
+		try {
+			ByteSink out = new ByteSink(os);
+			out.writeBytes(MAGIC, 0, MAGIC.length);
+			out.writeByte(FORMAT_VERSION);
+			out.writeString(log.getAbsolutePath());
+			out.writeVarLong(indexedLength);
+			out.writeVarLong(fingerprintLength);
+			out.writeVarLong(fingerprint);
+			out.writeVarLong(timelines.size());
+			for (Map.Entry<String, Timeline> e : timelines.entrySet()) {
+				Timeline t = e.getValue();
+				out.writeString(e.getKey());
+				out.writeVarLong(t.count);
+				out.writeVarLong(t.length);
+				out.writeBytes(t.data, 0, t.length);
+			}
+			out.flush();
+		} finally {
+			os.close();
+		}
+		if (!tmp.renameTo(f)) {
+			f.delete();
+			if (!tmp.renameTo(f))
+				throw new IOException("Failed to write " + f.getAbsolutePath());
+		}
+	}
+
+	/**
+	 * Events of one package, encoded back to back: action, time (varint),
+	 * old and new version (varint length and bytes).  Small and cheap to
+	 * append to; events are only decoded when asked for.
+	 */
+	private static class Timeline {
+
+		private byte[] data = new byte[32];
+		private int length;
+		private int count;
+
+		/**
+		 * Appends an event whose versions are still in the log.
+		 *
+		 * @param action Action
+		 * @param time Seconds since the epoch
+		 * @param buf Log window
+		 * @param oldFrom Start of the old version
+		 * @param oldTo End of the old version; equal to 'oldFrom' if none
+		 * @param newFrom Start of the new version
+		 * @param newTo End of the new version; equal to 'newFrom' if none
+		 */
+		void add(Action action, long time, MappedByteBuffer buf, int oldFrom, int oldTo,
+				int newFrom, int newTo) {
+			ensureCapacity(length + 1 + 10 + 5 + (oldTo - oldFrom) + 5 + (newTo - newFrom));
+			data[length++] = (byte) action.ordinal();
+			putVarLong(Math.max(0, time));
+			putVarLong(oldTo - oldFrom);
+			for (int i = oldFrom; i < oldTo; i++)
+				data[length++] = buf.get(i);
+			putVarLong(newTo - newFrom);
+			for (int i = newFrom; i < newTo; i++)
+				data[length++] = buf.get(i);
+			count++;
+		}
+
+		/**
+		 * Decodes all events.
+		 *
+		 * @return Events, oldest first
+		 */
+		List<Event> decode() {
+			ArrayList<Event> l = new ArrayList<Event>(count);
+			Action[] actions = Action.values();
+			int[] pos = {0};
+			String previous = "";
+			while (pos[0] < length) {
+				int a = data[pos[0]++];
+				if (a < 0 || a >= actions.length)
+					break;
+				long time = getVarLong(pos);
+				String oldVersion = getString(pos, previous);
+				String newVersion = getString(pos, oldVersion);
+				l.add(new Event(time, actions[a], oldVersion, newVersion));
+				if (newVersion.length() > 0)
+					previous = newVersion;
+			}
+			return l;
+		}
+
+		private void putVarLong(long v) {
+			while ((v & ~0x7fL) != 0) {
+				data[length++] = (byte) ((v & 0x7f) | 0x80);
+				v >>>= 7;
+			}
+			data[length++] = (byte) v;
+		}
+
+		private long getVarLong(int[] pos) {
+			long v = 0;
+			for (int shift = 0; shift < 64 && pos[0] < length; shift += 7) {
+				int b = data[pos[0]++];
+				v |= (long) (b & 0x7f) << shift;
+				if ((b & 0x80) == 0)
+					break;
+			}
+			return v;
+		}
+
+		/**
+		 * Decodes a version, reusing 'same' if equal, as versions mostly
+		 * repeat the previous event's.
+		 */
+		private String getString(int[] pos, String same) {
+			int len = (int) getVarLong(pos);
+			len = Math.max(0, Math.min(len, length - pos[0]));
+			boolean equal = len == same.length();
+			for (int i = 0; i < len && equal; i++)
+				equal = (data[pos[0] + i] & 0xff) == same.charAt(i);
+			String s;
+			if (equal) {
+				s = same;
+			} else {
+				char[] c = new char[len];
+				for (int i = 0; i < len; i++)
+					c[i] = (char) (data[pos[0] + i] & 0xff);
+				s = new String(c);
+			}
+			pos[0] += len;
+			return s;
+		}
+
+		private void ensureCapacity(int n) {
+			if (n > data.length)
+				data = Arrays.copyOf(data, Math.max(n, data.length * 2));
+		}
+	}
+}
@@ -0,0 +1,60 @@
+/*
+ * Karun, a package manager for ArchLinux based on 'pacman'.
+ * Copyright (C) 2011  Bahman Movaqar
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, 
+ * USA.
+ */
+package com.bahmanm.karun;
+
+import java.util.BitSet;
+import javax.swing.RowFilter;
+import javax.swing.table.TableModel;
+
+/**
+ * IndexRowFilter
+ *
+ * Row filter which includes a precomputed set of model rows.
+ *
+ * @author Bahman Movaqar (Bahman AT BahmanM.com)
+ */
+public class IndexRowFilter extends RowFilter<TableModel, Integer> {
+
+	/** Included model rows */
+	private final BitSet rows;
+	/** Number of included rows */
+	private final int count;
+
+	/**
+	 * Constructor
+	 *
+	 * @param modelRows Included model rows
+	 */
+	public IndexRowFilter(int[] modelRows) {
+		rows = new BitSet();
+		for (int i = 0; i < modelRows.length; i++)
+			rows.set(modelRows[i]);
+		count = modelRows.length;
+	}
+
+	public int getCount() {
+		return count;
+	}
+
+	@Override
+	public boolean include(Entry<? extends TableModel, ? extends Integer> entry) {
+		return rows.get(entry.getIdentifier().intValue());
+	}
+}
@@ -0,0 +1,145 @@
+/*
+ * Karun, a package manager for ArchLinux based on 'pacman'.
+ * Copyright (C) 2011  Bahman Movaqar
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, 
+ * USA.
+ */
+package com.bahmanm.karun;
+
+import com.bahmanm.karun.PackageCollection.Package;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * InstalledProviders
+ *
+ * Which installed packages satisfy a dependency, by name or through what they
+ * provide, e.g. a dependency on 'sh' or 'libfoo.so=1-64'.  Packages are
+ * identified by the ids their owner hands out and can be added and removed
+ * one at a time; versioned dependencies are checked with
+ * ProvisionIndex.satisfies.
+ *
+ * @author Bahman Movaqar (Bahman AT BahmanM.com)
+ */
+class InstalledProviders {
+
+	/** Empty id list */
+	static final int[] NONE = new int[0];
+	/** Ids of packages by what they are known as: their name and provisions */
+	private final HashMap<String, int[]> providers = new HashMap<String, int[]>();
+	/** Package by id; null for unknown ids */
+	private Package[] packages = new Package[16];
+
+	/**
+	 * Adds a package under an id which isn't in use.
+	 *
+	 * @param id Package id
+	 * @param pkg Package
+	 */
+	void add(int id, Package pkg) {
+		if (id >= packages.length)
+			packages = Arrays.copyOf(packages, Math.max(id + 1, packages.length * 2));
+		packages[id] = pkg;
+		for (String name : names(pkg)) {
+			int[] l = providers.get(name);
+			if (l == null) {
+				l = new int[] {id};
+			} else {
+				l = Arrays.copyOf(l, l.length + 1);
+				l[l.length - 1] = id;
+			}
+			providers.put(name, l);
+		}
+	}
+
+	/**
+	 * Removes the package with an id.
+	 *
+	 * @param id Package id
+	 */
+	void remove(int id) {
+		Package pkg = id < packages.length ? packages[id] : null;
+		if (pkg == null)
+			return;
+		packages[id] = null;
+		for (String name : names(pkg)) {
+			int[] l = providers.get(name);
+			if (l == null)
+				continue;
+			int n = 0;
+			int[] rest = new int[l.length];
+			for (int i = 0; i < l.length; i++) {
+				if (l[i] != id)
+					rest[n++] = l[i];
+			}
+			if (n == 0)
+				providers.remove(name);
+			else
+				providers.put(name, Arrays.copyOf(rest, n));
+		}
+	}
+
+	/**
+	 * The package with an id.
+	 *
+	 * @param id Package id
+	 * @return Package, or null
+	 */
+	Package get(int id) {
+		return id < packages.length ? packages[id] : null;
+	}
+
+	/**
+	 * Ids of the packages satisfying a dependency.  The result mustn't be
+	 * modified.
+	 *
+	 * @param dep Dependency, e.g. 'sh' or 'glibc>=2.14'
+	 * @return Ids, possibly empty
+	 */
+	int[] resolve(String dep) {
+		String[] d = ProvisionIndex.parse(dep);
+		int[] l = providers.get(d[0]);
+		if (l == null)
+			return NONE;
+		if (d[1] == null)
+			return l;
+		int n = 0;
+		int[] ok = new int[l.length];
+		for (int i = 0; i < l.length; i++) {
+			if (ProvisionIndex.satisfies(packages[l[i]], dep))
+				ok[n++] = l[i];
+		}
+		return n == l.length ? l : Arrays.copyOf(ok, n);
+	}
+
+	/**
+	 * Names a package is known as: its own and those it provides.
+	 *
+	 * @param pkg Package
+	 * @return Distinct names
+	 */
+	static ArrayList<String> names(Package pkg) {
+		ArrayList<String> l = new ArrayList<String>();
+		l.add(pkg.getName());
+		for (String provision : pkg.getProvides()) {
+			String name = ProvisionIndex.parse(provision)[0];
+			if (!l.contains(name))
+				l.add(name);
+		}
+		return l;
+	}
+}
@@ -0,0 +1,222 @@
+/*
+ * Karun, a package manager for ArchLinux based on 'pacman'.
+ * Copyright (C) 2011  Bahman Movaqar
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, 
+ * USA.
+ */
+package com.bahmanm.karun;
+
+import com.bahmanm.karun.PackageCollection.Package;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Collection;
+
+/**
+ * InventoryExporter
+ *
+ * Streams a package inventory to an output stream as JSON Lines, CSV or a
+ * compact binary format.  Fields are encoded straight into the output buffer
+ * so memory use doesn't depend on the number of packages.
+ *
+ * Every record holds name, repo, local version, repo version, installed size,
+ * install date and install reason.  The binary format is the magic "KINV", a
+ * format version byte and the record count followed by the records: strings
+ * as varint UTF-8 length plus bytes, numbers as varints and the reason as a
+ * single byte.
+ *
+ * @author Bahman Movaqar (Bahman AT BahmanM.com)
+ */
+public class InventoryExporter {
+
+	/** Magic of the binary format */
+	public static final byte[] BINARY_MAGIC = {'K', 'I', 'N', 'V'};
+	/** Version of the binary format */
+	public static final int BINARY_VERSION = 1;
+	/** Hex digits for JSON escapes */
+	private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+	/**
+	 * Output formats
+	 */
+	public enum Format {
+
+		JSONL, CSV, BINARY;
+
+		/**
+		 * Looks a format up by name, ignoring case.
+		 *
+		 * @param name Format name
+		 * @return Format
+		 * @throws IllegalArgumentException if there's no such format
+		 */
+		public static Format parse(String name) {
+			return valueOf(name.toUpperCase());
+		}
+	}
+
+	/** Output format */
+	private final Format format;
+
+	/**
+	 * Constructor
+	 *
+	 * @param format Output format
+	 */
+	public InventoryExporter(Format format) {
+		this.format = format;
+	}
+
+	/**
+	 * Writes an inventory.  The stream is flushed, not closed.
+	 *
+	 * @param packages Packages
+	 * @param out Output stream
+	 */
+	public void export(Collection<Package> packages, OutputStream out) throws IOException {
+		ByteSink sink = new ByteSink(out);
+		if (format == Format.CSV) {
+			sink.writeUtf8("name,repo,local_version,repo_version,installed_size,install_date,reason\n");
+		} else if (format == Format.BINARY) {
+			sink.writeBytes(BINARY_MAGIC, 0, BINARY_MAGIC.length);
+			sink.writeByte(BINARY_VERSION);
+			sink.writeVarLong(packages.size());
+		}
+		for (Package p : packages) {
+			if (format == Format.JSONL)
+				writeJson(p, sink);
+			else if (format == Format.CSV)
+				writeCsv(p, sink);
+			else
+				writeBinary(p, sink);
+		}
+		sink.flush();
+	}
+
+	/**
+	 * Writes a package as a JSON object on a line of its own.
+	 *
+	 * @param p Package
+	 * @param sink Output
+	 */
+	private void writeJson(Package p, ByteSink sink) throws IOException {
+		sink.writeUtf8("{\"name\":");
+		writeJsonString(p.getName(), sink);
+		sink.writeUtf8(",\"repo\":");
+		writeJsonString(p.getRepo(), sink);
+		sink.writeUtf8(",\"localVersion\":");
+		writeJsonString(p.getLocalVersion(), sink);
+		sink.writeUtf8(",\"repoVersion\":");
+		writeJsonString(p.getRepoVersion(), sink);
+		sink.writeUtf8(",\"installedSize\":");
+		sink.writeDecimal(p.getInstalledSize());
+		sink.writeUtf8(",\"installDate\":");
+		sink.writeDecimal(p.getInstallDate());
+		sink.writeUtf8(",\"reason\":");
+		sink.writeDecimal(p.getReason());
+		sink.writeUtf8("}\n");
+	}
+
+	/**
+	 * Writes a quoted and escaped JSON string.
+	 *
+	 * @param s String
+	 * @param sink Output
+	 */
+	private static void writeJsonString(String s, ByteSink sink) throws IOException {
+		sink.writeByte('"');
+		int start = 0;
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			if (c >= 0x20 && c != '"' && c != '\\')
+				continue;
+			sink.writeUtf8(s, start, i);
+			start = i + 1;
+			sink.writeByte('\\');
+			if (c == '"' || c == '\\') {
+				sink.writeByte(c);
+			} else if (c == '\n') {
+				sink.writeByte('n');
+			} else if (c == '\t') {
+				sink.writeByte('t');
+			} else if (c == '\r') {
+				sink.writeByte('r');
+			} else {
+				sink.writeUtf8("u00");
+				sink.writeByte(HEX[c >> 4]);
+				sink.writeByte(HEX[c & 0xf]);
+			}
+		}
+		sink.writeUtf8(s, start, s.length());
+		sink.writeByte('"');
+	}
+
+	/**
+	 * Writes a package as a CSV record.
+	 *
+	 * @param p Package
+	 * @param sink Output
+	 */
+	private void writeCsv(Package p, ByteSink sink) throws IOException {
+		writeCsvString(p.getName(), sink);
+		sink.writeByte(',');
+		writeCsvString(p.getRepo(), sink);
+		sink.writeByte(',');
+		writeCsvString(p.getLocalVersion(), sink);
+		sink.writeByte(',');
+		writeCsvString(p.getRepoVersion(), sink);
+		sink.writeByte(',');
+		sink.writeDecimal(p.getInstalledSize());
+		sink.writeByte(',');
+		sink.writeDecimal(p.getInstallDate());
+		sink.writeByte(',');
+		sink.writeDecimal(p.getReason());
+		sink.writeByte('\n');
+	}
+
+	/**
+	 * Writes a quoted CSV field, doubling embedded quotes.
+	 *
+	 * @param s Field
+	 * @param sink Output
+	 */
+	private static void writeCsvString(String s, ByteSink sink) throws IOException {
+		sink.writeByte('"');
+		int start = 0;
+		for (int i = s.indexOf('"'); i >= 0; i = s.indexOf('"', i + 1)) {
+			sink.writeUtf8(s, start, i + 1);
+			sink.writeByte('"');
+			start = i + 1;
+		}
+		sink.writeUtf8(s, start, s.length());
+		sink.writeByte('"');
+	}
+
+	/**
+	 * Writes a package as a binary record.
+	 *
+	 * @param p Package
+	 * @param sink Output
+	 */
+	private void writeBinary(Package p, ByteSink sink) throws IOException {
+		sink.writeString(p.getName());
+		sink.writeString(p.getRepo());
+		sink.writeString(p.getLocalVersion());
+		sink.writeString(p.getRepoVersion());
+		sink.writeVarLong(p.getInstalledSize());
+		sink.writeVarLong(p.getInstallDate());
+		sink.writeByte(p.getReason());
+	}
+}
@@ -22,17 +22,47 @@ package com.bahmanm.karun;
 import com.bahmanm.karun.PackageCollection.Package;
 import com.sun.java.swing.plaf.nimbus.NimbusLookAndFeel;
 import java.awt.Cursor;
+import java.awt.Dimension;
+import java.awt.Point;
+import java.awt.Rectangle;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.awt.event.WindowAdapter;
+import java.awt.event.WindowEvent;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Collection;
 import java.util.Iterator;
-import java.util.Set;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import javax.swing.BorderFactory;
+import javax.swing.JList;
+import javax.swing.JMenu;
+import javax.swing.JMenuItem;
 import javax.swing.JOptionPane;
+import javax.swing.JScrollPane;
+import javax.swing.JTextArea;
 import javax.swing.SwingUtilities;
+import javax.swing.SwingWorker;
 import javax.swing.UIManager;
+import javax.swing.event.DocumentEvent;
+import javax.swing.event.DocumentListener;
+import javax.swing.event.ListSelectionEvent;
+import javax.swing.event.ListSelectionListener;
+import javax.swing.event.RowSorterEvent;
+import javax.swing.event.RowSorterListener;
 import javax.swing.table.DefaultTableModel;
 import javax.swing.table.TableModel;
+import org.apache.commons.lang.StringEscapeUtils;
+import org.apache.commons.lang.StringUtils;
 
 /**
  * Karun
@@ -49,6 +79,15 @@ public class Karun extends javax.swing.JFrame {
 			e.printStackTrace();
 		}
 		initComponents();
+		pkglistTable.setRowSorter(new PackageRowSorter(pkglistTable.getModel(), 2, 3));
+		initSearch();
+		initToolsMenu();
+		initLoadScheduler();
+		initViewState();
+		initDetailsPane();
+		initHistory();
+		initTransaction();
+		initEdtMonitor();
 	}
 
 	/** This method is called from within the constructor to
@@ -182,7 +221,6 @@ public class Karun extends javax.swing.JFrame {
         pkglistScrollPane.setBorder(javax.swing.BorderFactory.createTitledBorder("Package List"));
         pkglistScrollPane.setPreferredSize(new java.awt.Dimension(0, 0));
 
-        pkglistTable.setAutoCreateRowSorter(true);
         pkglistTable.setModel(new javax.swing.table.DefaultTableModel(
             new Object [][] {
 
@@ -254,7 +292,7 @@ public class Karun extends javax.swing.JFrame {
         searchTextField.setFont(new java.awt.Font("Dialog", 2, 12));
         searchTextField.setForeground(new java.awt.Color(153, 153, 153));
         searchTextField.setText("Search...");
-        searchTextField.setToolTipText("Search for packages");
+        searchTextField.setToolTipText("Search for packages, e.g. 'repo:core installed outdated desc:ssl size>10M'");
         searchTextField.addFocusListener(new java.awt.event.FocusAdapter() {
             public void focusGained(java.awt.event.FocusEvent evt) {
                 searchTextFieldFocusGained(evt);
@@ -318,11 +356,13 @@ public class Karun extends javax.swing.JFrame {
     }// </editor-fold>//GEN-END:initComponents
 
 private void quitButtonActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_quitButtonActionPerformed
+	saveViewState();
 	this.dispose();
 	System.exit(0);
 }//GEN-LAST:event_quitButtonActionPerformed
 
 private void quitMenuItemActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_quitMenuItemActionPerformed
+	saveViewState();
 	this.dispose();
 	System.exit(0);
 }//GEN-LAST:event_quitMenuItemActionPerformed
@@ -330,6 +370,8 @@ private void quitMenuItemActionPerformed(java.awt.event.ActionEvent evt) {//GEN-
 private void formWindowOpened(java.awt.event.WindowEvent evt) {//GEN-FIRST:event_formWindowOpened
 	((DefaultTableModel)repoTable.getModel()).setNumRows(0);
 	((DefaultTableModel)pkglistTable.getModel()).setNumRows(0);
+	if (viewState != null)
+		paintViewState();
 	
 	statusLabel.setText("Updating repository list...");
 	setCursor(new Cursor((Cursor.WAIT_CURSOR)));
@@ -337,8 +379,16 @@ private void formWindowOpened(java.awt.event.WindowEvent evt) {//GEN-FIRST:event
 
 		@Override
 		public void run() {
+			if (viewState != null && PackageCollection.isGroup(viewState.getRepo()))
+				groups.add(viewState.getRepo().substring(1));
 			fillReposTable();
-			statusLabel.setText("Please select a repository filter.");
+			if (viewState != null && selectRepo(viewState.getRepo())) {
+				statusLabel.setText("Updating package list for repository "
+						+ viewState.getRepo() + "...");
+				reconcileViewState();
+			} else {
+				statusLabel.setText("Please select a repository filter.");
+			}
 			setCursor(new Cursor(Cursor.DEFAULT_CURSOR));
 		}
 	});
@@ -352,19 +402,12 @@ private void repoButtonActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FI
 				"No repository selected", JOptionPane.INFORMATION_MESSAGE);
 		return;
 	}
-	final String repo = (String) repoTable.getModel().getValueAt(row, 0);
+	String repo = (String) repoTable.getModel().getValueAt(row, 0);
 
 	statusLabel.setText("Updating package list for repository " + repo + "...");
 	setCursor(new Cursor(Cursor.WAIT_CURSOR));
-	SwingUtilities.invokeLater(new Runnable() {
-
-		@Override
-		public void run() {
-			populatePackageList(repo);
-			statusLabel.setText("Package list updated.");
-			setCursor(new Cursor(Cursor.DEFAULT_CURSOR));
-		}
-	});
+	scrollTarget = null;
+	populatePackageList(repo);
 }//GEN-LAST:event_repoButtonActionPerformed
 
 private void searchTextFieldFocusGained(java.awt.event.FocusEvent evt) {//GEN-FIRST:event_searchTextFieldFocusGained
@@ -381,6 +424,10 @@ private void searchTextFieldFocusLost(java.awt.event.FocusEvent evt) {//GEN-FIRS
 	 * @param args the command line arguments
 	 */
 	public static void main(String args[]) {
+		if (args.length > 0) {
+			System.exit(new Cli(System.out, System.err).run(args));
+		}
+
 		/* Set the Nimbus look and feel */
 		//<editor-fold defaultstate="collapsed" desc=" Look and feel setting code (optional) ">
         /* If Nimbus (introduced in Java SE 6) is not available, stay with the default look and feel.
@@ -439,7 +486,698 @@ private void searchTextFieldFocusLost(java.awt.event.FocusEvent evt) {//GEN-FIRS
     private final javax.swing.JLabel statusLabel = new javax.swing.JLabel();
     private javax.swing.JPanel statusbar;
     // End of variables declaration//GEN-END:variables
-	private PacmanConfHelper pacmanConfHelper;
+	private volatile PacmanConfHelper pacmanConfHelper;
+	/** Repositories shown in repoTable */
+	private ArrayList<String> shownRepos = new ArrayList<String>();
+	/** Packages shown in pkglistTable, in table model order */
+	private ArrayList<Package> packageRows = new ArrayList<Package>();
+	/** Repository of the packages shown in pkglistTable */
+	private String packageRowsRepo = "";
+	/** Filters pkglistTable as the user types in searchTextField */
+	private SearchPipeline searchPipeline;
+	/** Tools menu */
+	private JMenu toolsMenu;
+	/** Installed packages; only used on the loading thread */
+	private LocalDb localDb;
+	/** DBPath localDb was read from; only used on the loading thread */
+	private String localDbPath;
+	/** Disk usage of installed packages as of the last load */
+	private volatile DiskUsage diskUsage;
+	/** Installed packages nothing explicitly installed needs */
+	private volatile OrphanTracker orphanTracker;
+	/**
+	 * States of the installed packages; null until first needed.  Only used
+	 * on the loading thread.
+	 */
+	private StateHistory stateHistory;
+	/** Packages of the selected repository filter; only used on the EDT */
+	private PackageCollection packageCollection;
+	/** View state saved when Karun was last closed; null if none */
+	private ViewState viewState;
+	/** Loads package lists off the event dispatch thread */
+	private LoadScheduler loadScheduler;
+	/** Package to scroll to once the package list is loaded; null if none */
+	private String scrollTarget;
+	/** Status to show once the package list is loaded; null for the usual */
+	private String loadedStatus;
+	/** Details of the selected package, shown by jToggleButton1 */
+	private JScrollPane detailsScrollPane;
+	private JTextArea detailsTextArea;
+	/** Reads package details for detailsTextArea */
+	private DetailsLoader detailsLoader;
+	/** Seconds between checks of pacman's log for new entries */
+	private static final int HISTORY_INTERVAL = 30;
+	/** Package history from pacman's log; null until indexed */
+	private volatile History history;
+	/** Groups seen in loaded package lists, listed in repoTable as '@group' */
+	private final TreeSet<String> groups = new TreeSet<String>();
+	/** Packages marked for install or upgrade, by name */
+	private final LinkedHashSet<String> marked = new LinkedHashSet<String>();
+	/**
+	 * Predicts the transaction of the marked packages; null until needed or
+	 * after the package list changed
+	 */
+	private TransactionResolver transactionResolver;
+
+	/**
+	 * Adds the tools menu to the menu bar.
+	 */
+	private void initToolsMenu() {
+		toolsMenu = new JMenu("Tools");
+		JMenuItem diskUsageMenuItem = new JMenuItem("Disk usage...");
+		diskUsageMenuItem.addActionListener(new ActionListener() {
+
+			@Override
+			public void actionPerformed(ActionEvent e) {
+				showDiskUsage();
+			}
+		});
+		toolsMenu.add(diskUsageMenuItem);
+		JMenuItem orphansMenuItem = new JMenuItem("Unneeded packages...");
+		orphansMenuItem.addActionListener(new ActionListener() {
+
+			@Override
+			public void actionPerformed(ActionEvent e) {
+				showOrphans();
+			}
+		});
+		toolsMenu.add(orphansMenuItem);
+		toolsMenu.addSeparator();
+		JMenuItem refreshMenuItem = new JMenuItem("Refresh databases");
+		refreshMenuItem.addActionListener(new ActionListener() {
+
+			@Override
+			public void actionPerformed(ActionEvent e) {
+				refreshSyncDbs();
+			}
+		});
+		toolsMenu.add(refreshMenuItem);
+		mainMenu.add(toolsMenu, mainMenu.getComponentIndex(helpMenu));
+	}
+
+	/**
+	 * Shows the disk usage of installed packages.
+	 */
+	private void showDiskUsage() {
+		if (diskUsage == null) {
+			JOptionPane.showMessageDialog(this, "Please select a repository filter first.",
+					"No packages loaded", JOptionPane.INFORMATION_MESSAGE);
+			return;
+		}
+		final DiskUsage usage = diskUsage;
+		statusLabel.setText("Computing disk usage...");
+		new SwingWorker<DiskUsageDialog.Contents, Void>() {
+
+			@Override
+			protected DiskUsageDialog.Contents doInBackground() throws Exception {
+				return DiskUsageDialog.compute(usage);
+			}
+
+			@Override
+			protected void done() {
+				statusLabel.setText("  ");
+				try {
+					new DiskUsageDialog(Karun.this, get()).setVisible(true);
+				} catch (Exception ex) {
+					Logger.getLogger(Karun.class.getName()).log(Level.SEVERE, null, ex);
+					Utils.showExceptionDialog(Karun.this, ex);
+				}
+			}
+		}.execute();
+	}
+
+	/**
+	 * Shows installed packages which nothing explicitly installed needs.
+	 */
+	private void showOrphans() {
+		if (orphanTracker == null) {
+			JOptionPane.showMessageDialog(this, "Please select a repository filter first.",
+					"No packages loaded", JOptionPane.INFORMATION_MESSAGE);
+			return;
+		}
+		List<String> orphans = orphanTracker.getOrphans();
+		if (orphans.isEmpty()) {
+			JOptionPane.showMessageDialog(this, "No unneeded packages are installed.",
+					"Unneeded packages", JOptionPane.INFORMATION_MESSAGE);
+			return;
+		}
+		JList list = new JList(orphans.toArray());
+		JScrollPane scrollPane = new JScrollPane(list);
+		scrollPane.setPreferredSize(new Dimension(300, 300));
+		JOptionPane.showMessageDialog(this, new Object[]{
+					orphans.size() + " packages were installed as dependencies but are no longer needed:",
+					scrollPane}, "Unneeded packages", JOptionPane.INFORMATION_MESSAGE);
+	}
+
+	/**
+	 * Downloads the sync databases in the background and, if any changed,
+	 * loads the selected repository filter again.  The new collection
+	 * replaces the shown one on the EDT once loaded, like any other load, so
+	 * the shown one is never locked or changed meanwhile.
+	 */
+	private void refreshSyncDbs() {
+		updateConf();
+		if (pacmanConfHelper == null)
+			return;
+		statusLabel.setText("Refreshing databases...");
+		new SwingWorker<List<SyncDbChangeFeed.ChangeSet>, Void>() {
+
+			/** Repositories which failed, with the reason */
+			private final List<String> failures = new ArrayList<String>();
+
+			@Override
+			protected List<SyncDbChangeFeed.ChangeSet> doInBackground() throws Exception {
+				SyncDbRefresher refresher = new SyncDbRefresher(pacmanConfHelper,
+						SyncDbRefresher.DEFAULT_PARALLELISM, SyncDbRefresher.DEFAULT_TIMEOUT);
+				List<SyncDbRefresher.Result> results = refresher.refresh(pacmanConfHelper.getRepos());
+				for (SyncDbRefresher.Result r : results) {
+					if (r.getStatus() == SyncDbRefresher.Status.FAILED)
+						failures.add(r.getRepo() + ": " + r.getError());
+				}
+				// Whatever was updated is used even if other repositories failed
+				List<String> updated = SyncDbRefresher.getUpdated(results);
+				return new SyncDbChangeFeed(pacmanConfHelper.getDbPath()).update(updated);
+			}
+
+			@Override
+			protected void done() {
+				try {
+					List<SyncDbChangeFeed.ChangeSet> changes = get();
+					if (changes.isEmpty()) {
+						statusLabel.setText(failures.isEmpty() ? "Databases are up to date."
+								: "Refreshing " + failures.size() + " database(s) failed.");
+					} else {
+						StringBuilder sb = new StringBuilder();
+						for (SyncDbChangeFeed.ChangeSet c : changes) {
+							if (sb.length() > 0)
+								sb.append("; ");
+							sb.append(c.getSummary());
+						}
+						statusLabel.setText(sb.toString());
+						if (packageCollection != null) {
+							loadedStatus = sb.toString();
+							setCursor(new Cursor(Cursor.WAIT_CURSOR));
+							loadScheduler.reload(packageRowsRepo, pacmanConfHelper);
+						}
+					}
+					if (!failures.isEmpty()) {
+						JOptionPane.showMessageDialog(Karun.this, new Object[]{
+									"Some databases couldn't be refreshed:",
+									StringUtils.join(failures, "\n")},
+								"Refreshing databases", JOptionPane.WARNING_MESSAGE);
+					}
+				} catch (Exception ex) {
+					Logger.getLogger(Karun.class.getName()).log(Level.SEVERE, null, ex);
+					statusLabel.setText("Refreshing databases failed.");
+					Utils.showExceptionDialog(Karun.this, ex);
+				}
+			}
+		}.execute();
+	}
+
+	/**
+	 * Brings the installed package data up to date, re-reading only what
+	 * changed since the last time.  Runs on the loading thread; diskUsage
+	 * and orphanTracker are published once built and updated in place
+	 * afterwards.
+	 */
+	private void refreshLocalDb() throws FileNotFoundException, IOException {
+		String dbPath = pacmanConfHelper.getDbPath();
+		if (localDb == null || !dbPath.equals(localDbPath)) {
+			// First load, or DBPath was changed in 'pacman.conf'
+			localDb = new LocalDb(dbPath);
+			localDbPath = dbPath;
+			diskUsage = null;
+			stateHistory = null;
+		}
+		LocalDb.Change change = localDb.refresh();
+		if (diskUsage == null) {
+			Collection<Package> installed = localDb.getPackages();
+			orphanTracker = new OrphanTracker(installed);
+			diskUsage = new DiskUsage(installed);
+		} else if (!change.isEmpty()) {
+			for (Package p : change.getRemoved())
+				diskUsage.remove(p.getName());
+			for (Package p : change.getAdded())
+				diskUsage.add(p);
+			orphanTracker.apply(change);
+		}
+		if (!change.isEmpty())
+			recordState();
+	}
+
+	/**
+	 * Adds the installed packages to the state history.  Failures are only
+	 * logged; the history isn't needed to go on.
+	 */
+	private void recordState() {
+		try {
+			if (stateHistory == null)
+				stateHistory = StateHistory.open(pacmanConfHelper.getDbPath());
+			stateHistory.record(Snapshot.of(localDb.getPackages()));
+		} catch (IOException ex) {
+			Logger.getLogger(Karun.class.getName()).log(Level.WARNING, "Recording the state failed", ex);
+		}
+	}
+
+	/**
+	 * Adds the details pane below the package list and hooks it up to
+	 * jToggleButton1 and the selection.
+	 */
+	private void initDetailsPane() {
+		detailsTextArea = new JTextArea();
+		detailsTextArea.setEditable(false);
+		detailsTextArea.setLineWrap(true);
+		detailsTextArea.setWrapStyleWord(true);
+		detailsScrollPane = new JScrollPane(detailsTextArea);
+		detailsScrollPane.setBorder(BorderFactory.createTitledBorder("Package Details"));
+		detailsScrollPane.setPreferredSize(new Dimension(0, 200));
+		detailsScrollPane.setMaximumSize(new Dimension(Integer.MAX_VALUE, 300));
+		detailsScrollPane.setVisible(false);
+		pkgPanel.add(detailsScrollPane);
+
+		detailsLoader = new DetailsLoader(new DetailsLoader.DetailsListener() {
+
+			@Override
+			public void detailsLoaded(PackageDetails details) {
+				String text = details == null ? "No details available." : details.format();
+				History h = history;
+				if (details != null && h != null && !details.get("%NAME%").isEmpty()) {
+					String timeline = h.getTimeline(details.get("%NAME%").get(0));
+					if (timeline.length() > 0)
+						text += "\nHistory:\n" + timeline;
+				}
+				detailsTextArea.setText(text);
+				detailsTextArea.setCaretPosition(0);
+			}
+		}, DetailsLoader.DEFAULT_CACHE_SIZE);
+		jToggleButton1.addActionListener(new ActionListener() {
+
+			@Override
+			public void actionPerformed(ActionEvent e) {
+				detailsScrollPane.setVisible(jToggleButton1.isSelected());
+				pkgPanel.revalidate();
+				showSelectedDetails();
+			}
+		});
+		pkglistTable.getSelectionModel().addListSelectionListener(new ListSelectionListener() {
+
+			@Override
+			public void valueChanged(ListSelectionEvent e) {
+				if (!e.getValueIsAdjusting())
+					showSelectedDetails();
+			}
+		});
+	}
+
+	/**
+	 * Indexes pacman's log in the background and keeps up with it, for the
+	 * timeline in the details pane.
+	 */
+	private void initHistory() {
+		ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(
+				Utils.daemonThreadFactory("karun-history"));
+		executor.scheduleWithFixedDelay(new Runnable() {
+
+			@Override
+			public void run() {
+				try {
+					if (history == null)
+						history = History.load(new File(PacmanConfHelper.get().getLogFile()));
+					else
+						history.update();
+				} catch (Exception ex) {
+					Logger.getLogger(Karun.class.getName()).log(Level.FINE, null, ex);
+				}
+			}
+		}, 0, HISTORY_INTERVAL, TimeUnit.SECONDS);
+	}
+
+	/**
+	 * Starts the EDT responsiveness monitor if enabled.  Its latest report
+	 * and stall are shown as the tooltip of the status bar; both also go to
+	 * the log.
+	 */
+	private void initEdtMonitor() {
+		if (!EdtMonitor.isEnabled())
+			return;
+		int threshold = Integer.getInteger("karun.edtmonitor.threshold", EdtMonitor.DEFAULT_THRESHOLD);
+		EdtMonitor.start(threshold, new EdtMonitor.Listener() {
+
+			/** Latest report */
+			private volatile String report = "";
+			/** Latest stall */
+			private volatile String stall = "";
+
+			@Override
+			public void reported(EdtMonitor.Report r) {
+				report = r.toString();
+				SwingUtilities.invokeLater(new Runnable() {
+
+					@Override
+					public void run() {
+						showMonitor();
+					}
+				});
+			}
+
+			@Override
+			public void stalled(EdtMonitor.Stall s) {
+				stall = "Last stall: " + s.getDuration() + " ms dispatching " + s.getOperation();
+				showMonitor();
+			}
+
+			private void showMonitor() {
+				statusbar.setToolTipText("<html>" + StringEscapeUtils.escapeHtml(report)
+						+ "<br>" + StringEscapeUtils.escapeHtml(stall) + "</html>");
+			}
+		});
+	}
+
+	/**
+	 * Hooks marking packages for install or upgrade up to the package list's
+	 * popup menu.
+	 */
+	private void initTransaction() {
+		jMenuItem1.setText("Mark / unmark");
+		jMenuItem1.addActionListener(new ActionListener() {
+
+			@Override
+			public void actionPerformed(ActionEvent e) {
+				toggleMarks();
+			}
+		});
+		JMenuItem clearMenuItem = new JMenuItem("Clear marks");
+		clearMenuItem.addActionListener(new ActionListener() {
+
+			@Override
+			public void actionPerformed(ActionEvent e) {
+				marked.clear();
+				updateTransaction();
+			}
+		});
+		jMenu1.add(clearMenuItem);
+	}
+
+	/**
+	 * Marks the selected packages, or unmarks those already marked.
+	 */
+	private void toggleMarks() {
+		for (int row : pkglistTable.getSelectedRows()) {
+			String name = packageRows.get(pkglistTable.convertRowIndexToModel(row)).getName();
+			if (!marked.remove(name))
+				marked.add(name);
+		}
+		updateTransaction();
+	}
+
+	/**
+	 * Predicts what installing the marked packages would do and shows it in
+	 * the status bar, the steps and problems in its tooltip.  Dependencies
+	 * are looked for in the loaded package list only, so '*all*' gives the
+	 * full picture.
+	 */
+	private void updateTransaction() {
+		statusLabel.setToolTipText(null);
+		if (marked.isEmpty()) {
+			statusLabel.setText("No packages marked.");
+			return;
+		}
+		if (packageCollection == null)
+			return;
+		if (transactionResolver == null)
+			transactionResolver = new TransactionResolver(packageCollection,
+					new File(pacmanConfHelper.getCacheDir()));
+		TransactionResolver.Transaction t = transactionResolver.resolve(marked, false);
+		statusLabel.setText(marked.size() + " marked: " + t.getSummary());
+		StringBuilder tip = new StringBuilder("<html>");
+		for (TransactionResolver.Step step : t.getSteps())
+			tip.append(StringEscapeUtils.escapeHtml(step.toString())).append("<br>");
+		for (String problem : t.getProblems())
+			tip.append("error: ").append(StringEscapeUtils.escapeHtml(problem)).append("<br>");
+		statusLabel.setToolTipText(tip.append("</html>").toString());
+	}
+
+	/**
+	 * Shows the details of the selected package if the details pane is open,
+	 * reading ahead those of the packages around it.
+	 */
+	private void showSelectedDetails() {
+		if (!jToggleButton1.isSelected())
+			return;
+		int row = pkglistTable.getSelectedRow();
+		if (row == -1 || packageCollection == null) {
+			detailsTextArea.setText(row == -1 ? "" : "Loading...");
+			return;
+		}
+		ArrayList<File[]> neighbours = new ArrayList<File[]>();
+		for (int d = 1; d <= 2; d++) {
+			if (row + d < pkglistTable.getRowCount())
+				neighbours.add(getPackageDirs(row + d));
+			if (row - d >= 0)
+				neighbours.add(getPackageDirs(row - d));
+		}
+		detailsTextArea.setText("Loading...");
+		detailsLoader.request(getPackageDirs(row), neighbours);
+	}
+
+	/**
+	 * Database directories of a package in pkglistTable.
+	 * 
+	 * @param row View row
+	 * @return Sync and local directory, either may be null
+	 */
+	private File[] getPackageDirs(int row) {
+		Package p = packageRows.get(pkglistTable.convertRowIndexToModel(row));
+		return new File[]{packageCollection.getSyncDir(p), packageCollection.getLocalDir(p)};
+	}
+
+	/**
+	 * Sets up loading package lists in the background.
+	 */
+	private void initLoadScheduler() {
+		loadScheduler = new LoadScheduler(new LoadScheduler.LoadListener() {
+
+			@Override
+			public void loadedInBackground(String repo, PackageCollection collection) {
+				try {
+					refreshLocalDb();
+				} catch (IOException ex) {
+					Logger.getLogger(Karun.class.getName()).log(Level.SEVERE, null, ex);
+				}
+			}
+
+			@Override
+			public void loadCompleted(String repo, PackageCollection collection) {
+				if (packageCollection != null && packageCollection != collection)
+					packageCollection.close();
+				packageCollection = collection;
+				transactionResolver = null;
+				showPackages(repo, collection);
+				boolean newGroups = groups.addAll(collection.getIndex().getGroups());
+				if (newGroups || !pacmanConfHelper.getRepos().equals(shownRepos)) {
+					fillReposTable();
+					selectRepo(repo);
+				}
+				scrollToPackage(scrollTarget);
+				scrollTarget = null;
+				statusLabel.setText(loadedStatus != null ? loadedStatus : "Package list updated.");
+				loadedStatus = null;
+				setCursor(new Cursor(Cursor.DEFAULT_CURSOR));
+			}
+
+			@Override
+			public void loadFailed(String repo, Exception ex) {
+				Logger.getLogger(Karun.class.getName()).log(Level.SEVERE, null, ex);
+				statusLabel.setText("Updating package list for repository " + repo + " failed.");
+				loadedStatus = null;
+				setCursor(new Cursor(Cursor.DEFAULT_CURSOR));
+				Utils.showExceptionDialog(Karun.this, ex);
+			}
+		});
+	}
+
+	/**
+	 * Loads the view state of the last session and makes sure the current
+	 * one is saved when the window closes.
+	 */
+	private void initViewState() {
+		viewState = ViewState.load();
+		addWindowListener(new WindowAdapter() {
+
+			@Override
+			public void windowClosing(WindowEvent e) {
+				saveViewState();
+			}
+		});
+	}
+
+	/**
+	 * Shows the package list of the last session until the real one is
+	 * loaded.
+	 */
+	private void paintViewState() {
+		showRows(viewState.getRepo(), new ArrayList<Package>(viewState.getRows()));
+		pkglistTable.getRowSorter().setSortKeys(viewState.getSortKeys());
+		final int row = viewState.getFirstVisibleRow();
+		SwingUtilities.invokeLater(new Runnable() {
+
+			@Override
+			public void run() {
+				scrollToRow(row);
+			}
+		});
+	}
+
+	/**
+	 * Loads the package list of the last session's repository in the
+	 * background and replaces the painted copy with it, keeping the scroll
+	 * position.
+	 */
+	private void reconcileViewState() {
+		scrollTarget = viewState.getFirstVisibleName();
+		populatePackageList(viewState.getRepo());
+	}
+
+	/**
+	 * Saves the current view state for the next session.
+	 */
+	private void saveViewState() {
+		if (packageRowsRepo.length() == 0)
+			return;
+		try {
+			ViewState.capture(packageRowsRepo, pkglistTable, packageRows).save();
+		} catch (IOException ex) {
+			Logger.getLogger(Karun.class.getName()).log(Level.WARNING, null, ex);
+		}
+	}
+
+	/**
+	 * Selects a repository in repoTable.
+	 * 
+	 * @param repo Repository name
+	 * @return false if there's no such repository
+	 */
+	private boolean selectRepo(String repo) {
+		TableModel model = repoTable.getModel();
+		for (int i = 0; i < model.getRowCount(); i++) {
+			if (repo.equals(model.getValueAt(i, 0))) {
+				int row = repoTable.convertRowIndexToView(i);
+				repoTable.getSelectionModel().setSelectionInterval(row, row);
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Scrolls pkglistTable so that a package is the first visible row, once
+	 * the table is sorted.
+	 * 
+	 * @param name Package name; null to do nothing
+	 */
+	private void scrollToPackage(final String name) {
+		if (name == null)
+			return;
+		final PackageRowSorter sorter = (PackageRowSorter) pkglistTable.getRowSorter();
+		if (!sorter.isSortPending()) {
+			scrollToRow(findPackageRow(name));
+			return;
+		}
+		sorter.addRowSorterListener(new RowSorterListener() {
+
+			@Override
+			public void sorterChanged(RowSorterEvent e) {
+				if (sorter.isSortPending())
+					return;
+				sorter.removeRowSorterListener(this);
+				scrollToRow(findPackageRow(name));
+			}
+		});
+	}
+
+	/**
+	 * Finds a package in pkglistTable.
+	 * 
+	 * @param name Package name
+	 * @return View row, or -1 if not shown
+	 */
+	private int findPackageRow(String name) {
+		for (int i = 0; i < pkglistTable.getRowCount(); i++) {
+			if (name.equals(pkglistTable.getModel().getValueAt(
+					pkglistTable.convertRowIndexToModel(i), 1)))
+				return i;
+		}
+		return -1;
+	}
+
+	/**
+	 * Scrolls pkglistTable so that a row is the first visible one.
+	 * 
+	 * @param row View row; ignored if out of range
+	 */
+	private void scrollToRow(int row) {
+		if (row < 0 || row >= pkglistTable.getRowCount())
+			return;
+		Rectangle r = pkglistTable.getCellRect(row, 0, true);
+		pkglistScrollPane.getViewport().setViewPosition(new Point(0, r.y));
+	}
+
+	/**
+	 * Hooks searchTextField up to the search pipeline.
+	 */
+	private void initSearch() {
+		searchPipeline = new SearchPipeline(new SearchPipeline.ResultListener() {
+
+			@Override
+			public void searchCompleted(int[] rows) {
+				applySearchResult(rows);
+			}
+		});
+		searchTextField.getDocument().addDocumentListener(new DocumentListener() {
+
+			@Override
+			public void insertUpdate(DocumentEvent e) {
+				searchPipeline.queryChanged(getSearchQuery());
+			}
+
+			@Override
+			public void removeUpdate(DocumentEvent e) {
+				searchPipeline.queryChanged(getSearchQuery());
+			}
+
+			@Override
+			public void changedUpdate(DocumentEvent e) {
+			}
+		});
+	}
+
+	/**
+	 * Returns the text of searchTextField, ignoring the placeholder.
+	 * 
+	 * @return Search query
+	 */
+	private String getSearchQuery() {
+		String text = searchTextField.getText();
+		return text.equals("Search...") ? "" : text;
+	}
+
+	/**
+	 * Shows only the given rows of pkglistTable.
+	 * 
+	 * @param rows Model rows to show, or null to show all
+	 */
+	private void applySearchResult(int[] rows) {
+		PackageRowSorter sorter = (PackageRowSorter) pkglistTable.getRowSorter();
+		if (rows == null) {
+			sorter.setRowFilter(null);
+			countLabel.setText(packageRows.size() + " packages in '" + packageRowsRepo + "'");
+		} else {
+			sorter.setRowFilter(new IndexRowFilter(rows));
+			countLabel.setText(rows.length + " of " + packageRows.size()
+					+ " packages in '" + packageRowsRepo + "'");
+		}
+	}
 
 	/**
 	 * Uses PacmanConfHelper to update repoTable.
@@ -450,15 +1188,19 @@ private void searchTextFieldFocusLost(java.awt.event.FocusEvent evt) {//GEN-FIRS
 		try {
 			pacmanConfHelper = PacmanConfHelper.get();
 			ArrayList<String> repos = pacmanConfHelper.getRepos();
+			shownRepos = repos;
 			Iterator<String> iterator = repos.iterator();
 
-			((DefaultTableModel) model).setNumRows(repos.size() + 1);
+			((DefaultTableModel) model).setNumRows(repos.size() + groups.size() + 1);
 			model.setValueAt("*all*", 0, 0);
 
-			for (int i=1; iterator.hasNext(); i++) {
+			int i = 1;
+			for (; iterator.hasNext(); i++) {
 				String repo = iterator.next();
 				model.setValueAt(repo, i, 0);
 			}
+			for (String group : groups)
+				model.setValueAt("@" + group, i++, 0);
 		} catch (Exception e) {
 			Logger.getLogger(Karun.class.getName()).log(Level.SEVERE, null, e);
 		}
@@ -470,30 +1212,63 @@ private void searchTextFieldFocusLost(java.awt.event.FocusEvent evt) {//GEN-FIRS
 	 * @param repo Repository name
 	 */
 	private void populatePackageList(String repo) {
+		updateConf();
+		loadScheduler.request(repo, pacmanConfHelper);
+	}
+
+	/**
+	 * Picks up changes to 'pacman.conf' and the files it includes.  If the
+	 * repositories changed, repoTable is filled again once the next package
+	 * list is loaded.
+	 */
+	private void updateConf() {
 		try {
-			PackageCollection packageCollection = new PackageCollection(repo, 
-					pacmanConfHelper.getDbPath());
-			
-			HashMap<String, Package> collection = packageCollection.getCollection();
-			Set<String> keySet = collection.keySet();
-			Iterator<String> iterator = keySet.iterator();
-			
-			TableModel model = pkglistTable.getModel();
-			((DefaultTableModel) model).setNumRows(keySet.size());
-			
-			for (int i=0; iterator.hasNext(); i++) {
-				Package p = collection.get(iterator.next());
-				model.setValueAt(" ", i, 0); // status
-				model.setValueAt(p.getName(), i, 1); // name
-				model.setValueAt(p.getLocalVersion(), i, 2); // local version
-				model.setValueAt(p.getRepoVersion(), i, 3); // repo version
-				model.setValueAt(p.getDescription(), i, 4); // description
-				model.setValueAt(p.getRepo(), i, 5); // repo
-			}
-			countLabel.setText(keySet.size() + " packages in '" + repo + "'");
+			pacmanConfHelper = PacmanConfHelper.get();
 		} catch (Exception ex) {
-			Logger.getLogger(Karun.class.getName()).log(Level.SEVERE, null, ex);
-			Utils.showExceptionDialog(this, ex);
+			// Keep using the configuration read before
+			Logger.getLogger(Karun.class.getName()).log(Level.WARNING, null, ex);
+		}
+	}
+
+	/**
+	 * Fills pkglistTable.
+	 * 
+	 * @param repo Repository name
+	 * @param packageCollection Packages
+	 */
+	private void showPackages(String repo, PackageCollection packageCollection) {
+		ArrayList<Package> rows;
+		synchronized (packageCollection) {
+			rows = new ArrayList<Package>(packageCollection.getCollection().values());
+		}
+		showRows(repo, rows);
+	}
+
+	/**
+	 * Fills pkglistTable.
+	 * 
+	 * @param repo Repository name
+	 * @param rows Packages, in table model order
+	 */
+	private void showRows(String repo, ArrayList<Package> rows) {
+		FlightEvents.Span span = FlightEvents.begin(FlightEvents.Kind.TABLE_FILL);
+		TableModel model = pkglistTable.getModel();
+		((PackageRowSorter) pkglistTable.getRowSorter()).setRowFilter(null);
+		((DefaultTableModel) model).setNumRows(rows.size());
+
+		for (int i=0; i<rows.size(); i++) {
+			Package p = rows.get(i);
+			model.setValueAt(" ", i, 0); // status
+			model.setValueAt(p.getName(), i, 1); // name
+			model.setValueAt(p.getLocalVersion(), i, 2); // local version
+			model.setValueAt(p.getRepoVersion(), i, 3); // repo version
+			model.setValueAt(p.getDescriptionText(), i, 4); // description
+			model.setValueAt(p.getRepo(), i, 5); // repo
 		}
+		packageRows = rows;
+		packageRowsRepo = repo;
+		countLabel.setText(rows.size() + " packages in '" + repo + "'");
+		searchPipeline.setPackages(rows);
+		span.commit(repo, rows.size());
 	}
 }
\ No newline at end of file
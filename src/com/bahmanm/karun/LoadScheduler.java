@@ -0,0 +1,182 @@
+/*
+ * Karun, a package manager for ArchLinux based on 'pacman'.
+ * Copyright (C) 2011  Bahman Movaqar
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, 
+ * USA.
+ */
+package com.bahmanm.karun;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import javax.swing.SwingUtilities;
+
+/**
+ * LoadScheduler
+ *
+ * Loads the package collection of a repository filter off the event dispatch
+ * thread.  A new request cancels the one in flight; loading notices the
+ * interrupt between archive entries and between packages and gives up (see
+ * Utils.checkInterrupted).  A request for the repository already being
+ * loaded is coalesced with it.  Only the result of the latest request is
+ * delivered.
+ *
+ * Work depending on a loaded collection which shouldn't hold up the event
+ * dispatch thread goes in LoadListener.loadedInBackground: it runs on the
+ * loading thread as a task of its own, so newer requests don't interrupt
+ * it halfway.
+ *
+ * All public methods must be called on the event dispatch thread; results are
+ * delivered there as well.
+ *
+ * @author Bahman Movaqar (Bahman AT BahmanM.com)
+ */
+public class LoadScheduler {
+
+	/** Receives loaded collections */
+	private final LoadListener listener;
+	/** Loads off the event dispatch thread */
+	private final ExecutorService executor =
+			Executors.newSingleThreadExecutor(Utils.daemonThreadFactory("karun-load"));
+	/** Load in flight; null if none */
+	private Future<?> inFlight;
+	/** Repository of the load in flight */
+	private String inFlightRepo;
+	/** Incremented on every request so stale results can be dropped */
+	private int generation;
+
+	/**
+	 * Constructor
+	 *
+	 * @param listener Receives loaded collections
+	 */
+	public LoadScheduler(LoadListener listener) {
+		this.listener = listener;
+	}
+
+	/**
+	 * Requests loading the packages of a repository filter.
+	 *
+	 * @param repo Repository name e.g. 'community' or '*all*'
+	 * @param conf Pacman configuration
+	 */
+	public void request(String repo, PacmanConfHelper conf) {
+		if (inFlight != null && !inFlight.isDone() && repo.equals(inFlightRepo))
+			return;
+		reload(repo, conf);
+	}
+
+	/**
+	 * Loads the packages of a repository filter again, e.g. after its
+	 * databases changed.  Unlike request(), this is not coalesced with a
+	 * load of the same repository in flight, which may have read the old
+	 * databases.
+	 *
+	 * @param repo Repository name e.g. 'community' or '*all*'
+	 * @param conf Pacman configuration
+	 */
+	public void reload(final String repo, final PacmanConfHelper conf) {
+		if (inFlight != null)
+			inFlight.cancel(true);
+		final int gen = ++generation;
+		inFlightRepo = repo;
+		inFlight = executor.submit(new Runnable() {
+
+			@Override
+			public void run() {
+				try {
+					final PackageCollection collection = new PackageCollection(repo, conf,
+							StringPool.getDefault());
+					executor.submit(new Runnable() {
+
+						@Override
+						public void run() {
+							listener.loadedInBackground(repo, collection);
+							deliver(gen, repo, collection, null);
+						}
+					});
+				} catch (Exception ex) {
+					if (!Thread.currentThread().isInterrupted())
+						deliver(gen, repo, null, ex);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Hands a result to the listener on the event dispatch thread unless a
+	 * newer request was made meanwhile.
+	 *
+	 * @param gen Generation of the request
+	 * @param repo Repository name
+	 * @param collection Packages; null if loading failed
+	 * @param error Why loading failed
+	 */
+	private void deliver(final int gen, final String repo, final PackageCollection collection,
+			final Exception error) {
+		SwingUtilities.invokeLater(new Runnable() {
+
+			@Override
+			public void run() {
+				if (gen != generation) {
+					if (collection != null)
+						collection.close();
+					return;
+				}
+				inFlight = null;
+				if (collection != null)
+					listener.loadCompleted(repo, collection);
+				else
+					listener.loadFailed(repo, error);
+			}
+		});
+	}
+
+	/**
+	 * Receives loaded collections
+	 */
+	public interface LoadListener {
+
+		/**
+		 * Called on the loading thread with every loaded collection before
+		 * it's delivered, including those which end up dropped for a newer
+		 * request.  Not interrupted by newer requests.
+		 *
+		 * @param repo Repository name
+		 * @param collection Packages
+		 */
+		public abstract void loadedInBackground(String repo, PackageCollection collection);
+
+		/**
+		 * Called on the event dispatch thread with the result of the latest
+		 * request.  The listener owns the collection from then on and should
+		 * close it once dropped; results of earlier requests are closed by
+		 * the scheduler.
+		 *
+		 * @param repo Repository name
+		 * @param collection Packages
+		 */
+		public abstract void loadCompleted(String repo, PackageCollection collection);
+
+		/**
+		 * Called on the event dispatch thread if the latest request failed.
+		 *
+		 * @param repo Repository name
+		 * @param ex Why it failed
+		 */
+		public abstract void loadFailed(String repo, Exception ex);
+	}
+}
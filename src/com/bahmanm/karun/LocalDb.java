@@ -0,0 +1,196 @@
+/*
+ * Karun, a package manager for ArchLinux based on 'pacman'.
+ * Copyright (C) 2011  Bahman Movaqar
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, 
+ * USA.
+ */
+package com.bahmanm.karun;
+
+import com.bahmanm.karun.PackageCollection.Package;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * LocalDb
+ *
+ * The local (installed packages) database, kept in memory and refreshed by
+ * re-reading only the package entries which changed since the last refresh.
+ *
+ * pacman creates its lock file in DBPath for every transaction, so as long as
+ * neither DBPath nor its 'local' directory has been modified a refresh costs
+ * two stat calls.
+ *
+ * @author Bahman Movaqar (Bahman AT BahmanM.com)
+ */
+public class LocalDb {
+
+	/** DBPath */
+	private final File dbDir;
+	/** DBPath/local */
+	private final File localDir;
+	/** Modification time of DBPath as of the last refresh */
+	private long dbDirModified = -1;
+	/** Modification time of DBPath/local as of the last refresh */
+	private long localDirModified = -1;
+	/** Entries by directory name, e.g. 'glibc-2.14-1' */
+	private final HashMap<String, Entry> entries = new HashMap<String, Entry>();
+	/** Installed packages by name */
+	private final HashMap<String, Package> packages = new HashMap<String, Package>();
+
+	/**
+	 * Constructor
+	 *
+	 * @param dbPath Pacman's DB path
+	 */
+	public LocalDb(String dbPath) {
+		dbDir = new File(dbPath);
+		localDir = new File(dbPath, "local");
+	}
+
+	/**
+	 * Brings the in-memory copy up to date with the database on disk.
+	 *
+	 * @return What changed since the last refresh; everything on the first one
+	 */
+	public synchronized Change refresh() throws FileNotFoundException, IOException {
+		Change change = new Change();
+		long dbModified = dbDir.lastModified();
+		long localModified = localDir.lastModified();
+		if (dbModified == dbDirModified && localModified == localDirModified)
+			return change;
+
+		String[] names = localDir.list();
+		if (names == null)
+			throw new FileNotFoundException(localDir.getAbsolutePath());
+		HashSet<String> seen = new HashSet<String>();
+		for (int i = 0; i < names.length; i++) {
+			File dir = new File(localDir, names[i]);
+			File desc = new File(dir, "desc");
+			long modified = desc.lastModified();
+			if (modified == 0)
+				continue; // not a package entry, e.g. ALPM_DB_VERSION
+			seen.add(names[i]);
+			Entry e = entries.get(names[i]);
+			if (e != null && e.modified == modified)
+				continue;
+			if (e != null)
+				removeEntry(names[i], change);
+			Package pkg = PackageCollection.readPackage(dir);
+			pkg.setLocalVersion(pkg.getRepoVersion());
+			entries.put(names[i], new Entry(pkg, modified));
+			packages.put(pkg.getName(), pkg);
+			change.added.add(pkg);
+		}
+		Iterator<String> it = new ArrayList<String>(entries.keySet()).iterator();
+		while (it.hasNext()) {
+			String name = it.next();
+			if (!seen.contains(name))
+				removeEntry(name, change);
+		}
+		dbDirModified = dbModified;
+		localDirModified = localModified;
+		return change;
+	}
+
+	/**
+	 * Installed packages as of the last refresh.
+	 *
+	 * @return Packages
+	 */
+	public synchronized Collection<Package> getPackages() {
+		return new ArrayList<Package>(packages.values());
+	}
+
+	/**
+	 * Looks up an installed package.
+	 *
+	 * @param name Package name
+	 * @return Package, or null if not installed
+	 */
+	public synchronized Package getPackage(String name) {
+		return packages.get(name);
+	}
+
+	/**
+	 * Drops an entry.
+	 *
+	 * @param dirName Entry directory name
+	 * @param change Change to record the removal in
+	 */
+	private void removeEntry(String dirName, Change change) {
+		Entry e = entries.remove(dirName);
+		if (packages.get(e.pkg.getName()) == e.pkg)
+			packages.remove(e.pkg.getName());
+		change.removed.add(e.pkg);
+	}
+
+	/**
+	 * A package entry of the local database
+	 */
+	private static class Entry {
+
+		private final Package pkg;
+		/** Modification time of 'desc' */
+		private final long modified;
+
+		Entry(Package pkg, long modified) {
+			this.pkg = pkg;
+			this.modified = modified;
+		}
+	}
+
+	/**
+	 * Changes found by a refresh.  An upgraded or otherwise modified package
+	 * shows up as removed (old entry) and added (new entry).
+	 */
+	public static class Change {
+
+		private final List<Package> added = new ArrayList<Package>();
+		private final List<Package> removed = new ArrayList<Package>();
+
+		public List<Package> getAdded() {
+			return added;
+		}
+
+		public List<Package> getRemoved() {
+			return removed;
+		}
+
+		public boolean isEmpty() {
+			return added.isEmpty() && removed.isEmpty();
+		}
+
+		/**
+		 * Applies the change to a map of packages by name.
+		 *
+		 * @param target Packages by name
+		 */
+		public void applyTo(Map<String, Package> target) {
+			for (Package p : removed)
+				target.remove(p.getName());
+			for (Package p : added)
+				target.put(p.getName(), p);
+		}
+	}
+}
@@ -0,0 +1,268 @@
+/*
+ * Karun, a package manager for ArchLinux based on 'pacman'.
+ * Copyright (C) 2011  Bahman Movaqar
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, 
+ * USA.
+ */
+package com.bahmanm.karun;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintWriter;
+import java.net.HttpURLConnection;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * MirrorRanker
+ *
+ * Ranks the servers of a repository by probing them all at once: each probe
+ * downloads the start of the repository's '.db' file and measures the time
+ * to first byte and the transfer rate after it.  Servers are ranked by the
+ * estimated time to fetch a sample of 'sampleSize' bytes; failed ones come
+ * last.
+ *
+ * @author Bahman Movaqar (Bahman AT BahmanM.com)
+ */
+public class MirrorRanker {
+
+	/** Default number of servers probed at once */
+	public static final int DEFAULT_PARALLELISM = 16;
+	/** Default timeout for connecting and for each read, in milliseconds */
+	public static final int DEFAULT_TIMEOUT = 2000;
+	/** Default number of bytes downloaded per probe */
+	public static final int DEFAULT_SAMPLE_SIZE = 256 * 1024;
+	/** Number of servers probed at once */
+	private final int parallelism;
+	/** Connect and read timeout, in milliseconds */
+	private final int timeout;
+	/** Bytes downloaded per probe at most */
+	private final int sampleSize;
+
+	/**
+	 * Constructor
+	 *
+	 * @param parallelism Number of servers probed at once
+	 * @param timeout Connect and read timeout, in milliseconds; a probe as a
+	 *        whole gets at most twice as long
+	 * @param sampleSize Bytes downloaded per probe at most
+	 */
+	public MirrorRanker(int parallelism, int timeout, int sampleSize) {
+		this.parallelism = Math.max(1, parallelism);
+		this.timeout = timeout;
+		this.sampleSize = sampleSize;
+	}
+
+	/**
+	 * Probes and ranks servers.
+	 *
+	 * @param conf Configuration, for expanding '$repo' and '$arch'
+	 * @param repo Repository whose '.db' file is downloaded
+	 * @param servers Server URLs as found in the configuration
+	 * @return Results, best first
+	 */
+	public List<Result> rank(PacmanConfHelper conf, final String repo, List<String> servers)
+			throws InterruptedException {
+		ArrayList<Result> results = new ArrayList<Result>();
+		if (servers.isEmpty())
+			return results;
+		ArrayList<Callable<Result>> probes = new ArrayList<Callable<Result>>();
+		for (final String server : servers) {
+			final String url = conf.expandServer(server, repo) + "/" + repo + ".db";
+			probes.add(new Callable<Result>() {
+
+				@Override
+				public Result call() {
+					return probe(server, url);
+				}
+			});
+		}
+
+		ExecutorService executor = Executors.newFixedThreadPool(
+				Math.min(parallelism, servers.size()),
+				Utils.daemonThreadFactory("karun-mirror"));
+		try {
+			int rounds = (servers.size() + parallelism - 1) / parallelism;
+			List<Future<Result>> futures = executor.invokeAll(probes,
+					(long) rounds * 3 * timeout, TimeUnit.MILLISECONDS);
+			for (int i = 0; i < futures.size(); i++) {
+				try {
+					results.add(futures.get(i).get());
+				} catch (CancellationException ex) {
+					results.add(new Result(servers.get(i), "timed out"));
+				} catch (ExecutionException ex) {
+					results.add(new Result(servers.get(i), String.valueOf(ex.getCause())));
+				}
+			}
+		} finally {
+			executor.shutdownNow();
+		}
+
+		Collections.sort(results, new Comparator<Result>() {
+
+			@Override
+			public int compare(Result a, Result b) {
+				if (a.error != null || b.error != null)
+					return a.error == null ? -1 : b.error == null ? 1 : 0;
+				double ta = a.estimate(sampleSize);
+				double tb = b.estimate(sampleSize);
+				return ta < tb ? -1 : ta > tb ? 1 : 0;
+			}
+		});
+		return results;
+	}
+
+	/**
+	 * Probes one server.
+	 *
+	 * @param server Server URL as found in the configuration
+	 * @param url URL of the '.db' file
+	 * @return Result
+	 */
+	private Result probe(String server, String url) {
+		HttpURLConnection conn = null;
+		try {
+			long start = System.nanoTime();
+			long deadline = start + TimeUnit.MILLISECONDS.toNanos(2L * timeout);
+			conn = Utils.openHttpConnection(url, timeout);
+			int code = conn.getResponseCode();
+			if (code != HttpURLConnection.HTTP_OK)
+				return new Result(server, "HTTP " + code);
+			InputStream in = conn.getInputStream();
+			byte[] buf = new byte[16 * 1024];
+			int n = in.read(buf);
+			long firstByte = System.nanoTime();
+			if (n < 0)
+				return new Result(server, "empty response");
+			long first = n;
+			long total = n;
+			long now = firstByte;
+			while (total < sampleSize && now < deadline
+					&& (n = in.read(buf, 0, (int) Math.min(buf.length, sampleSize - total))) >= 0) {
+				total += n;
+				now = System.nanoTime();
+			}
+			in.close();
+			double rate;
+			if (total > first && now > firstByte)
+				rate = (total - first) * 1e9 / (now - firstByte);
+			else
+				rate = total * 1e9 / Math.max(1, now - start);
+			return new Result(server, (firstByte - start) / 1000000, (long) rate, total);
+		} catch (IOException ex) {
+			return new Result(server, ex.toString());
+		} finally {
+			if (conn != null)
+				conn.disconnect();
+		}
+	}
+
+	/**
+	 * Writes a ranked mirrorlist: working servers in order, each with its
+	 * measurements as a comment, followed by the failed ones commented out.
+	 *
+	 * @param results Results as returned by rank
+	 * @param out Where to write
+	 */
+	public static void writeMirrorlist(List<Result> results, PrintWriter out) {
+		out.println("##");
+		out.println("## Mirrorlist ranked by Karun");
+		out.println("##");
+		out.println();
+		for (Result r : results) {
+			if (r.error == null) {
+				out.println("## TTFB " + r.ttfb + " ms, " + Utils.formatSize(r.rate) + "/s");
+				out.println("Server = " + r.server);
+			} else {
+				out.println("## " + r.error);
+				out.println("#Server = " + r.server);
+			}
+		}
+		out.flush();
+	}
+
+	/**
+	 * Result of probing a server
+	 */
+	public static class Result {
+
+		/** Server URL as found in the configuration */
+		private final String server;
+		/** Time to first byte, in milliseconds */
+		private final long ttfb;
+		/** Transfer rate, in bytes per second */
+		private final long rate;
+		/** Bytes downloaded */
+		private final long bytes;
+		/** Why the probe failed; null if it didn't */
+		private final String error;
+
+		Result(String server, long ttfb, long rate, long bytes) {
+			this.server = server;
+			this.ttfb = ttfb;
+			this.rate = rate;
+			this.bytes = bytes;
+			this.error = null;
+		}
+
+		Result(String server, String error) {
+			this.server = server;
+			this.ttfb = -1;
+			this.rate = -1;
+			this.bytes = 0;
+			this.error = error;
+		}
+
+		/**
+		 * Estimated time to fetch some bytes from the server.
+		 *
+		 * @param size Number of bytes
+		 * @return Time in milliseconds
+		 */
+		double estimate(long size) {
+			return ttfb + size * 1000.0 / Math.max(1, rate);
+		}
+
+		public String getServer() {
+			return server;
+		}
+
+		public long getTtfb() {
+			return ttfb;
+		}
+
+		public long getRate() {
+			return rate;
+		}
+
+		public long getBytes() {
+			return bytes;
+		}
+
+		public String getError() {
+			return error;
+		}
+	}
+}
@@ -0,0 +1,188 @@
+/*
+ * Karun, a package manager for ArchLinux based on 'pacman'.
+ * Copyright (C) 2011  Bahman Movaqar
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, 
+ * USA.
+ */
+package com.bahmanm.karun;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * MultiRootLoader
+ *
+ * Loads the packages of many pacman roots, e.g. containers and chroots each
+ * with a 'pacman.conf' and DBPath of its own, in parallel.  All roots intern
+ * their strings in one StringPool, so a package which is the same in many
+ * roots costs little more than in one.
+ *
+ * @author Bahman Movaqar (Bahman AT BahmanM.com)
+ */
+public class MultiRootLoader {
+
+	/** Default number of roots loaded at once; loading waits on disk a lot */
+	public static final int DEFAULT_PARALLELISM = Math.max(4, Runtime.getRuntime().availableProcessors());
+	/** Number of roots loaded at once */
+	private final int parallelism;
+	/** Pool shared by the roots */
+	private final StringPool pool;
+
+	/**
+	 * Loaded root
+	 */
+	public static class Root {
+
+		private final String confPath;
+		private final PacmanConfHelper conf;
+		private final PackageCollection collection;
+		/** Load time in milliseconds */
+		private final long millis;
+		private final String error;
+
+		Root(String confPath, PacmanConfHelper conf, PackageCollection collection, long millis,
+				String error) {
+			this.confPath = confPath;
+			this.conf = conf;
+			this.collection = collection;
+			this.millis = millis;
+			this.error = error;
+		}
+
+		public String getConfPath() {
+			return confPath;
+		}
+
+		/**
+		 * @return Configuration, or null if it couldn't be read
+		 */
+		public PacmanConfHelper getConf() {
+			return conf;
+		}
+
+		/**
+		 * @return Packages of all repositories, or null if loading failed
+		 */
+		public PackageCollection getCollection() {
+			return collection;
+		}
+
+		/**
+		 * @return Load time in milliseconds
+		 */
+		public long getMillis() {
+			return millis;
+		}
+
+		/**
+		 * @return Error message, or null if the root was loaded
+		 */
+		public String getError() {
+			return error;
+		}
+	}
+
+	/**
+	 * Constructor
+	 *
+	 * @param parallelism Number of roots loaded at once
+	 * @param pool Pool shared by the roots
+	 */
+	public MultiRootLoader(int parallelism, StringPool pool) {
+		this.parallelism = Math.max(1, parallelism);
+		this.pool = pool;
+	}
+
+	/**
+	 * Loads the packages of all repositories of each root.  The caller
+	 * should close the collections of the roots once done with them.
+	 *
+	 * @param confPaths Paths to the 'pacman.conf' of each root
+	 * @return Roots, in the order of 'confPaths'
+	 */
+	public List<Root> load(List<String> confPaths) throws InterruptedException {
+		ArrayList<Root> roots = new ArrayList<Root>();
+		if (confPaths.isEmpty())
+			return roots;
+		// Loaded so far, to be closed if loading is interrupted
+		final List<PackageCollection> loaded =
+				Collections.synchronizedList(new ArrayList<PackageCollection>());
+		ArrayList<Callable<Root>> tasks = new ArrayList<Callable<Root>>();
+		for (final String confPath : confPaths) {
+			tasks.add(new Callable<Root>() {
+
+				@Override
+				public Root call() {
+					Root root = loadRoot(confPath);
+					if (root.getCollection() != null)
+						loaded.add(root.getCollection());
+					return root;
+				}
+			});
+		}
+
+		ExecutorService executor = Executors.newFixedThreadPool(
+				Math.min(parallelism, confPaths.size()),
+				Utils.daemonThreadFactory("karun-root"));
+		boolean done = false;
+		try {
+			List<Future<Root>> futures = executor.invokeAll(tasks);
+			for (int i = 0; i < futures.size(); i++) {
+				try {
+					roots.add(futures.get(i).get());
+				} catch (ExecutionException ex) {
+					roots.add(new Root(confPaths.get(i), null, null, 0,
+							String.valueOf(ex.getCause())));
+				}
+			}
+			done = true;
+		} finally {
+			executor.shutdownNow();
+			if (!done) {
+				synchronized (loaded) {
+					for (PackageCollection c : loaded)
+						c.close();
+				}
+			}
+		}
+		return roots;
+	}
+
+	/**
+	 * Loads one root.
+	 *
+	 * @param confPath Path to its 'pacman.conf'
+	 * @return Root
+	 */
+	private Root loadRoot(String confPath) {
+		long start = System.currentTimeMillis();
+		PacmanConfHelper conf = null;
+		try {
+			conf = PacmanConfHelper.get(confPath);
+			PackageCollection collection = new PackageCollection("*all*", conf, pool);
+			return new Root(confPath, conf, collection, System.currentTimeMillis() - start, null);
+		} catch (Exception ex) {
+			return new Root(confPath, conf, null, System.currentTimeMillis() - start,
+					String.valueOf(ex));
+		}
+	}
+}
@@ -0,0 +1,323 @@
+/*
+ * Karun, a package manager for ArchLinux based on 'pacman'.
+ * Copyright (C) 2011  Bahman Movaqar
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, 
+ * USA.
+ */
+package com.bahmanm.karun;
+
+import com.bahmanm.karun.PackageCollection.Package;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * OrphanTracker
+ *
+ * Finds installed packages which are no longer needed: those installed as a
+ * dependency (reason 1) which can't be reached from any explicitly installed
+ * package through dependencies.  Unlike 'pacman -Qdt' this also finds
+ * dependency cycles nothing else needs.  A dependency is met by every
+ * installed package satisfying it, by name or through '%PROVIDES%', so the
+ * provider of e.g. 'sh' or 'libfoo.so' is needed as long as its dependents
+ * are.
+ *
+ * Reachability is maintained incrementally.  Adding a package only ever
+ * makes more packages reachable, so it is a forward traversal from the new
+ * package.  Removing one can only affect what was reachable through it: that
+ * part is marked unreachable and then re-derived from its remaining
+ * reachable dependents.  Asking for the orphans between changes is free.
+ *
+ * @author Bahman Movaqar (Bahman AT BahmanM.com)
+ */
+public class OrphanTracker {
+
+	/** Package id by name */
+	private final HashMap<String, Integer> ids = new HashMap<String, Integer>();
+	/** Ids of packages with a dependency on a name, installed or not */
+	private final HashMap<String, IntList> dependents = new HashMap<String, IntList>();
+	/** Freed ids */
+	private final IntList free = new IntList();
+	/** Number of ids handed out, including freed ones */
+	private int count;
+	/** Package name by id; null for freed ids */
+	private String[] names = new String[16];
+	/** Dependencies by id */
+	private String[][] depends = new String[16][];
+	/** Installed packages by what they provide */
+	private final InstalledProviders providers = new InstalledProviders();
+	/** Whether a package was installed explicitly */
+	private boolean[] explicit = new boolean[16];
+	/** Whether a package is reachable from an explicitly installed one */
+	private boolean[] reachable = new boolean[16];
+	/** Candidate marks used while removing */
+	private boolean[] candidate = new boolean[16];
+	/** Traversal queue */
+	private int[] queue = new int[16];
+	/** Orphans as of the last change; null if not computed */
+	private List<String> orphans;
+
+	/**
+	 * Constructor
+	 *
+	 * @param installed Installed packages
+	 */
+	public OrphanTracker(Collection<Package> installed) {
+		for (Package p : installed)
+			add(p);
+	}
+
+	/**
+	 * Applies changes found in the local database.
+	 *
+	 * @param change Change
+	 */
+	public synchronized void apply(LocalDb.Change change) {
+		for (Package p : change.getRemoved())
+			remove(p.getName());
+		for (Package p : change.getAdded())
+			add(p);
+	}
+
+	/**
+	 * Adds or replaces an installed package.
+	 *
+	 * @param pkg Package
+	 */
+	public synchronized void add(Package pkg) {
+		remove(pkg.getName());
+		int id = free.size() > 0 ? free.removeLast() : count++;
+		ensureCapacity(count);
+		names[id] = pkg.getName();
+		explicit[id] = pkg.getReason() == 0;
+		reachable[id] = false;
+		ids.put(names[id], Integer.valueOf(id));
+		providers.add(id, pkg);
+		ArrayList<String> d = pkg.getDepends();
+		depends[id] = d.toArray(new String[d.size()]);
+		for (int i = 0; i < depends[id].length; i++) {
+			String name = ProvisionIndex.parse(depends[id][i])[0];
+			IntList l = dependents.get(name);
+			if (l == null) {
+				l = new IntList();
+				dependents.put(name, l);
+			}
+			l.add(id);
+		}
+
+		if (explicit[id] || hasReachableDependent(id))
+			propagate(id);
+		orphans = null;
+	}
+
+	/**
+	 * Removes an installed package.
+	 *
+	 * @param name Package name
+	 */
+	public synchronized void remove(String name) {
+		Integer i = ids.remove(name);
+		if (i == null)
+			return;
+		int id = i.intValue();
+		boolean wasReachable = reachable[id];
+
+		// Collect what may have been reachable only through this package
+		int n = 0;
+		if (wasReachable) {
+			candidate[id] = true;
+			queue[n++] = id;
+			for (int head = 0; head < n; head++) {
+				String[] d = depends[queue[head]];
+				for (int k = 0; k < d.length; k++) {
+					int[] p = providers.resolve(d[k]);
+					for (int j = 0; j < p.length; j++) {
+						if (reachable[p[j]] && !candidate[p[j]]) {
+							candidate[p[j]] = true;
+							queue[n++] = p[j];
+						}
+					}
+				}
+			}
+		}
+
+		for (int k = 0; k < depends[id].length; k++)
+			dependents.get(ProvisionIndex.parse(depends[id][k])[0]).remove(id);
+		providers.remove(id);
+		names[id] = null;
+		depends[id] = null;
+		reachable[id] = false;
+		explicit[id] = false;
+		free.add(id);
+
+		if (wasReachable) {
+			int[] candidates = Arrays.copyOf(queue, n);
+			for (int k = 0; k < n; k++)
+				reachable[candidates[k]] = false;
+			for (int k = 0; k < n; k++)
+				candidate[candidates[k]] = false;
+			// Re-derive from whatever still reaches into the candidates
+			for (int k = 0; k < n; k++) {
+				int c = candidates[k];
+				if (c != id && !reachable[c] && (explicit[c] || hasReachableDependent(c)))
+					propagate(c);
+			}
+		}
+		orphans = null;
+	}
+
+	/**
+	 * Installed packages which nothing explicitly installed needs.
+	 *
+	 * @return Package names, sorted
+	 */
+	public synchronized List<String> getOrphans() {
+		if (orphans == null) {
+			ArrayList<String> result = new ArrayList<String>();
+			for (int i = 0; i < count; i++) {
+				if (names[i] != null && !reachable[i])
+					result.add(names[i]);
+			}
+			Collections.sort(result);
+			orphans = Collections.unmodifiableList(result);
+		}
+		return orphans;
+	}
+
+	/**
+	 * Checks whether a reachable package has a dependency 'id' satisfies.
+	 *
+	 * @param id Package id
+	 * @return true if so
+	 */
+	private boolean hasReachableDependent(int id) {
+		Package pkg = providers.get(id);
+		for (String name : InstalledProviders.names(pkg)) {
+			IntList l = dependents.get(name);
+			if (l == null)
+				continue;
+			for (int k = 0; k < l.size(); k++) {
+				int d = l.get(k);
+				if (d != id && reachable[d] && dependsOn(d, name, pkg))
+					return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Checks whether a package satisfies one of the dependencies of 'id' on
+	 * 'name'.
+	 *
+	 * @param id Id of the dependent package
+	 * @param name Name depended on
+	 * @param pkg Package
+	 * @return true if so
+	 */
+	private boolean dependsOn(int id, String name, Package pkg) {
+		String[] d = depends[id];
+		for (int k = 0; k < d.length; k++) {
+			if (ProvisionIndex.parse(d[k])[0].equals(name)
+					&& ProvisionIndex.satisfies(pkg, d[k]))
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Marks a package and everything it depends on as reachable.
+	 *
+	 * @param id Package id
+	 */
+	private void propagate(int id) {
+		int tail = 0;
+		reachable[id] = true;
+		queue[tail++] = id;
+		for (int head = 0; head < tail; head++) {
+			String[] d = depends[queue[head]];
+			for (int k = 0; k < d.length; k++) {
+				int[] p = providers.resolve(d[k]);
+				for (int j = 0; j < p.length; j++) {
+					if (!reachable[p[j]]) {
+						reachable[p[j]] = true;
+						queue[tail++] = p[j];
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Grows the per-package arrays to hold at least 'n' ids.
+	 *
+	 * @param n Number of ids
+	 */
+	private void ensureCapacity(int n) {
+		if (n <= names.length)
+			return;
+		int c = Math.max(n, names.length * 2);
+		names = Arrays.copyOf(names, c);
+		depends = Arrays.copyOf(depends, c);
+		explicit = Arrays.copyOf(explicit, c);
+		reachable = Arrays.copyOf(reachable, c);
+		candidate = Arrays.copyOf(candidate, c);
+		queue = Arrays.copyOf(queue, c);
+	}
+
+	/**
+	 * Growable list of ints
+	 */
+	private static class IntList {
+
+		private int[] items = new int[4];
+		private int size;
+
+		int size() {
+			return size;
+		}
+
+		int get(int i) {
+			return items[i];
+		}
+
+		void add(int v) {
+			if (size == items.length)
+				items = Arrays.copyOf(items, size * 2);
+			items[size++] = v;
+		}
+
+		int removeLast() {
+			return items[--size];
+		}
+
+		/**
+		 * Removes one occurrence of a value; order isn't kept.
+		 *
+		 * @param v Value
+		 */
+		void remove(int v) {
+			for (int i = 0; i < size; i++) {
+				if (items[i] == v) {
+					items[i] = items[--size];
+					return;
+				}
+			}
+		}
+	}
+}
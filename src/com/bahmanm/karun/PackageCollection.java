@@ -19,20 +19,19 @@
  */
 package com.bahmanm.karun;
 
-import java.io.BufferedReader;
-import java.io.DataInputStream;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FilenameFilter;
 import java.io.IOException;
-import java.io.InputStreamReader;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
-import java.util.logging.Level;
-import java.util.logging.Logger;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
 import org.apache.commons.compress.archivers.ArchiveException;
-import org.apache.commons.lang.StringUtils;
+import org.apache.commons.io.FileUtils;
 
 /**
  * PackageCollection
@@ -47,29 +46,256 @@ public class PackageCollection {
 	private final String dbPathSystem;
 	/** Temp directory containing extracted sync database(s) */
 	private final File dbPathTempSync;
+	/** Whether the extracted sync databases were deleted */
+	private boolean closed;
 	/** Package collection */
 	private final HashMap<String, Package> collection = new HashMap<String, Package>();
+	/** Installed packages as found in the local database */
+	private final HashMap<String, Package> localCollection = new HashMap<String, Package>();
+	/** Packages of each repository as last read from its sync database */
+	private final HashMap<String, List<Package>> syncPackages = new HashMap<String, List<Package>>();
+	/** Repositories of the root; null to use the default configuration's */
+	private final List<String> repos;
+	/** Pool strings are interned in; null for none */
+	private final StringPool pool;
+	/** Group and provision index; null until asked for or after a change */
+	private ProvisionIndex index;
+	/** Keeps large text fields off the heap in low-memory mode; null otherwise */
+	private final StringArena arena = StringArena.isEnabled() ? new StringArena() : null;
 
 	public HashMap<String, Package> getCollection() {
 		return collection;
 	}
 
+	public HashMap<String, Package> getLocalCollection() {
+		return localCollection;
+	}
+
 	/**
 	 * Constructor
 	 * 
-	 * @param repo Repository name e.g. 'community' or '*all*'
+	 * @param repo Repository name e.g. 'community' or '*all*', or a group
+	 *        e.g. '@base'
 	 * @param dbPath Absolute path to directory of repository database files.
+	 *        '*all*' means the repositories of the default configuration.
 	 */
 	public PackageCollection(String repo, String dbPath) throws IOException, FileNotFoundException, ArchiveException, PacmanConfPathException {
+		this(repo, dbPath, null, null);
+	}
+
+	/**
+	 * Constructor
+	 * 
+	 * @param repo Repository name e.g. 'community' or '*all*', or a group
+	 *        e.g. '@base'
+	 * @param conf Configuration of the root to read
+	 * @param pool Pool to intern strings in, e.g. shared by many roots; null
+	 *        for none
+	 */
+	public PackageCollection(String repo, PacmanConfHelper conf, StringPool pool) throws IOException, FileNotFoundException, ArchiveException, PacmanConfPathException {
+		this(repo, conf.getDbPath(), conf.getRepos(), pool);
+	}
+
+	private PackageCollection(String repo, String dbPath, List<String> repos, StringPool pool) throws IOException, FileNotFoundException, ArchiveException, PacmanConfPathException {
 		this.repo = repo;
 		this.dbPathSystem = dbPath;
+		this.repos = repos;
+		this.pool = pool;
 		dbPathTempSync = Utils.createTempDir();
-		if (repo.equals("*all*")) {
-			extractAllDbArchives();
-			populateCollection();
-		} else {
-			extractDbArchive(repo);
-			populateCollectionRepo(repo);
+		boolean loaded = false;
+		try {
+			if (isAll()) {
+				extractAllDbArchives();
+				populateCollection();
+				retainGroup();
+			} else {
+				extractDbArchive(repo);
+				populateCollectionRepo(repo);
+			}
+			loaded = true;
+		} finally {
+			if (!loaded)
+				close();
+		}
+	}
+
+	/**
+	 * Deletes the extracted sync databases.  The packages stay usable, but
+	 * their sync directories are gone and reloadRepos does nothing.  A
+	 * collection should be closed once dropped; if it isn't, the directory
+	 * is only deleted when the JVM exits.
+	 */
+	public synchronized void close() {
+		closed = true;
+		Utils.deleteTempDir(dbPathTempSync);
+	}
+
+	/**
+	 * Directory of a package in the extracted sync database.
+	 * 
+	 * @param p Package of this collection
+	 * @return Directory, or null if the package isn't in any repository
+	 */
+	public File getSyncDir(Package p) {
+		if (p.getRepo().length() == 0)
+			return null;
+		return new File(dbPathTempSync.getAbsolutePath() + "/" + p.getRepo() + "/"
+				+ p.getName() + "-" + p.getRepoVersion());
+	}
+
+	/**
+	 * Directory of a package in the local database.
+	 * 
+	 * @param p Package of this collection
+	 * @return Directory, or null if the package isn't installed
+	 */
+	public File getLocalDir(Package p) {
+		String version = p.getRepo().length() == 0 ? p.getRepoVersion() : p.getLocalVersion();
+		if (version.length() == 0)
+			return null;
+		return new File(dbPathSystem + "/local/" + p.getName() + "-" + version);
+	}
+
+	/**
+	 * Installed packages for which the repository has a newer version.
+	 * 
+	 * @return Packages
+	 */
+	public synchronized ArrayList<Package> getOutdated() {
+		ArrayList<Package> outdated = new ArrayList<Package>();
+		for (Package p : collection.values()) {
+			if (p.isOutdated())
+				outdated.add(p);
+		}
+		return outdated;
+	}
+
+	/**
+	 * Re-reads the packages of repositories whose sync database changed, e.g.
+	 * after a refresh.  Repositories not part of this collection are ignored,
+	 * as are all once it's closed.  Only the changed databases are extracted
+	 * and parsed again; the collection is then rebuilt from all repositories
+	 * in the order of 'pacman.conf', as a fresh load builds it.  So a package
+	 * found in several repositories comes from the same one either way, and
+	 * one dropped from a repository shows the copy it was hiding.
+	 * 
+	 * @param repos Repositories
+	 */
+	public synchronized void reloadRepos(Collection<String> repos) throws IOException, ArchiveException, PacmanConfPathException {
+		if (closed)
+			return;
+		HashSet<String> reloaded = new HashSet<String>();
+		for (String r : repos) {
+			if (isAll() || repo.equals(r))
+				reloaded.add(r);
+		}
+		if (reloaded.isEmpty())
+			return;
+
+		for (String r : reloaded) {
+			FileUtils.deleteDirectory(new File(dbPathTempSync.getAbsolutePath() + "/" + r));
+			extractDbArchive(r);
+			addSyncPackages(r);
+		}
+
+		collection.clear();
+		List<String> order = isAll() ? getRepos() : Collections.singletonList(repo);
+		for (String r : order) {
+			List<Package> l = syncPackages.get(r);
+			if (l == null)
+				continue;
+			for (Package p : l)
+				collection.put(p.getName(), p);
+		}
+		for (Package p : collection.values()) {
+			Package local = localCollection.get(p.getName());
+			if (local != null)
+				mergeLocal(p, local);
+			else
+				clearLocal(p);
+		}
+		// Installed packages dropped from all repositories are still listed
+		if (isAll()) {
+			for (Package local : localCollection.values()) {
+				if (!collection.containsKey(local.getName()))
+					collection.put(local.getName(), local);
+			}
+		}
+		retainGroup();
+		index = null;
+	}
+
+	/**
+	 * Applies changes found in the local database, e.g. by a LocalDb refresh
+	 * after packages were installed, upgraded or removed.
+	 * 
+	 * @param change Change
+	 */
+	public synchronized void applyLocalChange(LocalDb.Change change) {
+		for (Package local : change.getRemoved()) {
+			String name = local.getName();
+			localCollection.remove(name);
+			Package p = collection.get(name);
+			if (p == null)
+				continue;
+			if (p.getRepo().length() == 0)
+				collection.remove(name);
+			else
+				clearLocal(p);
+		}
+		for (Package local : change.getAdded()) {
+			String name = local.getName();
+			localCollection.put(name, local);
+			Package p = collection.get(name);
+			if (p != null && p.getRepo().length() > 0)
+				mergeLocal(p, local);
+			else if (isAll() && (!isGroup(repo) || local.getGroups().contains(repo.substring(1))))
+				collection.put(name, local);
+		}
+		index = null;
+	}
+
+	/**
+	 * Index of the groups and provisions of the packages of this collection.
+	 * Built on first use and again after the collection changed.
+	 * 
+	 * @return Index
+	 */
+	public synchronized ProvisionIndex getIndex() {
+		if (index == null)
+			index = new ProvisionIndex(collection.values());
+		return index;
+	}
+
+	/**
+	 * Checks whether a repository name names a group, e.g. '@base'.
+	 * 
+	 * @param repo Repository name
+	 * @return true if so
+	 */
+	public static boolean isGroup(String repo) {
+		return repo.startsWith("@");
+	}
+
+	/**
+	 * Whether this collection reads all repositories, i.e. is '*all*' or a
+	 * group.
+	 */
+	private boolean isAll() {
+		return repo.equals("*all*") || isGroup(repo);
+	}
+
+	/**
+	 * Drops packages not in the group of this collection, if it's a group.
+	 */
+	private void retainGroup() {
+		if (!isGroup(repo))
+			return;
+		String group = repo.substring(1);
+		Iterator<Package> it = collection.values().iterator();
+		while (it.hasNext()) {
+			if (!it.next().getGroups().contains(group))
+				it.remove();
 		}
 	}
 
@@ -77,12 +303,21 @@ public class PackageCollection {
 	 * Builds package collection for all repositories.
 	 */
 	private void populateCollection() throws FileNotFoundException, IOException, PacmanConfPathException {
-		ArrayList<String> repos = PacmanConfHelper.get().getRepos();
+		List<String> repos = getRepos();
 		for (int i=0; i<repos.size(); i++)
 			addSyncPackages(repos.get(i));
 		addLocalPackages(false);
 	}
 
+	/**
+	 * Repositories of the root, in the order of 'pacman.conf'.
+	 * 
+	 * @return Repositories
+	 */
+	private List<String> getRepos() throws FileNotFoundException, IOException, PacmanConfPathException {
+		return repos != null ? repos : PacmanConfHelper.get().getRepos();
+	}
+
 	/**
 	 * Builds package collection.
 	 * @param repo The repository
@@ -97,15 +332,22 @@ public class PackageCollection {
 	 * @param dbFilePath Absolute path to .db file 
 	 */
 	private void addSyncPackages(final String repo) throws FileNotFoundException, IOException {
+		FlightEvents.Span span = FlightEvents.begin(FlightEvents.Kind.PARSE);
+		long[] totals = span.isRecording() ? new long[2] : null;
+		final ArrayList<Package> packages = new ArrayList<Package>();
 		traversPkgDir(new File(dbPathTempSync.getAbsolutePath() + "/" + repo),
 				new PackageAction() {
 
 					@Override
 					public void action(Package pkg) {
 						pkg.setRepo(repo);
+						packages.add(pkg);
 						collection.put(pkg.getName(), pkg);
 					}
-				});
+				}, totals);
+		syncPackages.put(repo, packages);
+		if (totals != null)
+			span.commit(repo, totals[0], totals[1]);
 	}
 
 	/**
@@ -114,20 +356,49 @@ public class PackageCollection {
 	 * @param onlyMatches Search only for those packages already in collection
 	 */
 	private void addLocalPackages(final boolean onlyMatches) throws FileNotFoundException, IOException {
+		FlightEvents.Span span = FlightEvents.begin(FlightEvents.Kind.MERGE);
+		long[] totals = span.isRecording() ? new long[2] : null;
+		final int[] merged = new int[1];
 		traversPkgDir(new File(dbPathSystem + "/local/"), new PackageAction() {
 
 			@Override
 			public void action(Package pkg) {
+				localCollection.put(pkg.getName(), pkg);
 				if (collection.containsKey(pkg.getName())) {
-					Package p = collection.get(pkg.getName());
-					p.setLocalVersion(pkg.getRepoVersion());
+					mergeLocal(collection.get(pkg.getName()), pkg);
+					merged[0]++;
 				} else {
 					if (!onlyMatches) {
 						collection.put(pkg.getName(), pkg);
 					}
 				}
 			}
-		});
+		}, totals);
+		if (totals != null)
+			span.commit(totals[0], merged[0], totals[1], collection.size());
+	}
+
+	/**
+	 * Copies what the local database knows about a package to its sync entry.
+	 * 
+	 * @param p Package from a sync database
+	 * @param local Same package from the local database
+	 */
+	private static void mergeLocal(Package p, Package local) {
+		p.setLocalVersion(local.getRepoVersion());
+		p.setInstallDate(local.getInstallDate());
+		p.setReason(local.getReason());
+	}
+
+	/**
+	 * Forgets what the local database knew about a package's sync entry.
+	 * 
+	 * @param p Package from a sync database
+	 */
+	private static void clearLocal(Package p) {
+		p.setLocalVersion("");
+		p.setInstallDate(0);
+		p.setReason(0);
 	}
 
 	/**
@@ -152,7 +423,7 @@ public class PackageCollection {
 			if (dir.exists())
 				return;
 			dir.mkdir();
-			Utils.extractTarGz(dbFiles[i].getAbsolutePath(), dir);
+			Utils.extractTar(dbFiles[i].getAbsolutePath(), dir);
 		}
 	}
 	
@@ -169,7 +440,7 @@ public class PackageCollection {
 		if (dir.exists())
 			return;
 		dir.mkdir();
-		Utils.extractTarGz(dbFile.getAbsolutePath(), dir);
+		Utils.extractTar(dbFile.getAbsolutePath(), dir);
 	}
 
 	/**
@@ -177,13 +448,22 @@ public class PackageCollection {
 	 * 
 	 * @param dir Package directory
 	 * @param packageAction Action to perform on packages
+	 * @param totals Where to add the number of packages and the bytes of
+	 *               their 'desc' files; null for nowhere
 	 */
-	private void traversPkgDir(File dir, PackageAction packageAction) throws FileNotFoundException, IOException {
+	private void traversPkgDir(File dir, PackageAction packageAction, long[] totals) throws FileNotFoundException, IOException {
 		String[] fileList = dir.list();
 		for (int i = 0; i < fileList.length; i++) {
+			Utils.checkInterrupted();
 			File f = new File(dir.getAbsolutePath() + "/" + fileList[i]);
 			if (f.isDirectory()) {
-				Package p = readPackage(f);
+				Package p = readPackage(f, pool);
+				if (totals != null) {
+					totals[0]++;
+					totals[1] += new File(f, "desc").length();
+				}
+				if (arena != null)
+					p.moveTo(arena);
 				packageAction.action(p);
 			}
 		}
@@ -195,48 +475,24 @@ public class PackageCollection {
 	 * @param pkgDir Package directory
 	 * @return Package
 	 */
-	private Package readPackage(File pkgDir) throws FileNotFoundException, IOException {
-		File f = new File(pkgDir.getAbsolutePath() + "/desc");
-		FileInputStream fis = new FileInputStream(f);
-		DataInputStream dis = new DataInputStream(fis);
-		BufferedReader br = new BufferedReader(new InputStreamReader(dis));
-		String line = null;
+	static Package readPackage(File pkgDir) throws FileNotFoundException, IOException {
+		return readPackage(pkgDir, null);
+	}
+
+	/**
+	 * Reads package information from a package directory.
+	 * 
+	 * @param pkgDir Package directory
+	 * @param pool Pool to intern strings in; null for none
+	 * @return Package
+	 */
+	static Package readPackage(File pkgDir, StringPool pool) throws FileNotFoundException, IOException {
 		Package pkg = new Package();
-		try {
-			boolean name = false;
-			boolean desc = false;
-			boolean version = false;
-			while ((line = br.readLine()) != null) {
-				line = StringUtils.normalizeSpace(line);
-				if (line.equals("%NAME%")) {
-					name = name ? false : true;
-				} else if (line.equals("%VERSION%")) {
-					version = version ? false : true;
-				} else if (line.equals("%DESC%")) {
-					desc = desc ? false : true;
-				} else if (name) {
-					pkg.setName(line);
-					name = false;
-				} else if (version) {
-					pkg.setRepoVersion(line);
-					version = false;
-				} else if (desc) {
-					pkg.setDescription(line);
-					desc = false;
-				}
-			}
-		} catch (IOException ex) {
-			Logger.getLogger(PackageCollection.class.getName()).log(Level.SEVERE, null, ex);
-		} finally {
-			try {
-				br.close();
-				dis.close();
-				fis.close();
-			} catch (IOException ioex) {
-				throw new IOException("Error closing stream or reader: "
-						+ ioex.getMessage());
-			}
-		}
+		DescParser.parse(new File(pkgDir.getAbsolutePath() + "/desc"), pkg, pool);
+		// Older local databases keep dependencies in a file of their own
+		File depends = new File(pkgDir.getAbsolutePath() + "/depends");
+		if (depends.exists())
+			DescParser.parse(depends, pkg, pool);
 		return pkg;
 	}
 
@@ -256,16 +512,183 @@ public class PackageCollection {
 	/**
 	 * Minimal representation of a package
 	 */
-	public class Package {
+	public static class Package {
 
 		private String name = "";
 		private String repo = "";
 		private String localVersion = "";
 		private String repoVersion = "";
 		private String description = "";
+		/** Installed size in bytes */
+		private long installedSize;
+		/** Installation time in seconds since the epoch; 0 if not installed */
+		private long installDate;
+		/** Install reason; 0 explicitly installed, 1 installed as a dependency */
+		private int reason;
+		private ArrayList<String> groups = new ArrayList<String>();
+		private ArrayList<String> depends = new ArrayList<String>();
+		/** Virtual packages provided, e.g. 'sh' or 'libfoo.so=1-64' */
+		private ArrayList<String> provides = new ArrayList<String>();
+		/** Packages this one can't be installed with, e.g. 'foo<2' */
+		private ArrayList<String> conflicts = new ArrayList<String>();
+		/** Packages this one supersedes on upgrade */
+		private ArrayList<String> replaces = new ArrayList<String>();
+		/** Package file name, e.g. 'glibc-2.14-1-x86_64.pkg.tar.xz' */
+		private String fileName = "";
+		/** Size of the package file in bytes */
+		private long compressedSize;
+		/** MD5 checksum of the package file, in hex; empty if unknown */
+		private String md5sum = "";
+		/** SHA-256 checksum of the package file, in hex; empty if unknown */
+		private String sha256sum = "";
+		/**
+		 * Description, file name, MD5 and SHA-256 in low-memory mode, when
+		 * the fields above are null; null otherwise
+		 */
+		private StringArena.Ref text;
+
+		public String getFileName() {
+			return text == null ? fileName : text.get(1);
+		}
+
+		public void setFileName(String fileName) {
+			this.fileName = fileName;
+		}
+
+		public long getCompressedSize() {
+			return compressedSize;
+		}
+
+		public void setCompressedSize(long compressedSize) {
+			this.compressedSize = compressedSize;
+		}
+
+		public String getMd5sum() {
+			return text == null ? md5sum : text.get(2);
+		}
+
+		public void setMd5sum(String md5sum) {
+			this.md5sum = md5sum;
+		}
+
+		public String getSha256sum() {
+			return text == null ? sha256sum : text.get(3);
+		}
+
+		public void setSha256sum(String sha256sum) {
+			this.sha256sum = sha256sum;
+		}
+
+		/**
+		 * Whether the package is installed and the repository has a newer
+		 * version.
+		 * 
+		 * @return true if so
+		 */
+		public boolean isOutdated() {
+			return localVersion.length() > 0 && repoVersion.length() > 0
+					&& Version.compare(localVersion, repoVersion) < 0;
+		}
+
+		public ArrayList<String> getDepends() {
+			return depends;
+		}
+
+		public ArrayList<String> getGroups() {
+			return groups;
+		}
+
+		public ArrayList<String> getProvides() {
+			return provides;
+		}
+
+		public ArrayList<String> getConflicts() {
+			return conflicts;
+		}
+
+		public ArrayList<String> getReplaces() {
+			return replaces;
+		}
+
+		public long getInstallDate() {
+			return installDate;
+		}
+
+		public void setInstallDate(long installDate) {
+			this.installDate = installDate;
+		}
+
+		public long getInstalledSize() {
+			return installedSize;
+		}
+
+		public void setInstalledSize(long installedSize) {
+			this.installedSize = installedSize;
+		}
+
+		public int getReason() {
+			return reason;
+		}
+
+		public void setReason(int reason) {
+			this.reason = reason;
+		}
 
 		public String getDescription() {
-			return description;
+			return text == null ? description : text.get(0);
+		}
+
+		/**
+		 * Description as kept, e.g. for a table cell: a String, or a
+		 * StringArena.Ref in low-memory mode which is decoded only when
+		 * shown.
+		 */
+		public CharSequence getDescriptionText() {
+			return text == null ? description : text;
+		}
+
+		/**
+		 * Moves the larger text fields into an arena, keeping a single
+		 * reference on the heap.  They can't be set any more.
+		 * 
+		 * @param arena Arena
+		 */
+		public void moveTo(StringArena arena) {
+			text = arena.add(description, fileName, md5sum, sha256sum);
+			description = null;
+			fileName = null;
+			md5sum = null;
+			sha256sum = null;
+		}
+
+		/**
+		 * Copies this package, e.g. to hand it to another thread while this
+		 * one may still change as local changes are applied.  The lists and
+		 * the arena reference are shared; they don't change once loaded.
+		 * 
+		 * @return Copy
+		 */
+		public Package copy() {
+			Package p = new Package();
+			p.name = name;
+			p.repo = repo;
+			p.localVersion = localVersion;
+			p.repoVersion = repoVersion;
+			p.description = description;
+			p.installedSize = installedSize;
+			p.installDate = installDate;
+			p.reason = reason;
+			p.groups = groups;
+			p.depends = depends;
+			p.provides = provides;
+			p.conflicts = conflicts;
+			p.replaces = replaces;
+			p.fileName = fileName;
+			p.compressedSize = compressedSize;
+			p.md5sum = md5sum;
+			p.sha256sum = sha256sum;
+			p.text = text;
+			return p;
 		}
 
 		public void setDescription(String description) {
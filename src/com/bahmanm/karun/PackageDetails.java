@@ -0,0 +1,227 @@
+/*
+ * Karun, a package manager for ArchLinux based on 'pacman'.
+ * Copyright (C) 2011  Bahman Movaqar
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, 
+ * USA.
+ */
+package com.bahmanm.karun;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.Charset;
+import java.text.DateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * PackageDetails
+ *
+ * Everything the databases know about a package: all sections of its 'desc'
+ * (and 'depends', for older databases) plus, if it's installed, its file
+ * list.  Read on demand for the details pane.
+ *
+ * @author Bahman Movaqar (Bahman AT BahmanM.com)
+ */
+public class PackageDetails {
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	/** Labels of well-known sections, in display order */
+	private static final String[][] LABELS = {
+		{"%NAME%", "Name"}, {"%VERSION%", "Version"}, {"%DESC%", "Description"},
+		{"%URL%", "URL"}, {"%LICENSE%", "Licenses"}, {"%ARCH%", "Architecture"},
+		{"%GROUPS%", "Groups"}, {"%PROVIDES%", "Provides"}, {"%DEPENDS%", "Depends On"},
+		{"%OPTDEPENDS%", "Optional Deps"}, {"%CONFLICTS%", "Conflicts With"},
+		{"%REPLACES%", "Replaces"}, {"%CSIZE%", "Download Size"},
+		{"%ISIZE%", "Installed Size"}, {"%SIZE%", "Installed Size"},
+		{"%PACKAGER%", "Packager"}, {"%BUILDDATE%", "Build Date"},
+		{"%INSTALLDATE%", "Install Date"}, {"%REASON%", "Install Reason"}};
+	/** Sections by header, in file order */
+	private final LinkedHashMap<String, List<String>> sections = new LinkedHashMap<String, List<String>>();
+	/** Installed files; null if not installed */
+	private List<String> files;
+
+	/**
+	 * Reads the details of a package.
+	 *
+	 * @param syncDir Package directory in an extracted sync database; null if
+	 *        not in any repository
+	 * @param localDir Package directory in the local database; null if not
+	 *        installed
+	 * @return Details
+	 */
+	public static PackageDetails read(File syncDir, File localDir) throws IOException {
+		PackageDetails d = new PackageDetails();
+		if (syncDir != null)
+			d.readSections(syncDir);
+		if (localDir != null) {
+			d.readSections(localDir);
+			d.files = readFiles(localDir);
+		}
+		return d;
+	}
+
+	/**
+	 * Reads the files installed by a package.
+	 *
+	 * @param localDir Package directory in the local database
+	 * @return Paths relative to the root, directories ending in '/'; null if
+	 *         the database has no file list for it
+	 */
+	public static List<String> readFiles(File localDir) throws IOException {
+		File filesFile = new File(localDir, "files");
+		if (!filesFile.exists())
+			return null;
+		List<String> f = readFile(filesFile).get("%FILES%");
+		return f == null ? Collections.<String>emptyList() : f;
+	}
+
+	/**
+	 * Reads 'desc' and 'depends' of a package directory; sections already
+	 * read are replaced, so local data wins over sync data.
+	 *
+	 * @param dir Package directory
+	 */
+	private void readSections(File dir) throws IOException {
+		sections.putAll(readFile(new File(dir, "desc")));
+		File depends = new File(dir, "depends");
+		if (depends.exists())
+			sections.putAll(readFile(depends));
+	}
+
+	/**
+	 * Reads the sections of a database file.
+	 *
+	 * @param f File
+	 * @return Sections by header
+	 */
+	private static LinkedHashMap<String, List<String>> readFile(File f) throws IOException {
+		LinkedHashMap<String, List<String>> result = new LinkedHashMap<String, List<String>>();
+		BufferedReader br = new BufferedReader(new InputStreamReader(new FileInputStream(f), UTF8));
+		try {
+			List<String> values = null;
+			String line;
+			while ((line = br.readLine()) != null) {
+				if (line.length() == 0) {
+					values = null;
+				} else if (values == null) {
+					if (line.startsWith("%") && line.endsWith("%")) {
+						values = new ArrayList<String>();
+						result.put(line, values);
+					}
+				} else {
+					values.add(line);
+				}
+			}
+		} finally {
+			br.close();
+		}
+		return result;
+	}
+
+	/**
+	 * Values of a section.
+	 *
+	 * @param header Section header, e.g. '%DEPENDS%'
+	 * @return Values; empty if there's no such section
+	 */
+	public List<String> get(String header) {
+		List<String> l = sections.get(header);
+		return l == null ? Collections.<String>emptyList() : l;
+	}
+
+	public List<String> getDepends() {
+		return get("%DEPENDS%");
+	}
+
+	/**
+	 * Installed files.
+	 *
+	 * @return Files; null if the package isn't installed
+	 */
+	public List<String> getFiles() {
+		return files;
+	}
+
+	/**
+	 * Formats the details for display, well-known sections first, similar to
+	 * 'pacman -Qi'.
+	 *
+	 * @return Text
+	 */
+	public String format() {
+		StringBuilder sb = new StringBuilder();
+		LinkedHashMap<String, List<String>> rest = new LinkedHashMap<String, List<String>>(sections);
+		for (int i = 0; i < LABELS.length; i++) {
+			List<String> values = rest.remove(LABELS[i][0]);
+			if (values != null)
+				appendSection(sb, LABELS[i][1], format(LABELS[i][0], values));
+		}
+		for (Map.Entry<String, List<String>> e : rest.entrySet()) {
+			String h = e.getKey();
+			appendSection(sb, h.substring(1, h.length() - 1), e.getValue());
+		}
+		if (files != null) {
+			sb.append('\n').append("Files (").append(files.size()).append("):\n");
+			for (String f : files)
+				sb.append("  /").append(f).append('\n');
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Makes sizes, dates and install reasons readable.
+	 *
+	 * @param header Section header
+	 * @param values Values
+	 * @return Formatted values
+	 */
+	private static List<String> format(String header, List<String> values) {
+		if (values.size() != 1)
+			return values;
+		String v = values.get(0);
+		try {
+			if (header.equals("%CSIZE%") || header.equals("%ISIZE%") || header.equals("%SIZE%"))
+				return Collections.singletonList(Utils.formatSize(Long.parseLong(v)));
+			if (header.equals("%BUILDDATE%") || header.equals("%INSTALLDATE%"))
+				return Collections.singletonList(DateFormat.getDateTimeInstance().format(
+						new Date(Long.parseLong(v) * 1000)));
+		} catch (NumberFormatException ex) {
+			return values;
+		}
+		if (header.equals("%REASON%"))
+			return Collections.singletonList(v.equals("1") ? "Installed as a dependency"
+					: "Explicitly installed");
+		return values;
+	}
+
+	private static void appendSection(StringBuilder sb, String label, List<String> values) {
+		sb.append(label).append(':');
+		if (values.size() == 1) {
+			sb.append(' ').append(values.get(0)).append('\n');
+		} else {
+			sb.append('\n');
+			for (String v : values)
+				sb.append("  ").append(v).append('\n');
+		}
+	}
+}
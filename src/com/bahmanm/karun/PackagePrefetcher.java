@@ -0,0 +1,319 @@
+/*
+ * Karun, a package manager for ArchLinux based on 'pacman'.
+ * Copyright (C) 2011  Bahman Movaqar
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, 
+ * USA.
+ */
+package com.bahmanm.karun;
+
+import com.bahmanm.karun.PackageCollection.Package;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * PackagePrefetcher
+ *
+ * Downloads package files into the cache directory ahead of an upgrade so
+ * 'pacman -Su' finds them there.
+ *
+ * A bounded number of packages are downloaded at once, all sharing one rate
+ * limiter.  Data goes to 'file.part' first; an interrupted download is
+ * resumed from where it stopped with an HTTP Range request.  A finished file
+ * is checked against the size and checksum (SHA-256, or MD5 for older
+ * databases) from the sync database before it's renamed into place.  If a
+ * resumed file fails the check, it's downloaded again as a whole from the
+ * same server, since the part kept from before may be what's wrong.
+ *
+ * @author Bahman Movaqar (Bahman AT BahmanM.com)
+ */
+public class PackagePrefetcher {
+
+	/** Default number of packages downloaded at once */
+	public static final int DEFAULT_PARALLELISM = 4;
+	/** Default connect and read timeout, in milliseconds */
+	public static final int DEFAULT_TIMEOUT = 10000;
+	/** Reply to a Range starting at or past the end of the file */
+	private static final int HTTP_RANGE_NOT_SATISFIABLE = 416;
+	private final PacmanConfHelper conf;
+	/** Where packages go */
+	private final File cacheDir;
+	/** Number of packages downloaded at once */
+	private final int parallelism;
+	/** Connect and read timeout, in milliseconds */
+	private final int timeout;
+	/** Caps the bandwidth of all downloads together */
+	private final RateLimiter rateLimiter;
+
+	/**
+	 * Constructor
+	 *
+	 * @param conf Configuration, for servers
+	 * @param cacheDir Where packages go
+	 * @param parallelism Number of packages downloaded at once
+	 * @param timeout Connect and read timeout, in milliseconds
+	 * @param rateLimiter Caps the bandwidth of all downloads together
+	 */
+	public PackagePrefetcher(PacmanConfHelper conf, String cacheDir, int parallelism,
+			int timeout, RateLimiter rateLimiter) {
+		this.conf = conf;
+		this.cacheDir = new File(cacheDir);
+		this.parallelism = Math.max(1, parallelism);
+		this.timeout = timeout;
+		this.rateLimiter = rateLimiter;
+	}
+
+	/**
+	 * Downloads package files which aren't in the cache yet.
+	 *
+	 * @param packages Packages, as read from sync databases
+	 * @return Outcome per package, in the same order
+	 */
+	public List<Result> prefetch(List<Package> packages) throws InterruptedException {
+		ArrayList<Callable<Result>> tasks = new ArrayList<Callable<Result>>();
+		for (final Package p : packages) {
+			tasks.add(new Callable<Result>() {
+
+				@Override
+				public Result call() throws InterruptedException {
+					return prefetch(p);
+				}
+			});
+		}
+		ArrayList<Result> results = new ArrayList<Result>();
+		if (tasks.isEmpty())
+			return results;
+		ExecutorService executor = Executors.newFixedThreadPool(
+				Math.min(parallelism, tasks.size()),
+				Utils.daemonThreadFactory("karun-prefetch"));
+		try {
+			List<Future<Result>> futures = executor.invokeAll(tasks);
+			for (int i = 0; i < futures.size(); i++) {
+				try {
+					results.add(futures.get(i).get());
+				} catch (ExecutionException ex) {
+					results.add(new Result(packages.get(i), Status.FAILED,
+							String.valueOf(ex.getCause())));
+				}
+			}
+		} finally {
+			executor.shutdownNow();
+		}
+		return results;
+	}
+
+	/**
+	 * Downloads one package file, trying the servers of its repository in
+	 * order.
+	 *
+	 * @param pkg Package
+	 * @return Result
+	 */
+	private Result prefetch(Package pkg) throws InterruptedException {
+		if (pkg.getFileName().length() == 0)
+			return new Result(pkg, Status.FAILED, "file name unknown");
+		File target = new File(cacheDir, pkg.getFileName());
+		File part = new File(cacheDir, pkg.getFileName() + ".part");
+		try {
+			if (target.exists() && verify(target, pkg) == null)
+				return new Result(pkg, Status.CACHED, null);
+		} catch (IOException ex) {
+			return new Result(pkg, Status.FAILED, ex.toString());
+		}
+
+		String error = "no servers configured";
+		for (String server : conf.getServers(pkg.getRepo())) {
+			String url = conf.expandServer(server, pkg.getRepo()) + "/" + pkg.getFileName();
+			try {
+				long resumed = download(url, part, pkg.getCompressedSize());
+				error = verify(part, pkg);
+				if (error != null && resumed > 0) {
+					part.delete();
+					download(url, part, pkg.getCompressedSize());
+					error = verify(part, pkg);
+				}
+				if (error != null) {
+					// Corrupt or stale, so don't resume from it
+					part.delete();
+					continue;
+				}
+				if (!part.renameTo(target))
+					return new Result(pkg, Status.FAILED, "can't rename " + part);
+				return new Result(pkg, Status.DOWNLOADED, null);
+			} catch (IOException ex) {
+				Logger.getLogger(PackagePrefetcher.class.getName()).log(Level.INFO,
+						"Failed to download {0}: {1}", new Object[]{url, ex});
+				error = ex.toString();
+			}
+		}
+		return new Result(pkg, Status.FAILED, error);
+	}
+
+	/**
+	 * Downloads a file, resuming a partial download if there's one.
+	 *
+	 * @param url URL
+	 * @param part Partial file
+	 * @param size Expected size; 0 if unknown
+	 * @return Bytes kept from the partial file; 0 if all came from the server
+	 */
+	private long download(String url, File part, long size) throws IOException, InterruptedException {
+		long offset = part.length();
+		if (size > 0 && offset >= size)
+			return offset; // complete but not yet verified
+		HttpURLConnection conn = Utils.openHttpConnection(url, timeout);
+		try {
+			if (offset > 0)
+				conn.setRequestProperty("Range", "bytes=" + offset + "-");
+			int code = conn.getResponseCode();
+			boolean append;
+			if (code == HttpURLConnection.HTTP_PARTIAL && offset > 0)
+				append = true;
+			else if (code == HttpURLConnection.HTTP_OK)
+				append = false; // the server ignored the range
+			else if (code == HTTP_RANGE_NOT_SATISFIABLE && offset > 0)
+				return offset; // nothing past the end: complete, size unknown
+			else
+				throw new IOException("HTTP " + code + " for " + url);
+
+			InputStream in = conn.getInputStream();
+			OutputStream out = new FileOutputStream(part, append);
+			try {
+				byte[] buf = new byte[32 * 1024];
+				int n;
+				while ((n = in.read(buf)) >= 0) {
+					out.write(buf, 0, n);
+					rateLimiter.acquire(n);
+				}
+			} finally {
+				out.close();
+				in.close();
+			}
+			return append ? offset : 0;
+		} finally {
+			conn.disconnect();
+		}
+	}
+
+	/**
+	 * Checks a file against the size and checksum in the sync database.
+	 *
+	 * @param f File
+	 * @param pkg Package
+	 * @return What's wrong, or null if the file is fine
+	 */
+	private static String verify(File f, Package pkg) throws IOException {
+		if (pkg.getCompressedSize() > 0 && f.length() != pkg.getCompressedSize())
+			return "size is " + f.length() + " rather than " + pkg.getCompressedSize();
+		String algorithm;
+		String expected;
+		if (pkg.getSha256sum().length() > 0) {
+			algorithm = "SHA-256";
+			expected = pkg.getSha256sum();
+		} else if (pkg.getMd5sum().length() > 0) {
+			algorithm = "MD5";
+			expected = pkg.getMd5sum();
+		} else {
+			return null;
+		}
+		String actual = checksum(f, algorithm);
+		return actual.equalsIgnoreCase(expected) ? null : algorithm + " checksum mismatch";
+	}
+
+	/**
+	 * Computes the checksum of a file.
+	 *
+	 * @param f File
+	 * @param algorithm Digest algorithm, e.g. 'SHA-256'
+	 * @return Checksum in hex
+	 */
+	private static String checksum(File f, String algorithm) throws IOException {
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance(algorithm);
+		} catch (NoSuchAlgorithmException ex) {
+			throw new IOException(ex.toString());
+		}
+		InputStream in = new FileInputStream(f);
+		try {
+			byte[] buf = new byte[64 * 1024];
+			int n;
+			while ((n = in.read(buf)) >= 0)
+				digest.update(buf, 0, n);
+		} finally {
+			in.close();
+		}
+		byte[] d = digest.digest();
+		StringBuilder sb = new StringBuilder(d.length * 2);
+		for (int i = 0; i < d.length; i++) {
+			sb.append(Character.forDigit((d[i] >> 4) & 0xf, 16));
+			sb.append(Character.forDigit(d[i] & 0xf, 16));
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * What happened to a package
+	 */
+	public enum Status {
+
+		DOWNLOADED, CACHED, FAILED
+	}
+
+	/**
+	 * Outcome of prefetching a package
+	 */
+	public static class Result {
+
+		private final Package pkg;
+		private final Status status;
+		/** Why it failed; null if it didn't */
+		private final String error;
+
+		Result(Package pkg, Status status, String error) {
+			this.pkg = pkg;
+			this.status = status;
+			this.error = error;
+		}
+
+		public Package getPackage() {
+			return pkg;
+		}
+
+		public Status getStatus() {
+			return status;
+		}
+
+		public String getError() {
+			return error;
+		}
+	}
+}
@@ -0,0 +1,609 @@
+/*
+ * Karun, a package manager for ArchLinux based on 'pacman'.
+ * Copyright (C) 2011  Bahman Movaqar
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, 
+ * USA.
+ */
+package com.bahmanm.karun;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * PackageQuery
+ *
+ * Filter expression over a package list, e.g.
+ * 'repo:core installed outdated desc:~ssl size>10M' or
+ * '(group:base OR group:base-devel) NOT explicit'.
+ *
+ * Terms next to each other must all match; 'OR' (or '|') and 'NOT' (or a
+ * leading '-' or '!') combine them, and parentheses group.  A term is one of
+ * <pre>
+ *   word                name or description contains 'word'
+ *   name:x  name=x      name contains 'x', or is 'x'
+ *   desc:x  desc:~x     description contains 'x'
+ *   repo:x              in repository 'x'; 'repo:local' for packages in none
+ *   group:x             in group 'x'
+ *   depends:x           depends on 'x'
+ *   provides:x          is or provides 'x'
+ *   installed outdated explicit
+ *                       flags; also as 'installed:no' and the like
+ *   size&gt;10M download&lt;=500K
+ *                       installed or download size compared to a size
+ *                       with an optional unit K, M or G
+ * </pre>
+ * Words and values may be quoted, e.g. desc:"open source".  Matching text
+ * ignores case.
+ *
+ * A query compiles to a tree evaluated bottom up into bit sets of rows of a
+ * SearchIndex: flags, repositories and groups are looked up there, the
+ * rest are passes over its arrays.  The cheaper side of an 'and' goes first
+ * and the other side only looks at the rows it left, so text is mostly
+ * searched in a few rows rather than in all of them.
+ *
+ * @author Bahman Movaqar (Bahman AT BahmanM.com)
+ */
+public class PackageQuery {
+
+	/** Text of the query */
+	private final String text;
+	/** Root of the expression */
+	private final Node root;
+	/** Text terms if the query is nothing but text terms; null otherwise */
+	private final String[] terms;
+
+	/**
+	 * Constructor
+	 *
+	 * @param text Text of the query
+	 * @param root Root of the expression
+	 * @param terms Plain terms, if the query is nothing else
+	 */
+	private PackageQuery(String text, Node root, String[] terms) {
+		this.text = text;
+		this.root = root;
+		this.terms = terms;
+	}
+
+	/**
+	 * Compiles a query.
+	 *
+	 * @param query Query
+	 * @return Compiled query
+	 * @throws IllegalArgumentException if the query is malformed
+	 */
+	public static PackageQuery parse(String query) {
+		Parser p = new Parser(tokenize(query));
+		if (p.tokens.isEmpty())
+			return new PackageQuery(query, null, new String[0]);
+		Node root = p.parseOr();
+		if (p.pos < p.tokens.size())
+			throw new IllegalArgumentException("Unexpected '" + p.tokens.get(p.pos) + "'");
+		return new PackageQuery(query, root, p.plain ? p.words.toArray(new String[p.words.size()]) : null);
+	}
+
+	/**
+	 * Checks whether the query is just words, as understood by
+	 * SearchIndex.search.
+	 *
+	 * @return true if so
+	 */
+	public boolean isPlain() {
+		return terms != null;
+	}
+
+	/**
+	 * Lower-cased words of a plain query.
+	 *
+	 * @return Words; null if the query isn't plain
+	 */
+	public String[] getTerms() {
+		return terms;
+	}
+
+	/**
+	 * Evaluates the query.
+	 *
+	 * @param index Index of the package list
+	 * @return Matching rows in ascending order; null if the current thread
+	 *         was interrupted
+	 */
+	public int[] evaluate(SearchIndex index) {
+		if (root == null)
+			return rows(all(index));
+		FlightEvents.Span span = FlightEvents.begin(FlightEvents.Kind.SEARCH);
+		BitSet b = root.evaluate(index, null);
+		if (b == null)
+			return null;
+		int[] rows = rows(b);
+		span.commit(text, index.size(), rows.length);
+		return rows;
+	}
+
+	private static int[] rows(BitSet b) {
+		int[] rows = new int[b.cardinality()];
+		int n = 0;
+		for (int i = b.nextSetBit(0); i >= 0; i = b.nextSetBit(i + 1))
+			rows[n++] = i;
+		return rows;
+	}
+
+	private static BitSet all(SearchIndex index) {
+		BitSet b = new BitSet(index.size());
+		b.set(0, index.size());
+		return b;
+	}
+
+	/**
+	 * Parses a size, e.g. '10M' or '1.5G'.
+	 *
+	 * @param s Size
+	 * @return Bytes
+	 * @throws IllegalArgumentException if malformed
+	 */
+	static long parseSize(String s) {
+		String t = s.toUpperCase();
+		if (t.endsWith("IB"))
+			t = t.substring(0, t.length() - 2);
+		else if (t.endsWith("B"))
+			t = t.substring(0, t.length() - 1);
+		long unit = 1;
+		if (t.endsWith("K"))
+			unit = 1024;
+		else if (t.endsWith("M"))
+			unit = 1024 * 1024;
+		else if (t.endsWith("G"))
+			unit = 1024 * 1024 * 1024;
+		if (unit > 1)
+			t = t.substring(0, t.length() - 1);
+		try {
+			return (long) (Double.parseDouble(t) * unit);
+		} catch (NumberFormatException ex) {
+			throw new IllegalArgumentException("Not a size: '" + s + "'");
+		}
+	}
+
+	/**
+	 * Splits a query into words, quoted strings and parentheses.  Quotes are
+	 * dropped; a token which was quoted, wholly or in part, is marked with a
+	 * leading '\0' so it's never taken for an operator or a flag.
+	 */
+	private static List<String> tokenize(String query) {
+		ArrayList<String> tokens = new ArrayList<String>();
+		StringBuilder sb = new StringBuilder();
+		boolean quoted = false;
+		boolean inQuotes = false;
+		for (int i = 0; i <= query.length(); i++) {
+			char c = i < query.length() ? query.charAt(i) : ' ';
+			if (inQuotes) {
+				if (c == '"' || i == query.length())
+					inQuotes = false;
+				else
+					sb.append(c);
+			} else if (c == '"') {
+				inQuotes = true;
+				quoted = true;
+			} else if (Character.isWhitespace(c) || c == '(' || c == ')') {
+				if (sb.length() > 0 || quoted)
+					tokens.add(quoted ? "\0" + sb : sb.toString());
+				sb.setLength(0);
+				quoted = false;
+				if (c != ' ' && !Character.isWhitespace(c))
+					tokens.add(String.valueOf(c));
+			} else {
+				sb.append(c);
+			}
+		}
+		return tokens;
+	}
+
+	/**
+	 * Recursive descent parser
+	 */
+	private static class Parser {
+
+		final List<String> tokens;
+		int pos;
+		/** Whether only words were seen so far */
+		boolean plain = true;
+		/** Words seen */
+		final ArrayList<String> words = new ArrayList<String>();
+
+		Parser(List<String> tokens) {
+			this.tokens = tokens;
+		}
+
+		String peek() {
+			return pos < tokens.size() ? tokens.get(pos) : null;
+		}
+
+		Node parseOr() {
+			Node left = parseAnd();
+			while ("OR".equals(peek()) || "|".equals(peek())) {
+				pos++;
+				plain = false;
+				left = new Or(left, parseAnd());
+			}
+			return left;
+		}
+
+		Node parseAnd() {
+			Node left = parseUnary();
+			for (String t = peek(); t != null && !t.equals(")") && !t.equals("OR")
+					&& !t.equals("|"); t = peek()) {
+				if (t.equals("AND") || t.equals("&")) {
+					pos++;
+					plain = false;
+				}
+				left = new And(left, parseUnary());
+			}
+			return left;
+		}
+
+		Node parseUnary() {
+			String t = peek();
+			if (t == null)
+				throw new IllegalArgumentException("Query ends too early");
+			if (t.equals("NOT") || t.equals("!") || t.equals("-")) {
+				pos++;
+				plain = false;
+				return new Not(parseUnary());
+			}
+			if ((t.startsWith("-") || t.startsWith("!")) && t.length() > 1) {
+				tokens.set(pos, t.substring(1));
+				plain = false;
+				return new Not(parseUnary());
+			}
+			if (t.equals("(")) {
+				pos++;
+				plain = false;
+				Node n = parseOr();
+				if (!")".equals(peek()))
+					throw new IllegalArgumentException("Missing ')'");
+				pos++;
+				return n;
+			}
+			if (t.equals(")"))
+				throw new IllegalArgumentException("Unexpected ')'");
+			pos++;
+			return term(t);
+		}
+
+		/**
+		 * Compiles a single term.
+		 */
+		Node term(String t) {
+			if (t.startsWith("\0"))
+				return word(t.substring(1));
+			if (t.equals("installed") || t.equals("outdated") || t.equals("explicit")) {
+				plain = false;
+				return new Flag(t, true);
+			}
+			int op = -1;
+			for (int i = 0; i < t.length() && op < 0; i++) {
+				char c = t.charAt(i);
+				if (c == ':' || c == '<' || c == '>' || c == '=')
+					op = i;
+			}
+			if (op <= 0)
+				return word(t);
+			String field = t.substring(0, op).toLowerCase();
+			int valueStart = op + 1;
+			if (valueStart < t.length() && t.charAt(valueStart) == '='
+					&& (t.charAt(op) == '<' || t.charAt(op) == '>'))
+				valueStart++;
+			String operator = t.substring(op, valueStart);
+			String value = t.substring(valueStart);
+			if (value.startsWith("\0"))
+				value = value.substring(1);
+			if (value.startsWith("~") && operator.equals(":"))
+				value = value.substring(1);
+
+			if (field.equals("size") || field.equals("download")) {
+				if (operator.equals(":"))
+					operator = "=";
+				plain = false;
+				return new Size(field.equals("download"), operator, parseSize(value));
+			}
+			if (!operator.equals(":") && !(operator.equals("=") && field.equals("name")))
+				return word(t); // e.g. 'libfoo.so=1'
+			plain = false;
+			if (field.equals("name"))
+				return new Text(value.toLowerCase(), true, false, operator.equals("="));
+			if (field.equals("desc"))
+				return new Text(value.toLowerCase(), false, true, false);
+			if (field.equals("repo"))
+				return new Repo(value.equals("local") ? "" : value, false);
+			if (field.equals("group"))
+				return new Repo(value, true);
+			if (field.equals("depends") || field.equals("provides"))
+				return new Relation(value, field.equals("provides"));
+			if (field.equals("installed") || field.equals("outdated") || field.equals("explicit")) {
+				if (!value.equals("yes") && !value.equals("no"))
+					throw new IllegalArgumentException(field + ": needs 'yes' or 'no'");
+				return new Flag(field, value.equals("yes"));
+			}
+			throw new IllegalArgumentException("Unknown field '" + field + "'");
+		}
+
+		Node word(String w) {
+			String lower = w.toLowerCase();
+			if (lower.length() == 0)
+				throw new IllegalArgumentException("Empty term");
+			words.add(lower);
+			return new Text(lower, true, true, false);
+		}
+	}
+
+	/**
+	 * Node of a compiled query
+	 */
+	private static abstract class Node {
+
+		/**
+		 * Evaluates the node.  Only rows in 'within' need to be right; the
+		 * caller drops the rest.
+		 *
+		 * @param index Index
+		 * @param within Rows of interest; null for all
+		 * @return Matching rows, which the caller may modify; null if the
+		 *         current thread was interrupted
+		 */
+		abstract BitSet evaluate(SearchIndex index, BitSet within);
+
+		/**
+		 * Rough cost of evaluating the node: 0 for look-ups, 1 for passes
+		 * over numbers, 2 for text and 3 for passes over the packages.
+		 *
+		 * @return Cost
+		 */
+		abstract int cost();
+	}
+
+	private static class And extends Node {
+
+		private final Node left;
+		private final Node right;
+
+		And(Node left, Node right) {
+			boolean swap = right.cost() < left.cost();
+			this.left = swap ? right : left;
+			this.right = swap ? left : right;
+		}
+
+		@Override
+		BitSet evaluate(SearchIndex index, BitSet within) {
+			BitSet a = left.evaluate(index, within);
+			if (a == null)
+				return null;
+			if (within != null)
+				a.and(within);
+			if (a.isEmpty())
+				return a;
+			BitSet b = right.evaluate(index, a);
+			if (b == null)
+				return null;
+			a.and(b);
+			return a;
+		}
+
+		@Override
+		int cost() {
+			return Math.max(left.cost(), right.cost());
+		}
+	}
+
+	private static class Or extends Node {
+
+		private final Node left;
+		private final Node right;
+
+		Or(Node left, Node right) {
+			this.left = left;
+			this.right = right;
+		}
+
+		@Override
+		BitSet evaluate(SearchIndex index, BitSet within) {
+			BitSet a = left.evaluate(index, within);
+			if (a == null)
+				return null;
+			BitSet b = right.evaluate(index, within);
+			if (b == null)
+				return null;
+			a.or(b);
+			return a;
+		}
+
+		@Override
+		int cost() {
+			return Math.max(left.cost(), right.cost());
+		}
+	}
+
+	private static class Not extends Node {
+
+		private final Node operand;
+
+		Not(Node operand) {
+			this.operand = operand;
+		}
+
+		@Override
+		BitSet evaluate(SearchIndex index, BitSet within) {
+			BitSet b = operand.evaluate(index, within);
+			if (b != null)
+				b.flip(0, index.size());
+			return b;
+		}
+
+		@Override
+		int cost() {
+			return operand.cost();
+		}
+	}
+
+	/**
+	 * 'installed', 'outdated' or 'explicit'
+	 */
+	private static class Flag extends Node {
+
+		private final String flag;
+		private final boolean set;
+
+		Flag(String flag, boolean set) {
+			this.flag = flag;
+			this.set = set;
+		}
+
+		@Override
+		int cost() {
+			return 0;
+		}
+
+		@Override
+		BitSet evaluate(SearchIndex index, BitSet within) {
+			BitSet b = (BitSet) (flag.equals("installed") ? index.getInstalled()
+					: flag.equals("outdated") ? index.getOutdated() : index.getExplicit()).clone();
+			if (!set)
+				b.flip(0, index.size());
+			return b;
+		}
+	}
+
+	/**
+	 * 'repo:x' or 'group:x'
+	 */
+	private static class Repo extends Node {
+
+		private final String name;
+		private final boolean group;
+
+		Repo(String name, boolean group) {
+			this.name = name;
+			this.group = group;
+		}
+
+		@Override
+		int cost() {
+			return 0;
+		}
+
+		@Override
+		BitSet evaluate(SearchIndex index, BitSet within) {
+			return (BitSet) (group ? index.getGroup(name) : index.getRepo(name)).clone();
+		}
+	}
+
+	/**
+	 * Words, 'name:' and 'desc:'
+	 */
+	private static class Text extends Node {
+
+		private final String text;
+		private final boolean inName;
+		private final boolean inDescription;
+		private final boolean exact;
+
+		Text(String text, boolean inName, boolean inDescription, boolean exact) {
+			this.text = text;
+			this.inName = inName;
+			this.inDescription = inDescription;
+			this.exact = exact;
+		}
+
+		@Override
+		int cost() {
+			return 2;
+		}
+
+		@Override
+		BitSet evaluate(SearchIndex index, BitSet within) {
+			return exact ? index.findName(text, within)
+					: index.find(text, inName, inDescription, within);
+		}
+	}
+
+	/**
+	 * 'size' and 'download' comparisons
+	 */
+	private static class Size extends Node {
+
+		private final boolean download;
+		private final String op;
+		private final long value;
+
+		Size(boolean download, String op, long value) {
+			this.download = download;
+			this.op = op;
+			this.value = value;
+		}
+
+		@Override
+		int cost() {
+			return 1;
+		}
+
+		@Override
+		BitSet evaluate(SearchIndex index, BitSet within) {
+			return index.compareSize(download, op, value);
+		}
+	}
+
+	/**
+	 * 'depends:x' and 'provides:x'; a pass over the packages themselves
+	 */
+	private static class Relation extends Node {
+
+		private final String name;
+		private final boolean provides;
+
+		Relation(String name, boolean provides) {
+			this.name = name;
+			this.provides = provides;
+		}
+
+		@Override
+		int cost() {
+			return 3;
+		}
+
+		@Override
+		BitSet evaluate(SearchIndex index, BitSet within) {
+			BitSet b = new BitSet(index.size());
+			int checked = 0;
+			for (int i = SearchIndex.first(within); i >= 0 && i < index.size();
+					i = SearchIndex.next(within, i)) {
+				if ((++checked & 0x3ff) == 0 && Thread.currentThread().isInterrupted())
+					return null;
+				PackageCollection.Package p = index.getPackage(i);
+				if (provides ? p.getName().equals(name) || has(p.getProvides())
+						: has(p.getDepends()))
+					b.set(i);
+			}
+			return b;
+		}
+
+		private boolean has(List<String> deps) {
+			for (int i = 0; i < deps.size(); i++) {
+				if (ProvisionIndex.parse(deps.get(i))[0].equals(name))
+					return true;
+			}
+			return false;
+		}
+	}
+}
@@ -0,0 +1,481 @@
+/*
+ * Karun, a package manager for ArchLinux based on 'pacman'.
+ * Copyright (C) 2011  Bahman Movaqar
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, 
+ * USA.
+ */
+package com.bahmanm.karun;
+
+import java.text.CollationKey;
+import java.text.Collator;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import javax.swing.RowFilter;
+import javax.swing.RowSorter;
+import javax.swing.SortOrder;
+import javax.swing.SwingUtilities;
+import javax.swing.table.TableModel;
+
+/**
+ * PackageRowSorter
+ *
+ * Row sorter for the package list which sorts on a background thread.  Sort
+ * keys are computed once per column and data load (collation keys for text,
+ * parsed versions for version columns) and every sort produces a new
+ * view-to-model permutation which is swapped in on the event dispatch thread
+ * in one go.  Until the first sort of new data completes the rows are shown
+ * in model order.
+ *
+ * Like every RowSorter, it must only be used on the event dispatch thread.
+ *
+ * @author Bahman Movaqar (Bahman AT BahmanM.com)
+ */
+public class PackageRowSorter extends RowSorter<TableModel> {
+
+	/** Maximum number of sort keys kept by toggleSortOrder */
+	private static final int MAX_SORT_KEYS = 3;
+	/** The model */
+	private final TableModel model;
+	/** Which columns hold package versions */
+	private final boolean[] versionColumns;
+	/** Sorts off the event dispatch thread */
+	private final ExecutorService executor =
+			Executors.newSingleThreadExecutor(Utils.daemonThreadFactory("karun-sort"));
+	/** Current sort keys, most significant first */
+	private List<SortKey> sortKeys = Collections.emptyList();
+	/** Current filter */
+	private RowFilter<? super TableModel, ? super Integer> filter;
+	/** All model rows in sorted order; null for model order */
+	private int[] sorted;
+	/** View to model mapping; null for identity */
+	private int[] viewToModel;
+	/** Model to view mapping; null for identity or not computed yet */
+	private int[] modelToView;
+	/** Model row count when the view was last computed */
+	private int lastModelRowCount;
+	/** Incremented whenever the data changes */
+	private int dataGeneration;
+	/** Incremented whenever a sort is scheduled */
+	private int sortGeneration;
+	/** Sort generation whose result is shown */
+	private int shownGeneration;
+	/** Whether a sort is scheduled to run after the current event */
+	private boolean sortScheduled;
+	/** Sort keys of 'keysGeneration'; only touched by 'executor' */
+	private Object[][] keys;
+	/** Data generation 'keys' belongs to; only touched by 'executor' */
+	private int keysGeneration = -1;
+	/** Column values of 'snapshotGeneration', taken on the EDT */
+	private Object[][] snapshot;
+	/** Data generation 'snapshot' belongs to */
+	private int snapshotGeneration = -1;
+
+	/**
+	 * Constructor
+	 *
+	 * @param model Table model
+	 * @param versionColumns Columns holding package versions
+	 */
+	public PackageRowSorter(TableModel model, int... versionColumns) {
+		this.model = model;
+		this.versionColumns = new boolean[model.getColumnCount()];
+		for (int i = 0; i < versionColumns.length; i++)
+			this.versionColumns[versionColumns[i]] = true;
+	}
+
+	@Override
+	public TableModel getModel() {
+		return model;
+	}
+
+	@Override
+	public void toggleSortOrder(int column) {
+		List<SortKey> keys = new ArrayList<SortKey>(sortKeys);
+		SortKey key = new SortKey(column, SortOrder.ASCENDING);
+		for (int i = 0; i < keys.size(); i++) {
+			if (keys.get(i).getColumn() == column) {
+				if (i == 0 && keys.get(0).getSortOrder() == SortOrder.ASCENDING)
+					key = new SortKey(column, SortOrder.DESCENDING);
+				keys.remove(i);
+				break;
+			}
+		}
+		keys.add(0, key);
+		while (keys.size() > MAX_SORT_KEYS)
+			keys.remove(keys.size() - 1);
+		setSortKeys(keys);
+	}
+
+	@Override
+	public void setSortKeys(List<? extends SortKey> keys) {
+		List<SortKey> newKeys = keys == null ? Collections.<SortKey>emptyList()
+				: Collections.unmodifiableList(new ArrayList<SortKey>(keys));
+		if (newKeys.equals(sortKeys))
+			return;
+		sortKeys = newKeys;
+		fireSortOrderChanged();
+		scheduleSort();
+	}
+
+	@Override
+	public List<? extends SortKey> getSortKeys() {
+		return sortKeys;
+	}
+
+	/**
+	 * Whether the view doesn't reflect the current data and sort keys yet.
+	 *
+	 * @return true while a sort is scheduled or running
+	 */
+	public boolean isSortPending() {
+		return shownGeneration != sortGeneration;
+	}
+
+	/**
+	 * Sets the filter; rows are filtered on the calling thread, sort order is
+	 * kept.
+	 *
+	 * @param filter Filter, or null for none
+	 */
+	public void setRowFilter(RowFilter<? super TableModel, ? super Integer> filter) {
+		this.filter = filter;
+		applyOrder(sorted);
+	}
+
+	public RowFilter<? super TableModel, ? super Integer> getRowFilter() {
+		return filter;
+	}
+
+	@Override
+	public int convertRowIndexToModel(int index) {
+		if (viewToModel == null) {
+			if (index < 0 || index >= model.getRowCount())
+				throw new IndexOutOfBoundsException("Invalid index");
+			return index;
+		}
+		return viewToModel[index];
+	}
+
+	@Override
+	public int convertRowIndexToView(int index) {
+		if (viewToModel == null) {
+			if (index < 0 || index >= model.getRowCount())
+				throw new IndexOutOfBoundsException("Invalid index");
+			return index;
+		}
+		if (modelToView == null) {
+			modelToView = new int[model.getRowCount()];
+			for (int i = 0; i < modelToView.length; i++)
+				modelToView[i] = -1;
+			for (int i = 0; i < viewToModel.length; i++)
+				modelToView[viewToModel[i]] = i;
+		}
+		return modelToView[index];
+	}
+
+	@Override
+	public int getViewRowCount() {
+		return viewToModel == null ? model.getRowCount() : viewToModel.length;
+	}
+
+	@Override
+	public int getModelRowCount() {
+		return model.getRowCount();
+	}
+
+	@Override
+	public void modelStructureChanged() {
+		sortKeys = Collections.emptyList();
+		dataChanged();
+	}
+
+	@Override
+	public void allRowsChanged() {
+		dataChanged();
+	}
+
+	@Override
+	public void rowsInserted(int firstRow, int endRow) {
+		dataChanged();
+	}
+
+	@Override
+	public void rowsDeleted(int firstRow, int endRow) {
+		dataChanged();
+	}
+
+	@Override
+	public void rowsUpdated(int firstRow, int endRow) {
+		dataGeneration++;
+		scheduleSort();
+	}
+
+	@Override
+	public void rowsUpdated(int firstRow, int endRow, int column) {
+		rowsUpdated(firstRow, endRow);
+	}
+
+	/**
+	 * Falls back to model order after rows were added or removed and
+	 * schedules a sort of the new data.
+	 */
+	private void dataChanged() {
+		dataGeneration++;
+		applyOrder(null);
+		scheduleSort();
+	}
+
+	/**
+	 * Computes the view from a sorted order and the filter and notifies
+	 * listeners.
+	 *
+	 * @param order All model rows in view order, or null for model order
+	 */
+	private void applyOrder(int[] order) {
+		int[] last = viewToModel;
+		if (last == null) {
+			last = new int[lastModelRowCount];
+			for (int i = 0; i < last.length; i++)
+				last[i] = i;
+		}
+		sorted = order;
+		if (order == null && filter == null) {
+			viewToModel = null;
+		} else {
+			int n = model.getRowCount();
+			int[] view = new int[n];
+			int count = 0;
+			FilterEntry entry = new FilterEntry();
+			for (int i = 0; i < n; i++) {
+				entry.row = order == null ? i : order[i];
+				if (filter == null || filter.include(entry))
+					view[count++] = entry.row;
+			}
+			viewToModel = new int[count];
+			System.arraycopy(view, 0, viewToModel, 0, count);
+		}
+		modelToView = null;
+		lastModelRowCount = model.getRowCount();
+		fireRowSorterChanged(last);
+	}
+
+	/**
+	 * Schedules a sort to run once the current event has been processed, so
+	 * that a burst of cell updates results in a single sort.
+	 */
+	private void scheduleSort() {
+		sortGeneration++;
+		if (sortScheduled)
+			return;
+		sortScheduled = true;
+		SwingUtilities.invokeLater(new Runnable() {
+
+			@Override
+			public void run() {
+				sortScheduled = false;
+				sort();
+			}
+		});
+	}
+
+	/**
+	 * Hands the current data and sort keys to the background thread.
+	 */
+	private void sort() {
+		final List<SortKey> keyList = new ArrayList<SortKey>();
+		for (SortKey k : sortKeys) {
+			if (k.getSortOrder() != SortOrder.UNSORTED)
+				keyList.add(k);
+		}
+		if (keyList.isEmpty()) {
+			shownGeneration = sortGeneration;
+			if (sorted != null)
+				applyOrder(null);
+			return;
+		}
+		final int gen = sortGeneration;
+		final int dataGen = dataGeneration;
+		if (snapshotGeneration != dataGen) {
+			int rows = model.getRowCount();
+			snapshot = new Object[model.getColumnCount()][rows];
+			for (int c = 0; c < snapshot.length; c++) {
+				for (int r = 0; r < rows; r++)
+					snapshot[c][r] = model.getValueAt(r, c);
+			}
+			snapshotGeneration = dataGen;
+		}
+		final Object[][] values = snapshot;
+		executor.submit(new Runnable() {
+
+			@Override
+			public void run() {
+				final int[] order = sortInBackground(values, dataGen, keyList);
+				SwingUtilities.invokeLater(new Runnable() {
+
+					@Override
+					public void run() {
+						if (gen == sortGeneration) {
+							shownGeneration = gen;
+							applyOrder(order);
+						}
+					}
+				});
+			}
+		});
+	}
+
+	/**
+	 * Computes the sorted order of all model rows.  Runs on 'executor'.
+	 *
+	 * @param values Column values
+	 * @param dataGen Data generation of 'values'
+	 * @param keyList Sort keys
+	 * @return Model rows in sorted order
+	 */
+	private int[] sortInBackground(Object[][] values, int dataGen, List<SortKey> keyList) {
+		if (keysGeneration != dataGen) {
+			keys = new Object[values.length][];
+			keysGeneration = dataGen;
+		}
+		int n = values.length == 0 ? 0 : values[0].length;
+		final Comparable<Object>[][] columns = columnKeys(values, keyList);
+		final boolean[] descending = new boolean[keyList.size()];
+		for (int i = 0; i < descending.length; i++)
+			descending[i] = keyList.get(i).getSortOrder() == SortOrder.DESCENDING;
+
+		int[] order = new int[n];
+		for (int i = 0; i < n; i++)
+			order[i] = i;
+		mergeSort(order, new int[n], 0, n, new RowComparator() {
+
+			@Override
+			public int compare(int a, int b) {
+				for (int k = 0; k < columns.length; k++) {
+					Comparable<Object> x = columns[k][a];
+					Comparable<Object> y = columns[k][b];
+					int r;
+					if (x == null || y == null)
+						r = x == y ? 0 : (x == null ? -1 : 1);
+					else
+						r = x.compareTo(y);
+					if (r != 0)
+						return descending[k] ? -r : r;
+				}
+				return a - b;
+			}
+		});
+		return order;
+	}
+
+	/**
+	 * Returns the sort keys of the key columns, computing the ones not yet
+	 * computed for this data.  Runs on 'executor'.
+	 *
+	 * @param values Column values
+	 * @param keyList Sort keys
+	 * @return Sort keys, one array per entry of 'keyList'
+	 */
+	@SuppressWarnings({"unchecked", "rawtypes"})
+	private Comparable<Object>[][] columnKeys(Object[][] values, List<SortKey> keyList) {
+		Comparable<Object>[][] result = new Comparable[keyList.size()][];
+		Collator collator = Collator.getInstance();
+		for (int k = 0; k < result.length; k++) {
+			int column = keyList.get(k).getColumn();
+			if (keys[column] == null) {
+				Object[] v = values[column];
+				Comparable<?>[] ck = versionColumns[column] ? new Version[v.length]
+						: new CollationKey[v.length];
+				for (int r = 0; r < v.length; r++) {
+					if (v[r] == null)
+						continue;
+					ck[r] = versionColumns[column] ? Version.parse(v[r].toString())
+							: collator.getCollationKey(v[r].toString());
+				}
+				keys[column] = ck;
+			}
+			result[k] = (Comparable<Object>[]) keys[column];
+		}
+		return result;
+	}
+
+	/**
+	 * Stable merge sort of row indices.
+	 *
+	 * @param a Rows
+	 * @param tmp Scratch space, as long as 'a'
+	 * @param from First index, inclusive
+	 * @param to Last index, exclusive
+	 * @param c Comparator
+	 */
+	private static void mergeSort(int[] a, int[] tmp, int from, int to, RowComparator c) {
+		if (to - from < 2)
+			return;
+		int mid = (from + to) >>> 1;
+		mergeSort(a, tmp, from, mid, c);
+		mergeSort(a, tmp, mid, to, c);
+		if (c.compare(a[mid - 1], a[mid]) <= 0)
+			return;
+		System.arraycopy(a, from, tmp, from, to - from);
+		int i = from;
+		int j = mid;
+		for (int k = from; k < to; k++) {
+			if (j >= to || (i < mid && c.compare(tmp[i], tmp[j]) <= 0))
+				a[k] = tmp[i++];
+			else
+				a[k] = tmp[j++];
+		}
+	}
+
+	/**
+	 * Compares two model rows
+	 */
+	private interface RowComparator {
+
+		public abstract int compare(int a, int b);
+	}
+
+	/**
+	 * Entry handed to the filter
+	 */
+	private class FilterEntry extends RowFilter.Entry<TableModel, Integer> {
+
+		/** Model row */
+		private int row;
+
+		@Override
+		public TableModel getModel() {
+			return model;
+		}
+
+		@Override
+		public int getValueCount() {
+			return model.getColumnCount();
+		}
+
+		@Override
+		public Object getValue(int index) {
+			return model.getValueAt(row, index);
+		}
+
+		@Override
+		public Integer getIdentifier() {
+			return Integer.valueOf(row);
+		}
+	}
+}
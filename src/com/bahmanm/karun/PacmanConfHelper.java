@@ -27,6 +27,8 @@ import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import org.apache.commons.lang.StringUtils;
@@ -34,27 +36,46 @@ import org.apache.commons.lang.StringUtils;
 /**
  * PacmanConfHelper
  * 
+ * Reads 'pacman.conf' of a root directory, i.e. the system ('/') or a
+ * container or chroot.  As with pacman's '--sysroot', every path in the
+ * configuration (DBPath, CacheDir, LogFile, Include) and their defaults are
+ * taken to be inside the root.
+ * 
  * @author Bahman Movaqar (Bahman AT BahmanM.com)
  */
 public class PacmanConfHelper {
 
 	private static final String PACMAN_CONF_PATH = "/etc/pacman.conf";
+	/** Root directory; '/' for the system */
+	private String root;
 	/** Absolute path to 'pacman.conf' */
 	private String confPath;
 	/** Pacman's DB path */
 	private String dbPath = "/var/lib/pacman/";
 	/** Pacman's cache directory */
 	private String cacheDir = "/var/cache/pacman/pkg/";
+	/** Pacman's log file */
+	private String logFile = "/var/log/pacman.log";
 	/** Pacman's repositories */
 	private ArrayList<String> repos = new ArrayList<String>();
-	/** Singleton object */
-	private static PacmanConfHelper pacmanConfHelper;
+	/** Server URLs of each repository, with '$repo' and '$arch' unexpanded */
+	private HashMap<String, ArrayList<String>> servers = new HashMap<String, ArrayList<String>>();
+	/** Architecture; 'auto' is resolved to the running system's */
+	private String architecture = autoArchitecture();
+	/** Modification time and length of each file read, by path */
+	private final HashMap<String, String> stamps = new HashMap<String, String>();
+	/** Configurations read so far, by canonical root and path of 'pacman.conf' */
+	private static final HashMap<String, PacmanConfHelper> instances = new HashMap<String, PacmanConfHelper>();
 
 	// Getter block
 	public String getCacheDir() {
 		return cacheDir;
 	}
 
+	public String getRoot() {
+		return root;
+	}
+
 	public String getConfPath() {
 		return confPath;
 	}
@@ -63,59 +84,175 @@ public class PacmanConfHelper {
 		return dbPath;
 	}
 
+	public String getLogFile() {
+		return logFile;
+	}
+
 	public ArrayList<String> getRepos() {
 		return repos;
 	}
+
+	public String getArchitecture() {
+		return architecture;
+	}
 	//
+
+	/**
+	 * Server URLs of a repository in the order pacman tries them, as written
+	 * in 'pacman.conf' or the files it includes.
+	 *
+	 * @param repo Repository name
+	 * @return URLs with '$repo' and '$arch' unexpanded; empty if none
+	 */
+	public ArrayList<String> getServers(String repo) {
+		ArrayList<String> l = servers.get(repo);
+		return l == null ? new ArrayList<String>() : l;
+	}
+
+	/**
+	 * Expands '$repo' and '$arch' in a server URL.
+	 *
+	 * @param server Server URL as found in 'pacman.conf'
+	 * @param repo Repository name
+	 * @return URL
+	 */
+	public String expandServer(String server, String repo) {
+		return server.replace("$repo", repo).replace("$arch", architecture);
+	}
 	
 	/**
-	 * Singleton constructor
+	 * Configuration of the system, i.e. '/etc/pacman.conf'.
 	 * 
-	 * @return Singleton object
+	 * @return Configuration
 	 * @throws PacmanConfPathException
 	 * @throws FileNotFoundException
 	 * @throws IOException 
 	 */
-	public synchronized static PacmanConfHelper get() throws PacmanConfPathException, FileNotFoundException, IOException {
-		if (PacmanConfHelper.pacmanConfHelper == null)
-			PacmanConfHelper.pacmanConfHelper = new PacmanConfHelper();
-		return PacmanConfHelper.pacmanConfHelper;
+	public static PacmanConfHelper get() throws PacmanConfPathException, FileNotFoundException, IOException {
+		return get("/", PACMAN_CONF_PATH);
 	}
 
 	/**
-	 * Default constructor
+	 * Configuration at the given path.  If the path is '<root>/etc/pacman.conf'
+	 * the configuration is of that root, e.g. '/srv/c1/etc/pacman.conf' is of
+	 * the container in '/srv/c1'; otherwise of the system.
+	 * 
+	 * @param confPath Path to 'pacman.conf'
+	 * @return Configuration
+	 * @throws PacmanConfPathException
+	 * @throws FileNotFoundException
+	 * @throws IOException 
 	 */
-	private PacmanConfHelper() throws PacmanConfPathException, FileNotFoundException, IOException {
-		this(PACMAN_CONF_PATH);
+	public static PacmanConfHelper get(String confPath) throws PacmanConfPathException, FileNotFoundException, IOException {
+		return get(rootOf(confPath), confPath);
 	}
 
-   /**
-	 * Singleton constructor
+	/**
+	 * Configuration of a root, e.g. a container or chroot.  Each file is
+	 * read once per root; later calls with the same root and path return the
+	 * same object, until 'pacman.conf' or a file it includes changes.  Then
+	 * it is read again into a new object; the ones handed out before keep
+	 * the old values.
 	 * 
-	 * @return Singleton object
+	 * @param root Root directory; '/' for the system
+	 * @param confPath Path to 'pacman.conf', or null for the one in the root
+	 * @return Configuration
 	 * @throws PacmanConfPathException
 	 * @throws FileNotFoundException
 	 * @throws IOException 
 	 */
-	public synchronized static PacmanConfHelper get(String confPath) throws PacmanConfPathException, FileNotFoundException, IOException {
-		if (PacmanConfHelper.pacmanConfHelper == null)
-			PacmanConfHelper.pacmanConfHelper = new PacmanConfHelper(confPath);
-		return PacmanConfHelper.pacmanConfHelper;
+	public synchronized static PacmanConfHelper get(String root, String confPath) throws PacmanConfPathException, FileNotFoundException, IOException {
+		File r = new File(root);
+		if (!r.isDirectory())
+			throw new PacmanConfPathException(root);
+		root = r.getCanonicalPath();
+		if (confPath == null)
+			confPath = inRoot(root, PACMAN_CONF_PATH);
+		File f = new File(confPath);
+		if (!f.exists() || !f.canRead() || !f.isFile())
+			throw new PacmanConfPathException(confPath);
+		String key = root + File.pathSeparator + f.getCanonicalPath();
+		PacmanConfHelper conf = instances.get(key);
+		if (conf == null || conf.isStale()) {
+			conf = new PacmanConfHelper(root, confPath);
+			instances.put(key, conf);
+		}
+		return conf;
 	}
+
+	/**
+	 * Root of a 'pacman.conf', i.e. the directory it is in as 'etc/pacman.conf'.
+	 * 
+	 * @param confPath Path to 'pacman.conf'
+	 * @return Root; '/' if the file is not named so
+	 */
+	static String rootOf(String confPath) {
+		File f = new File(confPath).getAbsoluteFile();
+		File etc = f.getParentFile();
+		if (!f.getName().equals("pacman.conf") || etc == null || !etc.getName().equals("etc")
+				|| etc.getParentFile() == null)
+			return "/";
+		return etc.getParentFile().getPath();
+	}
+
 	/**
 	 * Constructor
 	 * 
+	 * @param root Canonical path to the root directory
 	 * @param confPath Absolute path to 'pacman.conf'.
 	 */
-	private PacmanConfHelper(String confPath) throws PacmanConfPathException, FileNotFoundException, IOException {
+	private PacmanConfHelper(String root, String confPath) throws PacmanConfPathException, FileNotFoundException, IOException {
 		// Check for existence
 		File f = new File(confPath);
 		if (!f.exists() || !f.canRead() || !f.isFile()) {
 			throw new PacmanConfPathException(confPath);
 		}
 
+		this.root = root;
 		this.confPath = confPath;
+		stamps.put(confPath, stamp(confPath));
 		extractInfo();
+		dbPath = inRoot(root, dbPath);
+		cacheDir = inRoot(root, cacheDir);
+		logFile = inRoot(root, logFile);
+	}
+
+	/**
+	 * Whether 'pacman.conf' or a file it includes has changed, appeared or
+	 * gone since this configuration was read.
+	 * 
+	 * @return true if so
+	 */
+	public boolean isStale() {
+		for (Map.Entry<String, String> e : stamps.entrySet()) {
+			if (!e.getValue().equals(stamp(e.getKey())))
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Modification time and length of a file; a missing file has '0:0'.
+	 * 
+	 * @param path Path to file
+	 * @return Stamp
+	 */
+	private static String stamp(String path) {
+		File f = new File(path);
+		return f.lastModified() + ":" + f.length();
+	}
+
+	/**
+	 * Path of a file inside a root.
+	 * 
+	 * @param root Canonical path to the root directory
+	 * @param path Absolute path as seen from inside the root
+	 * @return Path as seen from the system
+	 */
+	private static String inRoot(String root, String path) {
+		if (root.equals("/"))
+			return path;
+		return root + (path.startsWith("/") ? "" : "/") + path;
 	}
 
 	/**
@@ -126,13 +263,14 @@ public class PacmanConfHelper {
 		DataInputStream dis = new DataInputStream(fis);
 		BufferedReader br = new BufferedReader(new InputStreamReader(dis));
 		String line;
+		String section = null;
 		try {
 			while ((line = br.readLine()) != null) {
 				line = StringUtils.normalizeSpace(line);
 				if (line.startsWith("#")) {
 					continue;
 				} else if (line.startsWith("[") && line.endsWith("]")) {
-					String section = line.substring(1, line.length() - 1);
+					section = line.substring(1, line.length() - 1);
 					if (!section.equals("options")) {
 						repos.add(section);
 					}
@@ -140,6 +278,17 @@ public class PacmanConfHelper {
 					dbPath = line.split("=")[1].trim();
 				} else if (line.startsWith("CacheDir")) {
 					cacheDir = line.split("=")[1].trim();
+				} else if (line.startsWith("LogFile")) {
+					logFile = value(line);
+				} else if (line.startsWith("Architecture")) {
+					String arch = value(line);
+					if (!arch.equals("auto"))
+						architecture = arch;
+				} else if (line.startsWith("Server") && section != null) {
+					addServer(section, value(line));
+				} else if (line.startsWith("Include") && section != null
+						&& !section.equals("options")) {
+					readMirrorlist(section, inRoot(root, value(line)));
 				}
 			}
 		} catch (IOException ex) {
@@ -154,5 +303,69 @@ public class PacmanConfHelper {
 			}
 		}
 	}
-	
+
+	/**
+	 * Reads the servers of a repository from an included mirrorlist.  A
+	 * missing mirrorlist is logged and skipped, as pacman does.
+	 *
+	 * @param repo Repository name
+	 * @param path Path to mirrorlist
+	 */
+	private void readMirrorlist(String repo, String path) throws IOException {
+		stamps.put(path, stamp(path));
+		BufferedReader br;
+		try {
+			br = new BufferedReader(new InputStreamReader(new FileInputStream(path)));
+		} catch (FileNotFoundException ex) {
+			Logger.getLogger(PacmanConfHelper.class.getName()).log(Level.WARNING,
+					"Mirrorlist not found: {0}", path);
+			return;
+		}
+		try {
+			String line;
+			while ((line = br.readLine()) != null) {
+				line = line.trim();
+				if (line.startsWith("Server"))
+					addServer(repo, value(line));
+			}
+		} finally {
+			br.close();
+		}
+	}
+
+	private void addServer(String repo, String server) {
+		ArrayList<String> l = servers.get(repo);
+		if (l == null) {
+			l = new ArrayList<String>();
+			servers.put(repo, l);
+		}
+		l.add(server);
+	}
+
+	/**
+	 * Extracts the value of a 'Key = value' line.  Unlike the key, the value
+	 * may contain '=' itself, e.g. a URL with a query string.
+	 *
+	 * @param line Line
+	 * @return Value, trimmed
+	 */
+	private static String value(String line) {
+		int eq = line.indexOf('=');
+		return eq < 0 ? "" : line.substring(eq + 1).trim();
+	}
+
+	/**
+	 * Pacman's name for the architecture the JVM runs on.
+	 *
+	 * @return Architecture, e.g. 'x86_64'
+	 */
+	private static String autoArchitecture() {
+		String arch = System.getProperty("os.arch");
+		if (arch.equals("amd64"))
+			return "x86_64";
+		if (arch.equals("x86") || arch.equals("i386"))
+			return "i686";
+		return arch;
+	}
+
 }
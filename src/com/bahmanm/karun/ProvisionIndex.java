@@ -0,0 +1,273 @@
+/*
+ * Karun, a package manager for ArchLinux based on 'pacman'.
+ * Copyright (C) 2011  Bahman Movaqar
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, 
+ * USA.
+ */
+package com.bahmanm.karun;
+
+import com.bahmanm.karun.PackageCollection.Package;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * ProvisionIndex
+ *
+ * Group members and providers of (virtual) packages of a package set.  A
+ * package provides its own name at its own version and whatever its
+ * '%PROVIDES%' lists, e.g. 'sh' or 'libfoo.so=1-64'.
+ *
+ * Packages get ids by position in name order; groups and provisions map to
+ * arrays of ids.  A lookup is a hash lookup plus a walk over the few
+ * providers of a name.
+ *
+ * @author Bahman Movaqar (Bahman AT BahmanM.com)
+ */
+public class ProvisionIndex {
+
+	/** Packages by id */
+	private final Package[] packages;
+	/** Member ids of each group */
+	private final HashMap<String, int[]> members = new HashMap<String, int[]>();
+	/** Provider ids of each name */
+	private final HashMap<String, int[]> providers = new HashMap<String, int[]>();
+	/** Provided version per provider of each name, parallel to 'providers'; null if unversioned */
+	private final HashMap<String, String[]> versions = new HashMap<String, String[]>();
+
+	/**
+	 * Constructor
+	 *
+	 * @param pkgs Packages
+	 */
+	public ProvisionIndex(Collection<Package> pkgs) {
+		packages = pkgs.toArray(new Package[pkgs.size()]);
+		Arrays.sort(packages, new Comparator<Package>() {
+
+			@Override
+			public int compare(Package a, Package b) {
+				return a.getName().compareTo(b.getName());
+			}
+		});
+		for (int id = 0; id < packages.length; id++) {
+			Package p = packages[id];
+			for (String g : p.getGroups())
+				add(members, null, g, id, null);
+			add(providers, versions, p.getName(), id, version(p));
+			for (String provision : p.getProvides()) {
+				String[] d = parse(provision);
+				add(providers, versions, d[0], id, d[2]);
+			}
+		}
+		trim(members, null);
+		trim(providers, versions);
+	}
+
+	/**
+	 * Groups with at least one member.
+	 *
+	 * @return Group names, sorted
+	 */
+	public List<String> getGroups() {
+		ArrayList<String> l = new ArrayList<String>(members.keySet());
+		Collections.sort(l);
+		return l;
+	}
+
+	/**
+	 * Members of a group.
+	 *
+	 * @param group Group name
+	 * @return Packages, by name; empty if there's no such group
+	 */
+	public List<Package> getMembers(String group) {
+		return packages(members.get(group));
+	}
+
+	/**
+	 * Packages providing a name at any version, including one named so.
+	 *
+	 * @param name Name, e.g. 'sh'
+	 * @return Packages, by name
+	 */
+	public List<Package> getProviders(String name) {
+		return packages(providers.get(name));
+	}
+
+	/**
+	 * Packages satisfying a dependency.
+	 *
+	 * @param dependency Dependency, e.g. 'java-runtime>=7' or
+	 *        'libfoo.so=1-64'; an optional dependency's ': description' is
+	 *        ignored
+	 * @return Packages, by name; empty if none
+	 */
+	public List<Package> resolve(String dependency) {
+		String[] d = parse(dependency);
+		int[] ids = providers.get(d[0]);
+		if (ids == null)
+			return Collections.emptyList();
+		if (d[1] == null)
+			return packages(ids);
+		String[] v = versions.get(d[0]);
+		ArrayList<Package> l = new ArrayList<Package>();
+		for (int i = 0; i < ids.length; i++) {
+			if (v[i] != null && satisfies(v[i], d[1], d[2]))
+				l.add(packages[ids[i]]);
+		}
+		return l;
+	}
+
+	/**
+	 * Checks whether a package satisfies a dependency, by name or by one of
+	 * its provisions.
+	 *
+	 * @param p Package
+	 * @param dependency Dependency, as for resolve()
+	 * @return true if so
+	 */
+	public static boolean satisfies(Package p, String dependency) {
+		String[] d = parse(dependency);
+		if (d[0].equals(p.getName()) && (d[1] == null
+				|| (version(p) != null && satisfies(version(p), d[1], d[2]))))
+			return true;
+		for (String provision : p.getProvides()) {
+			String[] v = parse(provision);
+			if (v[0].equals(d[0]) && (d[1] == null
+					|| (v[2] != null && satisfies(v[2], d[1], d[2]))))
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Splits a dependency or provision into name, operator and version.
+	 *
+	 * @param dep E.g. 'foo>=1.2', 'libfoo.so=1-64' or 'foo: for bar'
+	 * @return Name, operator ('<', '<=', '=', '>=', '>') and version; the
+	 *         latter two null if unversioned
+	 */
+	public static String[] parse(String dep) {
+		int colon = dep.indexOf(": ");
+		if (colon >= 0)
+			dep = dep.substring(0, colon);
+		dep = dep.trim();
+		for (int i = 0; i < dep.length(); i++) {
+			char c = dep.charAt(i);
+			if (c == '<' || c == '>' || c == '=') {
+				int end = i + 1;
+				if (c != '=' && end < dep.length() && dep.charAt(end) == '=')
+					end++;
+				return new String[] {dep.substring(0, i), dep.substring(i, end),
+						dep.substring(end).trim()};
+			}
+		}
+		return new String[] {dep, null, null};
+	}
+
+	/**
+	 * Checks a version against a constraint.
+	 *
+	 * @param version Provided version
+	 * @param op Operator
+	 * @param wanted Version of the constraint
+	 * @return true if satisfied
+	 */
+	private static boolean satisfies(String version, String op, String wanted) {
+		int c = Version.compare(version, wanted);
+		if (op.equals("="))
+			return c == 0;
+		if (op.equals("<"))
+			return c < 0;
+		if (op.equals("<="))
+			return c <= 0;
+		if (op.equals(">"))
+			return c > 0;
+		return c >= 0;
+	}
+
+	/**
+	 * Version a package provides its own name at.
+	 */
+	private static String version(Package p) {
+		String v = p.getRepoVersion().length() > 0 ? p.getRepoVersion() : p.getLocalVersion();
+		return v.length() > 0 ? v : null;
+	}
+
+	private List<Package> packages(int[] ids) {
+		if (ids == null)
+			return Collections.emptyList();
+		ArrayList<Package> l = new ArrayList<Package>(ids.length);
+		for (int i = 0; i < ids.length; i++)
+			l.add(packages[ids[i]]);
+		return l;
+	}
+
+	/**
+	 * Appends an id to the array of a key.  While building, element 0 of
+	 * each array holds the number of ids after it.
+	 *
+	 * @param ids Arrays by key
+	 * @param vers Parallel versions by key; null if not kept
+	 * @param key Key
+	 * @param id Id
+	 * @param version Version; ignored if 'vers' is null
+	 */
+	private static void add(HashMap<String, int[]> ids, HashMap<String, String[]> vers,
+			String key, int id, String version) {
+		int[] a = ids.get(key);
+		if (a == null) {
+			a = new int[2];
+			ids.put(key, a);
+			if (vers != null)
+				vers.put(key, new String[1]);
+		}
+		int n = a[0];
+		if (n > 0 && a[n] == id && (vers == null || vers.get(key)[n - 1] != null))
+			return; // e.g. a package listing its own name in '%PROVIDES%'
+		if (n + 1 == a.length) {
+			a = Arrays.copyOf(a, a.length * 2);
+			ids.put(key, a);
+		}
+		a[n + 1] = id;
+		a[0] = n + 1;
+		if (vers != null) {
+			String[] v = vers.get(key);
+			if (n == v.length) {
+				v = Arrays.copyOf(v, v.length * 2);
+				vers.put(key, v);
+			}
+			v[n] = version;
+		}
+	}
+
+	/**
+	 * Drops the counts and spare room left by add().
+	 */
+	private static void trim(HashMap<String, int[]> ids, HashMap<String, String[]> vers) {
+		for (Map.Entry<String, int[]> e : ids.entrySet()) {
+			int[] a = e.getValue();
+			e.setValue(Arrays.copyOfRange(a, 1, a[0] + 1));
+			if (vers != null)
+				vers.put(e.getKey(), Arrays.copyOf(vers.get(e.getKey()), a[0]));
+		}
+	}
+}
@@ -0,0 +1,765 @@
+/*
+ * Karun, a package manager for ArchLinux based on 'pacman'.
+ * Copyright (C) 2011  Bahman Movaqar
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, 
+ * USA.
+ */
+package com.bahmanm.karun;
+
+import com.bahmanm.karun.PackageCollection.Package;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * QueryDaemon
+ *
+ * Keeps the packages of a root, their search index and the installed file
+ * owners in memory and answers queries from scripts over a local socket, so
+ * they don't have to load the databases on every run.  The databases are
+ * checked every 'interval' seconds: changed sync databases are re-read and
+ * local changes applied package by package and recorded in the
+ * StateHistory.  If 'pacman.conf' or a file it includes has changed,
+ * everything is loaded again from the new configuration instead.
+ *
+ * One thread serves all clients through a selector.  Queries only look at a
+ * state which is never changed once published: the refresh thread builds a
+ * new one from copies of the packages, the file owners and the orphans after
+ * applying all changes it found, and replaces the old one as a whole.  So
+ * every reply, and every request as it starts, sees the databases as of one
+ * refresh, though not necessarily the latest one; a client learns of changes
+ * at most 'interval' seconds late.  INFO reads the package's database entries
+ * from disk and is answered by a worker thread, after which the connection's
+ * next request is handled, so replies keep the order of the requests.  The
+ * entries may have been replaced by a later refresh meanwhile; the reply is
+ * then an error.  The socket listens on the loopback interface only and the
+ * port, together with a random token clients must present, is written to a
+ * file only the owner can read ('~/.karun/daemon').
+ *
+ * The protocol is line based UTF-8.  A request is a verb and an optional
+ * argument; the first one on a connection must be 'AUTH <token>'.  A reply
+ * is 'OK <n>' followed by n lines, or 'ERR <message>':
+ *
+ *   PING                 no lines
+ *   SEARCH <query>       name, repo, repo version, local version (tab separated)
+ *                        of packages matching words or a PackageQuery
+ *   INFO <name>          details as 'pacman -Qi' would show them
+ *   OUTDATED             name, local version, repo version
+ *   OWNER <path>         name and version of the package owning the file
+ *   ORPHANS              installed packages nothing explicitly installed needs
+ *   QUIT                 closes the connection
+ *
+ * @author Bahman Movaqar (Bahman AT BahmanM.com)
+ */
+public class QueryDaemon {
+
+	/** Default seconds between checks for database changes */
+	public static final int DEFAULT_INTERVAL = 10;
+	/** Longest request line accepted */
+	private static final int MAX_REQUEST = 8 * 1024;
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final Logger logger = Logger.getLogger(QueryDaemon.class.getName());
+	/** Configuration of the root; replaced when the files change */
+	private PacmanConfHelper conf;
+	/** Seconds between checks for database changes */
+	private final int interval;
+	/** Token clients must present */
+	private final String token;
+	/** Packages of all repositories; replaced by the refresh thread */
+	private volatile PackageCollection collection;
+	/** Installed packages */
+	private LocalDb localDb;
+	/** Installed packages nothing explicitly installed needs */
+	private OrphanTracker orphanTracker;
+	/** States of the installed packages; null until first needed */
+	private StateHistory stateHistory;
+	/** Files of each installed package, by package name; refresh thread only */
+	private final HashMap<String, List<String>> files = new HashMap<String, List<String>>();
+	/** Modification time of each sync database as of the last check */
+	private final HashMap<String, Long> syncModified = new HashMap<String, Long>();
+	/** What queries are answered from */
+	private volatile State state;
+	private Selector selector;
+	private ServerSocketChannel server;
+	private ScheduledExecutorService refresher;
+	/** Answers requests which read from disk */
+	private ExecutorService worker;
+	/** Replies made by the worker, for the selector thread to queue */
+	private final ArrayList<Reply> replies = new ArrayList<Reply>();
+	/** Port file written by this daemon; null until listening */
+	private volatile File portFile;
+
+	/**
+	 * Constructor
+	 *
+	 * @param conf Configuration of the root to serve
+	 * @param interval Seconds between checks for database changes
+	 */
+	public QueryDaemon(PacmanConfHelper conf, int interval) {
+		this.conf = conf;
+		this.interval = Math.max(1, interval);
+		byte[] b = new byte[16];
+		new SecureRandom().nextBytes(b);
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < b.length; i++)
+			sb.append(String.format("%02x", b[i] & 0xff));
+		token = sb.toString();
+	}
+
+	/**
+	 * File holding the port and token of a running daemon.
+	 *
+	 * @return File
+	 */
+	public static File getPortFile() throws IOException {
+		return new File(Utils.getKarunDir(), "daemon");
+	}
+
+	/**
+	 * Loads the databases, starts listening and serves clients until the
+	 * thread is interrupted or the selector closed.
+	 *
+	 * @param port Port to listen on; 0 for any free one
+	 */
+	public void run(int port) throws Exception {
+		load(conf);
+
+		selector = Selector.open();
+		server = ServerSocketChannel.open();
+		server.socket().setReuseAddress(true);
+		server.socket().bind(new InetSocketAddress(InetAddress.getByName("127.0.0.1"), port), 1024);
+		server.configureBlocking(false);
+		server.register(selector, SelectionKey.OP_ACCEPT);
+		writePortFile(server.socket().getLocalPort());
+
+		refresher = Executors.newSingleThreadScheduledExecutor(
+				Utils.daemonThreadFactory("karun-daemon-refresh"));
+		refresher.scheduleWithFixedDelay(new Runnable() {
+
+			@Override
+			public void run() {
+				try {
+					refresh();
+				} catch (Exception ex) {
+					logger.log(Level.WARNING, "Refresh failed", ex);
+				}
+			}
+		}, interval, interval, TimeUnit.SECONDS);
+		worker = Executors.newSingleThreadExecutor(Utils.daemonThreadFactory("karun-daemon-worker"));
+
+		try {
+			serve();
+		} finally {
+			refresher.shutdownNow();
+			worker.shutdownNow();
+			server.close();
+			stop();
+			collection.close();
+		}
+	}
+
+	/**
+	 * Port the daemon listens on.
+	 *
+	 * @return Port, or -1 if not listening
+	 */
+	public int getPort() {
+		ServerSocketChannel s = server;
+		return s == null ? -1 : s.socket().getLocalPort();
+	}
+
+	/**
+	 * Stops serving and removes the port file; run() returns soon after.
+	 */
+	public void stop() {
+		File f = portFile;
+		if (f != null)
+			f.delete();
+		Selector s = selector;
+		if (s != null) {
+			try {
+				s.close();
+			} catch (IOException ex) {
+				logger.log(Level.FINE, null, ex);
+			}
+		}
+	}
+
+	/**
+	 * Selector loop.
+	 */
+	private void serve() throws IOException {
+		while (!Thread.currentThread().isInterrupted()) {
+			Iterator<SelectionKey> it;
+			try {
+				selector.select();
+				it = selector.selectedKeys().iterator();
+			} catch (ClosedSelectorException ex) {
+				break;
+			}
+			deliverReplies();
+			while (it.hasNext()) {
+				SelectionKey key = it.next();
+				it.remove();
+				try {
+					if (!key.isValid())
+						continue;
+					if (key.isAcceptable()) {
+						accept();
+					} else {
+						if (key.isReadable())
+							read(key);
+						if (key.isValid() && key.isWritable())
+							write(key);
+					}
+				} catch (IOException ex) {
+					close(key);
+				}
+			}
+		}
+	}
+
+	private void accept() throws IOException {
+		SocketChannel ch;
+		while ((ch = server.accept()) != null) {
+			ch.configureBlocking(false);
+			ch.socket().setTcpNoDelay(true);
+			ch.register(selector, SelectionKey.OP_READ, new Connection());
+		}
+	}
+
+	/**
+	 * Queues the replies the worker made and goes on with the requests
+	 * their connections sent meanwhile.
+	 */
+	private void deliverReplies() {
+		ArrayList<Reply> l;
+		synchronized (replies) {
+			if (replies.isEmpty())
+				return;
+			l = new ArrayList<Reply>(replies);
+			replies.clear();
+		}
+		for (Reply r : l) {
+			if (!r.key.isValid())
+				continue;
+			Connection c = (Connection) r.key.attachment();
+			c.reply(r.status, r.lines);
+			c.busy = false;
+			try {
+				handleAll(r.key);
+			} catch (IOException ex) {
+				close(r.key);
+			}
+		}
+	}
+
+	/**
+	 * Reads what a client sent and answers every complete request.
+	 *
+	 * @param key Key of the client
+	 */
+	private void read(SelectionKey key) throws IOException {
+		SocketChannel ch = (SocketChannel) key.channel();
+		Connection c = (Connection) key.attachment();
+		int n = ch.read(c.in);
+		if (n < 0) {
+			close(key);
+			return;
+		}
+		handleAll(key);
+	}
+
+	/**
+	 * Answers the complete requests received, until one is handed to the
+	 * worker.
+	 *
+	 * @param key Key of the client
+	 */
+	private void handleAll(SelectionKey key) throws IOException {
+		Connection c = (Connection) key.attachment();
+		int start = 0;
+		int end = c.in.position();
+		byte[] buf = c.in.array();
+		for (int i = 0; i < end; i++) {
+			if (buf[i] != '\n')
+				continue;
+			int len = i - start;
+			if (len > 0 && buf[i - 1] == '\r')
+				len--;
+			String request = new String(buf, start, len, UTF8);
+			start = i + 1;
+			if (!handle(key, c, request)) {
+				c.closing = true;
+				break;
+			}
+			if (c.busy)
+				break;
+		}
+		if (start > 0) {
+			c.in.limit(end).position(start);
+			c.in.compact();
+		}
+		if (!c.closing && !c.busy && !c.in.hasRemaining()) {
+			if (c.in.capacity() >= MAX_REQUEST) {
+				c.reply("ERR Request too long", null);
+				c.closing = true;
+			} else {
+				ByteBuffer b = ByteBuffer.allocate(c.in.capacity() * 2);
+				c.in.flip();
+				b.put(c.in);
+				c.in = b;
+			}
+		}
+		write(key);
+	}
+
+	/**
+	 * Writes pending replies; closes the connection once all is written if
+	 * it's closing.  Nothing more is read while the worker answers a
+	 * request of the connection.
+	 *
+	 * @param key Key of the client
+	 */
+	private void write(SelectionKey key) throws IOException {
+		SocketChannel ch = (SocketChannel) key.channel();
+		Connection c = (Connection) key.attachment();
+		c.out.flip();
+		ch.write(c.out);
+		c.out.compact();
+		if (c.out.position() == 0 && c.closing) {
+			close(key);
+			return;
+		}
+		int ops = c.busy ? 0 : SelectionKey.OP_READ;
+		if (c.out.position() > 0)
+			ops |= SelectionKey.OP_WRITE;
+		key.interestOps(ops);
+	}
+
+	private void close(SelectionKey key) {
+		key.cancel();
+		try {
+			key.channel().close();
+		} catch (IOException ex) {
+			logger.log(Level.FINE, null, ex);
+		}
+	}
+
+	/**
+	 * Answers a request, or hands it to the worker.
+	 *
+	 * @param key Key of the client
+	 * @param c Connection
+	 * @param request Request line
+	 * @return false if the connection should be closed
+	 */
+	private boolean handle(SelectionKey key, Connection c, String request) {
+		int sp = request.indexOf(' ');
+		String verb = sp < 0 ? request : request.substring(0, sp);
+		String arg = sp < 0 ? "" : request.substring(sp + 1).trim();
+		if (!c.authenticated) {
+			if (verb.equals("AUTH") && arg.equals(token)) {
+				c.authenticated = true;
+				c.reply("OK 0", null);
+				return true;
+			}
+			c.reply("ERR Not authenticated", null);
+			return false;
+		}
+		if (verb.equals("QUIT"))
+			return false;
+		try {
+			if (verb.equals("PING"))
+				c.reply("OK 0", null);
+			else if (verb.equals("SEARCH"))
+				c.reply(null, state.search(arg));
+			else if (verb.equals("INFO"))
+				info(key, c, state, arg);
+			else if (verb.equals("OUTDATED"))
+				c.reply(null, state.outdated());
+			else if (verb.equals("OWNER"))
+				c.reply(null, state.owner(arg));
+			else if (verb.equals("ORPHANS"))
+				c.reply(null, state.orphans);
+			else
+				c.reply("ERR Unknown request '" + verb + "'", null);
+		} catch (IllegalArgumentException ex) {
+			c.reply("ERR " + ex.getMessage(), null);
+		}
+		return true;
+	}
+
+	/**
+	 * Has the worker answer an INFO request; the connection waits for it.
+	 *
+	 * @param key Key of the client
+	 * @param c Connection
+	 * @param s State as of the request
+	 * @param name Package name
+	 */
+	private void info(final SelectionKey key, Connection c, final State s, final String name) {
+		c.busy = true;
+		worker.execute(new Runnable() {
+
+			@Override
+			public void run() {
+				Reply r;
+				try {
+					r = new Reply(key, null, s.info(name));
+				} catch (IllegalArgumentException ex) {
+					r = new Reply(key, "ERR " + ex.getMessage(), null);
+				} catch (IOException ex) {
+					r = new Reply(key, "ERR " + ex, null);
+				}
+				synchronized (replies) {
+					replies.add(r);
+				}
+				selector.wakeup();
+			}
+		});
+	}
+
+	/**
+	 * Loads the databases of a configuration and publishes the state.  The
+	 * previous collection, if any, is closed only once the new one is in
+	 * place; if loading fails, the previous state is kept.
+	 *
+	 * @param c Configuration
+	 */
+	private void load(PacmanConfHelper c) throws Exception {
+		PackageCollection newCollection = new PackageCollection("*all*", c, StringPool.getDefault());
+		LocalDb newLocalDb;
+		try {
+			newLocalDb = new LocalDb(c.getDbPath());
+			newCollection.applyLocalChange(newLocalDb.refresh());
+		} catch (Exception ex) {
+			newCollection.close();
+			throw ex;
+		}
+		PackageCollection old = collection;
+		if (!c.getDbPath().equals(conf.getDbPath()))
+			stateHistory = null;
+		conf = c;
+		collection = newCollection;
+		localDb = newLocalDb;
+		orphanTracker = new OrphanTracker(localDb.getPackages());
+		files.clear();
+		HashMap<String, String> owners = new HashMap<String, String>();
+		for (Package p : localDb.getPackages())
+			addFiles(p, owners);
+		recordState();
+		syncModified.clear();
+		checkSyncDbs();
+		state = new State(collection, owners);
+		if (old != null)
+			old.close();
+	}
+
+	/**
+	 * Checks the databases and publishes a new state if anything changed.
+	 */
+	private void refresh() throws Exception {
+		PacmanConfHelper current = PacmanConfHelper.get(conf.getRoot(), conf.getConfPath());
+		if (current != conf) {
+			load(current);
+			logger.log(Level.INFO, "Reloaded: configuration changed");
+			return;
+		}
+		boolean changed = false;
+		HashMap<String, String> owners = state.owners;
+		LocalDb.Change change = localDb.refresh();
+		if (!change.isEmpty()) {
+			collection.applyLocalChange(change);
+			orphanTracker.apply(change);
+			owners = new HashMap<String, String>(owners);
+			for (Package p : change.getRemoved())
+				removeFiles(p, owners);
+			for (Package p : change.getAdded())
+				addFiles(p, owners);
+			recordState();
+			changed = true;
+		}
+		List<String> repos = checkSyncDbs();
+		if (!repos.isEmpty()) {
+			collection.reloadRepos(repos);
+			changed = true;
+		}
+		if (changed) {
+			state = new State(collection, owners);
+			logger.log(Level.INFO, "Reloaded: {0} local changes, repositories {1}",
+					new Object[] {change.getAdded().size() + change.getRemoved().size(), repos});
+		}
+	}
+
+	/**
+	 * Adds the installed packages to the state history; failures are only
+	 * logged.
+	 */
+	private void recordState() {
+		try {
+			if (stateHistory == null)
+				stateHistory = StateHistory.open(conf.getDbPath());
+			stateHistory.record(Snapshot.of(localDb.getPackages()));
+		} catch (IOException ex) {
+			logger.log(Level.WARNING, "Recording the state failed", ex);
+		}
+	}
+
+	/**
+	 * Finds sync databases modified since the last check.
+	 *
+	 * @return Their repositories
+	 */
+	private List<String> checkSyncDbs() {
+		ArrayList<String> changed = new ArrayList<String>();
+		for (String repo : conf.getRepos()) {
+			Long modified = Long.valueOf(new File(conf.getDbPath(), "sync/" + repo + ".db").lastModified());
+			Long previous = syncModified.put(repo, modified);
+			if (previous != null && !previous.equals(modified))
+				changed.add(repo);
+		}
+		return changed;
+	}
+
+	/**
+	 * Indexes the files of an installed package.
+	 *
+	 * @param p Package from the local database
+	 * @param owners Package name by installed file; not yet published
+	 */
+	private void addFiles(Package p, HashMap<String, String> owners) throws IOException {
+		File dir = new File(conf.getDbPath(), "local/" + p.getName() + "-" + p.getRepoVersion());
+		List<String> l = PackageDetails.readFiles(dir);
+		if (l == null)
+			return;
+		files.put(p.getName(), l);
+		for (String f : l) {
+			if (!f.endsWith("/"))
+				owners.put(f, p.getName());
+		}
+	}
+
+	/**
+	 * Drops the files of a package which is no longer installed.
+	 *
+	 * @param p Package from the local database
+	 * @param owners Package name by installed file; not yet published
+	 */
+	private void removeFiles(Package p, HashMap<String, String> owners) {
+		List<String> l = files.remove(p.getName());
+		if (l == null)
+			return;
+		for (String f : l) {
+			if (p.getName().equals(owners.get(f)))
+				owners.remove(f);
+		}
+	}
+
+	/**
+	 * Writes port and token for clients.
+	 *
+	 * @param port Port
+	 */
+	private void writePortFile(int port) throws IOException {
+		File f = getPortFile();
+		f.delete();
+		f.createNewFile();
+		portFile = f;
+		f.setReadable(false, false);
+		f.setWritable(false, false);
+		f.setReadable(true, true);
+		f.setWritable(true, true);
+		OutputStream os = new FileOutputStream(f);
+		try {
+			os.write((port + " " + token + "\n").getBytes(UTF8));
+		} finally {
+			os.close();
+		}
+	}
+
+	/**
+	 * Snapshot of what queries are answered from; not changed once built
+	 */
+	private class State {
+
+		/** Copies of the packages, sorted by name */
+		private final List<Package> packages;
+		private final HashMap<String, Package> byName;
+		private final SearchIndex index;
+		/** Names of orphaned packages, sorted */
+		private final List<String> orphans;
+		/** Package name by installed file */
+		private final HashMap<String, String> owners;
+
+		/**
+		 * Constructor
+		 *
+		 * @param collection Packages, copied
+		 * @param owners Package name by installed file; not changed afterwards
+		 */
+		State(PackageCollection collection, HashMap<String, String> owners) {
+			synchronized (collection) {
+				packages = new ArrayList<Package>(collection.getCollection().size());
+				for (Package p : collection.getCollection().values())
+					packages.add(p.copy());
+			}
+			Collections.sort(packages, new Comparator<Package>() {
+
+				@Override
+				public int compare(Package a, Package b) {
+					return a.getName().compareTo(b.getName());
+				}
+			});
+			byName = new HashMap<String, Package>();
+			for (Package p : packages)
+				byName.put(p.getName(), p);
+			index = new SearchIndex(packages);
+			orphans = orphanTracker.getOrphans();
+			this.owners = owners;
+		}
+
+		List<String> search(String query) {
+			PackageQuery q = PackageQuery.parse(query);
+			if (q.isPlain() && q.getTerms().length == 0)
+				throw new IllegalArgumentException("SEARCH needs terms");
+			int[] rows = q.isPlain() ? index.search(SearchIndex.terms(query), null)
+					: q.evaluate(index);
+			ArrayList<String> lines = new ArrayList<String>();
+			for (int row : rows) {
+				Package p = packages.get(row);
+				lines.add(p.getName() + "\t" + p.getRepo() + "\t" + p.getRepoVersion()
+						+ "\t" + p.getLocalVersion());
+			}
+			return lines;
+		}
+
+		List<String> info(String name) throws IOException {
+			Package p = byName.get(name);
+			if (p == null)
+				throw new IllegalArgumentException("No package '" + name + "'");
+			PackageDetails d = PackageDetails.read(collection.getSyncDir(p),
+					collection.getLocalDir(p));
+			ArrayList<String> lines = new ArrayList<String>();
+			for (String line : d.format().split("\n"))
+				lines.add(line);
+			return lines;
+		}
+
+		List<String> outdated() {
+			ArrayList<String> lines = new ArrayList<String>();
+			for (Package p : packages) {
+				if (p.isOutdated())
+					lines.add(p.getName() + "\t" + p.getLocalVersion() + "\t" + p.getRepoVersion());
+			}
+			return lines;
+		}
+
+		List<String> owner(String path) {
+			String f = path;
+			while (f.startsWith("/"))
+				f = f.substring(1);
+			String name = owners.get(f);
+			if (name == null)
+				throw new IllegalArgumentException("No package owns '" + path + "'");
+			Package p = byName.get(name);
+			return Collections.singletonList(name + " "
+					+ (p == null ? "" : p.getLocalVersion().length() > 0
+					? p.getLocalVersion() : p.getRepoVersion()));
+		}
+	}
+
+	/**
+	 * State of a client connection
+	 */
+	private static class Connection {
+
+		/** Bytes received but not yet handled */
+		private ByteBuffer in = ByteBuffer.allocate(512);
+		/** Bytes to send */
+		private ByteBuffer out = ByteBuffer.allocate(4 * 1024);
+		private boolean authenticated;
+		/** Close once 'out' is written */
+		private boolean closing;
+		/** The worker is answering a request; the next ones wait */
+		private boolean busy;
+
+		/**
+		 * Queues a reply.
+		 *
+		 * @param status Status line; null for 'OK <n>'
+		 * @param lines Lines following the status line; null for none
+		 */
+		void reply(String status, List<String> lines) {
+			StringBuilder sb = new StringBuilder();
+			sb.append(status != null ? status : "OK " + lines.size()).append('\n');
+			if (lines != null) {
+				for (String l : lines)
+					sb.append(l).append('\n');
+			}
+			byte[] b = sb.toString().getBytes(UTF8);
+			if (out.remaining() < b.length) {
+				ByteBuffer o = ByteBuffer.allocate(Math.max(out.capacity() * 2,
+						out.position() + b.length));
+				out.flip();
+				o.put(out);
+				out = o;
+			}
+			out.put(b);
+		}
+	}
+
+	/**
+	 * Reply made by the worker
+	 */
+	private static class Reply {
+
+		private final SelectionKey key;
+		/** Status line; null for 'OK <n>' */
+		private final String status;
+		/** Lines following the status line; null for none */
+		private final List<String> lines;
+
+		Reply(SelectionKey key, String status, List<String> lines) {
+			this.key = key;
+			this.status = status;
+			this.lines = lines;
+		}
+	}
+}
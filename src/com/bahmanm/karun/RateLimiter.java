@@ -0,0 +1,71 @@
+/*
+ * Karun, a package manager for ArchLinux based on 'pacman'.
+ * Copyright (C) 2011  Bahman Movaqar
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, 
+ * USA.
+ */
+package com.bahmanm.karun;
+
+/**
+ * RateLimiter
+ *
+ * Token bucket shared by concurrent transfers to cap their total bandwidth.
+ * The bucket holds at most one second worth of bytes, so short bursts are
+ * allowed but the long-term rate never exceeds the limit.
+ *
+ * @author Bahman Movaqar (Bahman AT BahmanM.com)
+ */
+public class RateLimiter {
+
+	/** Bytes per second; 0 for no limit */
+	private final long rate;
+	/** Bytes which may be transferred right away */
+	private double available;
+	/** When 'available' was last brought up to date, in nanoseconds */
+	private long updated = System.nanoTime();
+
+	/**
+	 * Constructor
+	 *
+	 * @param rate Bytes per second; 0 for no limit
+	 */
+	public RateLimiter(long rate) {
+		this.rate = Math.max(0, rate);
+		this.available = this.rate;
+	}
+
+	/**
+	 * Waits until some bytes may be transferred and takes them from the
+	 * bucket.  Callers take the bytes of a read after doing it, so a single
+	 * transfer goes over the limit by a buffer at most.
+	 *
+	 * @param bytes Number of bytes
+	 */
+	public void acquire(int bytes) throws InterruptedException {
+		if (rate == 0)
+			return;
+		long wait;
+		synchronized (this) {
+			long now = System.nanoTime();
+			available = Math.min(rate, available + (now - updated) * rate / 1e9);
+			updated = now;
+			available -= bytes;
+			wait = available >= 0 ? 0 : (long) (-available * 1000 / rate);
+		}
+		if (wait > 0)
+			Thread.sleep(wait);
+	}
+}
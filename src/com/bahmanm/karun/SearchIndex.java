@@ -0,0 +1,356 @@
+/*
+ * Karun, a package manager for ArchLinux based on 'pacman'.
+ * Copyright (C) 2011  Bahman Movaqar
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, 
+ * USA.
+ */
+package com.bahmanm.karun;
+
+import com.bahmanm.karun.PackageCollection.Package;
+import java.nio.charset.Charset;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import org.apache.commons.lang.StringUtils;
+
+/**
+ * SearchIndex
+ *
+ * Lower-cased copy of the searchable fields of a package list.  Row 'i' of
+ * the index is element 'i' of the list it was built from.
+ *
+ * In low-memory mode the descriptions go to a StringArena of the index's
+ * own and are searched as UTF-8 bytes there, without decoding.
+ *
+ * For PackageQuery the flags, repositories and groups of the rows are kept
+ * as bit sets and the sizes as arrays, so that most of a query is a few
+ * bit set operations.
+ *
+ * @author Bahman Movaqar (Bahman AT BahmanM.com)
+ */
+public class SearchIndex {
+
+	/** How often (in rows) a running search checks for interruption */
+	private static final int INTERRUPT_CHECK_MASK = 0x3ff;
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	/** Packages */
+	private final List<Package> packages;
+	/** Lower-cased package names */
+	private final String[] names;
+	/** Lower-cased package descriptions; null in low-memory mode */
+	private final String[] descriptions;
+	/** Arena of the lower-cased descriptions in low-memory mode; null otherwise */
+	private final StringArena arena;
+	/** Handles of the lower-cased descriptions in 'arena' */
+	private final long[] descriptionHandles;
+	/** Rows of installed packages */
+	private final BitSet installed = new BitSet();
+	/** Rows of installed packages with a newer version in a repository */
+	private final BitSet outdated = new BitSet();
+	/** Rows of explicitly installed packages */
+	private final BitSet explicit = new BitSet();
+	/** Rows by repository; packages in none under "" */
+	private final HashMap<String, BitSet> repos = new HashMap<String, BitSet>();
+	/** Rows by group */
+	private final HashMap<String, BitSet> groups = new HashMap<String, BitSet>();
+	/** Installed sizes */
+	private final long[] sizes;
+	/** Download sizes */
+	private final long[] downloadSizes;
+
+	/**
+	 * Constructor
+	 *
+	 * @param packages Packages in table model order
+	 */
+	public SearchIndex(List<Package> packages) {
+		this.packages = packages;
+		names = new String[packages.size()];
+		sizes = new long[names.length];
+		downloadSizes = new long[names.length];
+		arena = StringArena.isEnabled() ? new StringArena(0) : null;
+		descriptions = arena == null ? new String[names.length] : null;
+		descriptionHandles = arena == null ? null : new long[names.length];
+		for (int i = 0; i < names.length; i++) {
+			Package p = packages.get(i);
+			names[i] = p.getName().toLowerCase();
+			String d = p.getDescription().toLowerCase();
+			if (arena == null)
+				descriptions[i] = d;
+			else
+				descriptionHandles[i] = arena.put(d);
+			if (p.getLocalVersion().length() > 0 || p.getRepo().length() == 0) {
+				installed.set(i);
+				if (p.getReason() == 0)
+					explicit.set(i);
+			}
+			if (p.isOutdated())
+				outdated.set(i);
+			bits(repos, p.getRepo()).set(i);
+			for (String g : p.getGroups())
+				bits(groups, g).set(i);
+			sizes[i] = p.getInstalledSize();
+			downloadSizes[i] = p.getCompressedSize();
+		}
+	}
+
+	private static BitSet bits(HashMap<String, BitSet> map, String key) {
+		BitSet b = map.get(key);
+		if (b == null) {
+			b = new BitSet();
+			map.put(key, b);
+		}
+		return b;
+	}
+
+	public int size() {
+		return names.length;
+	}
+
+	/**
+	 * Splits a query into lower-cased terms.
+	 *
+	 * @param query Query as typed by the user
+	 * @return Terms; empty if the query is blank
+	 */
+	public static String[] terms(String query) {
+		String q = query.trim().toLowerCase();
+		if (q.length() == 0)
+			return new String[0];
+		return q.split("\\s+");
+	}
+
+	/**
+	 * Checks whether every package matching 'terms' also matches 'previous'.
+	 * That holds when each previous term is a substring of some new term.
+	 *
+	 * @param terms New terms
+	 * @param previous Previous terms
+	 * @return true if 'terms' only narrows 'previous'
+	 */
+	public static boolean narrows(String[] terms, String[] previous) {
+		for (int i = 0; i < previous.length; i++) {
+			boolean found = false;
+			for (int j = 0; j < terms.length && !found; j++)
+				found = terms[j].indexOf(previous[i]) >= 0;
+			if (!found)
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Checks whether a row matches all terms, either by name or description.
+	 *
+	 * @param row Row
+	 * @param terms Lower-cased terms
+	 * @return true if it matches
+	 */
+	public boolean matches(int row, String[] terms) {
+		return matches(row, terms, utf8(terms));
+	}
+
+	/**
+	 * Checks whether a row matches all terms.
+	 *
+	 * @param row Row
+	 * @param terms Lower-cased terms
+	 * @param utf8 'terms' as UTF-8 in low-memory mode; null otherwise
+	 * @return true if it matches
+	 */
+	private boolean matches(int row, String[] terms, byte[][] utf8) {
+		for (int i = 0; i < terms.length; i++) {
+			if (names[row].indexOf(terms[i]) >= 0)
+				continue;
+			if (utf8 == null ? descriptions[row].indexOf(terms[i]) < 0
+					: !arena.contains(descriptionHandles[row], 0, utf8[i]))
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Encodes terms for searching descriptions in low-memory mode.
+	 *
+	 * @param terms Terms
+	 * @return UTF-8 bytes of each term; null if not in low-memory mode
+	 */
+	private byte[][] utf8(String[] terms) {
+		if (arena == null)
+			return null;
+		byte[][] b = new byte[terms.length][];
+		for (int i = 0; i < terms.length; i++)
+			b[i] = terms[i].getBytes(UTF8);
+		return b;
+	}
+
+	/**
+	 * Package of a row.
+	 *
+	 * @param row Row
+	 * @return Package
+	 */
+	Package getPackage(int row) {
+		return packages.get(row);
+	}
+
+	/** Rows of installed packages; not to be modified */
+	BitSet getInstalled() {
+		return installed;
+	}
+
+	/** Rows of outdated packages; not to be modified */
+	BitSet getOutdated() {
+		return outdated;
+	}
+
+	/** Rows of explicitly installed packages; not to be modified */
+	BitSet getExplicit() {
+		return explicit;
+	}
+
+	/**
+	 * Rows of a repository; not to be modified.
+	 *
+	 * @param repo Repository; "" for packages in none
+	 * @return Rows
+	 */
+	BitSet getRepo(String repo) {
+		BitSet b = repos.get(repo);
+		return b == null ? new BitSet() : b;
+	}
+
+	/**
+	 * Rows of a group; not to be modified.
+	 *
+	 * @param group Group
+	 * @return Rows
+	 */
+	BitSet getGroup(String group) {
+		BitSet b = groups.get(group);
+		return b == null ? new BitSet() : b;
+	}
+
+	/**
+	 * Rows whose installed or download size compares to a value.
+	 *
+	 * @param download Whether to compare the download size
+	 * @param op Operator: '<', '<=', '=', '>=' or '>'
+	 * @param value Size in bytes
+	 * @return Rows
+	 */
+	BitSet compareSize(boolean download, String op, long value) {
+		long[] v = download ? downloadSizes : sizes;
+		BitSet b = new BitSet(v.length);
+		boolean less = op.startsWith("<");
+		boolean more = op.startsWith(">");
+		boolean equal = op.endsWith("=");
+		for (int i = 0; i < v.length; i++) {
+			if ((less && v[i] < value) || (more && v[i] > value) || (equal && v[i] == value))
+				b.set(i);
+		}
+		return b;
+	}
+
+	/**
+	 * Rows whose name or description contains a term.
+	 *
+	 * @param term Lower-cased term
+	 * @param inName Whether to look in names
+	 * @param inDescription Whether to look in descriptions
+	 * @param within Rows to look at; null for all
+	 * @return Rows; null if the current thread was interrupted
+	 */
+	BitSet find(String term, boolean inName, boolean inDescription, BitSet within) {
+		byte[] utf8 = arena == null ? null : term.getBytes(UTF8);
+		BitSet b = new BitSet(names.length);
+		int checked = 0;
+		for (int i = first(within); i >= 0 && i < names.length; i = next(within, i)) {
+			if ((++checked & INTERRUPT_CHECK_MASK) == 0 && Thread.currentThread().isInterrupted())
+				return null;
+			if ((inName && names[i].indexOf(term) >= 0) || (inDescription
+					&& (utf8 == null ? descriptions[i].indexOf(term) >= 0
+					: arena.contains(descriptionHandles[i], 0, utf8))))
+				b.set(i);
+		}
+		return b;
+	}
+
+	/**
+	 * Rows whose lower-cased name is exactly a given one.
+	 *
+	 * @param name Lower-cased name
+	 * @param within Rows to look at; null for all
+	 * @return Rows
+	 */
+	BitSet findName(String name, BitSet within) {
+		BitSet b = new BitSet();
+		for (int i = first(within); i >= 0 && i < names.length; i = next(within, i)) {
+			if (names[i].equals(name))
+				b.set(i);
+		}
+		return b;
+	}
+
+	/**
+	 * First row of a set of rows, for iterating over it with next().
+	 *
+	 * @param within Rows; null for all
+	 * @return Row; negative if none
+	 */
+	static int first(BitSet within) {
+		return within == null ? 0 : within.nextSetBit(0);
+	}
+
+	/**
+	 * Row of a set of rows following a given one.
+	 *
+	 * @param within Rows; null for all
+	 * @param row Current row
+	 * @return Row; negative if none
+	 */
+	static int next(BitSet within, int row) {
+		return within == null ? row + 1 : within.nextSetBit(row + 1);
+	}
+
+	/**
+	 * Evaluates terms against a set of candidate rows.
+	 *
+	 * @param terms Lower-cased terms
+	 * @param candidates Rows to look at in ascending order, or null for all
+	 * @return Matching rows in ascending order, or null if the current thread
+	 *         was interrupted
+	 */
+	public int[] search(String[] terms, int[] candidates) {
+		FlightEvents.Span span = FlightEvents.begin(FlightEvents.Kind.SEARCH);
+		int n = candidates == null ? names.length : candidates.length;
+		int[] result = new int[n];
+		int count = 0;
+		byte[][] utf8 = utf8(terms);
+		for (int i = 0; i < n; i++) {
+			if ((i & INTERRUPT_CHECK_MASK) == 0 && Thread.currentThread().isInterrupted())
+				return null;
+			int row = candidates == null ? i : candidates[i];
+			if (matches(row, terms, utf8))
+				result[count++] = row;
+		}
+		int[] trimmed = new int[count];
+		System.arraycopy(result, 0, trimmed, 0, count);
+		if (span.isRecording())
+			span.commit(StringUtils.join(terms, ' '), n, count);
+		return trimmed;
+	}
+}
@@ -0,0 +1,225 @@
+/*
+ * Karun, a package manager for ArchLinux based on 'pacman'.
+ * Copyright (C) 2011  Bahman Movaqar
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, 
+ * USA.
+ */
+package com.bahmanm.karun;
+
+import com.bahmanm.karun.PackageCollection.Package;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import javax.swing.SwingUtilities;
+import javax.swing.Timer;
+
+/**
+ * SearchPipeline
+ *
+ * Turns keystrokes in the search box into table filters.  Keystrokes are
+ * debounced, a newer query cancels the one still running and a query which
+ * only narrows the last completed one is evaluated against its result
+ * instead of the whole package list.  Queries using fields or operators
+ * (see PackageQuery) are compiled and evaluated as a whole; a malformed one
+ * is searched as plain words.
+ *
+ * All public methods must be called on the event dispatch thread; results are
+ * delivered there as well.
+ *
+ * @author Bahman Movaqar (Bahman AT BahmanM.com)
+ */
+public class SearchPipeline {
+
+	/** Default debounce delay in milliseconds */
+	public static final int DEFAULT_DELAY = 150;
+	/** Receives search results */
+	private final ResultListener listener;
+	/** Debounce timer */
+	private final Timer timer;
+	/** Evaluates queries off the event dispatch thread */
+	private final ExecutorService executor =
+			Executors.newSingleThreadExecutor(Utils.daemonThreadFactory("karun-search"));
+	/** Index of the current package list; only touched by 'executor' */
+	private SearchIndex index;
+	/** Query waiting for the debounce timer */
+	private String pendingQuery = "";
+	/** Search being evaluated */
+	private Future<?> inFlight;
+	/** Incremented on every search so stale results can be dropped */
+	private int generation;
+	/** Terms of the last completed search; null if it was a structured query */
+	private String[] lastTerms = new String[0];
+	/** Result of the last completed search; null means all rows */
+	private int[] lastResult;
+
+	/**
+	 * Constructor
+	 *
+	 * @param listener Receives search results
+	 */
+	public SearchPipeline(ResultListener listener) {
+		this(listener, DEFAULT_DELAY);
+	}
+
+	/**
+	 * Constructor
+	 *
+	 * @param listener Receives search results
+	 * @param delay Debounce delay in milliseconds
+	 */
+	public SearchPipeline(ResultListener listener, int delay) {
+		this.listener = listener;
+		timer = new Timer(delay, new ActionListener() {
+
+			@Override
+			public void actionPerformed(ActionEvent e) {
+				search(pendingQuery);
+			}
+		});
+		timer.setRepeats(false);
+	}
+
+	/**
+	 * Replaces the package list being searched and re-evaluates the current
+	 * query against it right away.
+	 *
+	 * @param packages Packages in table model order
+	 */
+	public void setPackages(List<Package> packages) {
+		final List<Package> rows = packages;
+		cancel();
+		lastTerms = new String[0];
+		lastResult = null;
+		executor.submit(new Runnable() {
+
+			@Override
+			public void run() {
+				index = new SearchIndex(rows);
+			}
+		});
+		search(pendingQuery);
+	}
+
+	/**
+	 * Notifies the pipeline of a change in the search box.
+	 *
+	 * @param query Current text of the search box
+	 */
+	public void queryChanged(String query) {
+		pendingQuery = query;
+		timer.restart();
+	}
+
+	/**
+	 * Cancels the pending and in-flight searches.
+	 */
+	private void cancel() {
+		timer.stop();
+		generation++;
+		if (inFlight != null) {
+			inFlight.cancel(true);
+			inFlight = null;
+		}
+	}
+
+	/**
+	 * Starts evaluating a query.
+	 *
+	 * @param query Query
+	 */
+	private void search(final String query) {
+		cancel();
+		PackageQuery q = null;
+		try {
+			q = PackageQuery.parse(query);
+		} catch (IllegalArgumentException ex) {
+			// Not meant as a query; search for the words
+		}
+		final int gen = generation;
+		if (q != null && !q.isPlain()) {
+			final PackageQuery compiled = q;
+			inFlight = executor.submit(new Runnable() {
+
+				@Override
+				public void run() {
+					if (index == null)
+						return;
+					int[] result = compiled.evaluate(index);
+					if (result != null)
+						publish(gen, null, result);
+				}
+			});
+			return;
+		}
+		final String[] terms = SearchIndex.terms(query);
+		if (terms.length == 0) {
+			publish(generation, terms, null);
+			return;
+		}
+		final int[] candidates = lastTerms != null && SearchIndex.narrows(terms, lastTerms)
+				? lastResult : null;
+		inFlight = executor.submit(new Runnable() {
+
+			@Override
+			public void run() {
+				if (index == null)
+					return;
+				int[] result = index.search(terms, candidates);
+				if (result != null)
+					publish(gen, terms, result);
+			}
+		});
+	}
+
+	/**
+	 * Hands a result over to the listener unless a newer search has started.
+	 *
+	 * @param gen Generation of the search
+	 * @param terms Terms of the search; null for a structured query
+	 * @param result Matching rows, or null for all rows
+	 */
+	private void publish(final int gen, final String[] terms, final int[] result) {
+		SwingUtilities.invokeLater(new Runnable() {
+
+			@Override
+			public void run() {
+				if (gen != generation)
+					return;
+				inFlight = null;
+				lastTerms = terms;
+				lastResult = result;
+				listener.searchCompleted(result);
+			}
+		});
+	}
+
+	/**
+	 * Receives search results
+	 */
+	public interface ResultListener {
+
+		/**
+		 * Called on the event dispatch thread when a search completes.
+		 *
+		 * @param rows Matching model rows in ascending order, or null if the
+		 *             query is empty and all rows should be shown
+		 */
+		public abstract void searchCompleted(int[] rows);
+	}
+}
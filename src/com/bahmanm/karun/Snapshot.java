@@ -0,0 +1,196 @@
+/*
+ * Karun, a package manager for ArchLinux based on 'pacman'.
+ * Copyright (C) 2011  Bahman Movaqar
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, 
+ * USA.
+ */
+package com.bahmanm.karun;
+
+import com.bahmanm.karun.PackageCollection.Package;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+
+/**
+ * Snapshot
+ *
+ * An immutable picture of a package set: name, version, repo and install
+ * reason of every package, held in parallel arrays sorted by name so two
+ * snapshots can be compared with a single linear merge (see SnapshotDiff).
+ *
+ * The file format is the magic "KSNP", a format version byte, the creation
+ * time (varint, milliseconds), the package count (varint) and then one record
+ * per package in name order: name, version and repo as strings and the
+ * reason as a byte.  Strings are written by ByteSink.writeString.
+ *
+ * @author Bahman Movaqar (Bahman AT BahmanM.com)
+ */
+public final class Snapshot {
+
+	/** Magic of the file format */
+	public static final byte[] MAGIC = {'K', 'S', 'N', 'P'};
+	/** Version of the file format */
+	public static final int FORMAT_VERSION = 1;
+	/** Creation time */
+	private final long created;
+	/** Package names, sorted */
+	private final String[] names;
+	/** Versions, parallel to 'names' */
+	private final String[] versions;
+	/** Repositories, parallel to 'names' */
+	private final String[] repos;
+	/** Install reasons, parallel to 'names' */
+	private final byte[] reasons;
+
+	/**
+	 * Constructor
+	 *
+	 * @param created Creation time
+	 * @param names Package names, sorted
+	 * @param versions Versions
+	 * @param repos Repositories
+	 * @param reasons Install reasons
+	 */
+	Snapshot(long created, String[] names, String[] versions, String[] repos,
+			byte[] reasons) {
+		this.created = created;
+		this.names = names;
+		this.versions = versions;
+		this.repos = repos;
+		this.reasons = reasons;
+	}
+
+	/**
+	 * Takes a snapshot of packages.  For each package the local version is
+	 * used if it's installed, the repo version otherwise.
+	 *
+	 * @param packages Packages
+	 * @return Snapshot
+	 */
+	public static Snapshot of(Collection<Package> packages) {
+		Package[] sorted = packages.toArray(new Package[packages.size()]);
+		Arrays.sort(sorted, new Comparator<Package>() {
+
+			@Override
+			public int compare(Package a, Package b) {
+				return a.getName().compareTo(b.getName());
+			}
+		});
+		int n = sorted.length;
+		String[] names = new String[n];
+		String[] versions = new String[n];
+		String[] repos = new String[n];
+		byte[] reasons = new byte[n];
+		for (int i = 0; i < n; i++) {
+			Package p = sorted[i];
+			names[i] = p.getName();
+			versions[i] = p.getLocalVersion().isEmpty() ? p.getRepoVersion() : p.getLocalVersion();
+			repos[i] = p.getRepo();
+			reasons[i] = (byte) p.getReason();
+		}
+		return new Snapshot(System.currentTimeMillis(), names, versions, repos, reasons);
+	}
+
+	/**
+	 * Reads a snapshot.
+	 *
+	 * @param in Input stream; not closed
+	 * @return Snapshot
+	 * @throws IOException if the stream isn't a valid snapshot
+	 */
+	public static Snapshot read(InputStream in) throws IOException {
+		ByteSource source = new ByteSource(in);
+		byte[] magic = new byte[MAGIC.length];
+		source.readBytes(magic, 0, magic.length);
+		if (!Arrays.equals(magic, MAGIC))
+			throw new IOException("Not a snapshot");
+		int v = source.readByte();
+		if (v != FORMAT_VERSION)
+			throw new IOException("Unsupported snapshot version " + v);
+		long created = source.readVarLong();
+		int n = source.readVarInt();
+		String[] names = new String[n];
+		String[] versions = new String[n];
+		String[] repos = new String[n];
+		byte[] reasons = new byte[n];
+		for (int i = 0; i < n; i++) {
+			names[i] = source.readString();
+			if (i > 0 && names[i - 1].compareTo(names[i]) >= 0)
+				throw new IOException("Snapshot isn't sorted at '" + names[i] + "'");
+			versions[i] = source.readString();
+			repos[i] = source.readString();
+			reasons[i] = (byte) source.readByte();
+		}
+		return new Snapshot(created, names, versions, repos, reasons);
+	}
+
+	/**
+	 * Writes the snapshot.
+	 *
+	 * @param out Output stream; flushed, not closed
+	 */
+	public void write(OutputStream out) throws IOException {
+		ByteSink sink = new ByteSink(out);
+		sink.writeBytes(MAGIC, 0, MAGIC.length);
+		sink.writeByte(FORMAT_VERSION);
+		sink.writeVarLong(created);
+		sink.writeVarLong(names.length);
+		for (int i = 0; i < names.length; i++) {
+			sink.writeString(names[i]);
+			sink.writeString(versions[i]);
+			sink.writeString(repos[i]);
+			sink.writeByte(reasons[i]);
+		}
+		sink.flush();
+	}
+
+	public long getCreated() {
+		return created;
+	}
+
+	public int size() {
+		return names.length;
+	}
+
+	public String getName(int i) {
+		return names[i];
+	}
+
+	public String getVersion(int i) {
+		return versions[i];
+	}
+
+	public String getRepo(int i) {
+		return repos[i];
+	}
+
+	public int getReason(int i) {
+		return reasons[i];
+	}
+
+	/**
+	 * Looks a package up by name.
+	 *
+	 * @param name Package name
+	 * @return Index, or a negative number if not found
+	 */
+	public int indexOf(String name) {
+		return Arrays.binarySearch(names, name);
+	}
+}
@@ -0,0 +1,178 @@
+/*
+ * Karun, a package manager for ArchLinux based on 'pacman'.
+ * Copyright (C) 2011  Bahman Movaqar
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, 
+ * USA.
+ */
+package com.bahmanm.karun;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * SnapshotDiff
+ *
+ * Differences between two snapshots, found by walking both name-sorted
+ * arrays once.  Versions are only parsed for packages whose version strings
+ * differ, so comparing two similar snapshots costs little more than the
+ * name comparisons.
+ *
+ * @author Bahman Movaqar (Bahman AT BahmanM.com)
+ */
+public class SnapshotDiff {
+
+	/**
+	 * Kinds of differences
+	 */
+	public enum Kind {
+
+		ADDED, REMOVED, UPGRADED, DOWNGRADED
+	}
+
+	private final List<Entry> entries;
+
+	/**
+	 * Constructor
+	 *
+	 * @param entries Differences in name order
+	 */
+	private SnapshotDiff(List<Entry> entries) {
+		this.entries = Collections.unmodifiableList(entries);
+	}
+
+	/**
+	 * Compares two snapshots.
+	 *
+	 * @param from Older snapshot, e.g. a known-good host or last week's
+	 * @param to Newer snapshot
+	 * @return Differences going from 'from' to 'to'
+	 */
+	public static SnapshotDiff compute(Snapshot from, Snapshot to) {
+		ArrayList<Entry> entries = new ArrayList<Entry>();
+		int i = 0;
+		int j = 0;
+		int n = from.size();
+		int m = to.size();
+		while (i < n && j < m) {
+			String a = from.getName(i);
+			String b = to.getName(j);
+			int c = a.compareTo(b);
+			if (c < 0) {
+				entries.add(new Entry(Kind.REMOVED, a, from.getVersion(i), null));
+				i++;
+			} else if (c > 0) {
+				entries.add(new Entry(Kind.ADDED, b, null, to.getVersion(j)));
+				j++;
+			} else {
+				String va = from.getVersion(i);
+				String vb = to.getVersion(j);
+				if (!va.equals(vb)) {
+					int v = Version.compare(va, vb);
+					if (v < 0)
+						entries.add(new Entry(Kind.UPGRADED, a, va, vb));
+					else if (v > 0)
+						entries.add(new Entry(Kind.DOWNGRADED, a, va, vb));
+				}
+				i++;
+				j++;
+			}
+		}
+		for (; i < n; i++)
+			entries.add(new Entry(Kind.REMOVED, from.getName(i), from.getVersion(i), null));
+		for (; j < m; j++)
+			entries.add(new Entry(Kind.ADDED, to.getName(j), null, to.getVersion(j)));
+		return new SnapshotDiff(entries);
+	}
+
+	/**
+	 * All differences in name order.
+	 *
+	 * @return Differences
+	 */
+	public List<Entry> getEntries() {
+		return entries;
+	}
+
+	/**
+	 * Differences of one kind in name order.
+	 *
+	 * @param kind Kind
+	 * @return Differences
+	 */
+	public List<Entry> getEntries(Kind kind) {
+		ArrayList<Entry> result = new ArrayList<Entry>();
+		for (Entry e : entries) {
+			if (e.kind == kind)
+				result.add(e);
+		}
+		return result;
+	}
+
+	public boolean isEmpty() {
+		return entries.isEmpty();
+	}
+
+	/**
+	 * One difference
+	 */
+	public static class Entry {
+
+		private final Kind kind;
+		private final String name;
+		/** Version in the older snapshot; null if added */
+		private final String oldVersion;
+		/** Version in the newer snapshot; null if removed */
+		private final String newVersion;
+
+		Entry(Kind kind, String name, String oldVersion, String newVersion) {
+			this.kind = kind;
+			this.name = name;
+			this.oldVersion = oldVersion;
+			this.newVersion = newVersion;
+		}
+
+		public Kind getKind() {
+			return kind;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		public String getOldVersion() {
+			return oldVersion;
+		}
+
+		public String getNewVersion() {
+			return newVersion;
+		}
+
+		@Override
+		public String toString() {
+			switch (kind) {
+				case ADDED:
+					return "+ " + name + " " + newVersion;
+				case REMOVED:
+					return "- " + name + " " + oldVersion;
+				case UPGRADED:
+					return "> " + name + " " + oldVersion + " -> " + newVersion;
+				default:
+					return "< " + name + " " + oldVersion + " -> " + newVersion;
+			}
+		}
+	}
+}
@@ -0,0 +1,623 @@
+/*
+ * Karun, a package manager for ArchLinux based on 'pacman'.
+ * Copyright (C) 2011  Bahman Movaqar
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, 
+ * USA.
+ */
+package com.bahmanm.karun;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileLock;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * StateHistory
+ *
+ * Every state the set of installed packages has been in, as recorded
+ * whenever a change to the local database is noticed, so that what was
+ * installed before a bad upgrade can be looked up and compared with now.
+ *
+ * States are appended to a file in '~/.karun/states', one per database
+ * path.  Most are stored as deltas against the previous state; every
+ * 'keyframeInterval'-th one, and any which changes more than half of the
+ * packages, is stored in full.  Rebuilding a state reads the keyframe
+ * before it and the deltas since, so its cost doesn't grow with the length
+ * of the history, and comparing two states close to each other applies only
+ * the deltas in between.  Only the headers of the records are kept in
+ * memory, plus the latest state.
+ *
+ * The file is the magic "KSTH" and a format version byte followed by
+ * records, each a varint length, the body and the CRC32 of the body (4
+ * bytes, big endian).  A body is the kind (0 keyframe, 1 delta), the time
+ * (varint, milliseconds), the number of packages and the numbers of
+ * packages added, removed and changed against the previous state, all
+ * varints.  A keyframe goes on with every package, a delta with the names
+ * of removed packages followed by the added and changed packages, merged,
+ * all in name order.  Packages are written as Snapshot writes them.
+ * Several processes may append; they take turns through a file lock.  A
+ * record cut short, e.g. by a crash, is ignored and later overwritten.
+ *
+ * @author Bahman Movaqar (Bahman AT BahmanM.com)
+ */
+public class StateHistory {
+
+	/** Magic of the file format */
+	public static final byte[] MAGIC = {'K', 'S', 'T', 'H'};
+	/** Version of the file format */
+	public static final int FORMAT_VERSION = 1;
+	/** Default number of states between keyframes */
+	public static final int DEFAULT_KEYFRAME_INTERVAL = 64;
+	/** Directory of history files in '~/.karun' */
+	private static final String STATES_DIR = "states";
+	private static final int KEYFRAME = 0;
+	private static final int DELTA = 1;
+	/** Length of magic and version */
+	private static final int HEADER_LENGTH = MAGIC.length + 1;
+	/** History file */
+	private final File file;
+	/** Number of states between keyframes */
+	private final int keyframeInterval;
+	/** Recorded states, oldest first */
+	private final ArrayList<Point> points = new ArrayList<Point>();
+	/** Bytes of the file holding valid records */
+	private long validLength;
+	/** Latest state; null if none */
+	private Snapshot latest;
+
+	/**
+	 * Constructor
+	 *
+	 * @param file History file; created on the first record
+	 * @param keyframeInterval Number of states between keyframes
+	 */
+	public StateHistory(File file, int keyframeInterval) throws IOException {
+		this.file = file;
+		this.keyframeInterval = Math.max(1, keyframeInterval);
+		update();
+	}
+
+	/**
+	 * Opens the history of a root.
+	 *
+	 * @param dbPath Pacman's DB path
+	 * @return History
+	 */
+	public static StateHistory open(String dbPath) throws IOException {
+		File dir = new File(Utils.getKarunDir(), STATES_DIR);
+		if (!dir.isDirectory() && !dir.mkdirs())
+			throw new IOException("Failed to create directory " + dir.getAbsolutePath());
+		String key = Integer.toHexString(new File(dbPath).getAbsolutePath().hashCode());
+		return new StateHistory(new File(dir, key + ".kst"), DEFAULT_KEYFRAME_INTERVAL);
+	}
+
+	/**
+	 * Records a state unless it's the same as the latest one.
+	 *
+	 * @param state Installed packages; its creation time is the time of the
+	 *              state
+	 * @return true if recorded
+	 */
+	public synchronized boolean record(Snapshot state) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			FileLock lock = raf.getChannel().lock();
+			try {
+				if (raf.length() == 0) {
+					raf.write(MAGIC);
+					raf.write(FORMAT_VERSION);
+				}
+				// Others may have recorded meanwhile
+				update();
+				if (raf.length() > validLength)
+					raf.setLength(validLength);
+
+				Delta d = new Delta(latest, state);
+				if (latest != null && d.isEmpty())
+					return false;
+				int sinceKeyframe = points.size() - lastKeyframe(points.size() - 1);
+				boolean keyframe = latest == null || sinceKeyframe >= keyframeInterval
+						|| d.size() > state.size() / 2;
+				byte[] frame = encode(keyframe, state, d);
+				raf.seek(validLength);
+				raf.write(frame);
+				points.add(new Point(points.size(), state.getCreated(), keyframe, state.size(),
+						d.added.length, d.removed.length, d.changed.length, validLength));
+				validLength += frame.length;
+				latest = state;
+				return true;
+			} finally {
+				lock.release();
+			}
+		} finally {
+			raf.close();
+		}
+	}
+
+	/**
+	 * Picks up states recorded since the last look, e.g. by another process.
+	 *
+	 * @return true if there were any
+	 */
+	public synchronized boolean update() throws IOException {
+		if (!file.isFile())
+			return false;
+		FileInputStream in = new FileInputStream(file);
+		try {
+			long length = in.getChannel().size();
+			if (length < validLength) {
+				// Replaced by a shorter file; start over
+				points.clear();
+				validLength = 0;
+				latest = null;
+			}
+			if (length < HEADER_LENGTH)
+				return false;
+			ByteSource source = new ByteSource(in);
+			if (validLength == 0) {
+				byte[] magic = new byte[MAGIC.length];
+				source.readBytes(magic, 0, magic.length);
+				if (!Arrays.equals(magic, MAGIC))
+					throw new IOException("Not a state history: " + file.getAbsolutePath());
+				int v = source.readByte();
+				if (v != FORMAT_VERSION)
+					throw new IOException("Unsupported state history version " + v);
+				validLength = HEADER_LENGTH;
+			} else {
+				in.getChannel().position(validLength);
+			}
+
+			int before = points.size();
+			CRC32 crc = new CRC32();
+			byte[] check = new byte[4];
+			while (validLength < length) {
+				byte[] body;
+				try {
+					int n = source.readVarInt();
+					if (n > length - validLength)
+						break;
+					body = new byte[n];
+					source.readBytes(body, 0, n);
+					source.readBytes(check, 0, check.length);
+				} catch (EOFException ex) {
+					break;
+				} catch (IOException ex) {
+					break; // malformed length
+				}
+				crc.reset();
+				crc.update(body);
+				if ((int) crc.getValue() != readInt(check))
+					break;
+				ByteSource b = new ByteSource(new ByteArrayInputStream(body), 64);
+				int kind = b.readByte();
+				points.add(new Point(points.size(), b.readVarLong(), kind == KEYFRAME,
+						b.readVarInt(), b.readVarInt(), b.readVarInt(), b.readVarInt(),
+						validLength));
+				validLength += varIntLength(body.length) + body.length + check.length;
+			}
+			if (points.size() == before)
+				return false;
+			int last = points.size() - 1;
+			latest = rebuild(last, latest, before - 1);
+			return true;
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Recorded states.
+	 *
+	 * @return States, oldest first
+	 */
+	public synchronized List<Point> getPoints() {
+		return Collections.unmodifiableList(new ArrayList<Point>(points));
+	}
+
+	/**
+	 * Number of recorded states.
+	 *
+	 * @return Number
+	 */
+	public synchronized int size() {
+		return points.size();
+	}
+
+	/**
+	 * Finds the state in effect at a given time.
+	 *
+	 * @param time Milliseconds since the epoch
+	 * @return Index of the last state recorded at or before 'time'; -1 if
+	 *         none
+	 */
+	public synchronized int find(long time) {
+		int lo = 0;
+		int hi = points.size() - 1;
+		int found = -1;
+		while (lo <= hi) {
+			int mid = (lo + hi) >>> 1;
+			if (points.get(mid).time <= time) {
+				found = mid;
+				lo = mid + 1;
+			} else {
+				hi = mid - 1;
+			}
+		}
+		return found;
+	}
+
+	/**
+	 * Rebuilds a recorded state.
+	 *
+	 * @param point Index of the state
+	 * @return State; created at the time it was recorded
+	 * @throws IllegalArgumentException if there's no such state
+	 */
+	public synchronized Snapshot getState(int point) throws IOException {
+		checkPoint(point);
+		if (point == points.size() - 1 && latest != null)
+			return latest;
+		return rebuild(point, null, -1);
+	}
+
+	/**
+	 * Compares two recorded states.
+	 *
+	 * @param from Index of the older state
+	 * @param to Index of the newer state
+	 * @return Differences going from 'from' to 'to'
+	 * @throws IllegalArgumentException if there's no such state
+	 */
+	public synchronized SnapshotDiff diff(int from, int to) throws IOException {
+		checkPoint(from);
+		checkPoint(to);
+		Snapshot a = getState(from);
+		Snapshot b = from < to ? rebuild(to, a, from) : getState(to);
+		return SnapshotDiff.compute(a, b);
+	}
+
+	private void checkPoint(int point) {
+		if (point < 0 || point >= points.size())
+			throw new IllegalArgumentException("No state #" + point);
+	}
+
+	/**
+	 * Index of the last keyframe at or before a state.
+	 *
+	 * @param point Index of the state
+	 * @return Index; -1 if none
+	 */
+	private int lastKeyframe(int point) {
+		int k = point;
+		while (k >= 0 && !points.get(k).keyframe)
+			k--;
+		return k;
+	}
+
+	/**
+	 * Rebuilds a state from the keyframe before it, or from a known earlier
+	 * state if there's no keyframe in between.
+	 *
+	 * @param point Index of the state
+	 * @param base Known state; null if none
+	 * @param basePoint Index of 'base'
+	 * @return State
+	 */
+	private Snapshot rebuild(int point, Snapshot base, int basePoint) throws IOException {
+		int k = lastKeyframe(point);
+		int start;
+		Snapshot state;
+		if (base != null && basePoint >= k && basePoint <= point) {
+			start = basePoint + 1;
+			state = base;
+		} else {
+			if (k < 0)
+				throw new IOException("No keyframe before state #" + point);
+			start = k;
+			state = null;
+		}
+		if (start > point)
+			return state;
+		FileInputStream in = new FileInputStream(file);
+		try {
+			in.getChannel().position(points.get(start).offset);
+			ByteSource source = new ByteSource(in);
+			byte[] check = new byte[4];
+			for (int i = start; i <= point; i++) {
+				source.readVarInt();
+				state = apply(state, source);
+				source.readBytes(check, 0, check.length);
+			}
+			return state;
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Reads a record body and applies it to a state.
+	 *
+	 * @param state State before; may be null before a keyframe
+	 * @param source Input positioned at the body
+	 * @return State after
+	 */
+	private static Snapshot apply(Snapshot state, ByteSource source) throws IOException {
+		int kind = source.readByte();
+		long time = source.readVarLong();
+		int n = source.readVarInt();
+		int added = source.readVarInt();
+		int removed = source.readVarInt();
+		int changed = source.readVarInt();
+		String[] names = new String[n];
+		String[] versions = new String[n];
+		String[] repos = new String[n];
+		byte[] reasons = new byte[n];
+		if (kind == KEYFRAME) {
+			for (int i = 0; i < n; i++) {
+				names[i] = source.readString();
+				versions[i] = source.readString();
+				repos[i] = source.readString();
+				reasons[i] = (byte) source.readByte();
+			}
+			return new Snapshot(time, names, versions, repos, reasons);
+		}
+		if (state == null)
+			throw new IOException("Delta without a keyframe");
+
+		String[] gone = new String[removed];
+		for (int i = 0; i < removed; i++)
+			gone[i] = source.readString();
+		// Merge the state, less removed packages, with the upserted ones
+		int m = 0;
+		int r = 0;
+		int j = 0;
+		String next = null;
+		int upserts = added + changed;
+		for (int u = 0; u <= upserts; u++) {
+			next = u < upserts ? source.readString() : null;
+			for (; j < state.size() && (next == null || state.getName(j).compareTo(next) <= 0); j++) {
+				String name = state.getName(j);
+				if (r < removed && gone[r].equals(name)) {
+					r++;
+					continue;
+				}
+				if (name.equals(next))
+					continue;
+				if (m == n)
+					throw new IOException("Delta doesn't match its state");
+				names[m] = name;
+				versions[m] = state.getVersion(j);
+				repos[m] = state.getRepo(j);
+				reasons[m++] = (byte) state.getReason(j);
+			}
+			if (next != null) {
+				if (m == n)
+					throw new IOException("Delta doesn't match its state");
+				names[m] = next;
+				versions[m] = source.readString();
+				repos[m] = source.readString();
+				reasons[m++] = (byte) source.readByte();
+			}
+		}
+		if (m != n)
+			throw new IOException("Delta doesn't match its state");
+		return new Snapshot(time, names, versions, repos, reasons);
+	}
+
+	/**
+	 * Encodes a state as a framed record.
+	 *
+	 * @param keyframe Whether to write it in full
+	 * @param state State
+	 * @param d Delta against the previous state
+	 * @return Record
+	 */
+	private static byte[] encode(boolean keyframe, Snapshot state, Delta d) throws IOException {
+		ByteArrayOutputStream body = new ByteArrayOutputStream();
+		ByteSink sink = new ByteSink(body, 4096);
+		sink.writeByte(keyframe ? KEYFRAME : DELTA);
+		sink.writeVarLong(state.getCreated());
+		sink.writeVarLong(state.size());
+		sink.writeVarLong(d.added.length);
+		sink.writeVarLong(d.removed.length);
+		sink.writeVarLong(d.changed.length);
+		if (keyframe) {
+			for (int i = 0; i < state.size(); i++)
+				writePackage(state, i, sink);
+		} else {
+			for (String name : d.removed)
+				sink.writeString(name);
+			// Added and changed packages in name order, i.e. by index
+			int a = 0;
+			int c = 0;
+			while (a < d.added.length || c < d.changed.length) {
+				if (c == d.changed.length || (a < d.added.length && d.added[a] < d.changed[c]))
+					writePackage(state, d.added[a++], sink);
+				else
+					writePackage(state, d.changed[c++], sink);
+			}
+		}
+		sink.flush();
+
+		byte[] b = body.toByteArray();
+		CRC32 crc = new CRC32();
+		crc.update(b);
+		ByteArrayOutputStream frame = new ByteArrayOutputStream(b.length + 9);
+		sink = new ByteSink(frame, 16);
+		sink.writeVarLong(b.length);
+		sink.writeBytes(b, 0, b.length);
+		int v = (int) crc.getValue();
+		sink.writeByte(v >>> 24);
+		sink.writeByte(v >>> 16);
+		sink.writeByte(v >>> 8);
+		sink.writeByte(v);
+		sink.flush();
+		return frame.toByteArray();
+	}
+
+	private static void writePackage(Snapshot state, int i, ByteSink sink) throws IOException {
+		sink.writeString(state.getName(i));
+		sink.writeString(state.getVersion(i));
+		sink.writeString(state.getRepo(i));
+		sink.writeByte(state.getReason(i));
+	}
+
+	private static int readInt(byte[] b) {
+		return ((b[0] & 0xff) << 24) | ((b[1] & 0xff) << 16) | ((b[2] & 0xff) << 8) | (b[3] & 0xff);
+	}
+
+	private static int varIntLength(long v) {
+		int n = 1;
+		while ((v & ~0x7fL) != 0) {
+			v >>>= 7;
+			n++;
+		}
+		return n;
+	}
+
+	/**
+	 * Differences between two states, found with a single merge of the
+	 * name-sorted packages
+	 */
+	private static class Delta {
+
+		/** Indexes of added packages in the newer state */
+		private final int[] added;
+		/** Names of removed packages */
+		private final String[] removed;
+		/** Indexes of changed packages in the newer state */
+		private final int[] changed;
+
+		/**
+		 * Constructor
+		 *
+		 * @param from Older state; null for none
+		 * @param to Newer state
+		 */
+		Delta(Snapshot from, Snapshot to) {
+			int n = from == null ? 0 : from.size();
+			int m = to.size();
+			int[] a = new int[m];
+			int[] c = new int[m];
+			String[] r = new String[n];
+			int na = 0;
+			int nc = 0;
+			int nr = 0;
+			int i = 0;
+			int j = 0;
+			while (i < n || j < m) {
+				int cmp = i == n ? 1 : j == m ? -1 : from.getName(i).compareTo(to.getName(j));
+				if (cmp < 0) {
+					r[nr++] = from.getName(i++);
+				} else if (cmp > 0) {
+					a[na++] = j++;
+				} else {
+					if (!from.getVersion(i).equals(to.getVersion(j))
+							|| !from.getRepo(i).equals(to.getRepo(j))
+							|| from.getReason(i) != to.getReason(j))
+						c[nc++] = j;
+					i++;
+					j++;
+				}
+			}
+			added = Arrays.copyOf(a, na);
+			changed = Arrays.copyOf(c, nc);
+			removed = Arrays.copyOf(r, nr);
+		}
+
+		boolean isEmpty() {
+			return size() == 0;
+		}
+
+		int size() {
+			return added.length + removed.length + changed.length;
+		}
+	}
+
+	/**
+	 * A recorded state
+	 */
+	public static class Point {
+
+		private final int index;
+		/** Milliseconds since the epoch */
+		private final long time;
+		/** Whether stored in full */
+		private final boolean keyframe;
+		/** Number of packages */
+		private final int packages;
+		/** Packages added since the previous state */
+		private final int added;
+		/** Packages removed since the previous state */
+		private final int removed;
+		/** Packages changed since the previous state */
+		private final int changed;
+		/** Offset of the record in the file */
+		private final long offset;
+
+		Point(int index, long time, boolean keyframe, int packages, int added, int removed,
+				int changed, long offset) {
+			this.index = index;
+			this.time = time;
+			this.keyframe = keyframe;
+			this.packages = packages;
+			this.added = added;
+			this.removed = removed;
+			this.changed = changed;
+			this.offset = offset;
+		}
+
+		public int getIndex() {
+			return index;
+		}
+
+		/**
+		 * @return Milliseconds since the epoch
+		 */
+		public long getTime() {
+			return time;
+		}
+
+		public boolean isKeyframe() {
+			return keyframe;
+		}
+
+		public int getPackages() {
+			return packages;
+		}
+
+		public int getAdded() {
+			return added;
+		}
+
+		public int getRemoved() {
+			return removed;
+		}
+
+		public int getChanged() {
+			return changed;
+		}
+	}
+}
@@ -0,0 +1,330 @@
+/*
+ * Karun, a package manager for ArchLinux based on 'pacman'.
+ * Copyright (C) 2011  Bahman Movaqar
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, 
+ * USA.
+ */
+package com.bahmanm.karun;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * StringArena
+ *
+ * Append-only store of strings outside the Java heap, for the low-memory
+ * mode.  Records of one or more strings are kept as varint length plus UTF-8
+ * bytes per string in chunks of memory-mapped temp files; the heap only holds
+ * a handle or a Ref per record.  Each chunk's file is deleted as soon as it's
+ * mapped, so the space is given back once the arena is garbage collected.
+ * Unlike direct buffers, mapped files don't count against
+ * -XX:MaxDirectMemorySize, which defaults to the (small) heap size.
+ *
+ * Recently decoded strings are cached on the heap up to a budget, so that
+ * e.g. repainting a table doesn't decode the same rows over and over.
+ *
+ * Low-memory mode is enabled with -Dkarun.lowmem=true and the cache budget
+ * set with -Dkarun.lowmem.cache=<KiB>.
+ *
+ * @author Bahman Movaqar (Bahman AT BahmanM.com)
+ */
+public class StringArena {
+
+	/** Default budget of the decoded string cache in KiB */
+	public static final int DEFAULT_CACHE_SIZE = 256;
+	/** Size of a chunk; longer strings get a chunk of their own */
+	private static final int CHUNK_SIZE = 1024 * 1024;
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	/** Whether low-memory mode is on */
+	private static final boolean ENABLED = Boolean.getBoolean("karun.lowmem");
+	/** Chunks; replaced, never modified, when one is added */
+	private volatile ByteBuffer[] chunks = new ByteBuffer[0];
+	/** Position of the next string in the last chunk */
+	private int position;
+	/** Decoded strings by handle and field, least recently used first */
+	private final LinkedHashMap<Long, String> cache = new LinkedHashMap<Long, String>(64, 0.75f, true);
+	/** Chars held by 'cache' */
+	private long cachedChars;
+	/** Most chars 'cache' may hold */
+	private final long cacheBudget;
+
+	/**
+	 * Checks whether low-memory mode is on, i.e. large text fields should be
+	 * kept in arenas.
+	 *
+	 * @return true if so
+	 */
+	public static boolean isEnabled() {
+		return ENABLED;
+	}
+
+	/**
+	 * Constructor; the cache budget comes from 'karun.lowmem.cache'.
+	 */
+	public StringArena() {
+		this(Integer.getInteger("karun.lowmem.cache", DEFAULT_CACHE_SIZE) * 1024L);
+	}
+
+	/**
+	 * Constructor
+	 *
+	 * @param cacheBudget Bytes of decoded strings to keep on the heap
+	 */
+	public StringArena(long cacheBudget) {
+		this.cacheBudget = cacheBudget / 2; // two bytes a char
+	}
+
+	/**
+	 * Stores a record of strings.
+	 *
+	 * @param strings Strings, the fields of the record
+	 * @return Reference to it
+	 */
+	public Ref add(String... strings) {
+		return new Ref(this, put(strings));
+	}
+
+	/**
+	 * Stores a record of strings.
+	 *
+	 * @param strings Strings, the fields of the record
+	 * @return Handle
+	 */
+	synchronized long put(String... strings) {
+		byte[][] b = new byte[strings.length][];
+		int size = 0;
+		for (int i = 0; i < b.length; i++) {
+			b[i] = strings[i].getBytes(UTF8);
+			size += varIntSize(b[i].length) + b[i].length;
+		}
+		ByteBuffer[] c = chunks;
+		if (c.length == 0 || position + size > c[c.length - 1].capacity()) {
+			c = Arrays.copyOf(c, c.length + 1);
+			c[c.length - 1] = newChunk(Math.max(CHUNK_SIZE, size));
+			chunks = c;
+			position = 0;
+		}
+		ByteBuffer chunk = c[c.length - 1];
+		long handle = ((long) (c.length - 1) << 32) | position;
+		for (int i = 0; i < b.length; i++) {
+			int len = b[i].length;
+			while ((len & ~0x7f) != 0) {
+				chunk.put(position++, (byte) ((len & 0x7f) | 0x80));
+				len >>>= 7;
+			}
+			chunk.put(position++, (byte) len);
+			for (int j = 0; j < b[i].length; j++)
+				chunk.put(position++, b[i][j]);
+		}
+		return handle;
+	}
+
+	/**
+	 * Bytes used, including the unused ends of chunks.
+	 *
+	 * @return Size in bytes
+	 */
+	public long size() {
+		long n = 0;
+		for (ByteBuffer b : chunks)
+			n += b.capacity();
+		return n;
+	}
+
+	/**
+	 * Decodes a string.
+	 *
+	 * @param handle Handle of the record
+	 * @param field Index of the string in the record
+	 * @return String
+	 */
+	String get(long handle, int field) {
+		Long key = Long.valueOf(handle << 4 | field);
+		synchronized (cache) {
+			String s = cache.get(key);
+			if (s != null)
+				return s;
+		}
+		ByteBuffer chunk = chunks[(int) (handle >>> 32)];
+		int pos = seek(chunk, (int) handle, field);
+		int len = readVarInt(chunk, pos);
+		pos += varIntSize(len);
+		byte[] bytes = new byte[len];
+		for (int i = 0; i < len; i++)
+			bytes[i] = chunk.get(pos + i);
+		String s = new String(bytes, UTF8);
+		synchronized (cache) {
+			if (cache.put(key, s) == null)
+				cachedChars += s.length();
+			while (cachedChars > cacheBudget && !cache.isEmpty()) {
+				Map.Entry<Long, String> eldest = cache.entrySet().iterator().next();
+				cachedChars -= eldest.getValue().length();
+				cache.remove(eldest.getKey());
+			}
+		}
+		return s;
+	}
+
+	/**
+	 * Checks whether a string contains a sequence of bytes, without decoding
+	 * it.
+	 *
+	 * @param handle Handle of the record
+	 * @param field Index of the string in the record
+	 * @param utf8 UTF-8 bytes to look for
+	 * @return true if found
+	 */
+	boolean contains(long handle, int field, byte[] utf8) {
+		ByteBuffer chunk = chunks[(int) (handle >>> 32)];
+		int pos = seek(chunk, (int) handle, field);
+		int len = readVarInt(chunk, pos);
+		pos += varIntSize(len);
+		if (utf8.length == 0)
+			return true;
+		byte first = utf8[0];
+		int last = pos + len - utf8.length;
+		outer:
+		for (int i = pos; i <= last; i++) {
+			if (chunk.get(i) != first)
+				continue;
+			for (int j = 1; j < utf8.length; j++) {
+				if (chunk.get(i + j) != utf8[j])
+					continue outer;
+			}
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Maps a new chunk.  Falls back to a direct buffer if no temp file can
+	 * be mapped.
+	 *
+	 * @param size Size in bytes
+	 * @return Chunk
+	 */
+	private static ByteBuffer newChunk(int size) {
+		File f = null;
+		try {
+			f = File.createTempFile("karun-arena", null);
+			RandomAccessFile raf = new RandomAccessFile(f, "rw");
+			try {
+				raf.setLength(size);
+				// The mapping stays valid after the file is closed and deleted
+				return raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+			} finally {
+				raf.close();
+			}
+		} catch (IOException ex) {
+			Logger.getLogger(StringArena.class.getName()).log(Level.WARNING,
+					"Can't map a temp file; using direct memory", ex);
+			return ByteBuffer.allocateDirect(size);
+		} finally {
+			if (f != null)
+				f.delete();
+		}
+	}
+
+	/**
+	 * Skips to a field of a record.
+	 *
+	 * @param chunk Chunk
+	 * @param pos Position of the record
+	 * @param field Index of the field
+	 * @return Position of the field
+	 */
+	private static int seek(ByteBuffer chunk, int pos, int field) {
+		for (int i = 0; i < field; i++) {
+			int len = readVarInt(chunk, pos);
+			pos += varIntSize(len) + len;
+		}
+		return pos;
+	}
+
+	private static int readVarInt(ByteBuffer chunk, int pos) {
+		int v = 0;
+		for (int shift = 0;; shift += 7) {
+			int b = chunk.get(pos++);
+			v |= (b & 0x7f) << shift;
+			if ((b & 0x80) == 0)
+				return v;
+		}
+	}
+
+	private static int varIntSize(int v) {
+		int n = 1;
+		while ((v & ~0x7f) != 0) {
+			v >>>= 7;
+			n++;
+		}
+		return n;
+	}
+
+	/**
+	 * Reference to a record in an arena.  It stands in for the record's
+	 * first string where a CharSequence will do, e.g. as a table cell value,
+	 * decoding it when needed.
+	 */
+	public static final class Ref implements CharSequence {
+
+		private final StringArena arena;
+		private final long handle;
+
+		Ref(StringArena arena, long handle) {
+			this.arena = arena;
+			this.handle = handle;
+		}
+
+		/**
+		 * Decodes a string of the record.
+		 *
+		 * @param field Index of the string
+		 * @return String
+		 */
+		public String get(int field) {
+			return arena.get(handle, field);
+		}
+
+		@Override
+		public int length() {
+			return toString().length();
+		}
+
+		@Override
+		public char charAt(int index) {
+			return toString().charAt(index);
+		}
+
+		@Override
+		public CharSequence subSequence(int start, int end) {
+			return toString().subSequence(start, end);
+		}
+
+		@Override
+		public String toString() {
+			return arena.get(handle, 0);
+		}
+	}
+}
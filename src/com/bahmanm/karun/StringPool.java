@@ -0,0 +1,115 @@
+/*
+ * Karun, a package manager for ArchLinux based on 'pacman'.
+ * Copyright (C) 2011  Bahman Movaqar
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, 
+ * USA.
+ */
+package com.bahmanm.karun;
+
+import java.lang.ref.WeakReference;
+import java.util.WeakHashMap;
+
+/**
+ * StringPool
+ *
+ * Thread-safe pool of canonical strings.  Package names, versions,
+ * descriptions, dependencies and checksums repeat across package roots
+ * (containers, chroots) and across reloads of the same root; interning them
+ * here keeps one copy of each.
+ *
+ * Strings are held weakly, so those no longer used by any collection are
+ * dropped by the garbage collector.  The pool is split into segments, each
+ * with its own lock, so roots loading in parallel rarely wait for each
+ * other.
+ *
+ * @author Bahman Movaqar (Bahman AT BahmanM.com)
+ */
+public class StringPool {
+
+	/** Number of segments; a power of two */
+	private static final int SEGMENTS = 16;
+	/** Pool shared by all collections unless told otherwise */
+	private static final StringPool defaultPool = new StringPool();
+	/** Segments, chosen by hash */
+	private final Segment[] segments = new Segment[SEGMENTS];
+
+	/**
+	 * Constructor
+	 */
+	public StringPool() {
+		for (int i = 0; i < SEGMENTS; i++)
+			segments[i] = new Segment();
+	}
+
+	/**
+	 * Pool shared by all collections unless told otherwise.
+	 *
+	 * @return Pool
+	 */
+	public static StringPool getDefault() {
+		return defaultPool;
+	}
+
+	/**
+	 * Returns the canonical instance of a string.
+	 *
+	 * @param s String; may be null
+	 * @return Equal string from the pool, 's' if there was none
+	 */
+	public String intern(String s) {
+		if (s == null)
+			return null;
+		int h = s.hashCode();
+		h ^= (h >>> 16);
+		return segments[h & (SEGMENTS - 1)].intern(s);
+	}
+
+	/**
+	 * Number of strings in the pool, including some which may have just been
+	 * collected.
+	 *
+	 * @return Size
+	 */
+	public int size() {
+		int n = 0;
+		for (Segment s : segments)
+			n += s.size();
+		return n;
+	}
+
+	/**
+	 * Part of the pool with its own lock
+	 */
+	private static class Segment {
+
+		private final WeakHashMap<String, WeakReference<String>> map =
+				new WeakHashMap<String, WeakReference<String>>();
+
+		synchronized String intern(String s) {
+			WeakReference<String> ref = map.get(s);
+			String canonical = ref == null ? null : ref.get();
+			if (canonical == null) {
+				map.put(s, new WeakReference<String>(s));
+				canonical = s;
+			}
+			return canonical;
+		}
+
+		synchronized int size() {
+			return map.size();
+		}
+	}
+}
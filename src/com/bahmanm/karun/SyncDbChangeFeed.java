@@ -0,0 +1,229 @@
+/*
+ * Karun, a package manager for ArchLinux based on 'pacman'.
+ * Copyright (C) 2011  Bahman Movaqar
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, 
+ * USA.
+ */
+package com.bahmanm.karun;
+
+import com.bahmanm.karun.PackageCollection.Package;
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveInputStream;
+
+/**
+ * SyncDbChangeFeed
+ *
+ * Tells what changed in a repository since its sync database was last
+ * looked at: new, updated and removed packages.
+ *
+ * The previous state of each repository is kept as a snapshot of names and
+ * versions in '~/.karun/feed', in a directory per DB path so that roots with
+ * repositories of the same name, e.g. containers, don't share them.  The new
+ * state is taken from the entry names of the '.db' archive
+ * ('name-pkgver-pkgrel/desc') while it streams through, without extracting it
+ * or reading any 'desc' file, and compared with the previous one by a single
+ * merge (see SnapshotDiff).
+ *
+ * @author Bahman Movaqar (Bahman AT BahmanM.com)
+ */
+public class SyncDbChangeFeed {
+
+	/** Directory in Karun's directory holding the snapshots */
+	private static final String FEED_DIR = "feed";
+	/** Pacman's DB path */
+	private final String dbPath;
+
+	/**
+	 * Constructor
+	 *
+	 * @param dbPath Pacman's DB path
+	 */
+	public SyncDbChangeFeed(String dbPath) {
+		this.dbPath = dbPath;
+	}
+
+	/**
+	 * Compares the sync databases of repositories with their state as of the
+	 * last call and remembers the new state.
+	 *
+	 * @param repos Repositories
+	 * @return Change set per repository, in the same order
+	 */
+	public List<ChangeSet> update(List<String> repos) throws IOException {
+		ArrayList<ChangeSet> changes = new ArrayList<ChangeSet>();
+		for (String repo : repos)
+			changes.add(update(repo));
+		return changes;
+	}
+
+	/**
+	 * Compares the sync database of a repository with its state as of the last
+	 * call and remembers the new state.
+	 *
+	 * @param repo Repository
+	 * @return Change set
+	 */
+	public ChangeSet update(String repo) throws IOException {
+		Snapshot current = readDbArchive(repo, new File(dbPath + "/sync/" + repo + ".db"));
+		String key = Integer.toHexString(new File(dbPath).getAbsolutePath().hashCode());
+		File dir = new File(new File(Utils.getKarunDir(), FEED_DIR), key);
+		if (!dir.isDirectory() && !dir.mkdirs())
+			throw new IOException("Failed to create directory " + dir.getAbsolutePath());
+		File state = new File(dir, repo + ".snap");
+
+		Snapshot previous = null;
+		if (state.exists()) {
+			InputStream in = new BufferedInputStream(new FileInputStream(state));
+			try {
+				previous = Snapshot.read(in);
+			} catch (IOException ex) {
+				previous = null; // unreadable, start over
+			} finally {
+				in.close();
+			}
+		}
+
+		File tmp = new File(dir, repo + ".snap.tmp");
+		OutputStream out = new FileOutputStream(tmp);
+		try {
+			current.write(out);
+		} finally {
+			out.close();
+		}
+		if (!tmp.renameTo(state))
+			throw new IOException("Can't replace " + state);
+
+		if (previous == null)
+			return new ChangeSet(repo, current.size(), null);
+		return new ChangeSet(repo, current.size(), SnapshotDiff.compute(previous, current));
+	}
+
+	/**
+	 * Takes a snapshot of a sync database from the names of its entries.
+	 *
+	 * @param repo Repository
+	 * @param db '.db' archive
+	 * @return Snapshot
+	 */
+	private static Snapshot readDbArchive(String repo, File db) throws IOException {
+		ArrayList<Package> packages = new ArrayList<Package>();
+		HashSet<String> seen = new HashSet<String>();
+		TarArchiveInputStream tar = new TarArchiveInputStream(Decompressor.open(db));
+		try {
+			TarArchiveEntry entry;
+			while ((entry = tar.getNextTarEntry()) != null) {
+				String name = entry.getName();
+				int slash = name.indexOf('/');
+				String dir = slash < 0 ? name : name.substring(0, slash);
+				if (dir.length() == 0 || !seen.add(dir))
+					continue;
+				Package p = parseEntryName(dir);
+				if (p != null) {
+					p.setRepo(repo);
+					packages.add(p);
+				}
+			}
+		} finally {
+			tar.close();
+		}
+		return Snapshot.of(packages);
+	}
+
+	/**
+	 * Splits a database entry name into package name and version.
+	 *
+	 * @param dir Entry name, e.g. 'xorg-server-1:1.10.4-1'
+	 * @return Package with name and repo version, or null if malformed
+	 */
+	private static Package parseEntryName(String dir) {
+		int rel = dir.lastIndexOf('-');
+		int ver = rel > 0 ? dir.lastIndexOf('-', rel - 1) : -1;
+		if (ver <= 0)
+			return null;
+		Package p = new Package();
+		p.setName(dir.substring(0, ver));
+		p.setRepoVersion(dir.substring(ver + 1));
+		return p;
+	}
+
+	/**
+	 * What changed in a repository
+	 */
+	public static class ChangeSet {
+
+		private final String repo;
+		/** Number of packages now in the repository */
+		private final int size;
+		/** Differences; null if there was no previous state to compare with */
+		private final SnapshotDiff diff;
+
+		ChangeSet(String repo, int size, SnapshotDiff diff) {
+			this.repo = repo;
+			this.size = size;
+			this.diff = diff;
+		}
+
+		public String getRepo() {
+			return repo;
+		}
+
+		/**
+		 * Differences.
+		 *
+		 * @return Differences; null if the repository was seen the first time
+		 */
+		public SnapshotDiff getDiff() {
+			return diff;
+		}
+
+		public boolean isEmpty() {
+			return diff != null && diff.isEmpty();
+		}
+
+		/**
+		 * One line summary, e.g. "42 packages updated in extra, 3 new".
+		 *
+		 * @return Summary
+		 */
+		public String getSummary() {
+			if (diff == null)
+				return size + " packages in " + repo + " (first look)";
+			if (diff.isEmpty())
+				return "No changes in " + repo;
+			int updated = diff.getEntries(SnapshotDiff.Kind.UPGRADED).size()
+					+ diff.getEntries(SnapshotDiff.Kind.DOWNGRADED).size();
+			int added = diff.getEntries(SnapshotDiff.Kind.ADDED).size();
+			int removed = diff.getEntries(SnapshotDiff.Kind.REMOVED).size();
+			StringBuilder sb = new StringBuilder();
+			sb.append(updated).append(" packages updated in ").append(repo);
+			if (added > 0)
+				sb.append(", ").append(added).append(" new");
+			if (removed > 0)
+				sb.append(", ").append(removed).append(" removed");
+			return sb.toString();
+		}
+	}
+}
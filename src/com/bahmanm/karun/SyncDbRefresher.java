@@ -0,0 +1,319 @@
+/*
+ * Karun, a package manager for ArchLinux based on 'pacman'.
+ * Copyright (C) 2011  Bahman Movaqar
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, 
+ * USA.
+ */
+package com.bahmanm.karun;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.apache.commons.compress.utils.IOUtils;
+
+/**
+ * SyncDbRefresher
+ *
+ * Downloads the sync databases ('DBPath/sync/repo.db') of all repositories
+ * at once, like 'pacman -Sy' does one by one.
+ *
+ * Every request is conditional: 'If-Modified-Since' is the modification time
+ * of the local copy, which is set to the server's 'Last-Modified', and
+ * 'If-None-Match' the ETag remembered from the last download.  So refreshing
+ * unchanged databases takes one round trip per repository.  A download is
+ * written to a temporary file next to the database and renamed over it only
+ * when complete.  Like pacman, the refresh holds the database lock
+ * ('DBPath/db.lck') throughout, so it doesn't run while pacman does.
+ *
+ * @author Bahman Movaqar (Bahman AT BahmanM.com)
+ */
+public class SyncDbRefresher {
+
+	/** Default number of databases downloaded at once */
+	public static final int DEFAULT_PARALLELISM = 8;
+	/** Default connect and read timeout, in milliseconds */
+	public static final int DEFAULT_TIMEOUT = 10000;
+	/** File in Karun's directory remembering ETags */
+	private static final String ETAGS_FILE = "etags.properties";
+	/** Pacman's lock file in DBPath */
+	private static final String LOCK_FILE = "db.lck";
+	private final PacmanConfHelper conf;
+	/** Number of databases downloaded at once */
+	private final int parallelism;
+	/** Connect and read timeout, in milliseconds */
+	private final int timeout;
+	/** ETags by database file path */
+	private final Properties etags = new Properties();
+
+	/**
+	 * Constructor
+	 *
+	 * @param conf Configuration, for servers and DBPath
+	 * @param parallelism Number of databases downloaded at once
+	 * @param timeout Connect and read timeout, in milliseconds
+	 */
+	public SyncDbRefresher(PacmanConfHelper conf, int parallelism, int timeout) {
+		this.conf = conf;
+		this.parallelism = Math.max(1, parallelism);
+		this.timeout = timeout;
+	}
+
+	/**
+	 * Refreshes the databases of some repositories.  If pacman holds the
+	 * database lock, all of them fail.
+	 *
+	 * @param repos Repositories
+	 * @return Outcome per repository, in the same order
+	 */
+	public List<Result> refresh(List<String> repos) throws InterruptedException, IOException {
+		File lock = new File(conf.getDbPath(), LOCK_FILE);
+		if (!lock.createNewFile()) {
+			ArrayList<Result> results = new ArrayList<Result>();
+			for (String repo : repos) {
+				results.add(new Result(repo, Status.FAILED, "unable to lock database "
+						+ lock + " (is pacman running?)"));
+			}
+			return results;
+		}
+		// No deleteOnExit(): by exit time the file may be pacman's own lock
+		try {
+			return refreshLocked(repos);
+		} finally {
+			lock.delete();
+		}
+	}
+
+	/**
+	 * Refreshes the databases of some repositories, holding the lock.
+	 *
+	 * @param repos Repositories
+	 * @return Outcome per repository, in the same order
+	 */
+	private List<Result> refreshLocked(List<String> repos) throws InterruptedException, IOException {
+		loadEtags();
+		ArrayList<Callable<Result>> tasks = new ArrayList<Callable<Result>>();
+		for (final String repo : repos) {
+			tasks.add(new Callable<Result>() {
+
+				@Override
+				public Result call() {
+					return refresh(repo);
+				}
+			});
+		}
+		ExecutorService executor = Executors.newFixedThreadPool(
+				Math.max(1, Math.min(parallelism, repos.size())),
+				Utils.daemonThreadFactory("karun-refresh"));
+		ArrayList<Result> results = new ArrayList<Result>();
+		try {
+			List<Future<Result>> futures = executor.invokeAll(tasks);
+			for (int i = 0; i < futures.size(); i++) {
+				try {
+					results.add(futures.get(i).get());
+				} catch (ExecutionException ex) {
+					results.add(new Result(repos.get(i), Status.FAILED, String.valueOf(ex.getCause())));
+				}
+			}
+		} finally {
+			executor.shutdownNow();
+		}
+		saveEtags();
+		return results;
+	}
+
+	/**
+	 * Names of the repositories whose database changed.
+	 *
+	 * @param results Results as returned by refresh
+	 * @return Repository names
+	 */
+	public static List<String> getUpdated(List<Result> results) {
+		ArrayList<String> updated = new ArrayList<String>();
+		for (Result r : results) {
+			if (r.status == Status.UPDATED)
+				updated.add(r.repo);
+		}
+		return updated;
+	}
+
+	/**
+	 * Refreshes one database, trying its servers in order.
+	 *
+	 * @param repo Repository
+	 * @return Result
+	 */
+	private Result refresh(String repo) {
+		List<String> servers = conf.getServers(repo);
+		if (servers.isEmpty())
+			return new Result(repo, Status.FAILED, "no servers configured");
+		File db = new File(conf.getDbPath() + "/sync/" + repo + ".db");
+		String error = null;
+		for (String server : servers) {
+			String url = conf.expandServer(server, repo) + "/" + repo + ".db";
+			try {
+				return download(repo, url, db);
+			} catch (IOException ex) {
+				Logger.getLogger(SyncDbRefresher.class.getName()).log(Level.INFO,
+						"Failed to refresh {0} from {1}: {2}", new Object[]{repo, url, ex});
+				error = ex.toString();
+			}
+		}
+		return new Result(repo, Status.FAILED, error);
+	}
+
+	/**
+	 * Downloads a database unless it's unchanged.
+	 *
+	 * @param repo Repository
+	 * @param url URL of the database
+	 * @param db Local database file
+	 * @return Result
+	 * @throws IOException if the server failed
+	 */
+	private Result download(String repo, String url, File db) throws IOException {
+		HttpURLConnection conn = Utils.openHttpConnection(url, timeout);
+		try {
+			if (db.exists()) {
+				conn.setIfModifiedSince(db.lastModified());
+				String etag = getEtag(db);
+				if (etag != null)
+					conn.setRequestProperty("If-None-Match", etag);
+			}
+			int code = conn.getResponseCode();
+			if (code == HttpURLConnection.HTTP_NOT_MODIFIED)
+				return new Result(repo, Status.NOT_MODIFIED, null);
+			if (code != HttpURLConnection.HTTP_OK)
+				throw new IOException("HTTP " + code + " for " + url);
+
+			File dir = db.getParentFile();
+			if (!dir.isDirectory() && !dir.mkdirs())
+				throw new IOException("Can't create " + dir);
+			File part = File.createTempFile(repo + ".db.", ".part", dir);
+			try {
+				InputStream in = conn.getInputStream();
+				OutputStream out = new FileOutputStream(part);
+				try {
+					IOUtils.copy(in, out, 64 * 1024);
+				} finally {
+					out.close();
+					in.close();
+				}
+				long length = conn.getContentLength();
+				if (length >= 0 && part.length() != length)
+					throw new IOException("Truncated download of " + url);
+				if (conn.getLastModified() > 0)
+					part.setLastModified(conn.getLastModified());
+				if (!part.renameTo(db))
+					throw new IOException("Can't replace " + db);
+			} finally {
+				part.delete();
+			}
+			setEtag(db, conn.getHeaderField("ETag"));
+			return new Result(repo, Status.UPDATED, null);
+		} finally {
+			conn.disconnect();
+		}
+	}
+
+	private synchronized String getEtag(File db) {
+		return etags.getProperty(db.getAbsolutePath());
+	}
+
+	private synchronized void setEtag(File db, String etag) {
+		if (etag == null)
+			etags.remove(db.getAbsolutePath());
+		else
+			etags.setProperty(db.getAbsolutePath(), etag);
+	}
+
+	/**
+	 * Loads remembered ETags.
+	 */
+	private synchronized void loadEtags() throws IOException {
+		File f = new File(Utils.getKarunDir(), ETAGS_FILE);
+		if (!f.exists())
+			return;
+		InputStream in = new FileInputStream(f);
+		try {
+			etags.load(in);
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Saves ETags for the next refresh.
+	 */
+	private synchronized void saveEtags() throws IOException {
+		OutputStream out = new FileOutputStream(new File(Utils.getKarunDir(), ETAGS_FILE));
+		try {
+			etags.store(out, "Karun: ETags of sync databases");
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * What happened to a database
+	 */
+	public enum Status {
+
+		UPDATED, NOT_MODIFIED, FAILED
+	}
+
+	/**
+	 * Outcome of refreshing a database
+	 */
+	public static class Result {
+
+		private final String repo;
+		private final Status status;
+		/** Why it failed; null if it didn't */
+		private final String error;
+
+		Result(String repo, Status status, String error) {
+			this.repo = repo;
+			this.status = status;
+			this.error = error;
+		}
+
+		public String getRepo() {
+			return repo;
+		}
+
+		public Status getStatus() {
+			return status;
+		}
+
+		public String getError() {
+			return error;
+		}
+	}
+}
@@ -0,0 +1,529 @@
+/*
+ * Karun, a package manager for ArchLinux based on 'pacman'.
+ * Copyright (C) 2011  Bahman Movaqar
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, 
+ * USA.
+ */
+package com.bahmanm.karun;
+
+import com.bahmanm.karun.PackageCollection.Package;
+import java.io.File;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * TransactionResolver
+ *
+ * Predicts what installing or upgrading packages would do, without touching
+ * the system: the packages pulled in as dependencies, upgraded, replaced or
+ * removed for conflicts, what can't be satisfied, and the download and
+ * installed sizes.
+ *
+ * The sync and local packages are indexed once, so resolving is a walk over
+ * the dependencies of what's coming in and cheap enough to redo whenever
+ * the targets change.  Like pacman, a dependency is first looked for in what
+ * is coming in and what stays installed, then in the repositories, preferring
+ * a package of that name over other providers.
+ *
+ * @author Bahman Movaqar (Bahman AT BahmanM.com)
+ */
+public class TransactionResolver {
+
+	/**
+	 * What happens to a package
+	 */
+	public enum Kind {
+
+		INSTALL, UPGRADE, DOWNGRADE, REINSTALL, REPLACE, REMOVE
+	}
+
+	/**
+	 * Step of a transaction
+	 */
+	public static class Step {
+
+		private final Kind kind;
+		/** Package coming in; for REPLACE and REMOVE the one causing it */
+		private final Package pkg;
+		/** Installed package affected; null for INSTALL */
+		private final Package old;
+		/** Whether 'pkg' was pulled in as a dependency */
+		private final boolean dependency;
+
+		Step(Kind kind, Package pkg, Package old, boolean dependency) {
+			this.kind = kind;
+			this.pkg = pkg;
+			this.old = old;
+			this.dependency = dependency;
+		}
+
+		public Kind getKind() {
+			return kind;
+		}
+
+		public Package getPackage() {
+			return pkg;
+		}
+
+		public Package getOld() {
+			return old;
+		}
+
+		public boolean isDependency() {
+			return dependency;
+		}
+
+		/**
+		 * Describes the step, e.g. 'upgrade foo 1.0-1 -> 1.1-1 [extra]'.
+		 */
+		@Override
+		public String toString() {
+			String repo = " [" + pkg.getRepo() + "]" + (dependency ? " (dependency)" : "");
+			switch (kind) {
+				case INSTALL:
+					return "install " + pkg.getName() + " " + pkg.getRepoVersion() + repo;
+				case UPGRADE:
+				case DOWNGRADE:
+					return kind.name().toLowerCase() + " " + pkg.getName() + " "
+							+ old.getRepoVersion() + " -> " + pkg.getRepoVersion() + repo;
+				case REINSTALL:
+					return "reinstall " + pkg.getName() + " " + pkg.getRepoVersion() + repo;
+				case REPLACE:
+					return "replace " + old.getName() + " " + old.getRepoVersion()
+							+ " with " + pkg.getName();
+				default:
+					return "remove " + old.getName() + " " + old.getRepoVersion()
+							+ " (conflicts with " + pkg.getName() + ")";
+			}
+		}
+	}
+
+	/**
+	 * Predicted transaction
+	 */
+	public static class Transaction {
+
+		private final List<Step> steps;
+		private final List<String> problems;
+		private final long downloadSize;
+		private final long installedSizeChange;
+
+		Transaction(List<Step> steps, List<String> problems, long downloadSize,
+				long installedSizeChange) {
+			this.steps = Collections.unmodifiableList(steps);
+			this.problems = Collections.unmodifiableList(problems);
+			this.downloadSize = downloadSize;
+			this.installedSizeChange = installedSizeChange;
+		}
+
+		/**
+		 * Steps: packages coming in, in the order they were resolved, then
+		 * the ones removed.
+		 */
+		public List<Step> getSteps() {
+			return steps;
+		}
+
+		/**
+		 * Unsatisfied dependencies and conflicts; the transaction would fail
+		 * unless empty.
+		 */
+		public List<String> getProblems() {
+			return problems;
+		}
+
+		/**
+		 * Bytes to download, not counting package files already cached.
+		 */
+		public long getDownloadSize() {
+			return downloadSize;
+		}
+
+		/**
+		 * Change of the installed size in bytes; negative if it shrinks.
+		 */
+		public long getInstalledSizeChange() {
+			return installedSizeChange;
+		}
+
+		/**
+		 * Counts the steps of a kind.
+		 *
+		 * @param kind Kind
+		 * @return Number of steps
+		 */
+		public int count(Kind kind) {
+			int n = 0;
+			for (Step s : steps) {
+				if (s.getKind() == kind)
+					n++;
+			}
+			return n;
+		}
+
+		/**
+		 * One line summary, e.g. '3 to install, 1 to upgrade; download
+		 * 1.2 MiB, installed size +4.0 MiB'.
+		 */
+		public String getSummary() {
+			StringBuilder sb = new StringBuilder();
+			appendCount(sb, count(Kind.INSTALL), "to install");
+			appendCount(sb, count(Kind.UPGRADE), "to upgrade");
+			appendCount(sb, count(Kind.DOWNGRADE), "to downgrade");
+			appendCount(sb, count(Kind.REINSTALL), "to reinstall");
+			appendCount(sb, count(Kind.REPLACE) + count(Kind.REMOVE), "to remove");
+			if (sb.length() == 0)
+				sb.append("nothing to do");
+			sb.append("; download ").append(Utils.formatSize(downloadSize));
+			sb.append(", installed size ").append(installedSizeChange < 0 ? "-" : "+");
+			sb.append(Utils.formatSize(Math.abs(installedSizeChange)));
+			if (!problems.isEmpty())
+				sb.append("; ").append(problems.size()).append(" problem(s)");
+			return sb.toString();
+		}
+
+		private static void appendCount(StringBuilder sb, int n, String what) {
+			if (n == 0)
+				return;
+			if (sb.length() > 0)
+				sb.append(", ");
+			sb.append(n).append(' ').append(what);
+		}
+	}
+
+	/** Sync packages by name, sorted */
+	private final TreeMap<String, Package> sync = new TreeMap<String, Package>();
+	/** Installed packages by name */
+	private final HashMap<String, Package> local;
+	private final ProvisionIndex syncIndex;
+	private final ProvisionIndex localIndex;
+	/** Installed packages by the names of their dependencies */
+	private final HashMap<String, List<Package>> dependents = new HashMap<String, List<Package>>();
+	/** Installed packages by the names they conflict with */
+	private final HashMap<String, List<Package>> conflicting = new HashMap<String, List<Package>>();
+	/** Package cache; null to count every download */
+	private final File cacheDir;
+
+	/**
+	 * Constructor
+	 *
+	 * @param collection Packages to resolve against, normally of '*all*'
+	 * @param cacheDir Package cache, e.g. '/var/cache/pacman/pkg'; null if
+	 *        cached files shouldn't be taken into account
+	 */
+	public TransactionResolver(PackageCollection collection, File cacheDir) {
+		this.cacheDir = cacheDir;
+		synchronized (collection) {
+			for (Package p : collection.getCollection().values()) {
+				if (p.getRepo().length() > 0)
+					sync.put(p.getName(), p);
+			}
+			local = new HashMap<String, Package>(collection.getLocalCollection());
+		}
+		syncIndex = new ProvisionIndex(sync.values());
+		localIndex = new ProvisionIndex(local.values());
+		for (Package q : local.values()) {
+			for (String dep : q.getDepends())
+				put(dependents, ProvisionIndex.parse(dep)[0], q);
+			for (String c : q.getConflicts())
+				put(conflicting, ProvisionIndex.parse(c)[0], q);
+		}
+	}
+
+	/**
+	 * Predicts a transaction.
+	 *
+	 * @param targets Names of the packages to install or upgrade; virtual
+	 *        names are resolved like dependencies
+	 * @param sysupgrade Whether to upgrade every outdated package and apply
+	 *        replacements too, like 'pacman -Su'
+	 * @return Transaction
+	 */
+	public Transaction resolve(Collection<String> targets, boolean sysupgrade) {
+		Run run = new Run();
+		ArrayList<String> problems = new ArrayList<String>();
+		for (String name : targets) {
+			Package p = sync.get(name);
+			if (p == null)
+				p = pick(name);
+			if (p == null)
+				problems.add("target not found: " + name);
+			else
+				run.add(p, false);
+		}
+		if (sysupgrade) {
+			for (Package p : sync.values()) {
+				Package q = local.get(p.getName());
+				if (q != null && Version.compare(q.getRepoVersion(), p.getRepoVersion()) < 0) {
+					run.add(p, false);
+				} else if (q == null) {
+					for (String r : p.getReplaces()) {
+						for (Package old : localIndex.resolve(r)) {
+							if (!old.getName().equals(p.getName()))
+								run.add(p, false);
+						}
+					}
+				}
+			}
+		}
+		run.complete();
+		run.check(problems);
+
+		ArrayList<Step> steps = new ArrayList<Step>(run.incoming.values());
+		steps.addAll(run.leaving.values());
+		long download = 0;
+		long installed = 0;
+		for (Step s : steps) {
+			if (s.getKind() == Kind.REPLACE || s.getKind() == Kind.REMOVE) {
+				installed -= s.getOld().getInstalledSize();
+				continue;
+			}
+			Package p = s.getPackage();
+			if (cacheDir == null || !new File(cacheDir, p.getFileName()).isFile())
+				download += p.getCompressedSize();
+			installed += p.getInstalledSize();
+			if (s.getOld() != null)
+				installed -= s.getOld().getInstalledSize();
+		}
+		return new Transaction(steps, problems, download, installed);
+	}
+
+	/**
+	 * Picks the repository package for a dependency: the one of that name if
+	 * it satisfies it, otherwise the first provider by name.
+	 *
+	 * @param dependency Dependency
+	 * @return Package; null if none
+	 */
+	private Package pick(String dependency) {
+		List<Package> candidates = syncIndex.resolve(dependency);
+		if (candidates.isEmpty())
+			return null;
+		String name = ProvisionIndex.parse(dependency)[0];
+		for (Package p : candidates) {
+			if (p.getName().equals(name))
+				return p;
+		}
+		return candidates.get(0);
+	}
+
+	/**
+	 * Names a package can be depended on or conflicted with by.
+	 */
+	private static List<String> names(Package p) {
+		ArrayList<String> l = new ArrayList<String>(p.getProvides().size() + 1);
+		l.add(p.getName());
+		for (String provision : p.getProvides())
+			l.add(ProvisionIndex.parse(provision)[0]);
+		return l;
+	}
+
+	private static void put(HashMap<String, List<Package>> map, String key, Package p) {
+		List<Package> l = map.get(key);
+		if (l == null) {
+			l = new ArrayList<Package>(2);
+			map.put(key, l);
+		}
+		l.add(p);
+	}
+
+	/**
+	 * State of one resolve() call
+	 */
+	private class Run {
+
+		/** Steps of packages coming in, by name */
+		final LinkedHashMap<String, Step> incoming = new LinkedHashMap<String, Step>();
+		/** Steps of installed packages going away, by name */
+		final LinkedHashMap<String, Step> leaving = new LinkedHashMap<String, Step>();
+		/** Packages whose dependencies are yet to be looked at */
+		final ArrayDeque<Package> queue = new ArrayDeque<Package>();
+
+		/**
+		 * Adds a package coming in, along with what it replaces or conflicts
+		 * with among the installed packages.
+		 *
+		 * @param p Sync package
+		 * @param dependency Whether it's pulled in as a dependency
+		 */
+		void add(Package p, boolean dependency) {
+			if (incoming.containsKey(p.getName()))
+				return;
+			Package q = local.get(p.getName());
+			Kind kind = Kind.INSTALL;
+			if (q != null) {
+				int c = Version.compare(p.getRepoVersion(), q.getRepoVersion());
+				kind = c > 0 ? Kind.UPGRADE : c < 0 ? Kind.DOWNGRADE : Kind.REINSTALL;
+			}
+			incoming.put(p.getName(), new Step(kind, p, q, dependency));
+			queue.add(p);
+
+			for (String r : p.getReplaces()) {
+				for (Package old : localIndex.resolve(r))
+					leave(Kind.REPLACE, p, old);
+			}
+			for (String c : p.getConflicts()) {
+				for (Package old : localIndex.resolve(c))
+					leave(Kind.REMOVE, p, old);
+			}
+			for (String name : names(p)) {
+				List<Package> l = conflicting.get(name);
+				if (l == null)
+					continue;
+				for (Package old : l) {
+					for (String c : old.getConflicts()) {
+						if (ProvisionIndex.satisfies(p, c))
+							leave(Kind.REMOVE, p, old);
+					}
+				}
+			}
+		}
+
+		/**
+		 * Marks an installed package as going away, unless it's the package
+		 * itself or is coming in anyway, in which case its new version
+		 * matters.
+		 */
+		void leave(Kind kind, Package p, Package old) {
+			String name = old.getName();
+			if (!name.equals(p.getName()) && !incoming.containsKey(name) && !leaving.containsKey(name))
+				leaving.put(name, new Step(kind, p, old, false));
+		}
+
+		/**
+		 * Pulls in dependencies until every package coming in has its
+		 * dependencies satisfied or nothing can satisfy them.
+		 */
+		void complete() {
+			boolean changed = true;
+			while (changed) {
+				while (!queue.isEmpty()) {
+					Package p = queue.poll();
+					for (String dep : p.getDepends())
+						pull(dep);
+				}
+				// Packages removed later may have satisfied earlier dependencies
+				changed = false;
+				for (Step s : new ArrayList<Step>(incoming.values())) {
+					for (String dep : s.getPackage().getDepends())
+						changed |= pull(dep);
+				}
+			}
+		}
+
+		/**
+		 * Pulls in a package for a dependency unless it's satisfied.
+		 *
+		 * @return true if a package was added
+		 */
+		boolean pull(String dep) {
+			if (isSatisfied(dep))
+				return false;
+			Package c = pick(dep);
+			if (c == null || incoming.containsKey(c.getName()))
+				return false;
+			add(c, true);
+			return true;
+		}
+
+		/**
+		 * Checks whether a dependency is satisfied after the transaction.
+		 */
+		boolean isSatisfied(String dep) {
+			for (Package q : localIndex.resolve(dep)) {
+				if (!incoming.containsKey(q.getName()) && !leaving.containsKey(q.getName()))
+					return true;
+			}
+			for (Package s : syncIndex.resolve(dep)) {
+				Step st = incoming.get(s.getName());
+				if (st != null && st.getPackage() == s)
+					return true;
+			}
+			return false;
+		}
+
+		/**
+		 * Finds unsatisfied dependencies, of packages coming in and of
+		 * installed packages which depended on something changing, and
+		 * conflicts among packages coming in.
+		 *
+		 * @param problems List to add problems to
+		 */
+		void check(List<String> problems) {
+			for (Step s : incoming.values()) {
+				Package p = s.getPackage();
+				for (String dep : p.getDepends()) {
+					if (!isSatisfied(dep))
+						problems.add("unsatisfied dependency: " + dep + " (required by " + p.getName() + ")");
+				}
+				Step l = leaving.get(p.getName());
+				if (l != null)
+					problems.add("conflict: " + p.getName() + " is installed but "
+							+ l.getPackage().getName() + (l.getKind() == Kind.REPLACE
+							? " replaces it" : " conflicts with it"));
+			}
+
+			HashSet<String> reported = new HashSet<String>();
+			for (Step s : incoming.values()) {
+				Package p = s.getPackage();
+				for (String c : p.getConflicts()) {
+					for (Package o : syncIndex.resolve(c)) {
+						Step st = incoming.get(o.getName());
+						if (st == null || st.getPackage() != o || o == p)
+							continue;
+						String a = p.getName();
+						String b = o.getName();
+						if (reported.add(a.compareTo(b) < 0 ? a + " " + b : b + " " + a))
+							problems.add("conflict: " + a + " and " + b + " can't be installed together");
+					}
+				}
+			}
+
+			// Installed packages which depended on something changing
+			HashSet<String> changing = new HashSet<String>();
+			for (Step s : incoming.values()) {
+				if (s.getOld() != null)
+					changing.addAll(names(s.getOld()));
+			}
+			for (Step s : leaving.values())
+				changing.addAll(names(s.getOld()));
+			HashSet<Package> checked = new HashSet<Package>();
+			for (String name : changing) {
+				List<Package> l = dependents.get(name);
+				if (l == null)
+					continue;
+				for (Package q : l) {
+					if (incoming.containsKey(q.getName()) || leaving.containsKey(q.getName())
+							|| !checked.add(q))
+						continue;
+					for (String dep : q.getDepends()) {
+						if (!isSatisfied(dep))
+							problems.add("unsatisfied dependency: " + dep + " (required by installed "
+									+ q.getName() + ")");
+					}
+				}
+			}
+		}
+	}
+}
@@ -20,21 +20,25 @@
 package com.bahmanm.karun;
 
 import java.awt.Frame;
-import java.io.BufferedInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLConnection;
+import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.UUID;
-import org.apache.commons.compress.archivers.ArchiveException;
-import org.apache.commons.compress.archivers.ArchiveInputStream;
-import org.apache.commons.compress.archivers.ArchiveStreamFactory;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
-import org.apache.commons.compress.compressors.gzip.GzipCompressorInputStream;
+import org.apache.commons.compress.archivers.tar.TarArchiveInputStream;
 import org.apache.commons.compress.utils.IOUtils;
+import org.apache.commons.io.FileUtils;
 
 /**
  * Utils
@@ -43,6 +47,24 @@ import org.apache.commons.compress.utils.IOUtils;
  */
 public class Utils {
 
+	/** Temporary directories not deleted yet; deleted when the JVM exits */
+	private static final HashSet<File> tempDirs = new HashSet<File>();
+
+	static {
+		Runtime.getRuntime().addShutdownHook(new Thread("karun-temp-cleanup") {
+
+			@Override
+			public void run() {
+				ArrayList<File> dirs;
+				synchronized (tempDirs) {
+					dirs = new ArrayList<File>(tempDirs);
+				}
+				for (File dir : dirs)
+					FileUtils.deleteQuietly(dir);
+			}
+		});
+	}
+
 	/**
 	 * Copies srcPath to destPath.
 	 * 
@@ -60,50 +82,59 @@ public class Utils {
 	}
 
 	/**
-	 * Extracts a gzip'ed tar archive.
+	 * Extracts a tar archive, compressed in any format Decompressor supports.
+	 * The archive is streamed straight from its file, without temporary
+	 * copies.  Archives may be extracted concurrently into different
+	 * directories.
 	 * 
 	 * @param archivePath Path to archive
 	 * @param destDir Destination directory
 	 * @throws IOException 
 	 */
-	public synchronized static void extractTarGz(String archivePath, File destDir) throws IOException, ArchiveException {
-		// copy
-		File tarGzFile = File.createTempFile("karuntargz", "", destDir);
-		copyFile(archivePath, tarGzFile.getAbsolutePath());
-
-		// decompress
-		File tarFile = File.createTempFile("karuntar", "", destDir);
-		FileInputStream fin = new FileInputStream(tarGzFile);
-		BufferedInputStream bin = new BufferedInputStream(fin);
-		FileOutputStream fout = new FileOutputStream(tarFile);
-		GzipCompressorInputStream gzIn = new GzipCompressorInputStream(bin);
-		final byte[] buffer = new byte[1024];
-		int n = 0;
-		while (-1 != (n = gzIn.read(buffer))) {
-			fout.write(buffer, 0, n);
-		}
-		bin.close();
-		fin.close();
-		gzIn.close();
-		fout.close();
-
-		// extract
-		final InputStream is = new FileInputStream(tarFile);
-		ArchiveInputStream ain = new ArchiveStreamFactory().createArchiveInputStream("tar", is);
-		TarArchiveEntry entry = null;
-		while ((entry = (TarArchiveEntry) ain.getNextEntry()) != null) {
-			OutputStream out;
-			if (entry.isDirectory()) {
+	public static void extractTar(String archivePath, File destDir) throws IOException {
+		File archive = new File(archivePath);
+		FlightEvents.Span span = FlightEvents.begin(FlightEvents.Kind.DECOMPRESS);
+		String format = span.isRecording() ? Decompressor.detect(archive).name().toLowerCase() : null;
+		TarArchiveInputStream tar = new TarArchiveInputStream(Decompressor.open(archive));
+		final byte[] buffer = new byte[64 * 1024];
+		long bytes = 0;
+		int entries = 0;
+		try {
+			TarArchiveEntry entry;
+			while ((entry = tar.getNextTarEntry()) != null) {
+				checkInterrupted();
+				entries++;
 				File f = new File(destDir, entry.getName());
-				f.mkdirs();
-				continue;
-			} else
-				out = new FileOutputStream(new File(destDir, entry.getName()));
-			IOUtils.copy(ain, out);
-			out.close();
+				if (entry.isDirectory()) {
+					f.mkdirs();
+					continue;
+				}
+				OutputStream out = new FileOutputStream(f);
+				try {
+					int n;
+					while ((n = tar.read(buffer)) >= 0) {
+						out.write(buffer, 0, n);
+						bytes += n;
+					}
+				} finally {
+					out.close();
+				}
+			}
+		} finally {
+			tar.close();
+			span.commit(archive.getName(), format, archive.length(), bytes, entries);
 		}
-		ain.close();
-		is.close();
+	}
+
+	/**
+	 * Lets long running work stop early when its thread is interrupted, e.g.
+	 * by Future.cancel(true).  The interrupt status is left set.
+	 * 
+	 * @throws InterruptedIOException if the current thread is interrupted
+	 */
+	public static void checkInterrupted() throws InterruptedIOException {
+		if (Thread.currentThread().isInterrupted())
+			throw new InterruptedIOException("Cancelled");
 	}
 
 	/**
@@ -133,7 +164,83 @@ public class Utils {
 	}
 	
 	/**
-	 * Creates a temporary directory.
+	 * Formats a size in bytes for humans, e.g. "12.3 MiB".
+	 *
+	 * @param bytes Size in bytes
+	 * @return Formatted size
+	 */
+	public static String formatSize(long bytes) {
+		if (bytes < 1024)
+			return bytes + " B";
+		String[] units = {"KiB", "MiB", "GiB", "TiB"};
+		double size = bytes;
+		int unit = -1;
+		while (size >= 1024 && unit < units.length - 1) {
+			size /= 1024;
+			unit++;
+		}
+		return String.format("%.1f %s", size, units[unit]);
+	}
+
+	/**
+	 * Creates a thread factory for background workers which shouldn't keep
+	 * the JVM alive.
+	 *
+	 * @param name Thread name prefix
+	 * @return Thread factory
+	 */
+	public static ThreadFactory daemonThreadFactory(final String name) {
+		return new ThreadFactory() {
+
+			private final AtomicInteger count = new AtomicInteger();
+
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, name + "-" + count.incrementAndGet());
+				t.setDaemon(true);
+				return t;
+			}
+		};
+	}
+
+	/**
+	 * Opens an HTTP(S) GET connection with Karun's user agent.  Redirects are
+	 * followed, caches bypassed.
+	 *
+	 * @param url URL
+	 * @param timeout Connect and read timeout in milliseconds
+	 * @return Connection, not yet connected
+	 */
+	public static HttpURLConnection openHttpConnection(String url, int timeout) throws IOException {
+		URLConnection c = new URL(url).openConnection();
+		if (!(c instanceof HttpURLConnection))
+			throw new IOException("Not an HTTP URL: " + url);
+		HttpURLConnection conn = (HttpURLConnection) c;
+		conn.setConnectTimeout(timeout);
+		conn.setReadTimeout(timeout);
+		conn.setUseCaches(false);
+		conn.setInstanceFollowRedirects(true);
+		conn.setRequestProperty("User-Agent", "Karun");
+		return conn;
+	}
+
+	/**
+	 * Karun's own directory, '~/.karun', for state kept between runs.  It's
+	 * created if missing.
+	 *
+	 * @return Directory
+	 */
+	public static File getKarunDir() throws IOException {
+		File dir = new File(System.getProperty("user.home"), ".karun");
+		if (!dir.isDirectory() && !dir.mkdirs())
+			throw new IOException("Failed to create directory " + dir.getAbsolutePath());
+		return dir;
+	}
+
+	/**
+	 * Creates a temporary directory.  It should be deleted with
+	 * deleteTempDir once no longer needed; if it isn't, it's deleted when
+	 * the JVM exits normally.
 	 * 
 	 * @return Temporary directory
 	 */
@@ -152,10 +259,25 @@ public class Utils {
 		} while (newTempDir.exists());
 
 		if (newTempDir.mkdirs()) {
+			synchronized (tempDirs) {
+				tempDirs.add(newTempDir);
+			}
 			return newTempDir;
 		} else {
 			throw new IOException("Failed to create temporary directory named "
 					+ newTempDir.getAbsolutePath());
 		}
 	}
+
+	/**
+	 * Deletes a directory created by createTempDir, along with its contents.
+	 * 
+	 * @param dir Temporary directory
+	 */
+	public static void deleteTempDir(File dir) {
+		FileUtils.deleteQuietly(dir);
+		synchronized (tempDirs) {
+			tempDirs.remove(dir);
+		}
+	}
 }
@@ -0,0 +1,223 @@
+/*
+ * Karun, a package manager for ArchLinux based on 'pacman'.
+ * Copyright (C) 2011  Bahman Movaqar
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, 
+ * USA.
+ */
+package com.bahmanm.karun;
+
+import java.util.ArrayList;
+
+/**
+ * Version
+ *
+ * A package version ('epoch:pkgver-pkgrel') parsed once into segments and
+ * ordered the same way 'vercmp' (and so pacman) orders them, e.g. "1.9" is
+ * older than "1.10" and "1.0alpha" is older than "1.0".
+ *
+ * @author Bahman Movaqar (Bahman AT BahmanM.com)
+ */
+public final class Version implements Comparable<Version> {
+
+	/** Version as found in the database */
+	private final String text;
+	/** Epoch; "0" if not given */
+	private final Segments epoch;
+	/** pkgver */
+	private final Segments version;
+	/** pkgrel; null if not given */
+	private final Segments release;
+
+	/**
+	 * Constructor
+	 *
+	 * @param text Version string
+	 */
+	private Version(String text) {
+		this.text = text;
+		int s = 0;
+		while (s < text.length() && Segments.isDigit(text.charAt(s)))
+			s++;
+		String e = "0";
+		String rest = text;
+		if (s < text.length() && text.charAt(s) == ':') {
+			if (s > 0)
+				e = text.substring(0, s);
+			rest = text.substring(s + 1);
+		}
+		int dash = rest.lastIndexOf('-');
+		epoch = new Segments(e);
+		if (dash >= 0) {
+			version = new Segments(rest.substring(0, dash));
+			release = new Segments(rest.substring(dash + 1));
+		} else {
+			version = new Segments(rest);
+			release = null;
+		}
+	}
+
+	/**
+	 * Parses a version string.
+	 *
+	 * @param text Version string; may be empty
+	 * @return Version
+	 */
+	public static Version parse(String text) {
+		return new Version(text == null ? "" : text);
+	}
+
+	/**
+	 * Compares two version strings.
+	 *
+	 * @param a Version
+	 * @param b Version
+	 * @return Negative, zero or positive if 'a' is older than, the same as or
+	 *         newer than 'b'
+	 */
+	public static int compare(String a, String b) {
+		if (a.equals(b))
+			return 0;
+		return parse(a).compareTo(parse(b));
+	}
+
+	@Override
+	public int compareTo(Version o) {
+		if (text.equals(o.text))
+			return 0;
+		int r = epoch.compareTo(o.epoch);
+		if (r != 0)
+			return r;
+		r = version.compareTo(o.version);
+		if (r != 0)
+			return r;
+		if (release != null && o.release != null)
+			return release.compareTo(o.release);
+		return 0;
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		return o instanceof Version && text.equals(((Version) o).text);
+	}
+
+	@Override
+	public int hashCode() {
+		return text.hashCode();
+	}
+
+	@Override
+	public String toString() {
+		return text;
+	}
+
+	/**
+	 * A version component split into alternating runs of digits and letters,
+	 * each remembering how many separator characters preceded it.
+	 */
+	private static final class Segments {
+
+		/** Number of separators before each segment */
+		private final int[] separators;
+		/** Segment text; numeric segments without leading zeros */
+		private final String[] texts;
+		/** Whether each segment is numeric */
+		private final boolean[] numeric;
+
+		/**
+		 * Constructor
+		 *
+		 * @param s Version component
+		 */
+		Segments(String s) {
+			ArrayList<String> t = new ArrayList<String>();
+			ArrayList<Integer> seps = new ArrayList<Integer>();
+			int i = 0;
+			int n = s.length();
+			while (i < n) {
+				int start = i;
+				while (i < n && !isAlnum(s.charAt(i)))
+					i++;
+				if (i == n)
+					break;
+				seps.add(Integer.valueOf(i - start));
+				start = i;
+				if (isDigit(s.charAt(i))) {
+					while (i < n && isDigit(s.charAt(i)))
+						i++;
+					int z = start;
+					while (z < i - 1 && s.charAt(z) == '0')
+						z++;
+					// '0' and "" compare the same; keep one digit for the type
+					t.add(s.substring(z, i));
+				} else {
+					while (i < n && isAlpha(s.charAt(i)))
+						i++;
+					t.add(s.substring(start, i));
+				}
+			}
+			texts = t.toArray(new String[t.size()]);
+			separators = new int[texts.length];
+			numeric = new boolean[texts.length];
+			for (int k = 0; k < texts.length; k++) {
+				separators[k] = seps.get(k).intValue();
+				numeric[k] = isDigit(texts[k].charAt(0));
+			}
+		}
+
+		/**
+		 * Compares segment by segment, as rpmvercmp does.
+		 *
+		 * @param o Other component
+		 * @return Negative, zero or positive
+		 */
+		int compareTo(Segments o) {
+			int n = Math.min(texts.length, o.texts.length);
+			for (int i = 0; i < n; i++) {
+				if (separators[i] != o.separators[i])
+					return separators[i] < o.separators[i] ? -1 : 1;
+				if (numeric[i] != o.numeric[i])
+					return numeric[i] ? 1 : -1;
+				if (numeric[i]) {
+					int a = texts[i].length();
+					int b = o.texts[i].length();
+					if (a != b)
+						return a < b ? -1 : 1;
+				}
+				int r = texts[i].compareTo(o.texts[i]);
+				if (r != 0)
+					return r < 0 ? -1 : 1;
+			}
+			if (texts.length == o.texts.length)
+				return 0;
+			// A trailing letter run means an older (pre-release) version
+			if (texts.length > n)
+				return numeric[n] ? 1 : -1;
+			return o.numeric[n] ? -1 : 1;
+		}
+
+		private static boolean isDigit(char c) {
+			return c >= '0' && c <= '9';
+		}
+
+		private static boolean isAlpha(char c) {
+			return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z');
+		}
+
+		private static boolean isAlnum(char c) {
+			return isDigit(c) || isAlpha(c);
+		}
+	}
+}
@@ -0,0 +1,226 @@
+/*
+ * Karun, a package manager for ArchLinux based on 'pacman'.
+ * Copyright (C) 2011  Bahman Movaqar
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, 
+ * USA.
+ */
+package com.bahmanm.karun;
+
+import com.bahmanm.karun.PackageCollection.Package;
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.swing.JTable;
+import javax.swing.JViewport;
+import javax.swing.RowSorter.SortKey;
+import javax.swing.SortOrder;
+
+/**
+ * ViewState
+ *
+ * What the main window showed when Karun was last closed: the repository
+ * filter, sort keys, scroll position and a compact copy of the package rows
+ * in view order.  It's painted as soon as the window opens, while the real
+ * package list loads in the background.
+ *
+ * Saved in '~/.karun/viewstate' as the magic "KVST", a format version byte,
+ * the repository, the sort keys (count, then column and order of each), the
+ * first visible row and the rows (count, then name, local version, repo
+ * version, description and repository of each).
+ *
+ * @author Bahman Movaqar (Bahman AT BahmanM.com)
+ */
+public class ViewState {
+
+	/** Magic of the file format */
+	private static final byte[] MAGIC = {'K', 'V', 'S', 'T'};
+	/** Version of the file format */
+	private static final int FORMAT_VERSION = 1;
+	/** File in Karun's directory */
+	private static final String FILE_NAME = "viewstate";
+	/** Selected repository filter */
+	private final String repo;
+	/** Sort keys, most significant first */
+	private final List<SortKey> sortKeys;
+	/** First visible row, in view order */
+	private final int firstVisibleRow;
+	/** Packages shown, in view order */
+	private final List<Package> rows;
+
+	/**
+	 * Constructor
+	 *
+	 * @param repo Selected repository filter
+	 * @param sortKeys Sort keys
+	 * @param firstVisibleRow First visible row, in view order
+	 * @param rows Packages shown, in view order
+	 */
+	public ViewState(String repo, List<SortKey> sortKeys, int firstVisibleRow, List<Package> rows) {
+		this.repo = repo;
+		this.sortKeys = sortKeys;
+		this.firstVisibleRow = firstVisibleRow;
+		this.rows = rows;
+	}
+
+	/**
+	 * Takes the state of the package table.
+	 *
+	 * @param repo Repository filter the table shows
+	 * @param table Package table
+	 * @param packages Packages in table model order
+	 * @return View state
+	 */
+	public static ViewState capture(String repo, JTable table, List<Package> packages) {
+		ArrayList<SortKey> keys = new ArrayList<SortKey>();
+		if (table.getRowSorter() != null)
+			keys.addAll(table.getRowSorter().getSortKeys());
+		ArrayList<Package> rows = new ArrayList<Package>(table.getRowCount());
+		for (int i = 0; i < table.getRowCount(); i++) {
+			int m = table.convertRowIndexToModel(i);
+			if (m < packages.size())
+				rows.add(packages.get(m));
+		}
+		int first = 0;
+		if (table.getParent() instanceof JViewport)
+			first = Math.max(0, table.rowAtPoint(((JViewport) table.getParent()).getViewPosition()));
+		return new ViewState(repo, keys, first, rows);
+	}
+
+	public String getRepo() {
+		return repo;
+	}
+
+	public List<SortKey> getSortKeys() {
+		return sortKeys;
+	}
+
+	public int getFirstVisibleRow() {
+		return firstVisibleRow;
+	}
+
+	/**
+	 * Name of the package in the first visible row.
+	 *
+	 * @return Package name, or null if there are no rows
+	 */
+	public String getFirstVisibleName() {
+		return firstVisibleRow < rows.size() ? rows.get(firstVisibleRow).getName() : null;
+	}
+
+	public List<Package> getRows() {
+		return rows;
+	}
+
+	/**
+	 * Loads the saved view state.
+	 *
+	 * @return View state, or null if there's none or it can't be read
+	 */
+	public static ViewState load() {
+		try {
+			File f = new File(Utils.getKarunDir(), FILE_NAME);
+			if (!f.exists())
+				return null;
+			InputStream in = new BufferedInputStream(new FileInputStream(f));
+			try {
+				return read(new ByteSource(in));
+			} finally {
+				in.close();
+			}
+		} catch (IOException ex) {
+			Logger.getLogger(ViewState.class.getName()).log(Level.WARNING,
+					"Ignoring saved view state", ex);
+			return null;
+		}
+	}
+
+	/**
+	 * Saves the view state for the next start.
+	 */
+	public void save() throws IOException {
+		File dir = Utils.getKarunDir();
+		File tmp = new File(dir, FILE_NAME + ".tmp");
+		OutputStream out = new FileOutputStream(tmp);
+		try {
+			write(new ByteSink(out));
+		} finally {
+			out.close();
+		}
+		if (!tmp.renameTo(new File(dir, FILE_NAME)))
+			throw new IOException("Can't replace " + FILE_NAME);
+	}
+
+	private static ViewState read(ByteSource source) throws IOException {
+		byte[] magic = new byte[MAGIC.length];
+		source.readBytes(magic, 0, magic.length);
+		if (!Arrays.equals(magic, MAGIC) || source.readByte() != FORMAT_VERSION)
+			throw new IOException("Unknown view state format");
+		String repo = source.readString();
+		int n = source.readVarInt();
+		ArrayList<SortKey> keys = new ArrayList<SortKey>(n);
+		SortOrder[] orders = SortOrder.values();
+		for (int i = 0; i < n; i++) {
+			int column = source.readVarInt();
+			int order = source.readByte();
+			if (order >= orders.length)
+				throw new IOException("Unknown sort order " + order);
+			keys.add(new SortKey(column, orders[order]));
+		}
+		int first = source.readVarInt();
+		n = source.readVarInt();
+		ArrayList<Package> rows = new ArrayList<Package>(n);
+		for (int i = 0; i < n; i++) {
+			Package p = new Package();
+			p.setName(source.readString());
+			p.setLocalVersion(source.readString());
+			p.setRepoVersion(source.readString());
+			p.setDescription(source.readString());
+			p.setRepo(source.readString());
+			rows.add(p);
+		}
+		return new ViewState(repo, keys, first, rows);
+	}
+
+	private void write(ByteSink sink) throws IOException {
+		sink.writeBytes(MAGIC, 0, MAGIC.length);
+		sink.writeByte(FORMAT_VERSION);
+		sink.writeString(repo);
+		sink.writeVarLong(sortKeys.size());
+		for (SortKey k : sortKeys) {
+			sink.writeVarLong(k.getColumn());
+			sink.writeByte(k.getSortOrder().ordinal());
+		}
+		sink.writeVarLong(firstVisibleRow);
+		sink.writeVarLong(rows.size());
+		for (Package p : rows) {
+			sink.writeString(p.getName());
+			sink.writeString(p.getLocalVersion());
+			sink.writeString(p.getRepoVersion());
+			sink.writeString(p.getDescription());
+			sink.writeString(p.getRepo());
+		}
+		sink.flush();
+	}
+}
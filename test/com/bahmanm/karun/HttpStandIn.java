@@ -0,0 +1,299 @@
+/*
+ * Karun, a package manager for ArchLinux based on 'pacman'.
+ * Copyright (C) 2011  Bahman Movaqar
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, 
+ * USA.
+ */
+package com.bahmanm.karun;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * HttpStandIn
+ *
+ * HTTP server on the loopback interface for tests, in place of mirrors.
+ * Every connection gets a thread of its own and one reply, made by a
+ * Handler, after which it's closed.  Requests are recorded in the order
+ * they came.
+ *
+ * @author Bahman Movaqar (Bahman AT BahmanM.com)
+ */
+class HttpStandIn {
+
+	private static final Charset ASCII = Charset.forName("US-ASCII");
+	private final ServerSocket server;
+	private final Handler handler;
+	/** Requests received so far */
+	private final List<Request> requests = Collections.synchronizedList(new ArrayList<Request>());
+
+	/**
+	 * Starts listening on a free port.
+	 *
+	 * @param handler Makes the replies
+	 */
+	HttpStandIn(Handler handler) throws IOException {
+		this.handler = handler;
+		server = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+		Thread t = new Thread(new Runnable() {
+
+			@Override
+			public void run() {
+				accept();
+			}
+		}, "http-stand-in");
+		t.setDaemon(true);
+		t.start();
+	}
+
+	/**
+	 * URL of the server, without a trailing slash.
+	 *
+	 * @return URL, e.g. 'http://127.0.0.1:40123'
+	 */
+	String getUrl() {
+		return "http://127.0.0.1:" + server.getLocalPort();
+	}
+
+	/**
+	 * Requests received so far.
+	 *
+	 * @return Requests, oldest first
+	 */
+	List<Request> getRequests() {
+		synchronized (requests) {
+			return new ArrayList<Request>(requests);
+		}
+	}
+
+	/**
+	 * Stops listening.
+	 */
+	void close() throws IOException {
+		server.close();
+	}
+
+	private void accept() {
+		while (true) {
+			final Socket s;
+			try {
+				s = server.accept();
+			} catch (IOException ex) {
+				return; // closed
+			}
+			Thread t = new Thread(new Runnable() {
+
+				@Override
+				public void run() {
+					serve(s);
+				}
+			}, "http-stand-in-client");
+			t.setDaemon(true);
+			t.start();
+		}
+	}
+
+	/**
+	 * Answers the request of a connection.
+	 *
+	 * @param s Connection
+	 */
+	private void serve(Socket s) {
+		try {
+			try {
+				Request r = Request.read(new BufferedInputStream(s.getInputStream()));
+				if (r == null)
+					return;
+				requests.add(r);
+				Reply reply = handler.handle(r);
+				reply.write(s.getOutputStream(), r.method.equals("HEAD"));
+			} finally {
+				s.close();
+			}
+		} catch (SocketException ex) {
+			// the client gave up, e.g. after a timeout
+		} catch (Exception ex) {
+			ex.printStackTrace();
+		}
+	}
+
+	/**
+	 * Reply for a file, honouring a Range header as a mirror would: 206 for
+	 * the rest of the file, or 416 if it starts at or past the end.
+	 *
+	 * @param r Request
+	 * @param file Contents of the file
+	 * @param ranges Whether Range is honoured; if not, the whole file is sent
+	 *        with 200
+	 * @return Reply
+	 */
+	static Reply file(Request r, byte[] file, boolean ranges) {
+		String range = r.getHeader("Range");
+		if (!ranges || range == null || !range.startsWith("bytes=") || !range.endsWith("-"))
+			return new Reply(200, file);
+		int offset = Integer.parseInt(range.substring(6, range.length() - 1));
+		if (offset >= file.length) {
+			return new Reply(416, new byte[0])
+					.header("Content-Range", "bytes */" + file.length);
+		}
+		byte[] rest = new byte[file.length - offset];
+		System.arraycopy(file, offset, rest, 0, rest.length);
+		return new Reply(206, rest)
+				.header("Content-Range", "bytes " + offset + "-" + (file.length - 1) + "/" + file.length);
+	}
+
+	/**
+	 * Makes replies
+	 */
+	interface Handler {
+
+		/**
+		 * Makes the reply to a request.  Runs on the thread of the
+		 * connection, so it may take its time.
+		 *
+		 * @param r Request
+		 * @return Reply
+		 */
+		public abstract Reply handle(Request r) throws Exception;
+	}
+
+	/**
+	 * Request as received
+	 */
+	static class Request {
+
+		private String method;
+		private String path;
+		/** Header values by lower case name */
+		private final HashMap<String, String> headers = new HashMap<String, String>();
+
+		/**
+		 * Reads the request line and headers; a body isn't expected.
+		 *
+		 * @param in Stream of the connection
+		 * @return Request, or null if the connection closed first
+		 */
+		static Request read(InputStream in) throws IOException {
+			String line = readLine(in);
+			if (line == null)
+				return null;
+			String[] parts = line.split(" ");
+			Request r = new Request();
+			r.method = parts[0];
+			r.path = parts.length > 1 ? parts[1] : "/";
+			while ((line = readLine(in)) != null && line.length() > 0) {
+				int colon = line.indexOf(':');
+				if (colon > 0) {
+					r.headers.put(line.substring(0, colon).trim().toLowerCase(),
+							line.substring(colon + 1).trim());
+				}
+			}
+			return r;
+		}
+
+		private static String readLine(InputStream in) throws IOException {
+			ByteArrayOutputStream b = new ByteArrayOutputStream();
+			int c;
+			while ((c = in.read()) >= 0 && c != '\n') {
+				if (c != '\r')
+					b.write(c);
+			}
+			if (c < 0 && b.size() == 0)
+				return null;
+			return new String(b.toByteArray(), ASCII);
+		}
+
+		String getMethod() {
+			return method;
+		}
+
+		String getPath() {
+			return path;
+		}
+
+		/**
+		 * Gets a header.
+		 *
+		 * @param name Header name, in any case
+		 * @return Value, or null if not sent
+		 */
+		String getHeader(String name) {
+			return headers.get(name.toLowerCase());
+		}
+	}
+
+	/**
+	 * Reply to a request
+	 */
+	static class Reply {
+
+		private final int code;
+		private final byte[] body;
+		private final Map<String, String> headers = new LinkedHashMap<String, String>();
+
+		/**
+		 * Constructor
+		 *
+		 * @param code Status code
+		 * @param body Body; Content-Length is set from it
+		 */
+		Reply(int code, byte[] body) {
+			this.code = code;
+			this.body = body;
+		}
+
+		/**
+		 * Adds a header.  A Content-Length given this way is sent instead of
+		 * the body's, e.g. to cut a download short.
+		 *
+		 * @param name Name
+		 * @param value Value
+		 * @return This reply
+		 */
+		Reply header(String name, String value) {
+			headers.put(name, value);
+			return this;
+		}
+
+		private void write(OutputStream out, boolean head) throws IOException {
+			StringBuilder sb = new StringBuilder();
+			sb.append("HTTP/1.1 ").append(code).append(" Status\r\n");
+			for (Map.Entry<String, String> e : headers.entrySet())
+				sb.append(e.getKey()).append(": ").append(e.getValue()).append("\r\n");
+			if (code != 304 && !headers.containsKey("Content-Length"))
+				sb.append("Content-Length: ").append(body.length).append("\r\n");
+			sb.append("Connection: close\r\n\r\n");
+			out.write(sb.toString().getBytes(ASCII));
+			if (!head && code != 304)
+				out.write(body);
+			out.flush();
+		}
+	}
+}
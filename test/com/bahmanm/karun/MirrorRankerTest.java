@@ -0,0 +1,135 @@
+/*
+ * Karun, a package manager for ArchLinux based on 'pacman'.
+ * Copyright (C) 2011  Bahman Movaqar
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, 
+ * USA.
+ */
+package com.bahmanm.karun;
+
+import java.io.File;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * MirrorRankerTest
+ *
+ * Ranks HttpStandIn mirrors which wait a given time before answering.
+ *
+ * @author Bahman Movaqar (Bahman AT BahmanM.com)
+ */
+public class MirrorRankerTest {
+
+	/** Connect and read timeout of the probes, in milliseconds */
+	private static final int TIMEOUT = 500;
+	private File root;
+	private PacmanConfHelper conf;
+	private final List<HttpStandIn> mirrors = new ArrayList<HttpStandIn>();
+
+	@Before
+	public void setUp() throws Exception {
+		root = File.createTempFile("karun-test", "");
+		root.delete();
+		root.mkdirs();
+		File confFile = new File(root, "pacman.conf");
+		FileUtils.writeStringToFile(confFile, "[options]\nArchitecture = x86_64\n", "UTF-8");
+		conf = PacmanConfHelper.get(confFile.getPath());
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		for (HttpStandIn m : mirrors)
+			m.close();
+		FileUtils.deleteDirectory(root);
+	}
+
+	@Test
+	public void testOrderedByLatency() throws Exception {
+		String slow = mirror(400, 200);
+		String fast = mirror(0, 200);
+		String medium = mirror(200, 200);
+		List<MirrorRanker.Result> results = rank(slow, fast, medium);
+		assertEquals(Arrays.asList(fast, medium, slow), servers(results));
+		for (MirrorRanker.Result r : results) {
+			assertNull(r.getError());
+			assertEquals(4096, r.getBytes());
+		}
+		assertTrue(results.get(2).getTtfb() >= 400);
+	}
+
+	@Test
+	public void testFailuresLast() throws Exception {
+		String timedOut = mirror(3 * TIMEOUT, 200);
+		String missing = mirror(0, 404);
+		String slow = mirror(200, 200);
+		String fast = mirror(0, 200);
+		List<MirrorRanker.Result> results = rank(timedOut, missing, slow, fast);
+		assertEquals(Arrays.asList(fast, slow), servers(results).subList(0, 2));
+		assertNull(results.get(1).getError());
+		for (MirrorRanker.Result r : results.subList(2, 4)) {
+			assertNotNull(r.getServer(), r.getError());
+			assertTrue(r.getServer().equals(timedOut) || r.getServer().equals(missing));
+		}
+
+		// Failed servers are commented out, after the working ones
+		StringWriter sw = new StringWriter();
+		MirrorRanker.writeMirrorlist(results, new PrintWriter(sw));
+		String list = sw.toString();
+		assertTrue(list.indexOf("\nServer = " + fast) < list.indexOf("\nServer = " + slow));
+		assertTrue(list.indexOf("\nServer = " + slow) < list.indexOf("#Server = " + timedOut));
+		assertTrue(list.indexOf("\nServer = " + slow) < list.indexOf("#Server = " + missing));
+	}
+
+	/**
+	 * Starts a mirror serving a 4 KB 'core.db'.
+	 *
+	 * @param delay Milliseconds to wait before answering
+	 * @param code Status code
+	 * @return Server URL as in a mirrorlist
+	 */
+	private String mirror(final long delay, final int code) throws Exception {
+		HttpStandIn m = new HttpStandIn(new HttpStandIn.Handler() {
+
+			@Override
+			public HttpStandIn.Reply handle(HttpStandIn.Request r) throws Exception {
+				Thread.sleep(delay);
+				return new HttpStandIn.Reply(code, new byte[code == 200 ? 4096 : 0]);
+			}
+		});
+		mirrors.add(m);
+		return m.getUrl() + "/$repo/os/$arch";
+	}
+
+	private List<MirrorRanker.Result> rank(String... servers) throws Exception {
+		// All probed at once, so the delays don't add up
+		return new MirrorRanker(servers.length, TIMEOUT, 4096).rank(conf, "core",
+				Arrays.asList(servers));
+	}
+
+	private static List<String> servers(List<MirrorRanker.Result> results) {
+		ArrayList<String> l = new ArrayList<String>();
+		for (MirrorRanker.Result r : results)
+			l.add(r.getServer());
+		return l;
+	}
+}
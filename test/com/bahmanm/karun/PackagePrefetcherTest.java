@@ -0,0 +1,252 @@
+/*
+ * Karun, a package manager for ArchLinux based on 'pacman'.
+ * Copyright (C) 2011  Bahman Movaqar
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, 
+ * USA.
+ */
+package com.bahmanm.karun;
+
+import com.bahmanm.karun.PackageCollection.Package;
+import java.io.File;
+import java.security.MessageDigest;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * PackagePrefetcherTest
+ *
+ * Prefetches a package from HttpStandIn mirrors into a temporary cache.
+ *
+ * @author Bahman Movaqar (Bahman AT BahmanM.com)
+ */
+public class PackagePrefetcherTest {
+
+	private static final String FILE_NAME = "foo-1.0-1-x86_64.pkg.tar.xz";
+	/** Contents of the package file */
+	private final byte[] file = new byte[100 * 1024];
+	private File root;
+	private File cacheDir;
+	private HttpStandIn first;
+	private HttpStandIn second;
+
+	@Before
+	public void setUp() throws Exception {
+		new Random(42).nextBytes(file);
+		root = File.createTempFile("karun-test", "");
+		root.delete();
+		cacheDir = new File(root, "cache");
+		cacheDir.mkdirs();
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		if (first != null)
+			first.close();
+		if (second != null)
+			second.close();
+		FileUtils.deleteDirectory(root);
+	}
+
+	@Test
+	public void testDownload() throws Exception {
+		first = new HttpStandIn(serving(file, true));
+		PackagePrefetcher.Result r = prefetch(pkg(true));
+		assertEquals(PackagePrefetcher.Status.DOWNLOADED, r.getStatus());
+		assertArrayEquals(file, cached());
+		assertFalse(part().exists());
+		assertEquals("/core/" + FILE_NAME, first.getRequests().get(0).getPath());
+	}
+
+	@Test
+	public void testCached() throws Exception {
+		first = new HttpStandIn(serving(file, true));
+		FileUtils.writeByteArrayToFile(new File(cacheDir, FILE_NAME), file);
+		assertEquals(PackagePrefetcher.Status.CACHED, prefetch(pkg(true)).getStatus());
+		assertEquals(0, first.getRequests().size());
+	}
+
+	@Test
+	public void testResume() throws Exception {
+		first = new HttpStandIn(serving(file, true));
+		writePart(30000, false);
+		assertEquals(PackagePrefetcher.Status.DOWNLOADED, prefetch(pkg(true)).getStatus());
+		assertArrayEquals(file, cached());
+		assertEquals("bytes=30000-", first.getRequests().get(0).getHeader("Range"));
+	}
+
+	@Test
+	public void testResumeRangeIgnored() throws Exception {
+		// The server answers 200 with the whole file, which replaces the part
+		first = new HttpStandIn(serving(file, false));
+		writePart(30000, false);
+		assertEquals(PackagePrefetcher.Status.DOWNLOADED, prefetch(pkg(true)).getStatus());
+		assertArrayEquals(file, cached());
+		assertEquals(1, first.getRequests().size());
+	}
+
+	@Test
+	public void testRangeNotSatisfiable() throws Exception {
+		// Size unknown, so only the server can tell the part is complete
+		first = new HttpStandIn(serving(file, true));
+		writePart(file.length, false);
+		assertEquals(PackagePrefetcher.Status.DOWNLOADED, prefetch(pkg(false)).getStatus());
+		assertArrayEquals(file, cached());
+		assertEquals(1, first.getRequests().size());
+	}
+
+	@Test
+	public void testRangeNotSatisfiableCorrupt() throws Exception {
+		// The complete part is corrupt: it's fetched again as a whole
+		first = new HttpStandIn(serving(file, true));
+		writePart(file.length, true);
+		assertEquals(PackagePrefetcher.Status.DOWNLOADED, prefetch(pkg(false)).getStatus());
+		assertArrayEquals(file, cached());
+		List<HttpStandIn.Request> requests = first.getRequests();
+		assertEquals(2, requests.size());
+		assertNotNull(requests.get(0).getHeader("Range"));
+		assertNull(requests.get(1).getHeader("Range"));
+	}
+
+	@Test
+	public void testChecksumMismatch() throws Exception {
+		byte[] corrupt = file.clone();
+		corrupt[1000] ^= 1;
+		first = new HttpStandIn(serving(corrupt, true));
+		PackagePrefetcher.Result r = prefetch(pkg(true));
+		assertEquals(PackagePrefetcher.Status.FAILED, r.getStatus());
+		assertEquals("SHA-256 checksum mismatch", r.getError());
+		assertFalse(new File(cacheDir, FILE_NAME).exists());
+		assertFalse(part().exists());
+	}
+
+	@Test
+	public void testNextMirror() throws Exception {
+		first = new HttpStandIn(new HttpStandIn.Handler() {
+
+			@Override
+			public HttpStandIn.Reply handle(HttpStandIn.Request r) {
+				return new HttpStandIn.Reply(404, new byte[0]);
+			}
+		});
+		second = new HttpStandIn(serving(file, true));
+		assertEquals(PackagePrefetcher.Status.DOWNLOADED, prefetch(pkg(true)).getStatus());
+		assertArrayEquals(file, cached());
+		assertEquals(1, first.getRequests().size());
+		assertEquals(1, second.getRequests().size());
+	}
+
+	@Test
+	public void testNextMirrorAfterMismatch() throws Exception {
+		byte[] corrupt = file.clone();
+		corrupt[0] ^= 1;
+		first = new HttpStandIn(serving(corrupt, true));
+		second = new HttpStandIn(serving(file, true));
+		assertEquals(PackagePrefetcher.Status.DOWNLOADED, prefetch(pkg(true)).getStatus());
+		assertArrayEquals(file, cached());
+		// The bad download isn't resumed from on the next mirror
+		assertNull(second.getRequests().get(0).getHeader("Range"));
+	}
+
+	/**
+	 * Handler serving the package file.
+	 *
+	 * @param contents What the server has
+	 * @param ranges Whether Range is honoured
+	 * @return Handler
+	 */
+	private static HttpStandIn.Handler serving(final byte[] contents, final boolean ranges) {
+		return new HttpStandIn.Handler() {
+
+			@Override
+			public HttpStandIn.Reply handle(HttpStandIn.Request r) {
+				return HttpStandIn.file(r, contents, ranges);
+			}
+		};
+	}
+
+	/**
+	 * The package in the sync database.
+	 *
+	 * @param sized Whether its size is known
+	 * @return Package
+	 */
+	private Package pkg(boolean sized) throws Exception {
+		Package p = new Package();
+		p.setName("foo");
+		p.setRepo("core");
+		p.setRepoVersion("1.0-1");
+		p.setFileName(FILE_NAME);
+		if (sized)
+			p.setCompressedSize(file.length);
+		p.setSha256sum(sha256(file));
+		return p;
+	}
+
+	/**
+	 * Prefetches a package from the mirrors started, in order.
+	 *
+	 * @param p Package
+	 * @return Result
+	 */
+	private PackagePrefetcher.Result prefetch(Package p) throws Exception {
+		StringBuilder conf = new StringBuilder("[options]\n[core]\n");
+		for (HttpStandIn s : new HttpStandIn[] {first, second}) {
+			if (s != null)
+				conf.append("Server = ").append(s.getUrl()).append("/$repo\n");
+		}
+		File confFile = new File(root, "pacman.conf");
+		FileUtils.writeStringToFile(confFile, conf.toString(), "UTF-8");
+		PackagePrefetcher prefetcher = new PackagePrefetcher(PacmanConfHelper.get(confFile.getPath()),
+				cacheDir.getPath(), 1, 5000, new RateLimiter(0));
+		return prefetcher.prefetch(Collections.singletonList(p)).get(0);
+	}
+
+	private File part() {
+		return new File(cacheDir, FILE_NAME + ".part");
+	}
+
+	private byte[] cached() throws Exception {
+		return FileUtils.readFileToByteArray(new File(cacheDir, FILE_NAME));
+	}
+
+	/**
+	 * Leaves a partial download behind.
+	 *
+	 * @param length Bytes of the file it holds
+	 * @param corrupt Whether a byte of it is wrong
+	 */
+	private void writePart(int length, boolean corrupt) throws Exception {
+		byte[] b = new byte[length];
+		System.arraycopy(file, 0, b, 0, length);
+		if (corrupt)
+			b[length / 2] ^= 1;
+		FileUtils.writeByteArrayToFile(part(), b);
+	}
+
+	private static String sha256(byte[] b) throws Exception {
+		byte[] d = MessageDigest.getInstance("SHA-256").digest(b);
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < d.length; i++)
+			sb.append(String.format("%02x", d[i] & 0xff));
+		return sb.toString();
+	}
+}
@@ -0,0 +1,109 @@
+/*
+ * Karun, a package manager for ArchLinux based on 'pacman'.
+ * Copyright (C) 2011  Bahman Movaqar
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, 
+ * USA.
+ */
+package com.bahmanm.karun;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * RateLimiterTest
+ *
+ * Times transfers through the token bucket; the bounds leave room for a
+ * busy machine.
+ *
+ * @author Bahman Movaqar (Bahman AT BahmanM.com)
+ */
+public class RateLimiterTest {
+
+	private static final int RATE = 1000 * 1000;
+	private static final int CHUNK = 32 * 1024;
+
+	@Test
+	public void testUnlimited() throws Exception {
+		RateLimiter limiter = new RateLimiter(0);
+		long start = System.nanoTime();
+		take(limiter, 100 * RATE);
+		assertTrue(millisSince(start) < 500);
+	}
+
+	@Test
+	public void testBurst() throws Exception {
+		// A full bucket: one second worth of bytes goes at once
+		RateLimiter limiter = new RateLimiter(RATE);
+		long start = System.nanoTime();
+		take(limiter, RATE - CHUNK);
+		assertTrue(millisSince(start) < 300);
+	}
+
+	@Test
+	public void testRate() throws Exception {
+		RateLimiter limiter = new RateLimiter(RATE);
+		take(limiter, RATE);
+		long start = System.nanoTime();
+		take(limiter, RATE / 2);
+		long millis = millisSince(start);
+		assertTrue("took " + millis + " ms", millis >= 400 && millis < 1500);
+	}
+
+	@Test
+	public void testShared() throws Exception {
+		// Two transfers together get the rate of one
+		final RateLimiter limiter = new RateLimiter(RATE);
+		take(limiter, RATE);
+		long start = System.nanoTime();
+		List<Thread> threads = new ArrayList<Thread>();
+		for (int i = 0; i < 2; i++) {
+			Thread t = new Thread(new Runnable() {
+
+				@Override
+				public void run() {
+					try {
+						take(limiter, RATE / 4);
+					} catch (InterruptedException ex) {
+						throw new RuntimeException(ex);
+					}
+				}
+			});
+			t.start();
+			threads.add(t);
+		}
+		for (Thread t : threads)
+			t.join();
+		long millis = millisSince(start);
+		assertTrue("took " + millis + " ms", millis >= 400 && millis < 1500);
+	}
+
+	/**
+	 * Transfers bytes in chunks as a download would.
+	 *
+	 * @param limiter Limiter
+	 * @param bytes Number of bytes
+	 */
+	private static void take(RateLimiter limiter, int bytes) throws InterruptedException {
+		for (int done = 0; done < bytes; done += CHUNK)
+			limiter.acquire(Math.min(CHUNK, bytes - done));
+	}
+
+	private static long millisSince(long start) {
+		return (System.nanoTime() - start) / 1000000;
+	}
+}
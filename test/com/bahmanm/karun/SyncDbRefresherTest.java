@@ -0,0 +1,239 @@
+/*
+ * Karun, a package manager for ArchLinux based on 'pacman'.
+ * Copyright (C) 2011  Bahman Movaqar
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, 
+ * USA.
+ */
+package com.bahmanm.karun;
+
+import java.io.File;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.TimeZone;
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * SyncDbRefresherTest
+ *
+ * Refreshes the sync databases of a temporary DBPath from HttpStandIn
+ * mirrors.  '~/.karun', where ETags are kept, is moved into the temporary
+ * directory as well.
+ *
+ * @author Bahman Movaqar (Bahman AT BahmanM.com)
+ */
+public class SyncDbRefresherTest {
+
+	/** Last-Modified of the databases on the mirrors */
+	private static final long MODIFIED = 1300000000000L;
+	private File root;
+	private String userHome;
+	private HttpStandIn first;
+	private HttpStandIn second;
+	/** What the mirrors serve as 'core.db' and 'extra.db' */
+	private volatile byte[] contents = "new database".getBytes();
+
+	@Before
+	public void setUp() throws Exception {
+		root = File.createTempFile("karun-test", "");
+		root.delete();
+		new File(root, "sync").mkdirs();
+		new File(root, "home").mkdirs();
+		userHome = System.getProperty("user.home");
+		System.setProperty("user.home", new File(root, "home").getPath());
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		System.setProperty("user.home", userHome);
+		if (first != null)
+			first.close();
+		if (second != null)
+			second.close();
+		FileUtils.deleteDirectory(root);
+	}
+
+	@Test
+	public void testDownload() throws Exception {
+		first = new HttpStandIn(mirror("\"v1\"", true));
+		SyncDbRefresher.Result r = refresh("core").get(0);
+		assertEquals(SyncDbRefresher.Status.UPDATED, r.getStatus());
+		File db = db("core");
+		assertArrayEquals(contents, FileUtils.readFileToByteArray(db));
+		assertEquals(MODIFIED, db.lastModified());
+		assertNull(first.getRequests().get(0).getHeader("If-None-Match"));
+		assertEquals(Arrays.asList("core"), SyncDbRefresher.getUpdated(
+				Collections.singletonList(r)));
+	}
+
+	@Test
+	public void testNotModifiedByEtag() throws Exception {
+		// The mirror only looks at the ETag
+		first = new HttpStandIn(mirror("\"v1\"", false));
+		refresh("core");
+		SyncDbRefresher.Result r = refresh("core").get(0);
+		assertEquals(SyncDbRefresher.Status.NOT_MODIFIED, r.getStatus());
+		assertEquals("\"v1\"", first.getRequests().get(1).getHeader("If-None-Match"));
+		assertArrayEquals(contents, FileUtils.readFileToByteArray(db("core")));
+	}
+
+	@Test
+	public void testNotModifiedBySince() throws Exception {
+		// The mirror only looks at If-Modified-Since
+		first = new HttpStandIn(mirror(null, true));
+		refresh("core");
+		SyncDbRefresher.Result r = refresh("core").get(0);
+		assertEquals(SyncDbRefresher.Status.NOT_MODIFIED, r.getStatus());
+		assertEquals(httpDate(MODIFIED), first.getRequests().get(1).getHeader("If-Modified-Since"));
+	}
+
+	@Test
+	public void testChanged() throws Exception {
+		first = new HttpStandIn(mirror("\"v1\"", false));
+		refresh("core");
+		first.close();
+		contents = "newer database".getBytes();
+		first = new HttpStandIn(mirror("\"v2\"", false));
+		assertEquals(SyncDbRefresher.Status.UPDATED, refresh("core").get(0).getStatus());
+		assertArrayEquals(contents, FileUtils.readFileToByteArray(db("core")));
+	}
+
+	@Test
+	public void testTruncatedDownload() throws Exception {
+		// The database is replaced only by a complete download
+		FileUtils.writeStringToFile(db("core"), "old database", "UTF-8");
+		first = new HttpStandIn(new HttpStandIn.Handler() {
+
+			@Override
+			public HttpStandIn.Reply handle(HttpStandIn.Request r) {
+				return new HttpStandIn.Reply(200, contents)
+						.header("Content-Length", String.valueOf(contents.length + 100));
+			}
+		});
+		SyncDbRefresher.Result r = refresh("core").get(0);
+		assertEquals(SyncDbRefresher.Status.FAILED, r.getStatus());
+		assertEquals("old database", FileUtils.readFileToString(db("core"), "UTF-8"));
+		assertEquals(Arrays.asList("core.db"), Arrays.asList(new File(root, "sync").list()));
+	}
+
+	@Test
+	public void testNextMirror() throws Exception {
+		first = new HttpStandIn(new HttpStandIn.Handler() {
+
+			@Override
+			public HttpStandIn.Reply handle(HttpStandIn.Request r) {
+				return new HttpStandIn.Reply(500, new byte[0]);
+			}
+		});
+		second = new HttpStandIn(mirror("\"v1\"", true));
+		assertEquals(SyncDbRefresher.Status.UPDATED, refresh("core").get(0).getStatus());
+		assertEquals(1, second.getRequests().size());
+	}
+
+	@Test
+	public void testLockHeld() throws Exception {
+		first = new HttpStandIn(mirror("\"v1\"", true));
+		File lock = new File(root, "db.lck");
+		lock.createNewFile();
+		List<SyncDbRefresher.Result> results = refresh("core", "extra");
+		assertEquals(2, results.size());
+		for (SyncDbRefresher.Result r : results) {
+			assertEquals(SyncDbRefresher.Status.FAILED, r.getStatus());
+			assertTrue(r.getError(), r.getError().startsWith("unable to lock database"));
+		}
+		assertEquals(0, first.getRequests().size());
+		// Pacman's lock is left alone
+		assertTrue(lock.exists());
+		assertFalse(db("core").exists());
+	}
+
+	@Test
+	public void testLockReleased() throws Exception {
+		first = new HttpStandIn(mirror("\"v1\"", true));
+		assertEquals(SyncDbRefresher.Status.UPDATED, refresh("core", "extra").get(1).getStatus());
+		assertFalse(new File(root, "db.lck").exists());
+	}
+
+	/**
+	 * Handler serving the databases.
+	 *
+	 * @param etag ETag; null to send none
+	 * @param since Whether If-Modified-Since is honoured
+	 * @return Handler
+	 */
+	private HttpStandIn.Handler mirror(final String etag, final boolean since) {
+		return new HttpStandIn.Handler() {
+
+			@Override
+			public HttpStandIn.Reply handle(HttpStandIn.Request r) throws Exception {
+				if (etag != null && etag.equals(r.getHeader("If-None-Match")))
+					return new HttpStandIn.Reply(304, new byte[0]);
+				String ims = r.getHeader("If-Modified-Since");
+				if (since && ims != null && format().parse(ims).getTime() >= MODIFIED)
+					return new HttpStandIn.Reply(304, new byte[0]);
+				HttpStandIn.Reply reply = new HttpStandIn.Reply(200, contents)
+						.header("Last-Modified", httpDate(MODIFIED));
+				if (etag != null)
+					reply.header("ETag", etag);
+				return reply;
+			}
+		};
+	}
+
+	/**
+	 * Refreshes databases from the mirrors started, in order.
+	 *
+	 * @param repos Repositories
+	 * @return Results
+	 */
+	private List<SyncDbRefresher.Result> refresh(String... repos) throws Exception {
+		StringBuilder conf = new StringBuilder("[options]\n");
+		conf.append("DBPath = ").append(root.getPath()).append("/\n");
+		for (String repo : repos) {
+			conf.append("[").append(repo).append("]\n");
+			for (HttpStandIn s : new HttpStandIn[] {first, second}) {
+				if (s != null)
+					conf.append("Server = ").append(s.getUrl()).append("/$repo\n");
+			}
+		}
+		// A file of its own each time, as configurations are cached by path
+		File confFile = File.createTempFile("pacman", ".conf", root);
+		FileUtils.writeStringToFile(confFile, conf.toString(), "UTF-8");
+		return new SyncDbRefresher(PacmanConfHelper.get(confFile.getPath()), 2, 5000)
+				.refresh(Arrays.asList(repos));
+	}
+
+	private File db(String repo) {
+		return new File(root, "sync/" + repo + ".db");
+	}
+
+	private static SimpleDateFormat format() {
+		SimpleDateFormat f = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US);
+		f.setTimeZone(TimeZone.getTimeZone("GMT"));
+		return f;
+	}
+
+	private static String httpDate(long millis) {
+		return format().format(new Date(millis));
+	}
+}
@@ -0,0 +1,274 @@
+/*
+ * Karun, a package manager for ArchLinux based on 'pacman'.
+ * Copyright (C) 2011  Bahman Movaqar
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, 
+ * USA.
+ */
+package com.bahmanm.karun;
+
+import com.bahmanm.karun.TransactionResolver.Kind;
+import com.bahmanm.karun.TransactionResolver.Step;
+import com.bahmanm.karun.TransactionResolver.Transaction;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.GZIPOutputStream;
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveOutputStream;
+import org.apache.commons.io.FileUtils;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * TransactionResolverTest
+ *
+ * Resolves transactions against the databases under 'txdb': 'local' is
+ * copied as is and every directory under 'sync' is packed into a sync
+ * database of that name.
+ *
+ * @author Bahman Movaqar (Bahman AT BahmanM.com)
+ */
+public class TransactionResolverTest {
+
+	/** Root the fixture databases are set up in */
+	private static File root;
+	private static TransactionResolver resolver;
+
+	@BeforeClass
+	public static void setUpClass() throws Exception {
+		File fixture = new File(TransactionResolverTest.class.getResource("txdb").toURI());
+		root = File.createTempFile("karun-test", "");
+		root.delete();
+		root.mkdirs();
+		FileUtils.copyDirectory(new File(fixture, "local"), new File(root, "local"));
+		new File(root, "sync").mkdirs();
+		new File(root, "cache").mkdirs();
+		// glibc is cached already
+		new File(root, "cache/glibc-2.14-2-x86_64.pkg.tar.xz").createNewFile();
+
+		StringBuilder conf = new StringBuilder();
+		conf.append("[options]\n");
+		conf.append("DBPath = ").append(root.getPath()).append("/\n");
+		conf.append("CacheDir = ").append(new File(root, "cache").getPath()).append("/\n");
+		for (String repo : new String[] {"core", "extra"}) {
+			packSyncDb(new File(fixture, "sync/" + repo), new File(root, "sync/" + repo + ".db"));
+			conf.append("[").append(repo).append("]\n");
+			conf.append("Server = http://localhost/$repo/os/$arch\n");
+		}
+		File confFile = new File(root, "pacman.conf");
+		FileUtils.writeStringToFile(confFile, conf.toString(), "UTF-8");
+
+		PacmanConfHelper pacmanConf = PacmanConfHelper.get(confFile.getPath());
+		resolver = new TransactionResolver(new PackageCollection("*all*", pacmanConf,
+				StringPool.getDefault()), new File(pacmanConf.getCacheDir()));
+	}
+
+	@AfterClass
+	public static void tearDownClass() throws Exception {
+		FileUtils.deleteDirectory(root);
+	}
+
+	@Test
+	public void testInstall() {
+		Transaction t = resolve(false, "zlib", "newfoo");
+		assertEquals(Kind.INSTALL, find(t, Kind.INSTALL, "newfoo").getKind());
+		assertFalse(find(t, Kind.INSTALL, "newfoo").isDependency());
+		assertEquals(Collections.emptyList(), t.getProblems());
+	}
+
+	@Test
+	public void testVersionedProvides() {
+		// Only openssl provides libssl.so>=1.1-64
+		Transaction t = resolve(false, "curl");
+		assertTrue(find(t, Kind.INSTALL, "openssl").isDependency());
+		assertNull(find(t, Kind.INSTALL, "openssl-compat"));
+		// zlib is installed already
+		assertEquals(2, t.getSteps().size());
+		assertEquals(Collections.emptyList(), t.getProblems());
+
+		// ... and only openssl-compat libssl.so=1.0-64; the installed bash
+		// provides sh
+		t = resolve(false, "app");
+		assertTrue(find(t, Kind.INSTALL, "openssl-compat").isDependency());
+		assertNull(find(t, Kind.INSTALL, "openssl"));
+		assertNull(find(t, Kind.INSTALL, "dash"));
+	}
+
+	@Test
+	public void testVirtualTarget() {
+		// No package is called 'sh'; bash provides it and comes first
+		Transaction t = resolve(false, "sh");
+		assertNotNull(find(t, Kind.UPGRADE, "bash"));
+		assertNull(find(t, Kind.INSTALL, "dash"));
+	}
+
+	@Test
+	public void testUpgradePullsDependency() {
+		// bash 4.2-2 needs readline>=6.2, which is installed in 6.1-1 only
+		Transaction t = resolve(false, "bash");
+		Step s = find(t, Kind.UPGRADE, "readline");
+		assertTrue(s.isDependency());
+		assertEquals("6.1-1", s.getOld().getRepoVersion());
+		assertEquals("6.2-1", s.getPackage().getRepoVersion());
+	}
+
+	@Test
+	public void testReplaces() {
+		Transaction t = resolve(true);
+		Step s = find(t, Kind.REPLACE, "oldfoo");
+		assertEquals("newfoo", s.getPackage().getName());
+		assertNotNull(find(t, Kind.INSTALL, "newfoo"));
+		// newfoo conflicts with oldfoo too, but it's gone already
+		assertNull(find(t, Kind.REMOVE, "oldfoo"));
+		assertEquals(1, t.count(Kind.REPLACE));
+	}
+
+	@Test
+	public void testSysupgrade() {
+		Transaction t = resolve(true);
+		assertNotNull(find(t, Kind.UPGRADE, "glibc"));
+		assertNotNull(find(t, Kind.UPGRADE, "readline"));
+		assertNotNull(find(t, Kind.UPGRADE, "bash"));
+		// Outdated packages only: neither the older tool nor the same zlib
+		assertNull(find(t, Kind.DOWNGRADE, "tool"));
+		assertNull(find(t, Kind.REINSTALL, "zlib"));
+		// pinned needs exactly the readline being upgraded
+		assertTrue(t.getProblems().contains(
+				"unsatisfied dependency: readline=6.1-1 (required by installed pinned)"));
+	}
+
+	@Test
+	public void testConflictDeclaredByIncoming() {
+		// mta-b conflicts with 'mta', which the installed mta-a provides
+		Transaction t = resolve(false, "mta-b");
+		Step s = find(t, Kind.REMOVE, "mta-a");
+		assertEquals("mta-b", s.getPackage().getName());
+		assertEquals(Collections.emptyList(), t.getProblems());
+	}
+
+	@Test
+	public void testConflictDeclaredByInstalled() {
+		// The installed strict conflicts with 'gadget<2'
+		Transaction t = resolve(false, "gadget");
+		assertEquals("gadget", find(t, Kind.REMOVE, "strict").getPackage().getName());
+
+		// widget provides gadget=2.0, which doesn't match
+		t = resolve(false, "widget");
+		assertNull(find(t, Kind.REMOVE, "strict"));
+		assertEquals(1, t.getSteps().size());
+	}
+
+	@Test
+	public void testConflictBetweenIncoming() {
+		Transaction t = resolve(false, "mta-b", "mta-c");
+		assertTrue(t.getProblems().contains("conflict: mta-b and mta-c can't be installed together"));
+		assertEquals(1, t.getProblems().size());
+	}
+
+	@Test
+	public void testDowngradeAndReinstall() {
+		Transaction t = resolve(false, "tool", "zlib");
+		Step s = find(t, Kind.DOWNGRADE, "tool");
+		assertEquals("1.0-1", s.getOld().getRepoVersion());
+		assertEquals("0.9-1", s.getPackage().getRepoVersion());
+		assertNotNull(find(t, Kind.REINSTALL, "zlib"));
+		assertEquals(2, t.getSteps().size());
+		assertEquals("1 to downgrade, 1 to reinstall", t.getSummary().split(";")[0]);
+	}
+
+	@Test
+	public void testUnsatisfied() {
+		Transaction t = resolve(false, "app", "legacy", "nosuch");
+		assertEquals(Arrays.asList(
+				"target not found: nosuch",
+				"unsatisfied dependency: missing>=3 (required by app)",
+				"unsatisfied dependency: readline<6 (required by legacy)"),
+				sorted(t.getProblems()));
+	}
+
+	@Test
+	public void testSizes() {
+		// glibc is cached: nothing to download
+		Transaction t = resolve(false, "glibc");
+		assertEquals(0, t.getDownloadSize());
+		assertEquals(50000 - 48000, t.getInstalledSizeChange());
+
+		t = resolve(false, "zlib");
+		assertEquals(1000, t.getDownloadSize());
+		assertEquals(4000 - 3000, t.getInstalledSizeChange());
+	}
+
+	private static Transaction resolve(boolean sysupgrade, String... targets) {
+		return resolver.resolve(Arrays.asList(targets), sysupgrade);
+	}
+
+	/**
+	 * Finds the step of a kind affecting a package: the one coming in, or
+	 * for REPLACE and REMOVE the one going away.
+	 *
+	 * @return Step; null if none
+	 */
+	private static Step find(Transaction t, Kind kind, String name) {
+		for (Step s : t.getSteps()) {
+			if (s.getKind() != kind)
+				continue;
+			boolean leaving = kind == Kind.REPLACE || kind == Kind.REMOVE;
+			if ((leaving ? s.getOld() : s.getPackage()).getName().equals(name))
+				return s;
+		}
+		return null;
+	}
+
+	private static List<String> sorted(List<String> l) {
+		ArrayList<String> result = new ArrayList<String>(l);
+		Collections.sort(result);
+		return result;
+	}
+
+	/**
+	 * Packs the package directories of a repository into a sync database.
+	 *
+	 * @param dir Directory with a 'name-version/desc' per package
+	 * @param db Sync database to write
+	 */
+	private static void packSyncDb(File dir, File db) throws IOException {
+		OutputStream os = new GZIPOutputStream(new FileOutputStream(db));
+		TarArchiveOutputStream tar = new TarArchiveOutputStream(os);
+		try {
+			File[] pkgs = dir.listFiles();
+			Arrays.sort(pkgs);
+			for (File pkg : pkgs) {
+				tar.putArchiveEntry(new TarArchiveEntry(pkg.getName() + "/"));
+				tar.closeArchiveEntry();
+				byte[] desc = FileUtils.readFileToByteArray(new File(pkg, "desc"));
+				TarArchiveEntry entry = new TarArchiveEntry(pkg.getName() + "/desc");
+				entry.setSize(desc.length);
+				tar.putArchiveEntry(entry);
+				tar.write(desc);
+				tar.closeArchiveEntry();
+			}
+		} finally {
+			tar.close();
+		}
+	}
+}